@@ -0,0 +1,29 @@
+package bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.Socket;
+
+// Helpers shared by the benchmarks that start servers
+final class BenchSupport {
+    private BenchSupport() {
+    }
+
+    // The java launcher of this JVM, for starting servers as separate processes
+    static String javaCommand() {
+        return System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+    }
+
+    // Returns once something accepts connections on the port, waiting up to ten seconds
+    static void waitForServer(String host, int port) throws InterruptedException {
+        for (int i = 0; i < 100; i++) {
+            try {
+                new Socket(host, port).close();
+                return;
+            } catch (IOException e) {
+                Thread.sleep(100);
+            }
+        }
+        throw new IllegalStateException("Server did not start on port " + port);
+    }
+}
@@ -0,0 +1,212 @@
+package bench;
+
+import src.CollabClient;
+import src.CollabServer;
+import src.model.TextEdit;
+
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Kills a server that has a hot standby while a document is being edited,
+ * then checks that the clients moved to the standby and that every client
+ * ended up with the same text, with no edit lost.
+ *
+ * Compile and run from the project root, with the SQLite driver on the
+ * classpath if you have it (without it the servers log database errors,
+ * which doesn't affect the test):
+ *   javac -d . src/model/*.java src/service/*.java src/util/*.java src/*.java bench/BenchSupport.java bench/FailoverTest.java
+ *   java -cp .:sqlite-jdbc.jar bench.FailoverTest
+ *
+ * Starts the leader on port 5600 and its standby on 5601 as separate
+ * processes, with their output in failover-<port>.log. Replication is
+ * synchronous unless run with -Dreplication=async. The leader is killed
+ * outright, as in a crash, partway through the typing.
+ */
+public class FailoverTest {
+    private static final String HOST = "localhost";
+    private static final int LEADER_PORT = 5600;
+    private static final int STANDBY_PORT = 5601;
+    private static final int READERS = 2;
+    private static final int EDIT_MILLIS = 20;
+    private static final long TYPE_BEFORE_MILLIS = 3000;
+    private static final long TYPE_AFTER_MILLIS = 8000;
+    private static final long SETTLE_MILLIS = 5000;
+
+    // A client's copy of the document, kept the way the editor keeps it: on the EDT
+    private static final class Replica implements CollabClient.MessageListener {
+        final String username;
+        final StringBuilder text = new StringBuilder();
+        volatile boolean synced = false;
+        volatile int conflicts = 0;
+        // When the client last got its connection back, in nanoTime
+        volatile long reconnected = 0;
+        CollabClient client;
+
+        Replica(String username) {
+            this.username = username;
+        }
+
+        // A new document is current as soon as it arrives; one opened from a local copy once caught up
+        @Override public void onDocumentReceived(String content) { text.setLength(0); text.append(content); synced = true; }
+        @Override public void onDocumentCached(String content) { text.setLength(0); text.append(content); }
+        @Override public void onDocumentSynced() { synced = true; }
+        @Override public void onEditConflicts(String documentName, List<TextEdit> discarded) { conflicts += discarded.size(); }
+        @Override public void onDocumentUpdated(String content) { text.setLength(0); text.append(content); }
+        @Override public void onDocumentChunk(String chunk, int offset, int totalLength) {
+            if (offset == 0) {
+                text.setLength(0);
+            }
+            text.append(chunk);
+        }
+        @Override public void onDocumentPatched(TextEdit edit) {
+            text.replace(edit.getOffset(), edit.getOffset() + edit.getRemovedLength(), edit.getText());
+        }
+        @Override public void onDocumentListReceived(List<String> documents) { }
+        @Override public void onDocumentPageReceived(int offset, int total, String prefix, List<String> documents) { }
+        @Override public void onCatalogChanged(CollabClient.CatalogChange change, String documentName) { }
+        @Override public void onDeleteFailed(String documentName) { }
+        @Override public void onConnectionStatusChanged(boolean connected) {
+            if (connected) {
+                reconnected = System.nanoTime();
+            }
+        }
+        @Override public void onUserJoined(String documentName, String username) { }
+        @Override public void onUserLeft(String documentName, String username) { }
+        @Override public void onActiveUsersUpdated(String documentName, List<String> users) { }
+        @Override public void onCursorPositionChanged(String username, int position) { }
+        @Override public void onDocumentVersionsReceived(String documentName, List<CollabClient.VersionInfo> versions) { }
+        @Override public void onVersionContentReceived(String content) { }
+    }
+
+    // Types "w0 w1 w2 ..." at the end of the document, like a user would, connected or not
+    private static final class Writer {
+        final Replica replica;
+        final Timer timer;
+        int words = 0;
+
+        Writer(Replica replica) {
+            this.replica = replica;
+            this.timer = new Timer(EDIT_MILLIS, e -> type());
+        }
+
+        private void type() {
+            if (!replica.synced) {
+                return;
+            }
+            replica.text.append("w").append(words++).append(' ');
+            replica.client.sendText(replica.text.toString());
+        }
+
+        String expected() {
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < words; i++) {
+                sb.append("w").append(i).append(' ');
+            }
+            return sb.toString();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        // Creates the session key both servers will share before either of them starts
+        CollabServer.issueSessionToken("node:failover-test");
+        System.setProperty("collab.replicaDir", Files.createTempDirectory("failover-replicas").toString());
+        String replication = System.getProperty("replication", "sync");
+
+        List<Process> servers = new ArrayList<>();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> servers.forEach(Process::destroy)));
+        Process leader = start(LEADER_PORT, "-Dcollab.replication=" + replication);
+        servers.add(leader);
+        BenchSupport.waitForServer(HOST, LEADER_PORT);
+        servers.add(start(STANDBY_PORT, "-Dcollab.follow=" + HOST + ":" + LEADER_PORT));
+        // Until the standby has attached the leader has nothing to replicate to
+        Thread.sleep(2000);
+
+        String document = "failover-" + Long.toString(System.currentTimeMillis(), 36);
+        Writer writer = new Writer(open("writer", document));
+        List<Replica> readers = new ArrayList<>();
+        for (int r = 0; r < READERS; r++) {
+            readers.add(open("reader" + r, document));
+        }
+        Thread.sleep(1000);
+        SwingUtilities.invokeAndWait(writer.timer::start);
+
+        Thread.sleep(TYPE_BEFORE_MILLIS);
+        long killed = System.nanoTime();
+        leader.destroyForcibly().waitFor();
+        int[] typedBefore = new int[1];
+        SwingUtilities.invokeAndWait(() -> typedBefore[0] = writer.words);
+        System.out.println("Leader killed after " + typedBefore[0] + " edits");
+
+        Thread.sleep(TYPE_AFTER_MILLIS);
+        SwingUtilities.invokeAndWait(writer.timer::stop);
+        Thread.sleep(SETTLE_MILLIS);
+
+        String[] expected = new String[1];
+        String[] writerText = new String[1];
+        List<String> readerTexts = new ArrayList<>();
+        SwingUtilities.invokeAndWait(() -> {
+            expected[0] = writer.expected();
+            writerText[0] = writer.replica.text.toString();
+            for (Replica reader : readers) {
+                readerTexts.add(reader.text.toString());
+            }
+        });
+        // A client that joins now, straight to the standby
+        Replica late = new Replica("late");
+        late.client = new CollabClient(HOST, STANDBY_PORT, "late", CollabServer.issueSessionToken("late"), late);
+        SwingUtilities.invokeAndWait(() -> late.client.joinDocument(document));
+        Thread.sleep(1000);
+        String[] lateText = new String[1];
+        SwingUtilities.invokeAndWait(() -> lateText[0] = late.text.toString());
+
+        boolean ok = writerText[0].equals(expected[0]) && lateText[0].equals(expected[0]);
+        for (String text : readerTexts) {
+            ok &= text.equals(expected[0]);
+        }
+        System.out.printf("%s replication: %d edits, %s%s%n", replication, writer.words, ok ? "converged" : "DIVERGED",
+                          writer.replica.conflicts > 0 ? " (" + writer.replica.conflicts + " conflicts)" : "");
+        if (!ok) {
+            StringBuilder lengths = new StringBuilder();
+            for (String text : readerTexts) {
+                lengths.append(text.length()).append(' ');
+            }
+            System.out.println("  expected " + expected[0].length() + " chars, writer " + writerText[0].length() +
+                               ", readers " + lengths + "late joiner " + lateText[0].length());
+        }
+
+        boolean failedOver = true;
+        List<Replica> clients = new ArrayList<>(readers);
+        clients.add(0, writer.replica);
+        for (Replica client : clients) {
+            if (client.reconnected > killed) {
+                System.out.printf("%-8s back after %d ms%n", client.username, (client.reconnected - killed) / 1_000_000);
+            } else {
+                System.out.printf("%-8s never reconnected%n", client.username);
+                failedOver = false;
+            }
+        }
+        System.out.println(ok && failedOver ? "PASS" : "FAIL");
+        System.exit(ok && failedOver ? 0 : 1);
+    }
+
+    private static Process start(int port, String option) throws IOException {
+        return new ProcessBuilder(BenchSupport.javaCommand(), "-cp", System.getProperty("java.class.path"),
+                                  "-Dcollab.port=" + port, option, "src.CollabServer")
+            .redirectErrorStream(true)
+            .redirectOutput(new File("failover-" + port + ".log"))
+            .start();
+    }
+
+    private static Replica open(String username, String document) throws Exception {
+        Replica replica = new Replica(username);
+        replica.client = new CollabClient(HOST, LEADER_PORT, username, CollabServer.issueSessionToken(username), replica);
+        SwingUtilities.invokeAndWait(() -> replica.client.joinDocument(document));
+        return replica;
+    }
+}
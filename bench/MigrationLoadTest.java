@@ -0,0 +1,252 @@
+package bench;
+
+import src.CollabClient;
+import src.CollabServer;
+import src.model.TextEdit;
+
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
+import java.io.*;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Moves documents back and forth between two cluster nodes while they are
+ * being edited, then checks that every client ended up with the same text
+ * and that no edit was lost.
+ *
+ * Compile and run from the project root, with the SQLite driver on the
+ * classpath if you have it (without it the servers log database errors,
+ * which doesn't affect the test):
+ *   javac -d . src/model/*.java src/service/*.java src/util/*.java src/*.java bench/BenchSupport.java bench/MigrationLoadTest.java
+ *   java -cp .:sqlite-jdbc.jar bench.MigrationLoadTest
+ *
+ * Starts the two nodes as separate processes on ports 5200 and 5201, with
+ * their output in migration-node-<port>.log. Each document has one writer
+ * typing numbered words at the end and two readers. One writer per
+ * document, because the protocol keeps the last text sent: two writers
+ * would overwrite each other's concurrent edits with or without a move.
+ */
+public class MigrationLoadTest {
+    private static final String HOST = "localhost";
+    private static final int[] PORTS = {5200, 5201};
+    private static final int DOCUMENTS = 3;
+    private static final int READERS = 2;
+    private static final int EDIT_MILLIS = 20;
+    private static final int MIGRATIONS = 6;
+    private static final long MIGRATION_INTERVAL_MILLIS = 1500;
+    private static final long SETTLE_MILLIS = 5000;
+
+    // A client's copy of the document, kept the way the editor keeps it: on the EDT
+    private static final class Replica implements CollabClient.MessageListener {
+        final String username;
+        final StringBuilder text = new StringBuilder();
+        volatile boolean synced = false;
+        volatile int conflicts = 0;
+        CollabClient client;
+
+        Replica(String username) {
+            this.username = username;
+        }
+
+        @Override public void onDocumentReceived(String content) { text.setLength(0); text.append(content); }
+        @Override public void onDocumentCached(String content) { text.setLength(0); text.append(content); }
+        @Override public void onDocumentSynced() { synced = true; }
+        @Override public void onEditConflicts(String documentName, List<TextEdit> discarded) { conflicts += discarded.size(); }
+        @Override public void onDocumentUpdated(String content) { text.setLength(0); text.append(content); }
+        @Override public void onDocumentChunk(String chunk, int offset, int totalLength) {
+            if (offset == 0) {
+                text.setLength(0);
+            }
+            text.append(chunk);
+        }
+        @Override public void onDocumentPatched(TextEdit edit) {
+            text.replace(edit.getOffset(), edit.getOffset() + edit.getRemovedLength(), edit.getText());
+        }
+        @Override public void onDocumentListReceived(List<String> documents) { }
+        @Override public void onDocumentPageReceived(int offset, int total, String prefix, List<String> documents) { }
+        @Override public void onCatalogChanged(CollabClient.CatalogChange change, String documentName) { }
+        @Override public void onDeleteFailed(String documentName) { }
+        @Override public void onConnectionStatusChanged(boolean connected) { }
+        @Override public void onUserJoined(String documentName, String username) { }
+        @Override public void onUserLeft(String documentName, String username) { }
+        @Override public void onActiveUsersUpdated(String documentName, List<String> users) { }
+        @Override public void onCursorPositionChanged(String username, int position) { }
+        @Override public void onDocumentVersionsReceived(String documentName, List<CollabClient.VersionInfo> versions) { }
+        @Override public void onVersionContentReceived(String content) { }
+    }
+
+    // Types "w0 w1 w2 ..." at the end of the document, like a user would
+    private static final class Writer {
+        final Replica replica;
+        final Timer timer;
+        int words = 0;
+
+        Writer(Replica replica) {
+            this.replica = replica;
+            this.timer = new Timer(EDIT_MILLIS, e -> type());
+        }
+
+        private void type() {
+            if (!replica.synced) {
+                return;
+            }
+            replica.text.append("w").append(words++).append(' ');
+            replica.client.sendText(replica.text.toString());
+        }
+
+        String expected() {
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < words; i++) {
+                sb.append("w").append(i).append(' ');
+            }
+            return sb.toString();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        // Creates the session key the nodes will share before either of them starts
+        String adminToken = CollabServer.issueSessionToken("node:migration-test");
+        System.setProperty("collab.replicaDir", Files.createTempDirectory("migration-replicas").toString());
+
+        List<Process> nodes = new ArrayList<>();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> nodes.forEach(Process::destroy)));
+        String members = HOST + ":" + PORTS[0] + "," + HOST + ":" + PORTS[1];
+        for (int port : PORTS) {
+            nodes.add(new ProcessBuilder(BenchSupport.javaCommand(), "-cp", System.getProperty("java.class.path"),
+                                         "-Dcollab.port=" + port, "-Dcollab.cluster=" + members, "src.CollabServer")
+                .redirectErrorStream(true)
+                .redirectOutput(new File("migration-node-" + port + ".log"))
+                .start());
+        }
+        for (int port : PORTS) {
+            BenchSupport.waitForServer(HOST, port);
+        }
+
+        String run = Long.toString(System.currentTimeMillis(), 36);
+        List<String> documents = new ArrayList<>();
+        List<Writer> writers = new ArrayList<>();
+        List<List<Replica>> readers = new ArrayList<>();
+        for (int d = 0; d < DOCUMENTS; d++) {
+            String document = "migration-" + run + "-" + d;
+            documents.add(document);
+            Writer writer = new Writer(open("writer" + d, PORTS[d % 2], document));
+            writers.add(writer);
+            List<Replica> docReaders = new ArrayList<>();
+            for (int r = 0; r < READERS; r++) {
+                docReaders.add(open("reader" + d + "-" + r, PORTS[(d + r + 1) % 2], document));
+            }
+            readers.add(docReaders);
+        }
+        Thread.sleep(1000);
+        SwingUtilities.invokeAndWait(() -> writers.forEach(w -> w.timer.start()));
+
+        // Each document goes back and forth while its writer keeps typing
+        List<Long> moveMillis = new ArrayList<>();
+        int failed = 0;
+        for (int i = 0; i < MIGRATIONS; i++) {
+            Thread.sleep(MIGRATION_INTERVAL_MILLIS);
+            for (String document : documents) {
+                long start = System.nanoTime();
+                String result = migrate(adminToken, document, PORTS[i % 2 == 0 ? 1 : 0]);
+                if (result == null) {
+                    moveMillis.add((System.nanoTime() - start) / 1_000_000);
+                } else if (!result.startsWith("already on")) {
+                    System.out.println("Move of " + document + " failed: " + result);
+                    failed++;
+                }
+            }
+        }
+
+        SwingUtilities.invokeAndWait(() -> writers.forEach(w -> w.timer.stop()));
+        Thread.sleep(SETTLE_MILLIS);
+
+        boolean converged = true;
+        for (int d = 0; d < DOCUMENTS; d++) {
+            Writer writer = writers.get(d);
+            List<Replica> docReaders = readers.get(d);
+            String[] expected = new String[1];
+            String[] writerText = new String[1];
+            List<String> readerTexts = new ArrayList<>();
+            SwingUtilities.invokeAndWait(() -> {
+                expected[0] = writer.expected();
+                writerText[0] = writer.replica.text.toString();
+                for (Replica reader : docReaders) {
+                    readerTexts.add(reader.text.toString());
+                }
+            });
+            // A client that joins now, through the node that doesn't have the document at the start
+            Replica late = open("late" + d, PORTS[(d + 1) % 2], documents.get(d));
+            Thread.sleep(1000);
+            String[] lateText = new String[1];
+            SwingUtilities.invokeAndWait(() -> lateText[0] = late.text.toString());
+
+            boolean ok = writerText[0].equals(expected[0]) && lateText[0].equals(expected[0]);
+            for (String text : readerTexts) {
+                ok &= text.equals(expected[0]);
+            }
+            converged &= ok;
+            System.out.printf("%-28s %5d edits  %s%s%n", documents.get(d), writer.words, ok ? "converged" : "DIVERGED",
+                              writer.replica.conflicts > 0 ? " (" + writer.replica.conflicts + " conflicts)" : "");
+            if (!ok) {
+                StringBuilder lengths = new StringBuilder();
+                for (String text : readerTexts) {
+                    lengths.append(text.length()).append(' ');
+                }
+                System.out.println("  expected " + expected[0].length() + " chars, writer " + writerText[0].length() +
+                                   ", readers " + lengths + "late joiner " + lateText[0].length());
+            }
+        }
+
+        long total = 0;
+        long worst = 0;
+        for (long millis : moveMillis) {
+            total += millis;
+            worst = Math.max(worst, millis);
+        }
+        System.out.printf("%d moves, %d failed, %.1f ms average, %d ms worst%n", moveMillis.size(), failed,
+                          moveMillis.isEmpty() ? 0.0 : (double) total / moveMillis.size(), worst);
+        System.out.println(converged && failed == 0 ? "PASS" : "FAIL");
+        System.exit(converged && failed == 0 ? 0 : 1);
+    }
+
+    private static Replica open(String username, int port, String document) throws Exception {
+        Replica replica = new Replica(username);
+        replica.client = new CollabClient(HOST, port, username, CollabServer.issueSessionToken(username), replica);
+        SwingUtilities.invokeAndWait(() -> replica.client.joinDocument(document));
+        return replica;
+    }
+
+    // Asks the owner to move the document, following redirects; null when moved, otherwise why not
+    private static String migrate(String token, String document, int targetPort) throws IOException {
+        int port = PORTS[0];
+        for (int hops = 0; hops < PORTS.length + 1; hops++) {
+            try (Socket socket = new Socket(HOST, port)) {
+                PrintWriter out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), true);
+                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+                out.println("RESUME:" + token);
+                out.println("MIGRATE:" + HOST + ":" + targetPort + ":" + document);
+                String line;
+                while ((line = in.readLine()) != null) {
+                    if (line.startsWith("MIGRATED:")) {
+                        return null;
+                    }
+                    if (line.startsWith("MIGRATE_FAILED:")) {
+                        return line.substring(16 + document.length());
+                    }
+                    if (line.startsWith("REDIRECT:")) {
+                        port = Integer.parseInt(line.split(":")[2]);
+                        break;
+                    }
+                }
+            }
+            if (port == targetPort) {
+                return "already on " + HOST + ":" + targetPort;
+            }
+        }
+        return "no owner found";
+    }
+}
@@ -0,0 +1,157 @@
+package bench;
+
+import src.CollabServer;
+import src.util.WireCodec;
+
+import java.io.*;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Bytes a client receives when it comes back to a document after a dropped
+ * connection: a plain JOIN (full reload) against a REJOIN with the revision
+ * it last saw (catch-up with the missed edits only). The REJOIN carries no
+ * content hash, so only the revision is used.
+ *
+ * Compile and run from the project root, with the SQLite driver on the
+ * classpath if you have it (without it the server logs database errors,
+ * which doesn't affect the numbers):
+ *   javac -d . src/model/*.java src/service/*.java src/util/*.java src/*.java bench/BenchSupport.java bench/ReconnectBenchmark.java
+ *   java -cp .:sqlite-jdbc.jar bench.ReconnectBenchmark
+ *
+ * Starts the server in-process on its usual port. A writer puts a 1 MB
+ * document in place, a reader joins and drops off, the writer makes ten
+ * edits, then the reader comes back both ways.
+ */
+public class ReconnectBenchmark {
+    private static final String HOST = "localhost";
+    private static final int PORT = 5000;
+    private static final int DOCUMENT_CHARS = 1024 * 1024;
+    private static final int MISSED_EDITS = 10;
+
+    // One raw protocol connection that counts every byte it reads
+    private static final class Connection implements Closeable {
+        final Socket socket;
+        final PrintWriter out;
+        final CountingInputStream counter;
+        final BufferedReader in;
+
+        Connection(String username) throws IOException {
+            socket = new Socket(HOST, PORT);
+            out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), true);
+            counter = new CountingInputStream(socket.getInputStream());
+            in = new BufferedReader(new InputStreamReader(counter, StandardCharsets.UTF_8));
+            out.println("RESUME:" + CollabServer.issueSessionToken(username));
+            String reply = in.readLine();
+            if (reply == null || !reply.startsWith("AUTH_OK:")) {
+                throw new IOException("Login failed: " + reply);
+            }
+        }
+
+        // Reads until a frame with the given prefix; returns it
+        String readUntil(String prefix) throws IOException {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.startsWith(prefix)) {
+                    return line;
+                }
+            }
+            throw new EOFException("Connection closed before " + prefix);
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+
+    private static final class CountingInputStream extends FilterInputStream {
+        long count = 0;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int n = super.read(buffer, offset, length);
+            if (n > 0) {
+                count += n;
+            }
+            return n;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Thread server = new Thread(() -> CollabServer.main(new String[0]), "server");
+        server.setDaemon(true);
+        server.start();
+        BenchSupport.waitForServer(HOST, PORT);
+
+        String document = "reconnect-bench-" + System.currentTimeMillis();
+        StringBuilder text = new StringBuilder(sampleText(DOCUMENT_CHARS));
+
+        try (Connection writer = new Connection("bench-writer")) {
+            writer.out.println("JOIN:" + document);
+            writer.readUntil("REV:");
+            writer.out.println("TEXT:" + WireCodec.escape(text.toString()));
+            writer.readUntil("ACK:");
+
+            // The reader has the document and notes the revision it saw
+            String[] revision;
+            try (Connection reader = new Connection("bench-reader")) {
+                reader.out.println("JOIN:" + document);
+                revision = reader.readUntil("REV:").substring(4).split(":");
+            }
+
+            // Edits made while the reader is away
+            for (int i = 0; i < MISSED_EDITS; i++) {
+                int offset = (i + 1) * DOCUMENT_CHARS / (MISSED_EDITS + 1);
+                text.replace(offset, offset + 5, "edit " + i + " ");
+                writer.out.println("TEXT:" + WireCodec.escape(text.toString()));
+                writer.readUntil("ACK:");
+            }
+
+            long full = measure("JOIN:" + document);
+            long catchUp = measure("REJOIN:" + revision[0] + ":" + revision[1] + "::" + document);
+
+            System.out.printf("%-34s %12s%n", "reconnect (1 MB, " + MISSED_EDITS + " missed edits)", "bytes");
+            System.out.printf("%-34s %,12d%n", "full reload (JOIN)", full);
+            System.out.printf("%-34s %,12d%n", "catch-up (REJOIN)", catchUp);
+            System.out.printf("%-34s %11.0fx%n", "reduction", (double) full / Math.max(1, catchUp));
+        }
+        System.exit(0);
+    }
+
+    // Bytes received from sending the request until the revision that ends the content
+    private static long measure(String request) throws IOException {
+        try (Connection reader = new Connection("bench-reader")) {
+            // Skip the greeting (first page of the document list)
+            reader.readUntil("LIST_PAGE:");
+            long before = reader.counter.count;
+            reader.out.println(request);
+            reader.readUntil("REV:");
+            // The reader may have buffered a little past the REV frame; presence frames are the same either way
+            return reader.counter.count - before;
+        }
+    }
+
+
+    private static String sampleText(int size) {
+        String line = "The quick brown fox jumps over the lazy dog. Collaborative editing test line.\n";
+        StringBuilder sb = new StringBuilder(size + line.length());
+        while (sb.length() < size) {
+            sb.append(line);
+        }
+        return sb.substring(0, size);
+    }
+}
@@ -0,0 +1,99 @@
+package bench;
+
+import src.model.TextEdit;
+import src.model.TextRope;
+
+import java.util.Random;
+
+/**
+ * Edit throughput of the server document buffer versus document size.
+ *
+ * Compile and run from the project root:
+ *   javac -d . src/model/*.java bench/RopeEditBenchmark.java
+ *   java -cp . bench.RopeEditBenchmark
+ *
+ * For each size it reports single-character insert+delete throughput on a
+ * TextRope, the same edit on a plain String (what the server did before),
+ * and the full TEXT: path (diff against the rope, then apply).
+ */
+public class RopeEditBenchmark {
+    private static final int[] SIZES = { 16 * 1024, 256 * 1024, 1024 * 1024, 5 * 1024 * 1024, 20 * 1024 * 1024 };
+    private static final int WARMUP_ITERATIONS = 3;
+    private static final int MEASURE_ITERATIONS = 5;
+    private static final long ITERATION_NANOS = 500_000_000L;
+
+    private interface Operation {
+        void run(Random random);
+    }
+
+    public static void main(String[] args) {
+        System.out.printf("%-10s %18s %18s %18s%n", "size", "rope edits/s", "string edits/s", "diff+apply/s");
+        for (int size : SIZES) {
+            String text = sampleText(size);
+
+            TextRope[] rope = { TextRope.of(text) };
+            double ropeRate = measure(random -> {
+                int offset = random.nextInt(rope[0].length());
+                rope[0] = rope[0].insert(offset, "x").delete(offset, 1);
+            });
+
+            String[] string = { text };
+            double stringRate = measure(random -> {
+                int offset = random.nextInt(string[0].length());
+                String inserted = string[0].substring(0, offset) + "x" + string[0].substring(offset);
+                string[0] = inserted.substring(0, offset) + inserted.substring(offset + 1);
+            });
+
+            // A client sends the whole text after typing one character
+            TextRope[] current = { TextRope.of(text) };
+            String[] typed = { text.substring(0, size / 2) + "x" + text.substring(size / 2) };
+            double diffRate = measure(random -> {
+                TextRope base = current[0];
+                TextEdit edit = TextEdit.between(base, typed[0]);
+                edit.applyTo(base);
+            });
+
+            System.out.printf("%-10s %18.0f %18.0f %18.1f%n", formatSize(size), ropeRate, stringRate, diffRate);
+        }
+    }
+
+    private static double measure(Operation operation) {
+        Random random = new Random(42);
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            runFor(operation, random);
+        }
+        double best = 0;
+        for (int i = 0; i < MEASURE_ITERATIONS; i++) {
+            best = Math.max(best, runFor(operation, random));
+        }
+        return best;
+    }
+
+    // Returns operations per second over one timed iteration
+    private static double runFor(Operation operation, Random random) {
+        long start = System.nanoTime();
+        long deadline = start + ITERATION_NANOS;
+        long count = 0;
+        long now;
+        do {
+            operation.run(random);
+            count++;
+            now = System.nanoTime();
+        } while (now < deadline);
+        return count * 1e9 / (now - start);
+    }
+
+    private static String sampleText(int size) {
+        StringBuilder sb = new StringBuilder(size);
+        Random random = new Random(7);
+        while (sb.length() < size) {
+            sb.append("word").append(random.nextInt(1000)).append(sb.length() % 80 < 6 ? '\n' : ' ');
+        }
+        sb.setLength(size);
+        return sb.toString();
+    }
+
+    private static String formatSize(int size) {
+        return size >= 1024 * 1024 ? (size / (1024 * 1024)) + " MB" : (size / 1024) + " KB";
+    }
+}
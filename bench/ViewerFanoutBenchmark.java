@@ -0,0 +1,322 @@
+package bench;
+
+import src.CollabServer;
+import src.util.WireCodec;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * End-to-end latency of edits reaching a large read-only audience: one
+ * writer edits a document while 20,000 viewers watch it on the viewer
+ * port, and every viewer records how long each edit took to arrive.
+ *
+ * Compile and run from the project root, with the SQLite driver on the
+ * classpath if you have it (without it the servers log database errors,
+ * which doesn't affect the numbers):
+ *   javac -d . src/model/*.java src/service/*.java src/util/*.java src/*.java bench/BenchSupport.java bench/ViewerFanoutBenchmark.java
+ *   java -cp .:sqlite-jdbc.jar bench.ViewerFanoutBenchmark
+ * Options as system properties: -Dviewers=20000 -Dedits=200 -DeditMillis=100.
+ *
+ * Starts two cluster nodes as separate processes on ports 5400 and 5401
+ * (viewers on 6400 and 6401), with their output in viewer-node-<port>.log.
+ * Viewers are split evenly between the nodes, so half of them watch
+ * through the node that doesn't own the document and is following it over
+ * the message bus. They run in child processes of 5,000 each, which keeps
+ * every process well inside a typical open file limit. Each edit appends
+ * the writer's System.nanoTime(); all processes are on one machine and
+ * share that clock, so a viewer's latency is its own nanoTime on arrival
+ * minus that.
+ */
+public class ViewerFanoutBenchmark {
+    private static final String HOST = "localhost";
+    private static final int[] PORTS = {5400, 5401};
+    private static final int VIEWER_PORT_OFFSET = 1000;
+    private static final int VIEWERS = Integer.getInteger("viewers", 20_000);
+    private static final int EDITS = Integer.getInteger("edits", 200);
+    private static final long EDIT_MILLIS = Long.getLong("editMillis", 100);
+    private static final int VIEWERS_PER_PROCESS = 5000;
+    private static final long SETTLE_MILLIS = 5000;
+    // Histogram buckets of 100 microseconds, up to a minute
+    private static final int BUCKET_MICROS = 100;
+    private static final int BUCKETS = 600_000;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length == 4 && args[0].equals("--viewers")) {
+            runViewers(Integer.parseInt(args[1]), Integer.parseInt(args[2]), args[3]);
+            System.exit(0);
+        }
+
+        // Creates the session key the nodes will share before either of them starts
+        String writerToken = CollabServer.issueSessionToken("fanout-writer");
+        List<Process> processes = new ArrayList<>();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> processes.forEach(Process::destroy)));
+        String members = HOST + ":" + PORTS[0] + "," + HOST + ":" + PORTS[1];
+        for (int port : PORTS) {
+            processes.add(new ProcessBuilder(BenchSupport.javaCommand(), "-cp", System.getProperty("java.class.path"),
+                                             "-Dcollab.port=" + port, "-Dcollab.cluster=" + members, "src.CollabServer")
+                .redirectErrorStream(true)
+                .redirectOutput(new File("viewer-node-" + port + ".log"))
+                .start());
+        }
+        for (int port : PORTS) {
+            BenchSupport.waitForServer(HOST, port);
+            BenchSupport.waitForServer(HOST, port + VIEWER_PORT_OFFSET);
+        }
+
+        String document = "fanout-" + Long.toString(System.currentTimeMillis(), 36);
+        Writer writer = new Writer(writerToken, document);
+
+        // Viewer processes, alternating between the nodes
+        List<Process> viewers = new ArrayList<>();
+        int remaining = VIEWERS;
+        for (int i = 0; remaining > 0; i++) {
+            int count = Math.min(VIEWERS_PER_PROCESS, remaining);
+            remaining -= count;
+            Process process = new ProcessBuilder(BenchSupport.javaCommand(), "-cp", System.getProperty("java.class.path"),
+                                                 "-Dedits=" + EDITS, "bench.ViewerFanoutBenchmark", "--viewers",
+                                                 Integer.toString(PORTS[i % PORTS.length] + VIEWER_PORT_OFFSET),
+                                                 Integer.toString(count), document)
+                .redirectError(ProcessBuilder.Redirect.INHERIT)
+                .start();
+            processes.add(process);
+            viewers.add(process);
+        }
+        long start = System.nanoTime();
+        List<BufferedReader> results = new ArrayList<>();
+        for (Process process : viewers) {
+            BufferedReader in = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8));
+            String line = in.readLine();
+            if (line == null || !line.startsWith("READY")) {
+                throw new IllegalStateException("Viewer process failed: " + line);
+            }
+            results.add(in);
+        }
+        System.out.printf("%d viewers watching %s after %d ms%n", VIEWERS, document, (System.nanoTime() - start) / 1_000_000);
+
+        for (int i = 0; i < EDITS; i++) {
+            writer.append("|" + System.nanoTime());
+            Thread.sleep(EDIT_MILLIS);
+        }
+        Thread.sleep(SETTLE_MILLIS);
+
+        long[] histogram = new long[BUCKETS];
+        long received = 0;
+        long complete = 0;
+        long resyncs = 0;
+        for (int i = 0; i < viewers.size(); i++) {
+            viewers.get(i).getOutputStream().write("STOP\n".getBytes(StandardCharsets.UTF_8));
+            viewers.get(i).getOutputStream().flush();
+            String[] fields = results.get(i).readLine().split(" ");
+            received += Long.parseLong(fields[1]);
+            complete += Long.parseLong(fields[2]);
+            resyncs += Long.parseLong(fields[3]);
+            if (fields.length > 4) {
+                for (String bucket : fields[4].split(",")) {
+                    int separator = bucket.indexOf(':');
+                    histogram[Integer.parseInt(bucket.substring(0, separator))] += Long.parseLong(bucket.substring(separator + 1));
+                }
+            }
+        }
+        writer.close();
+
+        long expected = (long) VIEWERS * EDITS;
+        System.out.printf("%d edits, %d of %d updates delivered, %d viewers got every edit, %d resyncs%n",
+                          EDITS, received, expected, complete, resyncs);
+        System.out.printf("latency ms: p50 %.1f  p90 %.1f  p99 %.1f  p99.9 %.1f  max %.1f%n",
+                          percentile(histogram, received, 0.50), percentile(histogram, received, 0.90),
+                          percentile(histogram, received, 0.99), percentile(histogram, received, 0.999),
+                          percentile(histogram, received, 1.0));
+        System.exit(0);
+    }
+
+    // Upper edge of the bucket the given fraction of samples falls in, in milliseconds
+    private static double percentile(long[] histogram, long total, double fraction) {
+        long target = Math.max(1, (long) Math.ceil(total * fraction));
+        long seen = 0;
+        for (int i = 0; i < histogram.length; i++) {
+            seen += histogram[i];
+            if (seen >= target) {
+                return (i + 1) * BUCKET_MICROS / 1000.0;
+            }
+        }
+        return Double.NaN;
+    }
+
+    // The editor: a normal connection to the node that owns the document
+    private static final class Writer implements Closeable {
+        final StringBuilder text = new StringBuilder();
+        Socket socket;
+        PrintWriter out;
+
+        Writer(String token, String document) throws IOException {
+            int port = PORTS[0];
+            for (int hops = 0; hops < PORTS.length; hops++) {
+                socket = new Socket(HOST, port);
+                out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), true);
+                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+                out.println("RESUME:" + token);
+                out.println("JOIN:" + document);
+                String line;
+                while ((line = in.readLine()) != null && !line.startsWith("REV:") && !line.startsWith("REDIRECT:")) {
+                    // Listing and the empty document
+                }
+                if (line != null && line.startsWith("REV:")) {
+                    // ACKs and presence are of no interest, but must not fill the socket
+                    Thread drain = new Thread(() -> {
+                        try {
+                            while (in.readLine() != null) {
+                                // Discard
+                            }
+                        } catch (IOException e) {
+                            // Closed at the end
+                        }
+                    }, "writer-drain");
+                    drain.setDaemon(true);
+                    drain.start();
+                    return;
+                }
+                socket.close();
+                if (line == null) {
+                    throw new EOFException("Connection closed while joining");
+                }
+                token = CollabServer.issueSessionToken("fanout-writer");
+                port = Integer.parseInt(line.split(":")[2]);
+            }
+            throw new IOException("No owner found for " + document);
+        }
+
+        void append(String suffix) {
+            text.append(suffix);
+            out.println("TEXT:" + WireCodec.escape(text.toString()));
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+
+    // One simulated viewer's connection
+    private static final class Viewer {
+        final ByteArrayOutputStream line = new ByteArrayOutputStream(64);
+        boolean watching = false;
+        int patches = 0;
+        int resyncs = 0;
+    }
+
+    /**
+     * A viewer process: opens count connections to the viewer port, reports
+     * READY once all of them have the document, and on STOP from the parent
+     * prints RESULT received complete resyncs histogram.
+     */
+    private static void runViewers(int viewerPort, int count, String document) throws Exception {
+        Selector selector = Selector.open();
+        List<Viewer> viewers = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            String token = CollabServer.issueSessionToken("viewer" + i);
+            SocketChannel channel = SocketChannel.open(new InetSocketAddress(HOST, viewerPort));
+            channel.write(ByteBuffer.wrap(("WATCH:" + token + ":" + document + "\n").getBytes(StandardCharsets.UTF_8)));
+            channel.configureBlocking(false);
+            Viewer viewer = new Viewer();
+            channel.register(selector, SelectionKey.OP_READ, viewer);
+            viewers.add(viewer);
+        }
+
+        long[] histogram = new long[BUCKETS];
+        int[] watching = {0};
+        boolean[] stop = {false};
+        Thread stopper = new Thread(() -> {
+            try {
+                new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8)).readLine();
+            } catch (IOException e) {
+                // Parent gone; stop anyway
+            }
+            synchronized (stop) {
+                stop[0] = true;
+            }
+            selector.wakeup();
+        }, "stop-listener");
+        stopper.setDaemon(true);
+        stopper.start();
+
+        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        boolean ready = false;
+        while (true) {
+            synchronized (stop) {
+                if (stop[0]) {
+                    break;
+                }
+            }
+            selector.select(1000);
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                Viewer viewer = (Viewer) key.attachment();
+                buffer.clear();
+                int read = ((SocketChannel) key.channel()).read(buffer);
+                if (read < 0) {
+                    key.cancel();
+                    continue;
+                }
+                long now = System.nanoTime();
+                for (int i = 0; i < read; i++) {
+                    byte b = buffer.get(i);
+                    if (b != '\n') {
+                        viewer.line.write(b);
+                        continue;
+                    }
+                    String line = viewer.line.toString(StandardCharsets.UTF_8);
+                    viewer.line.reset();
+                    if (line.startsWith("DOCUMENT:")) {
+                        if (viewer.watching) {
+                            viewer.resyncs++;
+                        } else {
+                            viewer.watching = true;
+                            watching[0]++;
+                        }
+                    } else if (line.startsWith("PATCH:")) {
+                        long sent = Long.parseLong(line.substring(line.lastIndexOf('|') + 1));
+                        int bucket = (int) Math.min(BUCKETS - 1, (now - sent) / 1000 / BUCKET_MICROS);
+                        histogram[bucket]++;
+                        viewer.patches++;
+                    } else if (line.startsWith("WATCH_FAILED:")) {
+                        throw new IllegalStateException(line);
+                    }
+                }
+            }
+            if (!ready && watching[0] == count) {
+                ready = true;
+                System.out.println("READY " + count);
+                System.out.flush();
+            }
+        }
+
+        long received = 0;
+        int complete = 0;
+        int resyncs = 0;
+        for (Viewer viewer : viewers) {
+            received += viewer.patches;
+            complete += viewer.patches == EDITS ? 1 : 0;
+            resyncs += viewer.resyncs;
+        }
+        StringBuilder buckets = new StringBuilder();
+        for (int i = 0; i < BUCKETS; i++) {
+            if (histogram[i] > 0) {
+                buckets.append(buckets.length() > 0 ? "," : "").append(i).append(':').append(histogram[i]);
+            }
+        }
+        System.out.println("RESULT " + received + " " + complete + " " + resyncs + " " + buckets);
+        System.out.flush();
+    }
+}
@@ -0,0 +1,174 @@
+package src;
+
+import src.service.UserService;
+import src.util.PasswordUtil;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Server-side login. Password hashes are read from the database once per
+ * user and kept in memory, so repeated logins don't touch SQLite.
+ *
+ * A successful login returns a session token: the username and an expiry
+ * time signed with HMAC-SHA256. A reconnecting client presents the token
+ * instead of the password and is checked without any lookup. The signing
+ * key is kept in a file next to the database, so tokens survive a restart.
+ */
+class Authenticator {
+    private static final int KEY_BYTES = 32;
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+
+    private final byte[] key;
+    private final long sessionMillis;
+    // Stored password hash by username; users that don't exist aren't cached so they can register
+    private final Map<String, String> credentials = new ConcurrentHashMap<>();
+
+    public Authenticator(Path keyFile, long sessionMillis) {
+        this.key = loadKey(keyFile);
+        this.sessionMillis = sessionMillis;
+    }
+
+    // Session token for valid credentials, otherwise null
+    public String login(String username, String password) {
+        String stored = credentials.get(username);
+        if (stored == null) {
+            stored = UserService.getPasswordHash(username);
+            if (stored == null) {
+                return null;
+            }
+            credentials.put(username, stored);
+        }
+        byte[] given = PasswordUtil.hashPassword(password).getBytes(StandardCharsets.UTF_8);
+        if (!MessageDigest.isEqual(given, stored.getBytes(StandardCharsets.UTF_8))) {
+            return null;
+        }
+        return issueToken(username);
+    }
+
+    // Null on success, otherwise the reason registration was refused
+    public String register(String username, String password) {
+        if (!isValidUsername(username)) {
+            return "Username may not contain ':', ',' or ';'";
+        }
+        if (password.length() < 6) {
+            return "Password must be at least 6 characters";
+        }
+        if (credentials.containsKey(username) || UserService.userExists(username)) {
+            return "Username already exists";
+        }
+        if (!UserService.registerUser(username, password)) {
+            return "Registration failed. Please try again.";
+        }
+        credentials.put(username, PasswordUtil.hashPassword(password));
+        return null;
+    }
+
+    // The username a token was issued to, or null if it is forged or expired
+    public String resume(String token) {
+        String[] parts = token.split("\\.");
+        if (parts.length != 3) {
+            return null;
+        }
+        try {
+            String username = new String(Base64.getUrlDecoder().decode(parts[0]), StandardCharsets.UTF_8);
+            long expires = Long.parseLong(parts[1]);
+            byte[] signature = Base64.getUrlDecoder().decode(parts[2]);
+            if (!MessageDigest.isEqual(signature, sign(parts[0] + "." + parts[1]))) {
+                return null;
+            }
+            return expires > System.currentTimeMillis() ? username : null;
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    // base64url(username).expiresAt.base64url(hmac)
+    public String issueToken(String username) {
+        String payload = Base64.getUrlEncoder().withoutPadding().encodeToString(username.getBytes(StandardCharsets.UTF_8))
+                         + "." + (System.currentTimeMillis() + sessionMillis);
+        return payload + "." + Base64.getUrlEncoder().withoutPadding().encodeToString(sign(payload));
+    }
+
+    // Names are sent as a plain field in several messages
+    private static boolean isValidUsername(String username) {
+        if (username.isEmpty()) {
+            return false;
+        }
+        for (int i = 0; i < username.length(); i++) {
+            char c = username.charAt(i);
+            if (c == ':' || c == ',' || c == ';' || Character.isISOControl(c)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private byte[] sign(String payload) {
+        try {
+            Mac mac = Mac.getInstance(MAC_ALGORITHM);
+            mac.init(new SecretKeySpec(key, MAC_ALGORITHM));
+            return mac.doFinal(payload.getBytes(StandardCharsets.UTF_8));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(MAC_ALGORITHM + " not available", e);
+        }
+    }
+
+    private static byte[] loadKey(Path keyFile) {
+        try {
+            if (Files.exists(keyFile)) {
+                byte[] stored = Files.readAllBytes(keyFile);
+                if (stored.length == KEY_BYTES) {
+                    return stored;
+                }
+                System.err.println("Ignoring session key with unexpected length: " + keyFile);
+            }
+        } catch (IOException e) {
+            System.err.println("Error reading session key: " + e.getMessage());
+        }
+
+        byte[] generated = new byte[KEY_BYTES];
+        new SecureRandom().nextBytes(generated);
+        Path temp = keyFile.resolveSibling(keyFile.getFileName() + "." + ProcessHandle.current().pid() + ".tmp");
+        try {
+            Files.createDirectories(keyFile.toAbsolutePath().getParent());
+            Files.write(temp, generated);
+            // Cluster nodes sharing the directory must end up with the same key, so the first one written wins
+            Files.move(temp, keyFile);
+        } catch (FileAlreadyExistsException e) {
+            deleteQuietly(temp);
+            try {
+                byte[] stored = Files.readAllBytes(keyFile);
+                if (stored.length == KEY_BYTES) {
+                    return stored;
+                }
+            } catch (IOException readError) {
+                System.err.println("Error reading session key: " + readError.getMessage());
+            }
+        } catch (IOException e) {
+            deleteQuietly(temp);
+            // Still usable, but sessions won't survive a restart
+            System.err.println("Error writing session key: " + e.getMessage());
+        }
+        return generated;
+    }
+
+    private static void deleteQuietly(Path path) {
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            // Only a leftover temporary file
+        }
+    }
+}
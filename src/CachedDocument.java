@@ -0,0 +1,174 @@
+package src;
+
+import src.model.TextEdit;
+import src.model.TextRope;
+import src.util.ContentHash;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A document held in the server's cache. Every applied edit bumps the
+ * revision; the document is dirty until the revision has been saved.
+ * The most recent edits are kept so a client holding an older revision
+ * (such as a snapshot file or a reconnecting client) can be brought up to
+ * date with deltas. Revisions start over whenever the document is loaded,
+ * so each load gets a new epoch and a revision is only meaningful together
+ * with its epoch.
+ */
+class CachedDocument {
+    // Rough per-document overhead on top of two bytes per character
+    private static final long BASE_BYTES = 256;
+    private static final int MAX_HISTORY_EDITS = 1024;
+    private static final long MAX_HISTORY_CHARS = 1024 * 1024;
+    // Seeded from the clock so epochs don't repeat across server restarts
+    private static final AtomicLong nextEpoch = new AtomicLong(System.currentTimeMillis() << 10);
+
+    private final String name;
+    private final long epoch;
+    private volatile TextRope content;
+    private long revision = 0;
+    private long savedRevision = 0;
+
+    // Oldest first; the first edit turned revision historyBase into historyBase + 1
+    private final ArrayDeque<TextEdit> history = new ArrayDeque<>();
+    private long historyBase = 0;
+    private long historyChars = 0;
+
+    // Wire-encoded copy of the content at snapshotRevision, if any
+    private SnapshotFile snapshot = null;
+    private long snapshotRevision = 0;
+
+    // Encoded current content for joins; dropped on the next edit
+    private EncodedContent encoded = null;
+
+    // Hash of the content at contentHashRevision, for clients that kept a local copy
+    private String contentHash = null;
+    private long contentHashRevision = -1;
+
+    public CachedDocument(String name, TextRope content) {
+        this.name = name;
+        this.content = content;
+        this.epoch = nextEpoch.incrementAndGet();
+    }
+
+    /**
+     * A document moved here from another node, which keeps its epoch and
+     * revision so clients can catch up from what they already have. The
+     * history is the edits that led to the given revision, oldest first.
+     */
+    public CachedDocument(String name, TextRope content, long epoch, long revision, boolean dirty, List<TextEdit> history) {
+        this.name = name;
+        this.content = content;
+        this.epoch = epoch;
+        this.revision = revision;
+        this.savedRevision = dirty ? revision - 1 : revision;
+        this.history.addAll(history);
+        this.historyBase = revision - history.size();
+        for (TextEdit edit : history) {
+            historyChars += edit.getText().length();
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getEpoch() {
+        return epoch;
+    }
+
+    public TextRope getContent() {
+        return content;
+    }
+
+    public synchronized long getRevision() {
+        return revision;
+    }
+
+    public synchronized boolean isDirty() {
+        return revision != savedRevision;
+    }
+
+    // Returns the resulting content; empty edits leave the revision unchanged
+    public synchronized TextRope apply(TextEdit edit) {
+        if (!edit.isEmpty()) {
+            content = edit.applyTo(content);
+            revision++;
+            encoded = null;
+
+            history.addLast(edit);
+            historyChars += edit.getText().length();
+            while (history.size() > MAX_HISTORY_EDITS || historyChars > MAX_HISTORY_CHARS) {
+                historyChars -= history.removeFirst().getText().length();
+                historyBase++;
+            }
+        }
+        return content;
+    }
+
+    // Edits that turn revision 'since' into the current one, or null if they are no longer kept
+    public synchronized List<TextEdit> editsSince(long since) {
+        if (since > revision || since < historyBase) {
+            return null;
+        }
+        List<TextEdit> edits = new ArrayList<>((int) (revision - since));
+        long skip = since - historyBase;
+        for (TextEdit edit : history) {
+            if (skip > 0) {
+                skip--;
+            } else {
+                edits.add(edit);
+            }
+        }
+        return edits;
+    }
+
+    // Every edit still kept, oldest first; they end at the current revision
+    public synchronized List<TextEdit> getHistory() {
+        return new ArrayList<>(history);
+    }
+
+    // Encodes the current content at most once per revision, however many clients join
+    public synchronized EncodedContent getEncoded(int chunkChars) {
+        if (encoded == null || encoded.getRevision() != revision) {
+            encoded = EncodedContent.encode(content, revision, chunkChars);
+        }
+        return encoded;
+    }
+
+    // Computed at most once per revision
+    public synchronized String getContentHash() {
+        if (contentHash == null || contentHashRevision != revision) {
+            contentHash = ContentHash.of(content);
+            contentHashRevision = revision;
+        }
+        return contentHash;
+    }
+
+    public synchronized SnapshotFile getSnapshot() {
+        return snapshot;
+    }
+
+    public synchronized long getSnapshotRevision() {
+        return snapshotRevision;
+    }
+
+    // Returns the snapshot being replaced so the caller can retire it
+    public synchronized SnapshotFile setSnapshot(SnapshotFile snapshot, long revision) {
+        SnapshotFile previous = this.snapshot;
+        this.snapshot = snapshot;
+        this.snapshotRevision = revision;
+        return previous;
+    }
+
+    public synchronized void markSaved(long savedUpTo) {
+        savedRevision = Math.max(savedRevision, savedUpTo);
+    }
+
+    public synchronized long estimateBytes() {
+        return BASE_BYTES + (content.length() + historyChars) * 2L + (encoded != null ? encoded.getByteCount() : 0);
+    }
+}
@@ -1,28 +1,154 @@
 package src;
 
+import java.util.ArrayList;
 import java.util.List;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import src.model.DocumentVersion;
+import src.model.TextEdit;
+import src.model.TextRope;
 import src.service.DocumentService;
+import src.util.Log;
+import src.util.WireCodec;
 
 class ClientHandler implements Runnable {
+    // Content longer than this is streamed as DOC_CHUNK frames of at most this many chars (-Dcollab.chunkChars)
+    static final int CHUNK_CHARS = Math.max(2, Integer.getInteger("collab.chunkChars", 16 * 1024));
+    // Failed logins allowed on one connection before it is closed
+    private static final int MAX_AUTH_FAILURES = 5;
+    // Per connection, for each message class (-Dcollab.limit.text, .cursor, .request); see RateLimiter
+    private static final RateLimiter.Limit TEXT_LIMIT = RateLimiter.Limit.property("text", 60, 120);
+    private static final RateLimiter.Limit CURSOR_LIMIT = RateLimiter.Limit.property("cursor", 30, 60);
+    private static final RateLimiter.Limit REQUEST_LIMIT = RateLimiter.Limit.property("request", 10, 30);
+    // Documents one connection may subscribe to besides the one it has joined (-Dcollab.maxSubscriptions)
+    private static final int MAX_SUBSCRIPTIONS = Math.max(0, Integer.getInteger("collab.maxSubscriptions", 16));
+    
+    // Shared by all connections; each connection's transfers still run one at a time
+    private static final ExecutorService transferPool = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "content-transfer");
+        thread.setDaemon(true);
+        return thread;
+    });
+    // Passes on throttled texts and cursor moves once their limits allow
+    private static final ScheduledExecutorService throttleTimer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "throttle");
+        thread.setDaemon(true);
+        return thread;
+    });
+    
     private Socket socket;
     private PrintWriter out;
+    // Same connection as 'out', for transferTo; written only under the 'out' lock after a flush
+    private WritableByteChannel rawOut;
     private BufferedReader in;
-    private String currentDocument = null;
     private String username = null;
-    private boolean connected = true;
+    private volatile boolean connected = true;
+    
+    // The joined document, if any (reader thread only)
+    private Subscription joined = null;
+    // Every document open on this connection, joined or subscribed, by name; the subscribed ones also by id
+    private final Map<String, Subscription> subscriptions = new ConcurrentHashMap<>();
+    private final Map<Integer, Subscription> subscriptionIds = new ConcurrentHashMap<>();
+    private int nextSubscriptionId = 0;
+    
+    // Frames for this connection by priority, written on the transfer pool; see OutboundQueue
+    private final OutboundQueue outbound = new OutboundQueue(transferPool, () -> username);
+    private final AtomicInteger nextTransferId = new AtomicInteger();
+    private final Map<Integer, Transfer> transfers = new ConcurrentHashMap<>();
+    
+    // Shared by all documents of the connection; each document also has limits of its own (see CollabServer)
+    private final RateLimiter textLimit = TEXT_LIMIT.newBucket();
+    private final RateLimiter cursorLimit = CURSOR_LIMIT.newBucket();
+    private final RateLimiter requestLimit = REQUEST_LIMIT.newBucket();
+    // Reader thread only: refused requests aren't reported again until then
+    private long requestsRefusedUntil = System.nanoTime();
+    
+    private static final class Transfer {
+        final int id;
+        volatile boolean cancelled = false;
+        
+        Transfer(int id) {
+            this.id = id;
+        }
+    }
+    
+    /**
+     * A document open on this connection: the joined one, whose frames are
+     * sent as they always were, or a subscription, whose frames all start
+     * with @id:. Everything kept per document lives here, so each one has
+     * its own pending UPDATE, held text and cursor, pace and accounting.
+     */
+    private static final class Subscription {
+        // 0 for the joined document
+        final int id;
+        final String documentName;
+        // Written before each frame about the document
+        final String prefix;
+        // Cleared under the output lock when the document is left; nothing more is written for it after that
+        volatile boolean open = true;
+        volatile Transfer transfer = null;
+        
+        // Latest UPDATE not yet written; older ones are superseded (guarded by this)
+        TextRope pendingUpdate = null;
+        long pendingUpdateEpoch = 0;
+        long pendingUpdateRevision = 0;
+        // The edits since pendingEditsBase that make up the pending update, or null if they don't chain
+        List<TextEdit> pendingEdits = null;
+        long pendingEditsBase = 0;
+        // The client's copy as of the last REV or ACK written (guarded by the output lock)
+        long writtenEpoch = 0;
+        long writtenRevision = -1;
+        
+        // Over the limits, the latest TEXT waits here for the throttle timer and replaces any before it
+        final Object textLock = new Object();
+        volatile boolean textThrottled = false;
+        String throttledText = null;
+        int supersededTexts = 0;
+        // Likewise the latest cursor position
+        final Object cursorLock = new Object();
+        volatile boolean cursorThrottled = false;
+        boolean cursorHeld = false;
+        int throttledCursor = 0;
+        
+        // When the client last sent text or moved its cursor here, for flow control
+        volatile long lastTextNanos = System.nanoTime() - Long.MAX_VALUE / 2;
+        volatile long lastCursorNanos = lastTextNanos;
+        // Frames queued and not yet written, also for flow control
+        final AtomicInteger queued = new AtomicInteger();
+        // Written so far (guarded by the output lock); roughly bytes, counting text frames by their characters
+        long framesWritten = 0;
+        long bytesWritten = 0;
+        
+        Subscription(int id, String documentName) {
+            this.id = id;
+            this.documentName = documentName;
+            this.prefix = id == 0 ? "" : "@" + id + ":";
+        }
+    }
     
     public ClientHandler(Socket socket) {
         this.socket = socket;
         try {
-            out = new PrintWriter(socket.getOutputStream(), true);
-            in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), true);
+            // Sockets accepted from a channel get true zero-copy; others fall back to a copying channel
+            rawOut = socket.getChannel() != null ? socket.getChannel() : Channels.newChannel(socket.getOutputStream());
+            in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
         } catch (IOException e) {
             System.err.println("Error setting up client: " + e.getMessage());
             connected = false;
@@ -32,39 +158,104 @@ class ClientHandler implements Runnable {
     @Override
     public void run() {
         try {
-            // First message should be the username
-            username = in.readLine();
-            if (username == null) {
+            // Nothing else is accepted until the client has logged in or resumed a session
+            if (!authenticate()) {
                 connected = false;
                 return;
             }
             
             System.out.println("User connected: " + username);
-            
-            // Send list of available documents
-            sendDocumentList();
+            if (!isNode()) {
+                CollabServer.addClient(this);
+                
+                // First page of available documents; later changes are pushed as they happen
+                sendDocumentPage(0, CollabServer.LIST_PAGE_SIZE, "");
+                
+                ClusterRing.Node standby = CollabServer.getStandby();
+                if (standby != null) {
+                    sendStandby(standby);
+                }
+            }
             
             String message;
             while (connected && (message = in.readLine()) != null) {
-                System.out.println("Received from " + username + ": " + message);
+                if (Log.isDebugEnabled()) {
+                    Log.debug("Received from " + username + ": " + message);
+                }
                 
                 if (message.startsWith("JOIN:")) {
-                    handleJoinDocument(message.substring(5));
+                    handleJoinDocument(message.substring(5), 0, -1, "");
                 } 
-                else if (message.startsWith("TEXT:") && currentDocument != null) {
-                    handleDocumentUpdate(message.substring(5));
+                else if (message.startsWith("REJOIN:")) {
+                    handleRejoinDocument(message.substring(7));
+                }
+                else if (message.startsWith("TEXT:") && joined != null) {
+                    handleDocumentUpdate(joined, message.substring(5));
+                }
+                else if (message.startsWith("CURSOR:") && joined != null) {
+                    handleCursorUpdate(joined, message.substring(7));
+                }
+                else if (message.startsWith("@")) {
+                    handleSubscriptionMessage(message.substring(1));
+                }
+                else if (message.startsWith("SUBSCRIBE:")) {
+                    handleSubscribe(message.substring(10), 0, -1, "");
+                }
+                else if (message.startsWith("RESUBSCRIBE:")) {
+                    handleResubscribe(message.substring(12));
                 }
-                else if (message.startsWith("CURSOR:") && currentDocument != null) {
-                    handleCursorUpdate(message.substring(7));
+                else if (message.startsWith("UNSUBSCRIBE:")) {
+                    handleUnsubscribe(message.substring(12));
                 }
                 else if (message.equals("LIST")) {
-                    sendDocumentList();
+                    if (admitRequest()) {
+                        sendDocumentList();
+                    }
+                }
+                else if (message.startsWith("LIST_PAGE:")) {
+                    if (admitRequest()) {
+                        handleListPage(message.substring(10));
+                    }
+                }
+                else if (message.startsWith("DELETE:")) {
+                    handleDeleteDocument(WireCodec.unescape(message.substring(7)));
                 }
                 else if (message.startsWith("GET_VERSIONS:")) {
-                    handleGetVersions(message.substring(13));
+                    if (admitRequest()) {
+                        handleGetVersions(message.substring(13));
+                    }
                 }
                 else if (message.startsWith("GET_VERSION:")) {
-                    handleGetVersion(message.substring(12));
+                    if (admitRequest()) {
+                        handleGetVersion(message.substring(12));
+                    }
+                }
+                else if (message.startsWith("CANCEL:")) {
+                    handleCancel(message.substring(7));
+                }
+                else if (message.startsWith("MIGRATE:") && isNode()) {
+                    handleMigrate(message.substring(8));
+                }
+                else if (message.startsWith("HANDOFF:") && isNode()) {
+                    handleHandoff(message.substring(8));
+                }
+                else if (message.startsWith("HANDOFF_STATUS:") && isNode()) {
+                    handleHandoffStatus(message.substring(15));
+                }
+                else if (message.startsWith("FETCH:") && isNode()) {
+                    handleFetch(message.substring(6));
+                }
+                else if (message.startsWith("REPLICATE:") && isNode()) {
+                    handleReplicate(message.substring(10));
+                }
+                else if (message.startsWith("REPL_ACK:") && isNode()) {
+                    handleReplicationAck(message.substring(9));
+                }
+                else if (message.startsWith("BUS_SUB:") && isNode()) {
+                    CollabServer.addBusSubscriber(WireCodec.unescape(message.substring(8)), this);
+                }
+                else if (message.startsWith("BUS_UNSUB:") && isNode()) {
+                    CollabServer.removeBusSubscriber(WireCodec.unescape(message.substring(10)), this);
                 }
             }
         } catch (IOException e) {
@@ -74,26 +265,532 @@ class ClientHandler implements Runnable {
         }
     }
     
-    private void handleJoinDocument(String documentName) {
+    /**
+     * Handshake: AUTH:user:password, REGISTER:user:password or RESUME:token,
+     * with user and password field-escaped. A login or resume is answered
+     * with AUTH_OK:user:token, where the token replaces the previous one; a
+     * registration with REGISTER_OK:user. Failures get AUTH_FAIL:reason.
+     */
+    private boolean authenticate() throws IOException {
+        int failures = 0;
+        String message;
+        while (failures < MAX_AUTH_FAILURES && (message = in.readLine()) != null) {
+            if (message.startsWith("RESUME:")) {
+                String user = CollabServer.resumeSession(message.substring(7));
+                if (user != null) {
+                    // A fresh token, so an active client never sees its session expire
+                    return acceptLogin(user, CollabServer.issueSessionToken(user));
+                }
+                send("AUTH_FAIL:Session expired, please log in again");
+            }
+            else if (message.startsWith("AUTH:") || message.startsWith("REGISTER:")) {
+                boolean register = message.startsWith("REGISTER:");
+                String credentials = message.substring(register ? 9 : 5);
+                int separator = WireCodec.indexOfField(credentials, ':');
+                if (separator < 0) {
+                    send("AUTH_FAIL:Malformed login");
+                }
+                else if (register) {
+                    String user = WireCodec.unescape(credentials.substring(0, separator));
+                    String error = CollabServer.register(user, WireCodec.unescape(credentials.substring(separator + 1)));
+                    if (error == null) {
+                        System.out.println("User registered: " + user);
+                        send("REGISTER_OK:" + WireCodec.escapeField(user));
+                        continue;
+                    }
+                    send("AUTH_FAIL:" + WireCodec.escape(error));
+                }
+                else {
+                    String user = WireCodec.unescape(credentials.substring(0, separator));
+                    String token = CollabServer.login(user, WireCodec.unescape(credentials.substring(separator + 1)));
+                    if (token != null) {
+                        return acceptLogin(user, token);
+                    }
+                    send("AUTH_FAIL:Invalid username or password");
+                }
+            }
+            else {
+                send("AUTH_FAIL:Authentication required");
+            }
+            failures++;
+        }
+        return false;
+    }
+    
+    private boolean acceptLogin(String user, String token) {
+        username = user;
+        send("AUTH_OK:" + WireCodec.escapeField(user) + ":" + token);
+        return true;
+    }
+    
+    // REJOIN:epoch:revision:hash:document from a client that has a copy of the document
+    private void handleRejoinDocument(String message) {
+        String[] parts = message.split(":", 4);
+        try {
+            if (parts.length == 4) {
+                handleJoinDocument(parts[3], Long.parseLong(parts[0]), Long.parseLong(parts[1]), parts[2]);
+                return;
+            }
+        } catch (NumberFormatException e) {
+            // Reported below
+        }
+        System.err.println("Invalid rejoin request: " + message);
+    }
+    
+    private void handleJoinDocument(String documentName, long knownEpoch, long knownRevision, String knownHash) {
         System.out.println("User " + username + " joining document: " + documentName);
         
-        if (currentDocument != null) {
-            CollabServer.leaveDocument(currentDocument, this);
+        Subscription previous = joined;
+        if (previous != null) {
+            releaseThrottled(previous);
+            CollabServer.leaveDocument(previous.documentName, this);
+        }
+        // A document is open once per connection; joining one that is subscribed ends the subscription
+        Subscription subscribed = subscriptions.get(documentName);
+        if (subscribed != null && subscribed != previous) {
+            endSubscription(subscribed);
+        }
+        
+        // In a cluster the document is opened only on the node that owns it; the client reconnects there
+        ClusterRing.Node owner = CollabServer.ownerOf(documentName);
+        if (owner != null) {
+            synchronized (out) {
+                if (previous != null) {
+                    close(previous);
+                }
+                joined = null;
+                send("REDIRECT:" + owner.host + ":" + owner.port + ":" + documentName);
+            }
+            System.out.println("Redirected " + username + " to " + owner + " for document: " + documentName);
+            return;
         }
-        currentDocument = documentName;
-        CollabServer.joinDocument(documentName, this);
+        
+        // The reply starts with JOINED, so the client can tell it apart from frames still in flight for
+        // its previous document. Every write for a document checks under the output lock that it is still
+        // open, so nothing about the previous one follows this frame.
+        Subscription subscription = new Subscription(0, documentName);
+        synchronized (out) {
+            if (previous != null) {
+                close(previous);
+            }
+            joined = subscription;
+            subscriptions.put(documentName, subscription);
+            send("JOINED:" + documentName);
+        }
+        CollabServer.joinDocument(documentName, this, knownEpoch, knownRevision, knownHash);
+    }
+    
+    /**
+     * SUBSCRIBE:document opens a document alongside the joined one, so one
+     * connection can follow several. It is answered with SUBSCRIBED:id:document;
+     * from then on every frame about the document, from its content on,
+     * is the usual frame prefixed with @id:, and the client edits it with
+     * @id:TEXT and @id:CURSOR. UNSUBSCRIBE:id ends it with UNSUBSCRIBED:id,
+     * as does joining the document or deleting it. A refused subscription
+     * gets SUBSCRIBE_FAILED:document:reason, with the document field-escaped.
+     * In a cluster, one owned by another node ends at once with @id:REATTACH,
+     * to be followed on a connection to that node.
+     */
+    private void handleSubscribe(String documentName, long knownEpoch, long knownRevision, String knownHash) {
+        String error = null;
+        if (!admitRequest()) {
+            error = "Too many requests";
+        } else if (subscriptions.containsKey(documentName)) {
+            error = "Already open";
+        } else if (subscriptionIds.size() >= MAX_SUBSCRIPTIONS) {
+            error = "No more than " + MAX_SUBSCRIPTIONS + " subscriptions per connection";
+        }
+        if (error != null) {
+            send("SUBSCRIBE_FAILED:" + WireCodec.escapeField(documentName) + ":" + WireCodec.escape(error));
+            return;
+        }
+        
+        if (Log.isDebugEnabled()) {
+            Log.debug("User " + username + " subscribing to document: " + documentName);
+        }
+        Subscription subscription = new Subscription(++nextSubscriptionId, documentName);
+        synchronized (out) {
+            subscriptions.put(documentName, subscription);
+            subscriptionIds.put(subscription.id, subscription);
+            send("SUBSCRIBED:" + subscription.id + ":" + documentName);
+        }
+        ClusterRing.Node owner = CollabServer.ownerOf(documentName);
+        if (owner != null) {
+            sendReattach(documentName, owner);
+            return;
+        }
+        CollabServer.subscribeDocument(documentName, this, knownEpoch, knownRevision, knownHash);
     }
     
-    private void handleDocumentUpdate(String content) {
-        CollabServer.updateDocument(currentDocument, content, this);
+    // RESUBSCRIBE:epoch:revision:hash:document; like REJOIN, for a document the client has a copy of
+    private void handleResubscribe(String message) {
+        String[] parts = message.split(":", 4);
+        try {
+            if (parts.length == 4) {
+                handleSubscribe(parts[3], Long.parseLong(parts[0]), Long.parseLong(parts[1]), parts[2]);
+                return;
+            }
+        } catch (NumberFormatException e) {
+            // Reported below
+        }
+        System.err.println("Invalid resubscribe request: " + message);
     }
     
-    private void handleCursorUpdate(String positionStr) {
+    // Answered even if the subscription has already ended, since the client may not have heard yet
+    private void handleUnsubscribe(String idStr) {
         try {
-            int position = Integer.parseInt(positionStr);
-            CollabServer.updateCursorPosition(currentDocument, username, position);
+            Subscription subscription = subscriptionIds.get(Integer.parseInt(idStr));
+            if (subscription != null) {
+                endSubscription(subscription);
+            } else {
+                send("UNSUBSCRIBED:" + idStr);
+            }
+        } catch (NumberFormatException e) {
+            System.err.println("Invalid subscription ID: " + idStr);
+        }
+    }
+    
+    // @id:TEXT:content or @id:CURSOR:position for a subscribed document
+    private void handleSubscriptionMessage(String message) {
+        int separator = message.indexOf(':');
+        Subscription subscription = null;
+        try {
+            subscription = separator > 0 ? subscriptionIds.get(Integer.parseInt(message.substring(0, separator))) : null;
+        } catch (NumberFormatException e) {
+            // Reported below
+        }
+        if (subscription == null) {
+            // Sent before the client heard that the subscription ended
+            if (Log.isDebugEnabled()) {
+                Log.debug("Dropped frame from " + username + " for no subscription: @" + message);
+            }
+            return;
+        }
+        String frame = message.substring(separator + 1);
+        if (frame.startsWith("TEXT:")) {
+            handleDocumentUpdate(subscription, frame.substring(5));
+        } else if (frame.startsWith("CURSOR:")) {
+            handleCursorUpdate(subscription, frame.substring(7));
+        }
+    }
+    
+    private void endSubscription(Subscription subscription) {
+        releaseThrottled(subscription);
+        synchronized (out) {
+            close(subscription);
+            send("UNSUBSCRIBED:" + subscription.id);
+        }
+        CollabServer.leaveDocument(subscription.documentName, this);
+    }
+    
+    // Under the output lock: nothing more is written for the document, and it no longer counts as open here
+    private void close(Subscription subscription) {
+        subscription.open = false;
+        Transfer transfer = subscription.transfer;
+        if (transfer != null) {
+            transfer.cancelled = true;
+        }
+        subscriptions.remove(subscription.documentName, subscription);
+        subscriptionIds.remove(subscription.id, subscription);
+        if (Log.isDebugEnabled()) {
+            Log.debug("Closed " + subscription.documentName + " for " + username + " after " + subscription.framesWritten +
+                      " frames, " + subscription.bytesWritten / 1024 + " KB");
+        }
+    }
+    
+    /**
+     * A TEXT within this connection's and the document's limits goes
+     * straight to the document. Over them it waits for the throttle timer,
+     * and any TEXT arriving meanwhile replaces it: each carries the whole
+     * text, so only the latest needs applying. The client is sent THROTTLE
+     * once, and still gets an ACK for every TEXT.
+     */
+    private void handleDocumentUpdate(Subscription subscription, String content) {
+        subscription.lastTextNanos = System.nanoTime();
+        String documentName = subscription.documentName;
+        String text = WireCodec.unescape(content);
+        // -1: not asked yet, since a text is already waiting
+        long wait = subscription.textThrottled ? -1 : admitText(documentName);
+        if (wait == 0) {
+            CollabServer.updateDocument(documentName, text, 0, this);
+            return;
+        }
+        synchronized (subscription.textLock) {
+            if (subscription.throttledText != null) {
+                subscription.throttledText = text;
+                subscription.supersededTexts++;
+                return;
+            }
+            // The timer passed the waiting text on just now, so the limits decide for this one
+            if (wait < 0 && (wait = admitText(documentName)) == 0) {
+                CollabServer.updateDocument(documentName, text, 0, this);
+                return;
+            }
+            subscription.throttledText = text;
+            subscription.supersededTexts = 0;
+            subscription.textThrottled = true;
+        }
+        throttleTimer.schedule(() -> flushText(subscription), wait, TimeUnit.NANOSECONDS);
+        sendThrottle(subscription, "TEXT", wait);
+    }
+    
+    // On the throttle timer: passes the waiting text on once the limits allow, under the lock so it stays in order
+    private void flushText(Subscription subscription) {
+        long wait;
+        synchronized (subscription.textLock) {
+            if (subscription.throttledText == null) {
+                return;
+            }
+            wait = admitText(subscription.documentName);
+            if (wait == 0) {
+                CollabServer.updateDocument(subscription.documentName, subscription.throttledText, subscription.supersededTexts, this);
+                subscription.throttledText = null;
+                subscription.textThrottled = false;
+                return;
+            }
+        }
+        throttleTimer.schedule(() -> flushText(subscription), wait, TimeUnit.NANOSECONDS);
+    }
+    
+    // Nanoseconds until both this connection and the document take another edit, or 0 if they take this one
+    private long admitText(String documentName) {
+        long wait = textLimit.acquire();
+        return wait > 0 ? wait : CollabServer.admitEdit(documentName);
+    }
+    
+    // Cursor moves are held back the same way as texts; a newer position simply replaces the waiting one
+    private void handleCursorUpdate(Subscription subscription, String positionStr) {
+        int position;
+        try {
+            position = Integer.parseInt(positionStr);
         } catch (NumberFormatException e) {
             System.err.println("Invalid cursor position: " + positionStr);
+            return;
+        }
+        subscription.lastCursorNanos = System.nanoTime();
+        String documentName = subscription.documentName;
+        long wait = subscription.cursorThrottled ? -1 : admitCursor(documentName);
+        if (wait == 0) {
+            CollabServer.updateCursorPosition(documentName, username, position);
+            return;
+        }
+        synchronized (subscription.cursorLock) {
+            if (subscription.cursorHeld) {
+                subscription.throttledCursor = position;
+                return;
+            }
+            if (wait < 0 && (wait = admitCursor(documentName)) == 0) {
+                CollabServer.updateCursorPosition(documentName, username, position);
+                return;
+            }
+            subscription.throttledCursor = position;
+            subscription.cursorHeld = true;
+            subscription.cursorThrottled = true;
+        }
+        throttleTimer.schedule(() -> flushCursor(subscription), wait, TimeUnit.NANOSECONDS);
+        sendThrottle(subscription, "CURSOR", wait);
+    }
+    
+    private void flushCursor(Subscription subscription) {
+        long wait;
+        synchronized (subscription.cursorLock) {
+            if (!subscription.cursorHeld) {
+                return;
+            }
+            wait = admitCursor(subscription.documentName);
+            if (wait == 0) {
+                CollabServer.updateCursorPosition(subscription.documentName, username, subscription.throttledCursor);
+                subscription.cursorHeld = false;
+                subscription.cursorThrottled = false;
+                return;
+            }
+        }
+        throttleTimer.schedule(() -> flushCursor(subscription), wait, TimeUnit.NANOSECONDS);
+    }
+    
+    private long admitCursor(String documentName) {
+        long wait = cursorLimit.acquire();
+        return wait > 0 ? wait : CollabServer.admitCursor(documentName);
+    }
+    
+    // Before leaving a document: a waiting text goes in now rather than being lost; a waiting cursor no longer matters
+    private void releaseThrottled(Subscription subscription) {
+        synchronized (subscription.textLock) {
+            if (subscription.throttledText != null) {
+                CollabServer.updateDocument(subscription.documentName, subscription.throttledText, subscription.supersededTexts, this);
+                subscription.throttledText = null;
+                subscription.textThrottled = false;
+            }
+        }
+        synchronized (subscription.cursorLock) {
+            subscription.cursorHeld = false;
+            subscription.cursorThrottled = false;
+        }
+    }
+    
+    // Listing and version requests each cost a query or an encoding; over the limit they are refused
+    private boolean admitRequest() {
+        long wait = requestLimit.acquire();
+        if (wait == 0) {
+            return true;
+        }
+        long now = System.nanoTime();
+        if (now - requestsRefusedUntil >= 0) {
+            requestsRefusedUntil = now + wait;
+            sendThrottle("REQUEST", wait);
+        }
+        return false;
+    }
+    
+    // THROTTLE:class:millis; that class of message is being held back (TEXT, CURSOR) or refused (REQUEST) for about that long
+    private void sendThrottle(String messageClass, long waitNanos) {
+        send(throttleFrame(messageClass, waitNanos));
+    }
+    
+    // Texts and cursor moves are held per document, so their THROTTLE is a frame of the document
+    private void sendThrottle(Subscription subscription, String messageClass, long waitNanos) {
+        send(subscription.prefix + throttleFrame(messageClass, waitNanos));
+    }
+    
+    private String throttleFrame(String messageClass, long waitNanos) {
+        long millis = Math.max(1, TimeUnit.NANOSECONDS.toMillis(waitNanos));
+        if (Log.isDebugEnabled()) {
+            Log.debug("Throttling " + messageClass + " from " + username + " for " + millis + " ms");
+        }
+        return "THROTTLE:" + messageClass + ":" + millis;
+    }
+    
+    /**
+     * MIGRATE:host:port:document moves a document to another cluster node.
+     * Answered with MIGRATED:document, MIGRATE_FAILED:document:reason, or
+     * REDIRECT to the node that owns it if this one doesn't.
+     */
+    private void handleMigrate(String message) {
+        String[] parts = message.split(":", 3);
+        ClusterRing.Node target;
+        try {
+            target = new ClusterRing.Node(parts[0], Integer.parseInt(parts[1]));
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            System.err.println("Invalid migrate request: " + message);
+            return;
+        }
+        String documentName = parts[2];
+        ClusterRing.Node owner = CollabServer.ownerOf(documentName);
+        if (owner != null) {
+            send("REDIRECT:" + owner.host + ":" + owner.port + ":" + documentName);
+            return;
+        }
+        
+        System.out.println(username + " moving document " + documentName + " to " + target);
+        String error = CollabServer.migrateDocument(documentName, target);
+        if (error == null) {
+            send("MIGRATED:" + documentName);
+        } else {
+            System.err.println("Could not move " + documentName + " to " + target + ": " + error);
+            send("MIGRATE_FAILED:" + documentName + ":" + WireCodec.escape(error));
+        }
+    }
+    
+    // A document another node is handing over; see DocumentHandoff
+    private void handleHandoff(String header) throws IOException {
+        DocumentHandoff handoff = DocumentHandoff.read(header, in);
+        if (handoff == null) {
+            send("HANDOFF_FAILED:" + WireCodec.escape("Malformed handoff"));
+            return;
+        }
+        String error = CollabServer.adoptDocument(handoff);
+        send(error == null ? "HANDOFF_OK:" + handoff.name : "HANDOFF_FAILED:" + WireCodec.escape(error));
+    }
+    
+    // HANDOFF_STATUS:document from a node whose handoff got no answer; see DocumentHandoff
+    private void handleHandoffStatus(String documentName) {
+        DocumentHandoff state = CollabServer.adoptedState(documentName);
+        send("HANDOFF_STATUS:" + (state != null ? state.epoch + ":" + state.revision : "-1:-1") + ":" + documentName);
+    }
+    
+    // FETCH:document from a node mirroring a document this one owns: its current state as handoff frames
+    private void handleFetch(String documentName) {
+        ClusterRing.Node owner = CollabServer.ownerOf(documentName);
+        if (owner != null) {
+            send("REDIRECT:" + owner.host + ":" + owner.port + ":" + documentName);
+            return;
+        }
+        DocumentHandoff state = CollabServer.documentState(documentName);
+        if (state == null) {
+            send("FETCH_FAILED:" + WireCodec.escape(documentName));
+            return;
+        }
+        synchronized (out) {
+            state.write(out);
+        }
+    }
+    
+    // REPLICATE:host:port from a standby server, with the address clients should fail over to; see Replicator
+    private void handleReplicate(String address) {
+        String error;
+        try {
+            error = CollabServer.attachStandby(this, ClusterRing.Node.parse(address));
+        } catch (IllegalArgumentException e) {
+            error = "Malformed address " + address;
+        }
+        if (error != null) {
+            System.err.println("Standby " + address + " refused: " + error);
+            send("REPL_FAILED:" + WireCodec.escape(error));
+        }
+    }
+    
+    private void handleReplicationAck(String sequence) {
+        try {
+            CollabServer.standbyAcknowledged(this, Long.parseLong(sequence));
+        } catch (NumberFormatException e) {
+            System.err.println("Invalid replication ack: " + sequence);
+        }
+    }
+    
+    // Other servers of the cluster, and admin tools, log in with a session issued to "node:<name>",
+    // a name no user can register
+    private boolean isNode() {
+        return username.startsWith("node:");
+    }
+    
+    // LIST_PAGE:offset:limit:prefix
+    private void handleListPage(String message) {
+        String[] parts = message.split(":", 3);
+        try {
+            int offset = Integer.parseInt(parts[0]);
+            int limit = parts.length > 1 ? Integer.parseInt(parts[1]) : CollabServer.LIST_PAGE_SIZE;
+            String prefix = parts.length > 2 ? WireCodec.unescape(parts[2]) : "";
+            sendDocumentPage(offset, limit, prefix);
+        } catch (NumberFormatException e) {
+            System.err.println("Invalid list page request: " + message);
+        }
+    }
+    
+    private void handleDeleteDocument(String documentName) {
+        System.out.println("User " + username + " deleting document: " + documentName);
+        
+        // Only the owner knows whether anyone has it open
+        if (CollabServer.ownerOf(documentName) != null) {
+            send("DELETE_FAILED:" + WireCodec.escape(documentName));
+            return;
+        }
+        
+        boolean deleted = CollabServer.deleteDocument(documentName, this);
+        Subscription subscription = subscriptions.get(documentName);
+        if (subscription != null && !CollabServer.hasJoined(documentName, this)) {
+            // Left as part of the delete; nothing of it is worth sending any more
+            synchronized (out) {
+                close(subscription);
+                if (subscription.id != 0) {
+                    send("UNSUBSCRIBED:" + subscription.id);
+                }
+            }
+            if (subscription == joined) {
+                joined = null;
+            }
+        }
+        if (!deleted) {
+            send("DELETE_FAILED:" + WireCodec.escape(documentName));
         }
     }
     
@@ -110,7 +807,7 @@ class ClientHandler implements Runnable {
         }
         
         System.out.println("Sending versions response: " + sb.toString());
-        out.println(sb.toString());
+        sendBulk(sb.toString());
     }
     
     private void handleGetVersion(String versionIdStr) {
@@ -120,8 +817,13 @@ class ClientHandler implements Runnable {
             
             DocumentVersion version = DocumentService.getVersionById(versionId);
             if (version != null) {
-                System.out.println("Sending version content, length: " + version.getContent().length());
-                out.println("VERSION_CONTENT:" + version.getContent());
+                String content = version.getContent();
+                System.out.println("Sending version content, length: " + content.length());
+                if (content.length() > CHUNK_CHARS) {
+                    streamContent("VERSION", String.valueOf(versionId), content);
+                } else {
+                    sendBulk("VERSION_CONTENT:" + WireCodec.escape(content));
+                }
             } else {
                 System.err.println("Version not found: " + versionIdStr);
             }
@@ -130,50 +832,531 @@ class ClientHandler implements Runnable {
         }
     }
     
-    public void sendDocumentContent(String content) {
-        if (connected && out != null) {
-            out.println("DOCUMENT:" + content);
+    private void handleCancel(String transferIdStr) {
+        try {
+            Transfer transfer = transfers.get(Integer.parseInt(transferIdStr));
+            if (transfer != null) {
+                transfer.cancelled = true;
+                System.out.println("User " + username + " cancelled transfer " + transferIdStr);
+            }
+        } catch (NumberFormatException e) {
+            System.err.println("Invalid transfer ID: " + transferIdStr);
+        }
+    }
+    
+    /**
+     * Streams content as DOC_BEGIN:id:kind:length:ref, DOC_CHUNK:id:text...
+     * and DOC_END:id in the bulk lane. The header goes out immediately; the
+     * chunks follow one per turn, so other frames interleave with them. A
+     * cancelled transfer stops without DOC_END.
+     */
+    private Transfer streamContent(String kind, String ref, CharSequence content) {
+        Transfer transfer = beginTransfer("", kind, ref, content.length());
+        outbound.add(OutboundQueue.Lane.BULK, new OutboundQueue.Slice() {
+            int offset = 0;
+            
+            @Override
+            public boolean write() {
+                int length = content.length();
+                if (transfer.cancelled || !connected) {
+                    transfers.remove(transfer.id);
+                    return false;
+                }
+                if (offset == length) {
+                    send("DOC_END:" + transfer.id);
+                    transfers.remove(transfer.id);
+                    return false;
+                }
+                int end = Math.min(offset + CHUNK_CHARS, length);
+                // Keep surrogate pairs within one frame so each line encodes on its own
+                if (end < length && Character.isHighSurrogate(content.charAt(end - 1))) {
+                    end--;
+                }
+                send("DOC_CHUNK:" + transfer.id + ":" + WireCodec.escape(content.subSequence(offset, end).toString()));
+                offset = end;
+                return true;
+            }
+        });
+        return transfer;
+    }
+    
+    /**
+     * Sends an acquired snapshot file as a DOCUMENT stream, each chunk going
+     * from the file to the socket with transferTo, followed by PATCH frames
+     * for the edits made since the snapshot and the resulting revision, one
+     * chunk per turn of the edit lane. Releases the snapshot when done.
+     */
+    public void sendDocumentSnapshot(String documentName, SnapshotFile snapshot, List<TextEdit> edits, long epoch, long revision) {
+        Subscription subscription = subscriptions.get(documentName);
+        if (!connected || out == null || subscription == null) {
+            snapshot.release();
+            return;
+        }
+        enqueue(subscription, OutboundQueue.Lane.INTERACTIVE,
+                new DocumentSlices(subscription, snapshot.getLength(), snapshot.getChunkCount()) {
+            @Override
+            void writeChunk(int chunk) throws IOException {
+                out.print(subscription.prefix + "DOC_CHUNK:" + transfer.id + ":");
+                out.flush();
+                subscription.bytesWritten += snapshot.transferChunk(chunk, rawOut);
+                subscription.framesWritten++;
+                out.println();
+            }
+            
+            @Override
+            void finish() {
+                writePatches(subscription, edits);
+                sendRevision(subscription, epoch, revision);
+            }
+            
+            @Override
+            void done() {
+                snapshot.release();
+            }
+        });
+    }
+    
+    /**
+     * A DOCUMENT stream written one DOC_CHUNK per slice: DOC_BEGIN with the
+     * first, DOC_END and whatever brings the client up to date after the
+     * last. Stops if the transfer is cancelled or the document left.
+     */
+    private abstract class DocumentSlices implements OutboundQueue.Slice {
+        final Subscription subscription;
+        private final int length;
+        private final int chunks;
+        Transfer transfer = null;
+        private int next = 0;
+        
+        DocumentSlices(Subscription subscription, int length, int chunks) {
+            this.subscription = subscription;
+            this.length = length;
+            this.chunks = chunks;
+        }
+        
+        abstract void writeChunk(int chunk) throws IOException;
+        
+        // After DOC_END, under the output lock
+        abstract void finish();
+        
+        // However the stream ended
+        void done() {
+        }
+        
+        @Override
+        public boolean write() {
+            boolean more = false;
+            try {
+                if (transfer == null) {
+                    transfer = beginDocumentTransfer(subscription, length);
+                    return more = transfer != null;
+                }
+                synchronized (out) {
+                    if (transfer.cancelled || !connected) {
+                        return false;
+                    }
+                    if (next < chunks) {
+                        writeChunk(next++);
+                        return more = true;
+                    }
+                    send(subscription, "DOC_END:" + transfer.id);
+                    finish();
+                }
+            } catch (IOException e) {
+                // A chunk may be half written, so the stream can't continue
+                System.err.println("Error sending document to " + username + ": " + e.getMessage());
+                closeSocket();
+            } finally {
+                if (!more) {
+                    if (transfer != null) {
+                        transfers.remove(transfer.id);
+                    }
+                    done();
+                }
+            }
+            return false;
+        }
+    }
+    
+    /**
+     * Sends content that is already in the wire encoding: one DOCUMENT line
+     * when it fits in a chunk, otherwise a DOC_CHUNK stream. The bytes are
+     * written as they are, without going through the writer's encoder.
+     */
+    public void sendDocumentContent(String documentName, EncodedContent content, long epoch) {
+        Subscription subscription = subscriptions.get(documentName);
+        if (!connected || out == null || subscription == null) {
+            return;
+        }
+        if (content.getChunkCount() <= 1) {
+            enqueue(subscription, OutboundQueue.Lane.INTERACTIVE, () -> {
+                synchronized (out) {
+                    if (!connected || !subscription.open) {
+                        return false;
+                    }
+                    try {
+                        writeEncoded(subscription, "DOCUMENT:", content.getChunkCount() == 0 ? new byte[0] : content.getChunk(0));
+                        sendRevision(subscription, epoch, content.getRevision());
+                    } catch (IOException e) {
+                        System.err.println("Error sending document to " + username + ": " + e.getMessage());
+                        closeSocket();
+                    }
+                }
+                return false;
+            });
+            return;
+        }
+        
+        enqueue(subscription, OutboundQueue.Lane.INTERACTIVE,
+                new DocumentSlices(subscription, content.getLength(), content.getChunkCount()) {
+            @Override
+            void writeChunk(int chunk) throws IOException {
+                writeEncoded(subscription, "DOC_CHUNK:" + transfer.id + ":", content.getChunk(chunk));
+            }
+            
+            @Override
+            void finish() {
+                sendRevision(subscription, epoch, content.getRevision());
+            }
+        });
+    }
+    
+    // Catch-up for a rejoin: the missed edits (possibly none), then the revision they lead to
+    public void sendDocumentPatches(String documentName, List<TextEdit> edits, long epoch, long revision) {
+        Subscription subscription = subscriptions.get(documentName);
+        if (connected && out != null && subscription != null) {
+            enqueue(subscription, OutboundQueue.Lane.INTERACTIVE, () -> {
+                synchronized (out) {
+                    if (connected && subscription.open) {
+                        writePatches(subscription, edits);
+                        sendRevision(subscription, epoch, revision);
+                    }
+                }
+                return false;
+            });
+        }
+    }
+    
+    private void writePatches(Subscription subscription, List<TextEdit> edits) {
+        for (TextEdit edit : edits) {
+            send(subscription, "PATCH:" + edit.getOffset() + ":" + edit.getRemovedLength() + ":" + WireCodec.escape(edit.getText()));
+        }
+    }
+    
+    // REV:epoch:revision follows every full content, UPDATE, live edits or catch-up
+    private void sendRevision(Subscription subscription, long epoch, long revision) {
+        synchronized (out) {
+            send(subscription, "REV:" + epoch + ":" + revision);
+            // The client takes it by the same rule
+            if (epoch != subscription.writtenEpoch || revision >= subscription.writtenRevision) {
+                subscription.writtenEpoch = epoch;
+                subscription.writtenRevision = revision;
+            }
+        }
+    }
+    
+    // REATTACH:host:port:document; the document has moved to that node and the client should rejoin it there.
+    // A subscription ends with it, since it can only be followed on a connection to that node.
+    public void sendReattach(String documentName, ClusterRing.Node owner) {
+        Subscription subscription = subscriptions.get(documentName);
+        if (!connected || out == null || subscription == null) {
+            return;
         }
+        enqueue(subscription, OutboundQueue.Lane.INTERACTIVE, () -> {
+            synchronized (out) {
+                if (connected && subscription.open) {
+                    send(subscription, "REATTACH:" + owner.host + ":" + owner.port + ":" + documentName);
+                    if (subscription.id != 0) {
+                        close(subscription);
+                    }
+                }
+            }
+            return false;
+        });
     }
     
-    public void sendDocumentUpdate(String content) {
+    // STANDBY:host:port, where the client should reconnect if this server goes away
+    public void sendStandby(ClusterRing.Node standby) {
         if (connected && out != null) {
-            out.println("UPDATE:" + content);
+            send("STANDBY:" + standby.host + ":" + standby.port);
+        }
+    }
+    
+    // FLOW:textMillis:cursorMillis:document; how often the client should send edits and cursor moves for the document
+    public void sendFlow(String documentName, long textMillis, long cursorMillis) {
+        sendForDocument(OutboundQueue.Lane.INTERACTIVE, documentName, "FLOW:" + textMillis + ":" + cursorMillis + ":" + documentName);
+    }
+    
+    // Flow control is per document: when the client last typed or moved its cursor there, and what is queued for it
+    long getLastTextNanos(String documentName) {
+        Subscription subscription = subscriptions.get(documentName);
+        return subscription != null ? subscription.lastTextNanos : System.nanoTime() - Long.MAX_VALUE / 2;
+    }
+    
+    long getLastCursorNanos(String documentName) {
+        Subscription subscription = subscriptions.get(documentName);
+        return subscription != null ? subscription.lastCursorNanos : System.nanoTime() - Long.MAX_VALUE / 2;
+    }
+    
+    int getOutboundBacklog(String documentName) {
+        Subscription subscription = subscriptions.get(documentName);
+        return subscription != null ? subscription.queued.get() : 0;
+    }
+    
+    // ACK:epoch:revision answers each TEXT
+    // Texts replaced by a later one while throttled are acknowledged first, with revision -1
+    // The client's copy is then the text it sent, which the next live edit can patch
+    public void sendAck(String documentName, long epoch, long revision, int superseded) {
+        Subscription subscription = subscriptions.get(documentName);
+        if (connected && out != null && subscription != null) {
+            enqueue(subscription, OutboundQueue.Lane.INTERACTIVE, () -> {
+                synchronized (out) {
+                    if (connected && subscription.open) {
+                        for (int i = 0; i < superseded; i++) {
+                            send(subscription, "ACK:" + epoch + ":-1");
+                        }
+                        send(subscription, "ACK:" + epoch + ":" + revision);
+                        if (epoch == subscription.writtenEpoch && revision >= subscription.writtenRevision) {
+                            subscription.writtenRevision = revision;
+                        }
+                    }
+                }
+                return false;
+            });
+        }
+    }
+    
+    // DOC_BEGIN for the document's content, or null if it has been left
+    private Transfer beginDocumentTransfer(Subscription subscription, int length) {
+        synchronized (out) {
+            if (!connected || !subscription.open) {
+                return null;
+            }
+            Transfer transfer = beginTransfer(subscription.prefix, "DOCUMENT", subscription.documentName, length);
+            subscription.transfer = transfer;
+            return transfer;
+        }
+    }
+    
+    private Transfer beginTransfer(String prefix, String kind, String ref, int length) {
+        Transfer transfer = new Transfer(nextTransferId.incrementAndGet());
+        transfers.put(transfer.id, transfer);
+        send(prefix + "DOC_BEGIN:" + transfer.id + ":" + kind + ":" + length + ":" + ref);
+        return transfer;
+    }
+    
+    /**
+     * Writes the document's newest pending update, unless it has been left:
+     * as PATCH frames when the client's copy is the text they apply to and
+     * they are smaller than the document, otherwise as a full UPDATE.
+     */
+    private boolean flushUpdate(Subscription subscription) {
+        TextRope content;
+        long epoch;
+        long revision;
+        List<TextEdit> edits;
+        long base;
+        synchronized (subscription) {
+            content = subscription.pendingUpdate;
+            epoch = subscription.pendingUpdateEpoch;
+            revision = subscription.pendingUpdateRevision;
+            edits = subscription.pendingEdits;
+            base = subscription.pendingEditsBase;
+            subscription.pendingUpdate = null;
+            subscription.pendingEdits = null;
+        }
+        if (content == null) {
+            return false;
+        }
+        synchronized (out) {
+            if (connected && subscription.open) {
+                if (edits != null && epoch == subscription.writtenEpoch && base == subscription.writtenRevision
+                        && CollabServer.isWorthPatching(edits, content.length())) {
+                    writePatches(subscription, edits);
+                } else {
+                    writeContent(subscription, "UPDATE:", content);
+                }
+                sendRevision(subscription, epoch, revision);
+            }
+        }
+        return false;
+    }
+    
+    // All writes go through here, writeContent or writeEncoded so concurrent senders never interleave a line
+    private void send(String line) {
+        synchronized (out) {
+            out.println(line);
+        }
+    }
+    
+    // A frame about an open document, counted against it
+    private void send(Subscription subscription, String frame) {
+        synchronized (out) {
+            out.print(subscription.prefix);
+            out.println(frame);
+            subscription.framesWritten++;
+            subscription.bytesWritten += frame.length();
+        }
+    }
+    
+    // Streams the rope chunk by chunk instead of building one big String
+    private void writeContent(Subscription subscription, String prefix, TextRope content) {
+        synchronized (out) {
+            out.print(subscription.prefix);
+            out.print(prefix);
+            for (String chunk : content) {
+                out.print(WireCodec.escape(chunk));
+            }
+            out.println();
+            subscription.framesWritten++;
+            subscription.bytesWritten += content.length();
+        }
+    }
+    
+    // Queued behind any content still streaming for the document so the client sees them in order.
+    // edit is what changed since the previous revision; the edits pending together are sent instead of the content if they chain.
+    public void sendDocumentUpdate(String documentName, TextRope content, TextEdit edit, long epoch, long revision) {
+        Subscription subscription = subscriptions.get(documentName);
+        if (connected && out != null && subscription != null) {
+            boolean schedule;
+            synchronized (subscription) {
+                schedule = subscription.pendingUpdate == null;
+                if (schedule) {
+                    subscription.pendingEdits = new ArrayList<>();
+                    subscription.pendingEditsBase = edit.isEmpty() ? revision : revision - 1;
+                } else if (subscription.pendingEdits != null && (epoch != subscription.pendingUpdateEpoch
+                        || revision != subscription.pendingUpdateRevision + (edit.isEmpty() ? 0 : 1)
+                        || subscription.pendingEdits.size() >= CollabServer.MAX_CATCHUP_EDITS)) {
+                    subscription.pendingEdits = null;
+                }
+                if (subscription.pendingEdits != null && !edit.isEmpty()) {
+                    subscription.pendingEdits.add(edit);
+                }
+                // Updates can be handed over out of order; only a newer one replaces the pending one
+                if (schedule || revision > subscription.pendingUpdateRevision) {
+                    subscription.pendingUpdate = content;
+                    subscription.pendingUpdateEpoch = epoch;
+                    subscription.pendingUpdateRevision = revision;
+                }
+            }
+            if (schedule) {
+                enqueue(subscription, OutboundQueue.Lane.INTERACTIVE, () -> flushUpdate(subscription));
+            }
         }
     }
     
-    public void sendCursorPosition(String username, int position) {
+    // Message bus lines for another node, written with one flush (see TcpMessageBus)
+    public void sendBatch(List<String> lines) {
         if (connected && out != null) {
-            out.println("CURSOR_POS:" + username + ":" + position);
+            synchronized (out) {
+                for (String line : lines) {
+                    out.print(line);
+                    out.print('\n');
+                }
+                out.flush();
+            }
         }
     }
     
+    // Writes prefix + payload as one line; the payload is already escaped UTF-8
+    private void writeEncoded(Subscription subscription, String prefix, byte[] payload) throws IOException {
+        synchronized (out) {
+            out.print(subscription.prefix);
+            out.print(prefix);
+            out.flush();
+            ByteBuffer buffer = ByteBuffer.wrap(payload);
+            while (buffer.hasRemaining()) {
+                rawOut.write(buffer);
+            }
+            out.println();
+            subscription.framesWritten++;
+            subscription.bytesWritten += payload.length;
+        }
+    }
+    
+    public void sendCursorPosition(String documentName, String username, int position) {
+        sendForDocument(OutboundQueue.Lane.PRESENCE, documentName, "CURSOR_POS:" + username + ":" + position);
+    }
+    
     public void sendActiveUsers(String documentName, List<String> users) {
-        if (connected && out != null) {
-            out.println("ACTIVE_USERS:" + documentName + ":" + String.join(",", users));
+        sendForDocument(OutboundQueue.Lane.PRESENCE, documentName, "ACTIVE_USERS:" + documentName + ":" + String.join(",", users));
+    }
+    
+    // Sent from document actors, which must not wait on this socket: queued behind what is already in the
+    // lane, and dropped if the client has left the document by then. The frames are written together.
+    private void sendForDocument(OutboundQueue.Lane lane, String documentName, String... frames) {
+        Subscription subscription = subscriptions.get(documentName);
+        if (connected && out != null && subscription != null) {
+            enqueue(subscription, lane, () -> {
+                synchronized (out) {
+                    if (connected && subscription.open) {
+                        for (String frame : frames) {
+                            send(subscription, frame);
+                        }
+                    }
+                }
+                return false;
+            });
         }
     }
     
-    public void sendDocumentList() {
-        if (connected && out != null) {
-            List<String> documents = DocumentService.getAllDocuments();
-            StringBuilder sb = new StringBuilder("LIST:");
-            for (String doc : documents) {
-                sb.append(doc).append(",");
+    // Queues a write for an open document; it counts towards the document's backlog until done
+    private void enqueue(Subscription subscription, OutboundQueue.Lane lane, OutboundQueue.Slice slice) {
+        subscription.queued.incrementAndGet();
+        outbound.add(lane, () -> {
+            boolean more = false;
+            try {
+                return more = slice.write();
+            } finally {
+                if (!more) {
+                    subscription.queued.decrementAndGet();
+                }
             }
-            out.println(sb.toString());
+        });
+    }
+    
+    // Listings, versions and catalog changes: in the bulk lane, in the order asked for
+    private void sendBulk(String line) {
+        if (connected && out != null) {
+            outbound.add(OutboundQueue.Lane.BULK, () -> {
+                if (connected) {
+                    send(line);
+                }
+                return false;
+            });
         }
     }
     
+    public void sendDocumentList() {
+        sendBulk(CollabServer.getDocumentListMessage());
+    }
+    
+    public void sendDocumentPage(int offset, int limit, String prefix) {
+        sendBulk(CollabServer.getDocumentPageMessage(offset, limit, prefix));
+    }
+    
+    // DOC_CREATED, DOC_UPDATED or DOC_DELETED followed by the document name
+    public void sendCatalogChange(String kind, String documentName) {
+        sendBulk(kind + ":" + WireCodec.escape(documentName));
+    }
+    
     public String getUsername() {
         return username;
     }
     
     private void cleanup() {
         connected = false;
+        CollabServer.removeClient(this);
+        if (username != null && isNode()) {
+            CollabServer.nodeDisconnected(this);
+        }
+        for (Transfer transfer : transfers.values()) {
+            transfer.cancelled = true;
+        }
         
-        if (currentDocument != null) {
-            CollabServer.leaveDocument(currentDocument, this);
+        for (Subscription subscription : subscriptions.values()) {
+            releaseThrottled(subscription);
+            CollabServer.leaveDocument(subscription.documentName, this);
         }
         
         try {
@@ -184,4 +1367,14 @@ class ClientHandler implements Runnable {
             System.err.println("Error closing client connection: " + e.getMessage());
         }
     }
+    
+    // Ends the connection from a sender thread; the reader thread then cleans up
+    private void closeSocket() {
+        connected = false;
+        try {
+            socket.close();
+        } catch (IOException e) {
+            System.err.println("Error closing client connection: " + e.getMessage());
+        }
+    }
 }
@@ -0,0 +1,98 @@
+package src;
+
+import src.util.ContentHash;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+/**
+ * Which server node owns which document, for running several servers as a
+ * cluster (see CollabServer). Every node is given the same member list, so
+ * all of them agree on the owner without talking to each other.
+ *
+ * Consistent hashing: each node is placed on a ring at many points (virtual
+ * nodes) and a document belongs to the first point at or after the hash of
+ * its name. Adding or removing a node only moves the documents next to its
+ * points, and the virtual nodes spread those evenly over the others.
+ */
+class ClusterRing {
+
+    static final class Node {
+        final String host;
+        final int port;
+
+        Node(String host, int port) {
+            this.host = host;
+            this.port = port;
+        }
+
+        // "host:port", as in the member list
+        static Node parse(String address) {
+            int separator = address.lastIndexOf(':');
+            if (separator <= 0) {
+                throw new IllegalArgumentException("Expected host:port, got " + address);
+            }
+            return new Node(address.substring(0, separator).trim(), Integer.parseInt(address.substring(separator + 1).trim()));
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof Node && ((Node) other).host.equals(host) && ((Node) other).port == port;
+        }
+
+        @Override
+        public int hashCode() {
+            return host.hashCode() * 31 + port;
+        }
+
+        @Override
+        public String toString() {
+            return host + ":" + port;
+        }
+    }
+
+    private final List<Node> members;
+    private final NavigableMap<Long, Node> ring = new TreeMap<>();
+
+    ClusterRing(List<Node> members, int virtualNodes) {
+        this.members = Collections.unmodifiableList(new ArrayList<>(members));
+        for (Node node : members) {
+            for (int i = 0; i < virtualNodes; i++) {
+                // A colliding point keeps the first node, the same choice on every member
+                ring.putIfAbsent(hash(node + "#" + i), node);
+            }
+        }
+    }
+
+    // Comma-separated host:port list, e.g. "localhost:5000,localhost:5001"
+    static ClusterRing parse(String memberList, int virtualNodes) {
+        List<Node> members = new ArrayList<>();
+        for (String address : memberList.split(",")) {
+            if (!address.trim().isEmpty()) {
+                members.add(Node.parse(address.trim()));
+            }
+        }
+        if (members.isEmpty()) {
+            throw new IllegalArgumentException("Cluster member list is empty");
+        }
+        return new ClusterRing(members, virtualNodes);
+    }
+
+    Node ownerOf(String documentName) {
+        Map.Entry<Long, Node> entry = ring.ceilingEntry(hash(documentName));
+        return entry != null ? entry.getValue() : ring.firstEntry().getValue();
+    }
+
+    List<Node> getMembers() {
+        return members;
+    }
+
+    // Position on the ring: the first 64 bits of the content hash, which every node computes the same way
+    private static long hash(String key) {
+        return Long.parseUnsignedLong(ContentHash.of(key).substring(0, 16), 16);
+    }
+}
@@ -6,16 +6,21 @@ import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
 
 public class CollabApp extends JFrame {
+    private static final String SERVER_HOST = "localhost";
+    private static final int SERVER_PORT = 5000;
+    
     private NotepadComponent notepad;
     private String username;
+    private String sessionToken;
     
     public CollabApp() {
         initializeFrame();
         
         // Show login dialog
-        LoginDialog.LoginResult result = LoginDialog.showLoginDialog(this);
+        LoginDialog.LoginResult result = LoginDialog.showLoginDialog(this, SERVER_HOST, SERVER_PORT);
         if (result.isAuthenticated()) {
             this.username = result.getUsername();
+            this.sessionToken = result.getSessionToken();
             createNotepad();
             setVisible(true);
         } else {
@@ -40,16 +45,14 @@ public class CollabApp extends JFrame {
     }
     
     private void createNotepad() {
-        notepad = new NotepadComponent("localhost", 5000, username);
+        notepad = new NotepadComponent(SERVER_HOST, SERVER_PORT, username, sessionToken);
         setJMenuBar(notepad.getMenuBar());
         add(notepad, BorderLayout.CENTER);
         setTitle("Collaborative Notepad - " + username);
     }
     
     public static void main(String[] args) {
-        // Initialize database
-        src.util.DBSetup.createTables();
-        
+        // The server owns the database; the client only talks to the server
         SwingUtilities.invokeLater(() -> {
             try {
                 UIManager.setLookAndFeel(UIManager.getSystemLookAndFeelClassName());
@@ -1,24 +1,156 @@
 package src;
 
+import javax.swing.Timer;
+
+import src.model.TextEdit;
+import src.util.ContentHash;
+import src.util.Log;
+import src.util.WireCodec;
+
 import java.io.*;
 import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
 public class CollabClient {
+    // Document and cursor frames are applied on the EDT at most once per frame
+    private static final int FRAME_MILLIS = 16;
+    // Names asked for per LIST_PAGE request
+    public static final int DOCUMENT_PAGE_SIZE = 200;
+    private static final int CONNECT_TIMEOUT_MILLIS = 5000;
+    // Reconnect attempts back off from the first delay up to the maximum
+    private static final long RECONNECT_DELAY_MILLIS = 1000;
+    private static final long MAX_RECONNECT_DELAY_MILLIS = 30_000;
+    
+    // The server the client was started with; in a cluster, any node
+    private final String host;
+    private final int port;
+    // Node currently connected to; a cluster redirects each document to the node that owns it
+    private volatile String nodeHost;
+    private volatile int nodePort;
+    // The server's hot standby, from STANDBY:host:port; reconnecting tries it too, since it takes over if the server dies
+    private volatile String standbyHost = null;
+    private volatile int standbyPort = 0;
     private Socket socket;
     private PrintWriter out;
     private BufferedReader in;
     private MessageListener listener;
-    private boolean connected = false;
-    private String currentDocument = null;
+    private volatile boolean connected = false;
+    // Set by disconnect(); a lost connection is retried until then
+    private volatile boolean closing = false;
+    private volatile String currentDocument = null;
     private String username;
+    // Session from the login; the server hands out a fresh one on every resume
+    private volatile String sessionToken;
     private AtomicInteger lastCursorPosition = new AtomicInteger(0);
     
+    // Pace the server asks for in FLOW frames for the current document, until told otherwise
+    public static final long DEFAULT_TEXT_INTERVAL_MILLIS = 300;
+    private static final long DEFAULT_CURSOR_INTERVAL_MILLIS = 50;
+    private volatile long textIntervalMillis = DEFAULT_TEXT_INTERVAL_MILLIS;
+    private volatile long cursorIntervalMillis = DEFAULT_CURSOR_INTERVAL_MILLIS;
+    // After THROTTLE, sends of that kind wait at least until then (nanoTime)
+    private volatile long textHeldUntil = System.nanoTime();
+    private volatile long cursorHeldUntil = textHeldUntil;
+    // Cursor moves closer together than the interval wait here and only the latest is sent (EDT)
+    private final Timer cursorTimer;
+    private int heldCursorPosition = -1;
+    private long lastCursorSent = System.nanoTime() - Long.MAX_VALUE / 2;
+    
+    // Latest decoded state waiting for the EDT; superseded frames are dropped
+    private final Object pendingLock = new Object();
+    private String pendingContent = null;
+    private boolean pendingFresh = false;
+    private boolean pendingCached = false;
+    private boolean pendingSynced = false;
+    private final Map<String, Integer> pendingCursors = new LinkedHashMap<>();
+    private StringBuilder pendingChunks = null;
+    private int pendingChunkOffset = 0;
+    private int pendingChunkTotal = 0;
+    private final List<TextEdit> pendingPatches = new ArrayList<>();
+    private final AtomicBoolean drainScheduled = new AtomicBoolean(false);
+    private final Timer drainTimer;
+    
+    // Chunked transfers, touched only by the network thread
+    private String documentStreamId = null;
+    private int documentStreamOffset = 0;
+    private String versionStreamId = null;
+    private StringBuilder versionStreamText = null;
+    // Version the UI is waiting for; -1 once it no longer wants one
+    private volatile int wantedVersion = -1;
+    private volatile String activeVersionStreamId = null;
+    
+    // The server's copy of the current document at serverRevision, as far as
+    // this client knows, so a reconnect can ask for just the missed edits.
+    // Network thread, and the reconnect thread while no reader is running.
+    private String serverText = null;
+    private volatile long serverEpoch = 0;
+    private volatile long serverRevision = -1;
+    // Content received but not yet confirmed by its REV frame
+    private String unconfirmedText = null;
+    private StringBuilder documentStreamText = null;
+    // Texts sent as TEXT and not acknowledged yet, oldest first
+    private final Deque<String> unackedTexts = new ConcurrentLinkedDeque<>();
+    // Latest text from the editor, including edits made while disconnected
+    private volatile String localText = null;
+    // From a REJOIN until its REV; with an offline log the missed edits are collected and merged at the end
+    private volatile boolean catchingUp = false;
+    private final List<TextEdit> catchUpEdits = new ArrayList<>();
+    
+    // Edits of the current document the server hasn't acknowledged, kept on disk
+    // while disconnected and until the merged result is acknowledged; null if none
+    private volatile OfflineLog offline = null;
+    private final Object offlineLock = new Object();
+    private final Path offlineDirectory;
+    // Merged text sent after a catch-up; its ACK retires the offline log (network thread)
+    private String replayText = null;
+    
+    // Joins sent whose JOINED hasn't arrived; document frames before it are about the previous document
+    private final AtomicInteger joinsInFlight = new AtomicInteger(0);
+    // The latest JOIN or REJOIN line, sent again to the node a REDIRECT names
+    private volatile String joinRequest = null;
+    // Local copy the latest join started from, adopted as the server text at its JOINED
+    private volatile ReplicaCache.Replica joinBase = null;
+    // Document that serverText belongs to (network thread)
+    private String serverDocument = null;
+    private final ReplicaCache replicas;
+    
+    // Documents followed in the background while another is open (see subscribe)
+    private final Set<String> subscribedDocuments = ConcurrentHashMap.newKeySet();
+    // Their subscriptions on this connection by id, and by name those asked for and not answered yet
+    private final Map<Integer, SubscribedDocument> subscriptions = new ConcurrentHashMap<>();
+    private final Map<String, SubscribedDocument> pendingSubscriptions = new ConcurrentHashMap<>();
+    
+    /**
+     * onDocumentReceived, onDocumentCached, onDocumentSynced,
+     * onDocumentUpdated, onDocumentChunk, onDocumentPatched and
+     * onCursorPositionChanged are coalesced and delivered on the EDT. The
+     * other callbacks are invoked on the network thread.
+     */
     public interface MessageListener {
         void onDocumentReceived(String content);
+        // The local copy of a document being opened; patches bring it up to date until onDocumentSynced
+        void onDocumentCached(String content);
+        // The document shown is now the server's current one
+        void onDocumentSynced();
+        // Offline edits that overlapped other users' changes and were dropped in favour of theirs
+        void onEditConflicts(String documentName, List<TextEdit> discarded);
         void onDocumentUpdated(String content);
+        // Part of a streamed document: offset 0 replaces the text, later chunks append; done at totalLength
+        void onDocumentChunk(String text, int offset, int totalLength);
+        // An edit to the current document, applied in order after any streamed chunks
+        void onDocumentPatched(TextEdit edit);
         void onDocumentListReceived(List<String> documents);
+        // One page of the catalog; offset 0 without a prefix starts the list over
+        void onDocumentPageReceived(int offset, int total, String prefix, List<String> documents);
+        // A document was saved for the first time, saved again or deleted
+        void onCatalogChanged(CatalogChange change, String documentName);
+        void onDeleteFailed(String documentName);
         void onConnectionStatusChanged(boolean connected);
         void onUserJoined(String documentName, String username);
         void onUserLeft(String documentName, String username);
@@ -28,6 +160,8 @@ public class CollabClient {
         void onVersionContentReceived(String content);
     }
     
+    public enum CatalogChange { CREATED, UPDATED, DELETED }
+    
     public static class VersionInfo {
         public final int id;
         public final String timestamp;
@@ -45,37 +179,209 @@ public class CollabClient {
         }
     }
     
-    public CollabClient(String host, int port, String username, MessageListener listener) {
+    // Outcome of a login or registration handshake
+    public static class AuthResult {
+        public final boolean success;
+        public final String username;
+        public final String token;
+        public final String message;
+        
+        AuthResult(boolean success, String username, String token, String message) {
+            this.success = success;
+            this.username = username;
+            this.token = token;
+            this.message = message;
+        }
+    }
+    
+    // Checks the password on the server and returns a session token for the editor connection
+    public static AuthResult login(String host, int port, String username, String password) {
+        return handshake(host, port, "AUTH:" + WireCodec.escapeField(username) + ":" + WireCodec.escapeField(password));
+    }
+    
+    public static AuthResult register(String host, int port, String username, String password) {
+        return handshake(host, port, "REGISTER:" + WireCodec.escapeField(username) + ":" + WireCodec.escapeField(password));
+    }
+    
+    // One request on a short-lived connection
+    private static AuthResult handshake(String host, int port, String request) {
+        try (Socket authSocket = new Socket()) {
+            authSocket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MILLIS);
+            PrintWriter authOut = new PrintWriter(new OutputStreamWriter(authSocket.getOutputStream(), StandardCharsets.UTF_8), true);
+            BufferedReader authIn = new BufferedReader(new InputStreamReader(authSocket.getInputStream(), StandardCharsets.UTF_8));
+            authOut.println(request);
+            return parseAuthReply(authIn.readLine());
+        } catch (IOException e) {
+            return new AuthResult(false, null, null, "Cannot reach server: " + e.getMessage());
+        }
+    }
+    
+    // AUTH_OK:user:token, REGISTER_OK:user or AUTH_FAIL:reason
+    private static AuthResult parseAuthReply(String reply) {
+        if (reply == null) {
+            return new AuthResult(false, null, null, "Server closed the connection");
+        }
+        if (reply.startsWith("AUTH_OK:")) {
+            String rest = reply.substring(8);
+            int separator = WireCodec.indexOfField(rest, ':');
+            if (separator >= 0) {
+                return new AuthResult(true, WireCodec.unescape(rest.substring(0, separator)), rest.substring(separator + 1), null);
+            }
+        } else if (reply.startsWith("REGISTER_OK:")) {
+            return new AuthResult(true, WireCodec.unescape(reply.substring(12)), null, null);
+        } else if (reply.startsWith("AUTH_FAIL:")) {
+            return new AuthResult(false, null, null, WireCodec.unescape(reply.substring(10)));
+        }
+        return new AuthResult(false, null, null, "Unexpected reply from server");
+    }
+    
+    public CollabClient(String host, int port, String username, String sessionToken, MessageListener listener) {
+        this.host = host;
+        this.port = port;
+        this.nodeHost = host;
+        this.nodePort = port;
         this.username = username;
+        this.sessionToken = sessionToken;
         this.listener = listener;
-        connect(host, port);
+        this.replicas = ReplicaCache.forServer(host, port);
+        this.offlineDirectory = ReplicaCache.serverDirectory(host, port);
+        this.drainTimer = new Timer(FRAME_MILLIS, e -> drainPending());
+        this.drainTimer.setRepeats(false);
+        this.cursorTimer = new Timer(0, e -> sendHeldCursor());
+        this.cursorTimer.setRepeats(false);
+        connect();
     }
     
-    private void connect(String host, int port) {
+    private void connect() {
         try {
-            socket = new Socket(host, port);
-            out = new PrintWriter(socket.getOutputStream(), true);
-            in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            
-            // Send username first
-            out.println(username);
-            
-            connected = true;
-            
-            if (listener != null) {
-                listener.onConnectionStatusChanged(true);
+            AuthResult session = openConnection();
+            if (!session.success) {
+                throw new IOException("Session rejected: " + session.message);
             }
-            
-            // Start listening for messages
-            new Thread(this::listenForMessages).start();
-            
-            System.out.println("Connected to server at " + host + ":" + port);
+            startListening();
         } catch (IOException e) {
             System.err.println("Failed to connect to server: " + e.getMessage());
             connected = false;
             if (listener != null) {
                 listener.onConnectionStatusChanged(false);
             }
+            // Documents with a local copy can be edited meanwhile
+            startReconnecting();
+        }
+    }
+    
+    // Connects and resumes the login session; the password never goes over this connection
+    private AuthResult openConnection() throws IOException {
+        Socket newSocket = new Socket();
+        try {
+            newSocket.connect(new InetSocketAddress(nodeHost, nodePort), CONNECT_TIMEOUT_MILLIS);
+            PrintWriter newOut = new PrintWriter(new OutputStreamWriter(newSocket.getOutputStream(), StandardCharsets.UTF_8), true);
+            BufferedReader newIn = new BufferedReader(new InputStreamReader(newSocket.getInputStream(), StandardCharsets.UTF_8));
+            newOut.println("RESUME:" + sessionToken);
+            AuthResult session = parseAuthReply(newIn.readLine());
+            if (!session.success) {
+                newSocket.close();
+                return session;
+            }
+            sessionToken = session.token;
+            socket = newSocket;
+            out = newOut;
+            in = newIn;
+            resubscribe();
+            return session;
+        } catch (IOException e) {
+            newSocket.close();
+            throw e;
+        }
+    }
+    
+    private void startListening() {
+        connected = true;
+        
+        if (listener != null) {
+            listener.onConnectionStatusChanged(true);
+        }
+        
+        // Start listening for messages
+        new Thread(this::listenForMessages).start();
+        
+        System.out.println("Connected to server at " + nodeHost + ":" + nodePort);
+    }
+    
+    // Retries with growing delays until connected, logged out or closed
+    private void reconnect() {
+        long delay = RECONNECT_DELAY_MILLIS;
+        while (!closing) {
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (closing) {
+                return;
+            }
+            try {
+                AuthResult session = openConnection();
+                if (!session.success) {
+                    System.err.println("Session rejected, please log in again: " + session.message);
+                    return;
+                }
+                rejoin();
+                startListening();
+                return;
+            } catch (IOException e) {
+                System.err.println("Reconnect failed: " + e.getMessage());
+                // The node a redirect pointed to may be gone; the next try asks the server we started with,
+                // or its standby if that is the one that just failed
+                String standby = standbyHost;
+                if (standby != null && nodeHost.equals(host) && nodePort == port) {
+                    nodeHost = standby;
+                    nodePort = standbyPort;
+                    // The standby takes over within seconds; waiting longer only comes after both were tried
+                    continue;
+                }
+                nodeHost = host;
+                nodePort = port;
+            }
+            delay = Math.min(delay * 2, MAX_RECONNECT_DELAY_MILLIS);
+        }
+    }
+    
+    /**
+     * Reopens the current document on a new connection. With a known
+     * revision only the edits made since then are sent back. Edits made
+     * here in the meantime are in the offline log, which starts where the
+     * server text was, and are merged with them at the end of the catch-up
+     * (see finishReplay). Without a revision the document is loaded again.
+     */
+    private void rejoin() {
+        String document = currentDocument;
+        if (document == null) {
+            return;
+        }
+        unackedTexts.clear();
+        catchUpEdits.clear();
+        replayText = null;
+        // Joins sent on the old connection will never be answered
+        joinsInFlight.set(1);
+        joinBase = null;
+        OfflineLog log = offline;
+        if (log != null && log.getName().equals(document)) {
+            // A catch-up cut short may have moved the server text past the log's base
+            serverText = log.getBase();
+            serverEpoch = log.getEpoch();
+            serverRevision = log.getRevision();
+            serverDocument = document;
+        } else if (serverText != null && serverRevision >= 0 && document.equals(serverDocument)) {
+            // Typing during the catch-up is logged against the text it starts from
+            offline = OfflineLog.start(offlineDirectory, document, serverEpoch, serverRevision, serverText);
+        }
+        if (serverText != null && serverRevision >= 0 && document.equals(serverDocument)) {
+            catchingUp = true;
+            sendJoin("REJOIN:" + serverEpoch + ":" + serverRevision + ":" + ContentHash.of(serverText) + ":" + document);
+        } else {
+            catchingUp = false;
+            sendJoin("JOIN:" + document);
         }
     }
     
@@ -83,9 +389,26 @@ public class CollabClient {
         try {
             String message;
             while (connected && (message = in.readLine()) != null) {
-                System.out.println("Client received: " + message);
+                if (Log.isDebugEnabled()) {
+                    Log.debug("Client received: " + abbreviate(message));
+                }
                 
-                if (message.startsWith("DOCUMENT:")) {
+                if (message.startsWith("@")) {
+                    handleSubscriptionFrame(message.substring(1));
+                }
+                else if (message.startsWith("JOINED:")) {
+                    handleJoinedMessage(message.substring(7));
+                }
+                else if (message.startsWith("REDIRECT:")) {
+                    handleRedirectMessage(message.substring(9));
+                }
+                else if (message.startsWith("REATTACH:")) {
+                    handleReattachMessage(message.substring(9));
+                }
+                else if (joinsInFlight.get() > 0 && isDocumentFrame(message)) {
+                    // Still about the document open before the latest join
+                }
+                else if (message.startsWith("DOCUMENT:")) {
                     handleDocumentMessage(message.substring(9));
                 } 
                 else if (message.startsWith("UPDATE:")) {
@@ -94,6 +417,23 @@ public class CollabClient {
                 else if (message.startsWith("LIST:")) {
                     handleListMessage(message.substring(5));
                 }
+                else if (message.startsWith("LIST_PAGE:")) {
+                    handleListPageMessage(message.substring(10));
+                }
+                else if (message.startsWith("DOC_CREATED:")) {
+                    handleCatalogChange(CatalogChange.CREATED, message.substring(12));
+                }
+                else if (message.startsWith("DOC_UPDATED:")) {
+                    handleCatalogChange(CatalogChange.UPDATED, message.substring(12));
+                }
+                else if (message.startsWith("DOC_DELETED:")) {
+                    handleCatalogChange(CatalogChange.DELETED, message.substring(12));
+                }
+                else if (message.startsWith("DELETE_FAILED:")) {
+                    if (listener != null) {
+                        listener.onDeleteFailed(WireCodec.unescape(message.substring(14)));
+                    }
+                }
                 else if (message.startsWith("USER_JOINED:")) {
                     handleUserJoinedMessage(message.substring(12));
                 }
@@ -112,36 +452,777 @@ public class CollabClient {
                 else if (message.startsWith("VERSION_CONTENT:")) {
                     handleVersionContentMessage(message.substring(16));
                 }
+                else if (message.startsWith("DOC_BEGIN:")) {
+                    handleStreamBegin(message.substring(10));
+                }
+                else if (message.startsWith("DOC_CHUNK:")) {
+                    handleStreamChunk(message.substring(10));
+                }
+                else if (message.startsWith("DOC_END:")) {
+                    handleStreamEnd(message.substring(8));
+                }
+                else if (message.startsWith("PATCH:")) {
+                    handlePatchMessage(message.substring(6));
+                }
+                else if (message.startsWith("REV:")) {
+                    handleRevisionMessage(message.substring(4));
+                }
+                else if (message.startsWith("ACK:")) {
+                    handleAckMessage(message.substring(4));
+                }
+                else if (message.startsWith("STANDBY:")) {
+                    handleStandbyMessage(message.substring(8));
+                }
+                else if (message.startsWith("THROTTLE:")) {
+                    handleThrottleMessage(message.substring(9));
+                }
+                else if (message.startsWith("FLOW:")) {
+                    handleFlowMessage(message.substring(5));
+                }
+                else if (message.startsWith("SUBSCRIBED:")) {
+                    handleSubscribedMessage(message.substring(11));
+                }
+                else if (message.startsWith("SUBSCRIBE_FAILED:")) {
+                    handleSubscribeFailedMessage(message.substring(17));
+                }
+                else if (message.startsWith("UNSUBSCRIBED:")) {
+                    handleUnsubscribedMessage(message.substring(13));
+                }
             }
         } catch (IOException e) {
-            System.err.println("Connection lost: " + e.getMessage());
+            if (!closing) {
+                System.err.println("Connection lost: " + e.getMessage());
+            }
         } finally {
-            disconnect();
+            connectionLost();
         }
     }
     
-    private void handleDocumentMessage(String content) {
+    private void connectionLost() {
+        connected = false;
+        closeConnection();
+        if (closing) {
+            return;
+        }
+        keepUnacknowledgedEdits();
         if (listener != null) {
-            listener.onDocumentReceived(content);
+            listener.onConnectionStatusChanged(false);
+        }
+        startReconnecting();
+    }
+    
+    private void startReconnecting() {
+        if (closing) {
+            return;
+        }
+        Thread reconnector = new Thread(this::reconnect, "reconnect");
+        reconnector.setDaemon(true);
+        reconnector.start();
+    }
+    
+    private void sendJoin(String request) {
+        joinRequest = request;
+        out.println(request);
+    }
+    
+    /**
+     * REDIRECT:host:port:document answers a join sent to a cluster node that
+     * doesn't own the document. For the latest join, the client moves to
+     * that node and asks again there; the reader carries on with the new
+     * connection. If the node can't be reached this counts as a lost
+     * connection, and reconnecting starts over from the first server.
+     */
+    private void handleRedirectMessage(String message) throws IOException {
+        String[] parts = message.split(":", 3);
+        if (joinsInFlight.get() > 1) {
+            // A later join is still to be answered
+            joinsInFlight.decrementAndGet();
+            return;
+        }
+        if (parts.length < 3) {
+            System.err.println("Invalid redirect: " + message);
+            return;
+        }
+        
+        try {
+            moveToNode(parts[0], Integer.parseInt(parts[1]));
+        } catch (NumberFormatException e) {
+            System.err.println("Invalid redirect: " + message);
+            return;
+        }
+        System.out.println("Document " + parts[2] + " is on " + nodeHost + ":" + nodePort);
+        
+        String request = joinRequest;
+        if (request != null) {
+            out.println(request);
+        }
+        String document = currentDocument;
+        if (document != null) {
+            requestDocumentVersions(document);
+        }
+    }
+    
+    /**
+     * REATTACH:host:port:document: the current document has moved to
+     * another node while open. The client rejoins it there from the
+     * revision it has, and edits the old node never acknowledged go
+     * through the offline log, so they are merged and sent again.
+     */
+    private void handleReattachMessage(String message) throws IOException {
+        String[] parts = message.split(":", 3);
+        if (parts.length < 3 || !parts[2].equals(currentDocument) || joinsInFlight.get() > 0) {
+            return;
+        }
+        int targetPort;
+        try {
+            targetPort = Integer.parseInt(parts[1]);
+        } catch (NumberFormatException e) {
+            System.err.println("Invalid reattach: " + message);
+            return;
+        }
+        // Typing from here on is logged rather than sent to either node
+        catchingUp = true;
+        moveToNode(parts[0], targetPort);
+        System.out.println("Document " + parts[2] + " moved to " + nodeHost + ":" + nodePort);
+        keepUnacknowledgedEdits();
+        rejoin();
+    }
+    
+    // STANDBY:host:port; after a failover the new server names its own standby, if it has one
+    private void handleStandbyMessage(String message) {
+        int separator = message.lastIndexOf(':');
+        try {
+            standbyPort = Integer.parseInt(message.substring(separator + 1));
+            standbyHost = message.substring(0, separator);
+        } catch (NumberFormatException | StringIndexOutOfBoundsException e) {
+            System.err.println("Invalid standby: " + message);
+        }
+    }
+    
+    /**
+     * THROTTLE:class:millis: this client is over one of the server's rate
+     * limits. TEXT and CURSOR are held back and only the latest is applied,
+     * so nothing is lost, but sending more of them before the time is up
+     * only adds to the queue; REQUEST (listings and versions) was refused
+     * and can be asked for again later.
+     */
+    private void handleThrottleMessage(String message) {
+        int separator = message.indexOf(':');
+        long until;
+        try {
+            until = System.nanoTime() + Long.parseLong(message.substring(separator + 1)) * 1_000_000;
+        } catch (NumberFormatException | StringIndexOutOfBoundsException e) {
+            System.err.println("Invalid throttle: " + message);
+            return;
+        }
+        String messageClass = message.substring(0, separator);
+        if (messageClass.equals("TEXT")) {
+            textHeldUntil = until;
+        } else if (messageClass.equals("CURSOR")) {
+            cursorHeldUntil = until;
+        }
+        if (Log.isDebugEnabled()) {
+            Log.debug("Server is limiting " + messageClass + " messages for " + message.substring(separator + 1) + " ms");
+        }
+    }
+    
+    // FLOW:textMillis:cursorMillis:document; the pace for sending edits and cursor moves while it is this busy
+    private void handleFlowMessage(String message) {
+        String[] parts = message.split(":", 3);
+        try {
+            if (parts.length == 3 && parts[2].equals(currentDocument)) {
+                textIntervalMillis = Long.parseLong(parts[0]);
+                cursorIntervalMillis = Long.parseLong(parts[1]);
+                if (Log.isDebugEnabled()) {
+                    Log.debug("Sending text every " + textIntervalMillis + " ms, cursor every " + cursorIntervalMillis + " ms");
+                }
+            }
+        } catch (NumberFormatException e) {
+            System.err.println("Invalid flow message: " + message);
+        }
+    }
+    
+    // SUBSCRIBED:id:document; its frames now come as @id:frame
+    private void handleSubscribedMessage(String message) {
+        int separator = message.indexOf(':');
+        int id;
+        try {
+            id = Integer.parseInt(message.substring(0, separator));
+        } catch (NumberFormatException | StringIndexOutOfBoundsException e) {
+            System.err.println("Invalid subscription: " + message);
+            return;
+        }
+        SubscribedDocument document = pendingSubscriptions.remove(message.substring(separator + 1));
+        if (document != null) {
+            subscriptions.put(id, document);
+        } else {
+            // Unsubscribed while the request was on its way
+            out.println("UNSUBSCRIBE:" + id);
+        }
+    }
+    
+    // SUBSCRIBE_FAILED:document:reason; asked for again on the next connection
+    private void handleSubscribeFailedMessage(String message) {
+        int separator = WireCodec.indexOfField(message, ':');
+        if (separator < 0) {
+            System.err.println("Invalid subscription failure: " + message);
+            return;
+        }
+        String documentName = WireCodec.unescape(message.substring(0, separator));
+        pendingSubscriptions.remove(documentName);
+        System.err.println("Cannot follow " + documentName + ": " + WireCodec.unescape(message.substring(separator + 1)));
+    }
+    
+    // UNSUBSCRIBED:id, asked for or because the document was joined or deleted
+    private void handleUnsubscribedMessage(String idStr) {
+        try {
+            subscriptions.remove(Integer.parseInt(idStr));
+        } catch (NumberFormatException e) {
+            System.err.println("Invalid subscription: " + idStr);
+        }
+    }
+    
+    /**
+     * @id:frame for a subscribed document. Only what keeps its copy up to
+     * date is used; presence, pace and acknowledgements are for an editor,
+     * and a subscribed document isn't open in one. REATTACH ends the
+     * subscription, since the document is now on another node.
+     */
+    private void handleSubscriptionFrame(String message) {
+        int separator = message.indexOf(':');
+        int id;
+        try {
+            id = Integer.parseInt(message.substring(0, separator));
+        } catch (NumberFormatException | StringIndexOutOfBoundsException e) {
+            System.err.println("Invalid subscription frame: " + abbreviate(message));
+            return;
+        }
+        SubscribedDocument document = subscriptions.get(id);
+        if (document == null) {
+            // Ended while the frame was on its way
+            return;
+        }
+        String frame = message.substring(separator + 1);
+        try {
+            if (frame.startsWith("DOCUMENT:")) {
+                document.received(WireCodec.unescape(frame.substring(9)));
+            }
+            else if (frame.startsWith("UPDATE:")) {
+                document.received(WireCodec.unescape(frame.substring(7)));
+            }
+            else if (frame.startsWith("DOC_BEGIN:")) {
+                // id:DOCUMENT:length:document
+                String[] parts = frame.substring(10).split(":", 4);
+                document.streamBegin(parts[0], Integer.parseInt(parts[2]));
+            }
+            else if (frame.startsWith("DOC_CHUNK:")) {
+                String chunk = frame.substring(10);
+                int colon = chunk.indexOf(':');
+                document.streamChunk(chunk.substring(0, colon), WireCodec.unescape(chunk.substring(colon + 1)));
+            }
+            else if (frame.startsWith("DOC_END:")) {
+                document.streamEnd(frame.substring(8));
+            }
+            else if (frame.startsWith("PATCH:")) {
+                String[] parts = frame.substring(6).split(":", 3);
+                document.patched(new TextEdit(Integer.parseInt(parts[0]), Integer.parseInt(parts[1]), WireCodec.unescape(parts[2])));
+            }
+            else if (frame.startsWith("REV:")) {
+                String[] parts = frame.substring(4).split(":");
+                if (document.confirm(Long.parseLong(parts[0]), Long.parseLong(parts[1]))) {
+                    replicas.put(document.name, document.getEpoch(), document.getRevision(), document.getText());
+                }
+            }
+            else if (frame.startsWith("REATTACH:")) {
+                subscriptions.remove(id);
+                System.out.println("Document " + document.name + " moved to another node; no longer followed on this connection");
+            }
+        } catch (NumberFormatException | IndexOutOfBoundsException e) {
+            System.err.println("Invalid frame for " + document.name + ": " + abbreviate(frame));
+        }
+    }
+    
+    /**
+     * How long an editor should wait after a change before sending the text:
+     * the interval the server asked for in its latest FLOW frame, or longer
+     * while a THROTTLE for text is still in effect. Sending the text as it
+     * is then, rather than every change, keeps a busy document in sync at a
+     * slower pace instead of backlogging the server.
+     */
+    public long getTextSendInterval() {
+        long held = (textHeldUntil - System.nanoTime()) / 1_000_000;
+        return Math.max(textIntervalMillis, held);
+    }
+    
+    // Continues on a connection to another node; the reader thread goes on with it
+    private void moveToNode(String targetHost, int targetPort) throws IOException {
+        Socket previous = socket;
+        nodeHost = targetHost;
+        nodePort = targetPort;
+        AuthResult session = openConnection();
+        if (!session.success) {
+            throw new IOException("Session rejected by " + nodeHost + ":" + nodePort + ": " + session.message);
+        }
+        previous.close();
+    }
+    
+    // Text sent but not acknowledged may not have been applied; it goes into the offline log with what follows
+    private void keepUnacknowledgedEdits() {
+        String local = localText;
+        if (currentDocument != null && local != null && (offline != null || !local.equals(serverText))) {
+            recordOffline(local);
+        }
+    }
+    
+    private static boolean isDocumentFrame(String message) {
+        return message.startsWith("DOCUMENT:") || message.startsWith("UPDATE:") || message.startsWith("PATCH:")
+            || message.startsWith("REV:") || message.startsWith("ACK:");
+    }
+    
+    /**
+     * JOINED:document starts the server's reply to a join. Only the reply
+     * to the latest join is used. When that join started from a local copy
+     * or offline log, its base becomes the server text the catch-up applies
+     * to; after a reconnect the server text is already in place.
+     */
+    private void handleJoinedMessage(String documentName) {
+        if (joinsInFlight.updateAndGet(n -> Math.max(0, n - 1)) > 0) {
+            return;
+        }
+        documentStreamId = null;
+        documentStreamText = null;
+        unconfirmedText = null;
+        serverDocument = documentName;
+        // Each document sets its own pace, sent after this if it isn't the default
+        textIntervalMillis = DEFAULT_TEXT_INTERVAL_MILLIS;
+        cursorIntervalMillis = DEFAULT_CURSOR_INTERVAL_MILLIS;
+        
+        ReplicaCache.Replica base = joinBase;
+        joinBase = null;
+        if (base != null && base.name.equals(documentName)) {
+            serverText = base.content;
+            serverEpoch = base.epoch;
+            serverRevision = base.revision;
+            catchUpEdits.clear();
+            catchingUp = true;
+            OfflineLog log = offline;
+            String shown = log != null && log.getName().equals(documentName) ? log.getText() : base.content;
+            synchronized (pendingLock) {
+                if (!pendingCached || pendingContent != shown) {
+                    // Shown already, and frames for the previous document may have followed it
+                    pendingContent = shown;
+                    pendingCached = true;
+                    pendingFresh = false;
+                    pendingChunks = null;
+                    pendingPatches.clear();
+                }
+            }
+            scheduleDrain();
+        } else if (!catchingUp) {
+            serverText = null;
+            serverRevision = -1;
+        }
+    }
+    
+    private void handleDocumentMessage(String content) {
+        String decoded = WireCodec.unescape(content);
+        documentStreamId = null;
+        unconfirmedText = decoded;
+        synchronized (pendingLock) {
+            pendingContent = decoded;
+            pendingFresh = true;
+            pendingCached = false;
+            pendingChunks = null;
+            pendingPatches.clear();
+            // Cursor positions refer to the previous content
+            pendingCursors.clear();
+        }
+        scheduleDrain();
+    }
+    
+    // DOC_BEGIN:id:kind:length:ref
+    private void handleStreamBegin(String message) {
+        String[] parts = message.split(":", 4);
+        if (parts.length != 4) {
+            System.err.println("Invalid stream header: " + message);
+            return;
+        }
+        String id = parts[0];
+        int length;
+        try {
+            length = Integer.parseInt(parts[2]);
+        } catch (NumberFormatException e) {
+            System.err.println("Invalid stream length: " + parts[2]);
+            return;
+        }
+        
+        if (parts[1].equals("DOCUMENT")) {
+            if (!parts[3].equals(currentDocument) || joinsInFlight.get() > 0) {
+                // Joined something else meanwhile
+                cancelTransfer(id);
+                return;
+            }
+            documentStreamId = id;
+            documentStreamOffset = 0;
+            documentStreamText = new StringBuilder(length);
+            synchronized (pendingLock) {
+                pendingContent = null;
+                pendingFresh = false;
+                pendingCached = false;
+                pendingChunks = new StringBuilder();
+                pendingChunkOffset = 0;
+                pendingChunkTotal = length;
+                pendingPatches.clear();
+                pendingCursors.clear();
+            }
+            scheduleDrain();
+        } else if (parts[1].equals("VERSION")) {
+            if (!parts[3].equals(String.valueOf(wantedVersion))) {
+                cancelTransfer(id);
+                return;
+            }
+            versionStreamId = id;
+            versionStreamText = new StringBuilder(length);
+            activeVersionStreamId = id;
+        } else {
+            cancelTransfer(id);
+        }
+    }
+    
+    // DOC_CHUNK:id:text; chunks of cancelled or superseded streams are dropped
+    private void handleStreamChunk(String message) {
+        int colon = message.indexOf(':');
+        if (colon < 0) {
+            return;
+        }
+        String id = message.substring(0, colon);
+        if (id.equals(documentStreamId)) {
+            if (joinsInFlight.get() > 0) {
+                // The stream is for the previous document; JOINED drops it
+                return;
+            }
+            String text = WireCodec.unescape(message.substring(colon + 1));
+            documentStreamText.append(text);
+            synchronized (pendingLock) {
+                if (pendingChunks == null) {
+                    pendingChunks = new StringBuilder();
+                    pendingChunkOffset = documentStreamOffset;
+                }
+                pendingChunks.append(text);
+            }
+            documentStreamOffset += text.length();
+            scheduleDrain();
+        } else if (id.equals(versionStreamId)) {
+            if (activeVersionStreamId == null) {
+                // Cancelled by the UI
+                versionStreamId = null;
+                versionStreamText = null;
+                return;
+            }
+            versionStreamText.append(WireCodec.unescape(message.substring(colon + 1)));
+        }
+    }
+    
+    private void handleStreamEnd(String id) {
+        if (id.equals(documentStreamId)) {
+            documentStreamId = null;
+            unconfirmedText = documentStreamText.toString();
+            documentStreamText = null;
+        } else if (id.equals(versionStreamId)) {
+            String content = versionStreamText.toString();
+            boolean wanted = id.equals(activeVersionStreamId);
+            versionStreamId = null;
+            versionStreamText = null;
+            activeVersionStreamId = null;
+            if (wanted && listener != null) {
+                listener.onVersionContentReceived(content);
+            }
+        }
+    }
+    
+    private void cancelTransfer(String id) {
+        if (connected && out != null) {
+            out.println("CANCEL:" + id);
         }
     }
     
     private void handleUpdateMessage(String content) {
-        if (listener != null) {
-            listener.onDocumentUpdated(content);
+        String decoded = WireCodec.unescape(content);
+        unconfirmedText = decoded;
+        synchronized (pendingLock) {
+            pendingContent = decoded;
+            // The full text already includes them
+            pendingPatches.clear();
+        }
+        scheduleDrain();
+    }
+    
+    /**
+     * PATCH:offset:removedLength:text, after a streamed snapshot, as
+     * catch-up after a REJOIN, or for another client's edit. During a
+     * catch-up with an offline log the patches are only collected; the
+     * editor shows the local text until they are merged with it at the REV.
+     * While texts of our own are unacknowledged the editor doesn't match
+     * the server's copy, so it is given the whole text as with an UPDATE.
+     */
+    private void handlePatchMessage(String message) {
+        String[] parts = message.split(":", 3);
+        if (parts.length != 3) {
+            System.err.println("Invalid patch message: " + abbreviate(message));
+            return;
+        }
+        try {
+            TextEdit edit = new TextEdit(Integer.parseInt(parts[0]), Integer.parseInt(parts[1]), WireCodec.unescape(parts[2]));
+            if (unconfirmedText != null) {
+                unconfirmedText = edit.applyTo(unconfirmedText);
+            } else if (serverText != null) {
+                serverText = edit.applyTo(serverText);
+                if (catchingUp && offline != null) {
+                    catchUpEdits.add(edit);
+                    return;
+                }
+            }
+            synchronized (pendingLock) {
+                if (pendingContent == null && !catchingUp && unconfirmedText == null && serverText != null && !unackedTexts.isEmpty()) {
+                    pendingContent = serverText;
+                    pendingPatches.clear();
+                } else if (pendingContent != null) {
+                    // Applies to text that hasn't reached the UI yet
+                    pendingContent = new StringBuilder(pendingContent)
+                        .replace(edit.getOffset(), edit.getOffset() + edit.getRemovedLength(), edit.getText())
+                        .toString();
+                } else {
+                    pendingPatches.add(edit);
+                }
+            }
+            scheduleDrain();
+        } catch (NumberFormatException | StringIndexOutOfBoundsException e) {
+            System.err.println("Invalid patch message: " + abbreviate(message));
+        }
+    }
+    
+    // REV:epoch:revision confirms the content just received; stale ones are ignored
+    private void handleRevisionMessage(String message) {
+        String[] parts = message.split(":");
+        long epoch;
+        long revision;
+        try {
+            epoch = Long.parseLong(parts[0]);
+            revision = Long.parseLong(parts[1]);
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            System.err.println("Invalid revision message: " + message);
+            return;
+        }
+        boolean reloaded = unconfirmedText != null;
+        if (epoch != serverEpoch || revision >= serverRevision) {
+            if (unconfirmedText != null) {
+                serverText = unconfirmedText;
+            }
+            serverEpoch = epoch;
+            serverRevision = revision;
+        }
+        unconfirmedText = null;
+        
+        saveReplica();
+        
+        if (catchingUp) {
+            catchingUp = false;
+            OfflineLog log = offline;
+            if (log != null && log.getName().equals(serverDocument)) {
+                finishReplay(log, reloaded);
+            }
+            catchUpEdits.clear();
+            synchronized (pendingLock) {
+                pendingSynced = true;
+            }
+            scheduleDrain();
+        }
+    }
+    
+    /**
+     * Merges the offline edits with the server's changes collected during
+     * the catch-up (or, after a full reload, with the difference to the new
+     * text) and sends the result like any other edit. The log stays until
+     * the server acknowledges it, so a connection lost meanwhile replays it
+     * again from the new base.
+     */
+    private void finishReplay(OfflineLog log, boolean reloaded) {
+        String before = log.getText();
+        List<TextEdit> remote = reloaded ? Collections.<TextEdit>emptyList() : new ArrayList<>(catchUpEdits);
+        String merged = log.merge(remote, serverText, serverEpoch, serverRevision);
+        List<TextEdit> conflicts = log.takeConflicts();
+        
+        // The editor still shows the local text, or the server's after a reload
+        if (reloaded || !merged.equals(before)) {
+            synchronized (pendingLock) {
+                pendingContent = merged;
+                pendingPatches.clear();
+            }
+        }
+        if (merged.equals(serverText)) {
+            log.delete();
+            offline = null;
+        } else {
+            replayText = merged;
+            sendText(merged);
+        }
+        if (!conflicts.isEmpty()) {
+            System.err.println(conflicts.size() + " offline edit(s) to " + serverDocument + " overlapped other changes and were dropped");
+            if (listener != null) {
+                listener.onEditConflicts(serverDocument, conflicts);
+            }
+        }
+    }
+    
+    // ACK:epoch:revision for the oldest TEXT; revision -1 if the server took a later one in its place while throttling
+    private void handleAckMessage(String message) {
+        String sent = unackedTexts.poll();
+        String[] parts = message.split(":");
+        try {
+            long epoch = Long.parseLong(parts[0]);
+            long revision = Long.parseLong(parts[1]);
+            if (sent != null && epoch == serverEpoch && revision >= serverRevision) {
+                serverText = sent;
+                serverRevision = revision;
+                saveReplica();
+            }
+            if (sent != null && sent == replayText) {
+                // The merged offline edits are in
+                replayText = null;
+                OfflineLog log = offline;
+                offline = null;
+                if (log != null) {
+                    log.delete();
+                }
+            }
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            System.err.println("Invalid ack message: " + message);
+        }
+    }
+    
+    // Keeps the local copy at the server's latest text; written to disk in the background
+    private void saveReplica() {
+        if (serverDocument != null && serverText != null && serverRevision >= 0) {
+            replicas.put(serverDocument, serverEpoch, serverRevision, serverText);
+        }
+    }
+    
+    private void scheduleDrain() {
+        if (drainScheduled.compareAndSet(false, true)) {
+            drainTimer.restart();
+        }
+    }
+    
+    // Runs on the EDT: applies only the newest content and cursor positions
+    private void drainPending() {
+        drainScheduled.set(false);
+        
+        String content;
+        boolean fresh;
+        boolean cached;
+        boolean synced;
+        String chunks;
+        int chunkOffset;
+        int chunkTotal;
+        List<TextEdit> patches;
+        Map<String, Integer> cursors;
+        synchronized (pendingLock) {
+            content = pendingContent;
+            fresh = pendingFresh;
+            cached = pendingCached;
+            synced = pendingSynced;
+            pendingContent = null;
+            pendingFresh = false;
+            pendingCached = false;
+            pendingSynced = false;
+            chunks = pendingChunks != null ? pendingChunks.toString() : null;
+            chunkOffset = pendingChunkOffset;
+            chunkTotal = pendingChunkTotal;
+            pendingChunks = null;
+            if (pendingPatches.isEmpty()) {
+                patches = Collections.emptyList();
+            } else {
+                patches = new ArrayList<>(pendingPatches);
+                pendingPatches.clear();
+            }
+            if (pendingCursors.isEmpty()) {
+                cursors = Collections.emptyMap();
+            } else {
+                cursors = new LinkedHashMap<>(pendingCursors);
+                pendingCursors.clear();
+            }
+        }
+        
+        if (listener == null) {
+            return;
+        }
+        // A streamed document comes before any UPDATE that followed it
+        if (chunks != null) {
+            listener.onDocumentChunk(chunks, chunkOffset, chunkTotal);
+        }
+        for (TextEdit patch : patches) {
+            listener.onDocumentPatched(patch);
+        }
+        if (content != null) {
+            if (fresh) {
+                listener.onDocumentReceived(content);
+            } else if (cached) {
+                listener.onDocumentCached(content);
+            } else {
+                listener.onDocumentUpdated(content);
+            }
+        }
+        if (synced) {
+            listener.onDocumentSynced();
+        }
+        for (Map.Entry<String, Integer> entry : cursors.entrySet()) {
+            listener.onCursorPositionChanged(entry.getKey(), entry.getValue());
         }
     }
     
+    private static String abbreviate(String message) {
+        return message.length() <= 200 ? message : message.substring(0, 200) + "... (" + message.length() + " chars)";
+    }
+    
     private void handleListMessage(String listStr) {
         if (listener != null) {
-            String[] docArray = listStr.split(",");
-            List<String> documents = new ArrayList<>();
-            for (String doc : docArray) {
-                if (!doc.isEmpty()) {
-                    documents.add(doc);
-                }
+            listener.onDocumentListReceived(WireCodec.splitFields(listStr, ','));
+        }
+    }
+    
+    // LIST_PAGE:offset:total:prefix:names, with the prefix and names field-escaped
+    private void handleListPageMessage(String message) {
+        String[] parts = message.split(":", 3);
+        int separator = parts.length == 3 ? WireCodec.indexOfField(parts[2], ':') : -1;
+        if (separator < 0) {
+            System.err.println("Invalid list page message: " + abbreviate(message));
+            return;
+        }
+        try {
+            int offset = Integer.parseInt(parts[0]);
+            int total = Integer.parseInt(parts[1]);
+            String prefix = WireCodec.unescape(parts[2].substring(0, separator));
+            List<String> documents = WireCodec.splitFields(parts[2].substring(separator + 1), ',');
+            if (listener != null) {
+                listener.onDocumentPageReceived(offset, total, prefix, documents);
             }
-            listener.onDocumentListReceived(documents);
+        } catch (NumberFormatException e) {
+            System.err.println("Invalid list page message: " + abbreviate(message));
+        }
+    }
+    
+    private void handleCatalogChange(CatalogChange change, String escapedName) {
+        String documentName = WireCodec.unescape(escapedName);
+        if (change == CatalogChange.DELETED) {
+            replicas.remove(documentName);
+            subscribedDocuments.remove(documentName);
+            if (documentName.equals(currentDocument)) {
+                // The server has already taken us out of it
+                currentDocument = null;
+            }
+        }
+        if (listener != null) {
+            listener.onCatalogChanged(change, documentName);
         }
     }
     
@@ -169,10 +1250,13 @@ public class CollabClient {
     
     private void handleCursorPositionMessage(String message) {
         String[] parts = message.split(":");
-        if (parts.length == 2 && listener != null) {
+        if (parts.length == 2) {
             try {
                 int position = Integer.parseInt(parts[1]);
-                listener.onCursorPositionChanged(parts[0], position);
+                synchronized (pendingLock) {
+                    pendingCursors.put(parts[0], position);
+                }
+                scheduleDrain();
             } catch (NumberFormatException e) {
                 System.err.println("Invalid cursor position: " + parts[1]);
             }
@@ -180,7 +1264,9 @@ public class CollabClient {
     }
     
     private void handleVersionsMessage(String message) {
-        System.out.println("Processing versions message: " + message);
+        if (Log.isDebugEnabled()) {
+            Log.debug("Processing versions message: " + message);
+        }
         String[] parts = message.split(":", 2);
         if (parts.length == 2 && listener != null) {
             String documentName = parts[0];
@@ -194,7 +1280,9 @@ public class CollabClient {
                         try {
                             int id = Integer.parseInt(fields[0]);
                             versions.add(new VersionInfo(id, fields[1], fields[2]));
-                            System.out.println("Added version: " + id + " by " + fields[2]);
+                            if (Log.isDebugEnabled()) {
+                                Log.debug("Added version: " + id + " by " + fields[2]);
+                            }
                         } catch (NumberFormatException e) {
                             System.err.println("Invalid version ID: " + fields[0]);
                         }
@@ -202,7 +1290,9 @@ public class CollabClient {
                 }
             }
             
-            System.out.println("Notifying listener with " + versions.size() + " versions");
+            if (Log.isDebugEnabled()) {
+                Log.debug("Notifying listener with " + versions.size() + " versions");
+            }
             listener.onDocumentVersionsReceived(documentName, versions);
         } else {
             System.err.println("Invalid versions message format: " + message);
@@ -211,36 +1301,228 @@ public class CollabClient {
     
     private void handleVersionContentMessage(String content) {
         if (listener != null) {
-            listener.onVersionContentReceived(content);
+            listener.onVersionContentReceived(WireCodec.unescape(content));
         }
     }
     
     public void joinDocument(String documentName) {
-        if (connected && out != null) {
-            currentDocument = documentName;
-            out.println("JOIN:" + documentName);
-            
-            // Request versions for this document
-            requestDocumentVersions(documentName);
+        // Offline edits of the previous document stay on disk for the next time it is opened
+        leaveOfflineLog();
+        if (!connected || out == null) {
+            openOffline(documentName);
+            return;
+        }
+        
+        // Versions of the previous document are no longer of interest
+        cancelVersionDownload();
+        String previous = currentDocument;
+        currentDocument = documentName;
+        unackedTexts.clear();
+        localText = null;
+        catchingUp = false;
+        
+        // A local copy is shown at once; the server then sends only what changed since.
+        // Edits left from working offline are shown on top and merged when the catch-up is in.
+        OfflineLog log = OfflineLog.open(offlineDirectory, documentName);
+        ReplicaCache.Replica replica = log != null
+            ? new ReplicaCache.Replica(documentName, log.getEpoch(), log.getRevision(), log.getBase(), null)
+            : replicas.get(documentName);
+        offline = log;
+        joinBase = replica;
+        joinsInFlight.incrementAndGet();
+        synchronized (pendingLock) {
+            pendingContent = log != null ? log.getText() : replica != null ? replica.content : null;
+            pendingCached = replica != null;
+            pendingFresh = false;
+            pendingSynced = false;
+            pendingChunks = null;
+            pendingPatches.clear();
+            pendingCursors.clear();
+        }
+        if (replica != null) {
+            scheduleDrain();
+            sendJoin("REJOIN:" + replica.epoch + ":" + replica.revision + ":" + replica.getHash() + ":" + documentName);
+        } else {
+            sendJoin("JOIN:" + documentName);
+        }
+        // The server ends a subscription to the document joined; the one left is followed again if it was subscribed
+        if (previous != null && !previous.equals(documentName) && subscribedDocuments.contains(previous)) {
+            sendSubscribe(previous);
+        }
+        
+        // Request versions for this document
+        requestDocumentVersions(documentName);
+    }
+    
+    /**
+     * Keeps a document up to date in the background while another is open,
+     * over the same connection. Its local copy follows the server's, so
+     * opening it later only confirms the revision or catches up on the last
+     * few edits instead of loading it again. Applies whenever the document
+     * isn't the current one, across reconnects, until unsubscribe. In a
+     * cluster only documents on the node connected to can be followed.
+     */
+    public void subscribe(String documentName) {
+        if (subscribedDocuments.add(documentName) && connected && !documentName.equals(currentDocument)) {
+            sendSubscribe(documentName);
+        }
+    }
+    
+    public void unsubscribe(String documentName) {
+        subscribedDocuments.remove(documentName);
+        // Answered after all; SUBSCRIBED for it is then answered with UNSUBSCRIBE
+        pendingSubscriptions.remove(documentName);
+        for (Map.Entry<Integer, SubscribedDocument> entry : subscriptions.entrySet()) {
+            if (entry.getValue().name.equals(documentName) && connected && out != null) {
+                out.println("UNSUBSCRIBE:" + entry.getKey());
+            }
         }
     }
     
+    // SUBSCRIBE, or RESUBSCRIBE from the local copy so that only what changed since is sent
+    private void sendSubscribe(String documentName) {
+        ReplicaCache.Replica replica = replicas.get(documentName);
+        pendingSubscriptions.put(documentName, new SubscribedDocument(documentName, replica));
+        if (replica != null) {
+            out.println("RESUBSCRIBE:" + replica.epoch + ":" + replica.revision + ":" + replica.getHash() + ":" + documentName);
+        } else {
+            out.println("SUBSCRIBE:" + documentName);
+        }
+    }
+    
+    // A new connection starts without subscriptions
+    private void resubscribe() {
+        subscriptions.clear();
+        pendingSubscriptions.clear();
+        for (String documentName : subscribedDocuments) {
+            if (!documentName.equals(currentDocument)) {
+                sendSubscribe(documentName);
+            }
+        }
+    }
+    
+    /**
+     * Without a connection a document can still be opened from its local
+     * copy or offline log. Edits go to the log and are merged once the
+     * connection is back (see rejoin).
+     */
+    private void openOffline(String documentName) {
+        OfflineLog log = OfflineLog.open(offlineDirectory, documentName);
+        ReplicaCache.Replica replica = log == null ? replicas.get(documentName) : null;
+        if (log == null && replica == null) {
+            System.err.println("No local copy of " + documentName + " to open offline");
+            return;
+        }
+        currentDocument = documentName;
+        serverDocument = documentName;
+        unackedTexts.clear();
+        catchingUp = false;
+        joinsInFlight.set(0);
+        joinBase = null;
+        offline = log;
+        if (log != null) {
+            serverText = log.getBase();
+            serverEpoch = log.getEpoch();
+            serverRevision = log.getRevision();
+            localText = log.getText();
+        } else {
+            serverText = replica.content;
+            serverEpoch = replica.epoch;
+            serverRevision = replica.revision;
+            localText = replica.content;
+        }
+        synchronized (pendingLock) {
+            pendingContent = localText;
+            pendingFresh = true;
+            pendingCached = false;
+            pendingSynced = false;
+            pendingChunks = null;
+            pendingPatches.clear();
+            pendingCursors.clear();
+        }
+        scheduleDrain();
+    }
+    
+    private void leaveOfflineLog() {
+        OfflineLog log = offline;
+        offline = null;
+        if (log != null) {
+            log.flush();
+        }
+    }
+    
+    // Remembered while disconnected and merged in after the next reconnect
     public void sendText(String text) {
-        if (connected && out != null && currentDocument != null) {
-            out.println("TEXT:" + text);
+        if (currentDocument == null) {
+            return;
+        }
+        localText = text;
+        if (connected && out != null && !catchingUp) {
+            unackedTexts.add(text);
+            out.println("TEXT:" + WireCodec.escape(text));
+        } else {
+            recordOffline(text);
         }
     }
     
+    // Logs an edit the server can't take right now, starting the log from the last server text
+    private void recordOffline(String text) {
+        synchronized (offlineLock) {
+            OfflineLog log = offline;
+            if (log == null) {
+                String document = currentDocument;
+                if (document == null || serverText == null || serverRevision < 0 || !document.equals(serverDocument)) {
+                    // Nothing to merge it with later
+                    return;
+                }
+                log = OfflineLog.start(offlineDirectory, document, serverEpoch, serverRevision, serverText);
+                offline = log;
+            }
+            log.record(text);
+        }
+    }
+    
+    // At most one CURSOR per interval the server asked for (see FLOW); a move in between waits and the latest is sent
     public void sendCursorPosition(int position) {
-        if (connected && out != null && currentDocument != null && position != lastCursorPosition.get()) {
-            lastCursorPosition.set(position);
-            out.println("CURSOR:" + position);
+        if (!connected || out == null || currentDocument == null || position == lastCursorPosition.get()) {
+            return;
+        }
+        heldCursorPosition = position;
+        long now = System.nanoTime();
+        long wait = Math.max(cursorIntervalMillis - (now - lastCursorSent) / 1_000_000, (cursorHeldUntil - now) / 1_000_000);
+        if (wait <= 0) {
+            sendHeldCursor();
+        } else if (!cursorTimer.isRunning()) {
+            cursorTimer.setInitialDelay((int) Math.min(wait, Integer.MAX_VALUE));
+            cursorTimer.start();
+        }
+    }
+    
+    private void sendHeldCursor() {
+        int position = heldCursorPosition;
+        heldCursorPosition = -1;
+        if (position < 0 || !connected || out == null || currentDocument == null || position == lastCursorPosition.get()) {
+            return;
         }
+        lastCursorPosition.set(position);
+        lastCursorSent = System.nanoTime();
+        out.println("CURSOR:" + position);
     }
     
+    // Starts the list over from the most recently saved document
     public void requestDocumentList() {
+        requestDocumentPage(0, DOCUMENT_PAGE_SIZE, "");
+    }
+    
+    public void requestDocumentPage(int offset, int limit, String prefix) {
+        if (connected && out != null) {
+            out.println("LIST_PAGE:" + offset + ":" + limit + ":" + WireCodec.escape(prefix));
+        }
+    }
+    
+    public void deleteDocument(String documentName) {
         if (connected && out != null) {
-            out.println("LIST");
+            out.println("DELETE:" + WireCodec.escape(documentName));
         }
     }
     
@@ -253,24 +1535,46 @@ public class CollabClient {
     
     public void requestVersionContent(int versionId) {
         if (connected && out != null) {
+            // Only the latest request matters; a download still running is stale
+            cancelVersionDownload();
+            wantedVersion = versionId;
             System.out.println("Requesting content for version: " + versionId);
             out.println("GET_VERSION:" + versionId);
         }
     }
     
+    public void cancelVersionDownload() {
+        wantedVersion = -1;
+        String id = activeVersionStreamId;
+        activeVersionStreamId = null;
+        if (id != null) {
+            cancelTransfer(id);
+        }
+    }
+    
     public void disconnect() {
+        closing = true;
         connected = false;
+        drainTimer.stop();
+        cursorTimer.stop();
+        closeConnection();
+        leaveOfflineLog();
+        replicas.flush();
+        
+        if (listener != null) {
+            listener.onConnectionStatusChanged(false);
+        }
+    }
+    
+    // The socket goes first so a reader blocked in readLine returns before its reader is closed
+    private void closeConnection() {
         try {
+            if (socket != null) socket.close();
             if (in != null) in.close();
             if (out != null) out.close();
-            if (socket != null) socket.close();
         } catch (IOException e) {
             System.err.println("Error disconnecting: " + e.getMessage());
         }
-        
-        if (listener != null) {
-            listener.onConnectionStatusChanged(false);
-        }
     }
     
     public boolean isConnected() {
@@ -2,46 +2,199 @@ package src;
 
 import src.service.DocumentService;
 import src.model.DocumentVersion;
+import src.model.TextEdit;
+import src.model.TextRope;
 import src.util.DBSetup;
 import src.util.DBUtil;
+import src.util.Log;
+import src.util.WireCodec;
 
 import java.io.*;
 import java.net.*;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.sql.Connection;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.text.SimpleDateFormat;
 import java.util.*;
 import java.util.concurrent.*;
 
 public class CollabServer {
-    private static final int PORT = 5000;
+    // -Dcollab.port, so several servers can run on one machine
+    private static final int PORT = Integer.getInteger("collab.port", 5000);
+    // Read-only viewers connect here (-Dcollab.viewerPort, 0 for none); see ViewerHub
+    private static final int VIEWER_PORT = Integer.getInteger("collab.viewerPort", PORT + 1000);
+    // Cluster members as host:port,host:port,... (-Dcollab.cluster); unset runs a single server that owns everything
+    private static final ClusterRing cluster = System.getProperty("collab.cluster") != null
+        ? ClusterRing.parse(System.getProperty("collab.cluster"), Integer.getInteger("collab.virtualNodes", 128))
+        : null;
+    // This server's own entry in the member list (-Dcollab.node)
+    private static final ClusterRing.Node self = ClusterRing.Node.parse(System.getProperty("collab.node", "localhost:" + PORT));
+    // Documents migrated since startup and the node they went to; the ring decides for everything else.
+    // A migrated document's old owner keeps redirecting to the new one, so other nodes needn't know.
+    private static final Map<String, ClusterRing.Node> movedDocuments = new ConcurrentHashMap<>();
+    // Started as the hot standby of this server (-Dcollab.follow=host:port); see Standby
+    private static final ClusterRing.Node leader = System.getProperty("collab.follow") != null
+        ? ClusterRing.Node.parse(System.getProperty("collab.follow"))
+        : null;
+    // A standby takes over once the leader has been silent this long (-Dcollab.failoverMillis)
+    private static final long FAILOVER_MILLIS = Long.getLong("collab.failoverMillis", 3000);
+    // Streams edits to this server's standby, if one attaches; -Dcollab.replication=sync makes ACKs wait for it
+    private static final Replicator replicator = new Replicator("sync".equalsIgnoreCase(System.getProperty("collab.replication", "async")));
+    // Catalog changes, edits and presence for other nodes; within this process when not clustered
+    private static final MessageBus bus = cluster == null ? new LocalMessageBus()
+        : new TcpMessageBus(self, cluster.getMembers(), () -> issueSessionToken("node:" + self));
     private static final Map<String, Set<ClientHandler>> documentClients = new ConcurrentHashMap<>();
-    private static final Map<String, String> documentContents = new ConcurrentHashMap<>();
+    // Those of a document's clients that joined it rather than subscribed; only they show as active users
+    private static final Map<String, Set<ClientHandler>> documentPresence = new ConcurrentHashMap<>();
+    // Each present user's last cursor position per document, for whoever joins next; the inner maps are touched only on the actor
+    private static final Map<String, Map<String, Integer>> documentCursors = new ConcurrentHashMap<>();
+    // Every logged in connection, for catalog change notifications
+    private static final Set<ClientHandler> connectedClients = ConcurrentHashMap.newKeySet();
+    // Names shown when a client connects or asks for a list without a size
+    static final int LIST_PAGE_SIZE = 200;
+    private static final int MAX_LIST_PAGE_SIZE = 1000;
+    // A rejoining client further behind than this gets the full document instead (-Dcollab.maxCatchupEdits)
+    static final int MAX_CATCHUP_EDITS = Integer.getInteger("collab.maxCatchupEdits", 256);
+    // Heap budget for cached document text (-Dcollab.cacheBudgetMb)
+    private static final long CACHE_BUDGET_BYTES = Long.getLong("collab.cacheBudgetMb", 256) * 1024 * 1024;
+    // Written on clean shutdown, used for a warm start; each cluster node and standby keeps its own next to the
+    // shared database
+    private static final Path SNAPSHOT_DIR = cluster == null && leader == null ? Paths.get("db") : Paths.get("db", "node-" + PORT);
+    // Per-document snapshot files in the wire encoding
+    private static final Path SNAPSHOT_FILES_DIR = SNAPSHOT_DIR.resolve("snapshots");
+    // Document names by last save, kept in memory so listing never queries the database
+    private static final DocumentCatalog catalog = new DocumentCatalog();
+    private static final DocumentCache documents = new DocumentCache(CACHE_BUDGET_BYTES, CollabServer::isInUse,
+                                                                     CollabServer::loadDocument, SNAPSHOT_FILES_DIR,
+                                                                     CollabServer::documentSaved);
+    // Session tokens stay valid this long (-Dcollab.sessionHours)
+    private static final long SESSION_MILLIS = Long.getLong("collab.sessionHours", 12) * 60 * 60 * 1000;
+    private static final Authenticator authenticator = new Authenticator(Paths.get("db", "session.key"), SESSION_MILLIS);
     private static final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(2);
+    // Each document's joins, leaves, edits and cursor moves run in order on its actor; actors share these threads
+    private static final ExecutorService documentPool = Executors.newFixedThreadPool(
+            Runtime.getRuntime().availableProcessors(), r -> {
+                Thread thread = new Thread(r, "document-actor");
+                thread.setDaemon(true);
+                return thread;
+            });
+    // Migrations wait on the target node here, with the document's actor frozen rather than holding a pool thread
+    private static final ExecutorService migrationPool = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "document-migration");
+        thread.setDaemon(true);
+        return thread;
+    });
+    // Times a handoff with no answer is checked with the target before the document stays here
+    private static final int HANDOFF_CHECKS = 3;
+    private static final Map<String, DocumentActor> actors = new ConcurrentHashMap<>();
+    // Edits and cursor moves each document takes from all of its clients together (-Dcollab.limit.documentText,
+    // -Dcollab.limit.documentCursor); each connection has its own limits as well, see ClientHandler
+    private static final RateLimiter.Limit DOCUMENT_TEXT_LIMIT = RateLimiter.Limit.property("documentText", 200, 400);
+    private static final RateLimiter.Limit DOCUMENT_CURSOR_LIMIT = RateLimiter.Limit.property("documentCursor", 200, 400);
+    private static final class DocumentLimits {
+        final RateLimiter edits = DOCUMENT_TEXT_LIMIT.newBucket();
+        final RateLimiter cursors = DOCUMENT_CURSOR_LIMIT.newBucket();
+    }
+    private static final Map<String, DocumentLimits> documentLimits = new ConcurrentHashMap<>();
+    // Send pace advertised to each open document's clients, reviewed this often; see FlowControl
+    private static final long FLOW_PERIOD_MILLIS = 1000;
+    private static final Map<String, FlowControl> documentFlow = new ConcurrentHashMap<>();
+    
+    private static volatile SnapshotImage snapshot;
+    private static volatile boolean snapshotVerified = false;
+    
+    // Encoded listing message and the catalog revision it was built at
+    private static final class EncodedList {
+        final long revision;
+        final String message;
+        
+        EncodedList(long revision, String message) {
+            this.revision = revision;
+            this.message = message;
+        }
+    }
+    private static volatile EncodedList documentList = null;
+    private static volatile EncodedList firstPage = null;
     
     public static void main(String[] args) {
+        long startTime = System.nanoTime();
         System.out.println("Starting Enhanced Collaboration Server on port " + PORT);
+        if (cluster != null) {
+            System.out.println("Cluster node " + self + " of " + cluster.getMembers());
+            if (!cluster.getMembers().contains(self)) {
+                System.err.println("This node (" + self + ") is not in the cluster member list; it will redirect every document");
+            }
+        }
         
-        // Initialize database
-        DBSetup.createTables();
+        // A standby only follows until its leader stops, then carries on as the server with its unsaved edits
+        Collection<CachedDocument> takenOver = Collections.emptyList();
+        if (leader != null && cluster != null) {
+            System.err.println("A cluster node can't be a standby; ignoring -Dcollab.follow");
+        } else if (leader != null) {
+            System.out.println("Standby for " + leader + "; taking over if it is silent for " + FAILOVER_MILLIS + " ms");
+            takenOver = new Standby(leader, self, () -> issueSessionToken("node:" + self), FAILOVER_MILLIS).follow();
+            System.out.println("Taking over from " + leader + " with " + takenOver.size() + " documents with unsaved edits");
+        }
         
-        // Debug database tables
-        DocumentService.debugDatabaseTables();
+        // Every node's catalog follows saves and deletes on all of them
+        bus.subscribe(MessageBus.CATALOG_TOPIC, CollabServer::catalogChanged);
+        
+        snapshot = SnapshotImage.open(SNAPSHOT_DIR);
+        if (snapshot != null) {
+            // Serve from the image right away and check the database in the background
+            System.out.println("Warm start from snapshot image (" + snapshot.size() + " documents)");
+            Thread verifier = new Thread(CollabServer::verifySnapshot, "snapshot-verifier");
+            verifier.setDaemon(true);
+            verifier.start();
+        } else {
+            // Initialize database
+            DBSetup.createTables();
+            
+            // Debug database tables
+            DocumentService.debugDatabaseTables();
+            
+            loadCatalog();
+        }
         
-        // Load all documents from database
-        for (String docName : DocumentService.getAllDocuments()) {
-            documentContents.put(docName, DocumentService.loadDocument(docName));
+        // Documents are loaded lazily by the cache on first JOIN, except those taken over, which are newer than
+        // the database; saved by the periodic task like any others
+        for (CachedDocument document : takenOver) {
+            documents.install(document);
         }
         
-        try (ServerSocket serverSocket = new ServerSocket(PORT)) {
-            System.out.println("Server is running. Clients can connect to: localhost:" + PORT);
+        // Edits are saved periodically, so write out anything pending on shutdown
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            for (CachedDocument document : documents.dirtyDocuments()) {
+                documents.flush(document);
+            }
+            writeSnapshot();
+            System.out.println(documents.getStats());
+        }));
+        
+        // Blocking channel sockets, so joins can send snapshot files with transferTo
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.bind(new InetSocketAddress(PORT));
+            System.out.println("Server is running. Clients can connect to: localhost:" + PORT +
+                             " (started in " + (System.nanoTime() - startTime) / 1_000_000 + " ms)");
+            
+            if (VIEWER_PORT > 0) {
+                try {
+                    new ViewerHub(VIEWER_PORT, bus, CollabServer::documentState).start();
+                } catch (IOException e) {
+                    System.err.println("Viewers can't connect, port " + VIEWER_PORT + " unavailable: " + e.getMessage());
+                }
+            }
             
             // Start periodic tasks
             startDocumentSavingTask();
             startPresenceCleanupTask();
+            startFlowControlTask();
             
             while (true) {
-                Socket clientSocket = serverSocket.accept();
+                Socket clientSocket = serverChannel.accept().socket();
                 ClientHandler clientHandler = new ClientHandler(clientSocket);
                 new Thread(clientHandler).start();
                 
@@ -56,21 +209,24 @@ public class CollabServer {
     
     private static void startDocumentSavingTask() {
         scheduler.scheduleAtFixedRate(() -> {
-            for (Map.Entry<String, String> entry : documentContents.entrySet()) {
-                DocumentService.saveDocument(entry.getKey(), entry.getValue());
+            // Only documents with unsaved edits need to be written
+            List<CachedDocument> dirty = documents.dirtyDocuments();
+            for (CachedDocument document : dirty) {
+                if (!documents.flush(document)) {
+                    continue;
+                }
                 
-                // Save a version if document has changed
-                String dbContent = DocumentService.loadDocument(entry.getKey());
-                if (!entry.getValue().equals(dbContent)) {
-                    // Find a user to attribute the change to
-                    Set<ClientHandler> clients = documentClients.get(entry.getKey());
-                    if (clients != null && !clients.isEmpty()) {
-                        String username = clients.iterator().next().getUsername();
-                        DocumentService.saveVersion(entry.getKey(), entry.getValue(), username);
-                    }
+                // Save a version since the document has changed
+                Set<ClientHandler> clients = documentClients.get(document.getName());
+                if (clients != null && !clients.isEmpty()) {
+                    String username = clients.iterator().next().getUsername();
+                    DocumentService.saveVersion(document.getName(), document.getContent().toString(), username);
                 }
             }
-            System.out.println("All documents saved to database");
+            documents.evictIfNeeded();
+            System.out.println("Saved " + dirty.size() + " changed documents to database");
+            System.out.println(documents.getStats());
+            System.out.println(OutboundQueue.report());
         }, 1, 1, TimeUnit.MINUTES);
     }
     
@@ -90,113 +246,745 @@ public class CollabServer {
         }, 1, 1, TimeUnit.MINUTES);
     }
     
+    // Sends each open document's clients a new pace when its load has changed
+    private static void startFlowControlTask() {
+        scheduler.scheduleAtFixedRate(() -> {
+            long since = System.nanoTime() - 2 * FLOW_PERIOD_MILLIS * 1_000_000;
+            for (Map.Entry<String, Set<ClientHandler>> entry : documentClients.entrySet()) {
+                String documentName = entry.getKey();
+                Set<ClientHandler> clients = entry.getValue();
+                int typing = 0;
+                int pointing = 0;
+                int backlog = actorFor(documentName).backlog();
+                for (ClientHandler client : clients) {
+                    typing += client.getLastTextNanos(documentName) - since > 0 ? 1 : 0;
+                    pointing += client.getLastCursorNanos(documentName) - since > 0 ? 1 : 0;
+                    backlog = Math.max(backlog, client.getOutboundBacklog(documentName));
+                }
+                FlowControl flow = documentFlow.computeIfAbsent(documentName, name -> new FlowControl());
+                if (flow.update(clients.size(), typing, pointing, backlog)) {
+                    long textMillis = flow.getTextMillis();
+                    long cursorMillis = flow.getCursorMillis();
+                    if (Log.isDebugEnabled()) {
+                        Log.debug("Pace for " + documentName + ": text every " + textMillis + " ms, cursor every " + cursorMillis +
+                                  " ms (" + clients.size() + " clients, " + typing + " typing, backlog " + backlog + ")");
+                    }
+                    for (ClientHandler client : clients) {
+                        client.sendFlow(documentName, textMillis, cursorMillis);
+                    }
+                }
+            }
+            documentFlow.keySet().retainAll(documentClients.keySet());
+        }, FLOW_PERIOD_MILLIS, FLOW_PERIOD_MILLIS, TimeUnit.MILLISECONDS);
+    }
+    
+    // Session token for valid credentials, otherwise null
+    public static String login(String username, String password) {
+        return authenticator.login(username, password);
+    }
+    
+    // Null on success, otherwise the reason
+    public static String register(String username, String password) {
+        return authenticator.register(username, password);
+    }
+    
+    // Username of a valid session token, otherwise null
+    public static String resumeSession(String token) {
+        return authenticator.resume(token);
+    }
+    
+    public static String issueSessionToken(String username) {
+        return authenticator.issueToken(username);
+    }
+    
+    /**
+     * The cluster node that owns a document, or null if it is this one.
+     * Documents are only ever opened on their owner; clients asking another
+     * node are sent there (see ClientHandler).
+     */
+    public static ClusterRing.Node ownerOf(String documentName) {
+        if (cluster == null) {
+            return null;
+        }
+        ClusterRing.Node owner = movedDocuments.get(documentName);
+        if (owner == null) {
+            owner = cluster.ownerOf(documentName);
+        }
+        return owner.equals(self) ? null : owner;
+    }
+    
+    /**
+     * Moves a document this node owns to another node while it is being
+     * edited. The document's actor is frozen while the state goes to the
+     * target, so no edit or join is handled until it is settled, and the
+     * transfer runs on a migration thread rather than the actors' pool. Once
+     * the target has it, ownership switches and every client of the
+     * document is told to reattach there. Edits queued meanwhile are
+     * dropped when the actor resumes; they are unacknowledged, so the
+     * clients send them again on the new node. If the target's answer is
+     * lost, the target is asked whether it took the document before it is
+     * kept here. Returns null when moved, otherwise the reason it wasn't.
+     */
+    public static String migrateDocument(String documentName, ClusterRing.Node target) {
+        return CompletableFuture.supplyAsync(() -> migrate(documentName, target), migrationPool).join();
+    }
+    
+    private static String migrate(String documentName, ClusterRing.Node target) {
+        long start = System.nanoTime();
+        DocumentActor actor = actorFor(documentName);
+        DocumentHandoff[] taken = new DocumentHandoff[1];
+        String error = CompletableFuture.supplyAsync(() -> {
+            if (cluster == null) {
+                return "not running as a cluster";
+            }
+            if (ownerOf(documentName) != null) {
+                return "owned by " + ownerOf(documentName);
+            }
+            if (target.equals(self)) {
+                return "already on " + self;
+            }
+            taken[0] = DocumentHandoff.of(documents.get(documentName));
+            actor.freeze();
+            return null;
+        }, actor).join();
+        if (error != null) {
+            return error;
+        }
+        
+        DocumentHandoff handoff = taken[0];
+        String token = issueSessionToken("node:" + self);
+        boolean moved = false;
+        try {
+            try {
+                error = handoff.send(target, token);
+                moved = error == null;
+            } catch (IOException e) {
+                error = "no answer from " + target + ": " + e.getMessage();
+                moved = isHandedOff(handoff, target, token);
+            }
+            if (moved) {
+                movedDocuments.put(documentName, target);
+                Set<ClientHandler> clients = documentClients.remove(documentName);
+                documentPresence.remove(documentName);
+                documentCursors.remove(documentName);
+                if (clients != null) {
+                    for (ClientHandler client : clients) {
+                        client.sendReattach(documentName, target);
+                    }
+                }
+                // Not saved here: the new owner has it as dirty and saves it from now on
+                documents.remove(documentName);
+                System.out.println("Moved document " + documentName + " (revision " + handoff.revision + ") to " + target + " in " +
+                                 (System.nanoTime() - start) / 1_000_000 + " ms, " + (clients != null ? clients.size() : 0) + " clients reattaching");
+            }
+        } finally {
+            actor.resume();
+        }
+        return moved ? null : error;
+    }
+    
+    // Whether the target took a handoff whose answer was lost; if it can't be reached to say, the document stays here
+    private static boolean isHandedOff(DocumentHandoff handoff, ClusterRing.Node target, String token) {
+        for (int i = 0; i < HANDOFF_CHECKS; i++) {
+            try {
+                return handoff.isHeldBy(target, token);
+            } catch (IOException e) {
+                System.err.println("Could not ask " + target + " about " + handoff.name + ": " + e.getMessage());
+            }
+            try {
+                Thread.sleep(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        System.err.println("Keeping " + handoff.name + " here; " + target + " never confirmed or refused it");
+        return false;
+    }
+    
+    // Takes over a document migrated from another node; null on success, otherwise the reason
+    public static String adoptDocument(DocumentHandoff handoff) {
+        return CompletableFuture.supplyAsync(() -> {
+            if (cluster == null) {
+                return "not running as a cluster";
+            }
+            if (!documents.install(handoff.toCachedDocument())) {
+                return "document is open on " + self;
+            }
+            movedDocuments.put(handoff.name, self);
+            System.out.println("Took over document " + handoff.name + " at revision " + handoff.revision);
+            return null;
+        }, actorFor(handoff.name)).join();
+    }
+    
+    // The state of a document this node took over from another, for a handoff whose answer was lost; null if it has none
+    public static DocumentHandoff adoptedState(String documentName) {
+        if (cluster == null || !self.equals(movedDocuments.get(documentName))) {
+            return null;
+        }
+        CachedDocument document = documents.getIfPresent(documentName);
+        return document != null ? DocumentHandoff.stateOf(document) : null;
+    }
+    
+    /**
+     * A document's current content and revision, for a mirror serving
+     * viewers (see DocumentMirror). Taken on the document's actor when this
+     * node owns it, so it falls between two edits; otherwise fetched from
+     * the owner. Null if it can't be had right now.
+     */
+    public static DocumentHandoff documentState(String documentName) {
+        ClusterRing.Node owner = ownerOf(documentName);
+        if (owner != null) {
+            return DocumentHandoff.fetch(owner, issueSessionToken("node:" + self), documentName);
+        }
+        return CompletableFuture.supplyAsync(
+            () -> ownerOf(documentName) == null ? DocumentHandoff.stateOf(documents.get(documentName)) : null,
+            actorFor(documentName)).join();
+    }
+    
+    // The actor for a document; kept for the life of the server, since one is only a mailbox and a flag
+    private static DocumentActor actorFor(String documentName) {
+        return actors.computeIfAbsent(documentName, name -> new DocumentActor(name, documentPool));
+    }
+    
     public static void joinDocument(String documentName, ClientHandler client) {
+        joinDocument(documentName, client, 0, -1, "");
+    }
+    
+    /**
+     * Joins a document. A client that already has a copy (from before a
+     * reconnect, or kept on disk) passes the epoch and revision it was at
+     * and a hash of its text. If the edits since then are still kept and
+     * not too many, it gets only those as PATCH frames; if the text is
+     * unchanged, as after a server restart, it gets just the revision.
+     * Anyone else gets the full content. A negative revision means none is
+     * known. The client has already been sent JOINED (see ClientHandler);
+     * the rest runs on the document's actor, so no edit can slip in
+     * between the content it gets and the first UPDATE after it.
+     */
+    public static void joinDocument(String documentName, ClientHandler client, long knownEpoch, long knownRevision,
+                                    String knownHash) {
+        actorFor(documentName).execute(() -> join(documentName, client, knownEpoch, knownRevision, knownHash, true));
+    }
+    
+    /**
+     * Opens a document as a subscription (see ClientHandler): the client
+     * gets its content and edits as on a join, but doesn't show as one of
+     * its active users and isn't sent who is or where their cursors are.
+     * Leaving it is leaveDocument, as for a join.
+     */
+    public static void subscribeDocument(String documentName, ClientHandler client, long knownEpoch, long knownRevision,
+                                         String knownHash) {
+        actorFor(documentName).execute(() -> join(documentName, client, knownEpoch, knownRevision, knownHash, false));
+    }
+    
+    private static void join(String documentName, ClientHandler client, long knownEpoch, long knownRevision,
+                             String knownHash, boolean present) {
+        // Moved away while this join was waiting
+        ClusterRing.Node owner = ownerOf(documentName);
+        if (owner != null) {
+            client.sendReattach(documentName, owner);
+            return;
+        }
+        
         // Add client to document's client list
         documentClients.computeIfAbsent(documentName, k -> ConcurrentHashMap.newKeySet()).add(client);
         
-        // Initialize document content if it doesn't exist
-        if (!documentContents.containsKey(documentName)) {
-            String content = DocumentService.loadDocument(documentName);
-            documentContents.put(documentName, content);
+        // Loads the document on first use
+        CachedDocument document = documents.get(documentName);
+        SnapshotFile snapshot = null;
+        List<TextEdit> edits = null;
+        List<TextEdit> catchUp = null;
+        EncodedContent encoded = null;
+        long epoch = document.getEpoch();
+        long revision;
+        synchronized (document) {
+            revision = document.getRevision();
+            if (knownRevision >= 0 && knownEpoch == epoch) {
+                catchUp = document.editsSince(knownRevision);
+                if (catchUp != null && !isWorthPatching(catchUp, document.getContent().length())) {
+                    catchUp = null;
+                }
+            }
+            if (catchUp == null && knownRevision >= 0 && knownHash.equals(document.getContentHash())) {
+                catchUp = Collections.emptyList();
+            }
+            if (catchUp == null) {
+                snapshot = document.getSnapshot();
+            }
+            if (snapshot != null) {
+                edits = document.editsSince(document.getSnapshotRevision());
+                if (edits == null || !snapshot.acquire()) {
+                    snapshot = null;
+                }
+            }
+            if (snapshot == null && catchUp == null) {
+                // Encoded once per revision and shared by every join until the next edit
+                encoded = documents.encoded(document);
+            }
         }
         
         // Update presence
-        DocumentService.updateUserPresence(documentName, client.getUsername());
+        if (present) {
+            documentPresence.computeIfAbsent(documentName, k -> ConcurrentHashMap.newKeySet()).add(client);
+            DocumentService.updateUserPresence(documentName, client.getUsername());
+        }
         
-        // Send current document content to client
-        client.sendDocumentContent(documentContents.get(documentName));
+        // Send current document content to client: only the missed edits on a rejoin,
+        // otherwise the snapshot file plus later edits when there is one
+        if (catchUp != null) {
+            client.sendDocumentPatches(documentName, catchUp, epoch, revision);
+        } else if (snapshot != null) {
+            client.sendDocumentSnapshot(documentName, snapshot, edits, epoch, revision);
+        } else {
+            client.sendDocumentContent(documentName, encoded, epoch);
+            documents.scheduleSnapshot(document);
+        }
         
-        // Send active users list
-        sendActiveUsersList(documentName);
+        if (present) {
+            // Send active users list
+            sendActiveUsersList(documentName);
+            
+            // Send cursor positions
+            sendCursorPositions(documentName);
+        }
         
-        // Send cursor positions
-        sendCursorPositions(documentName);
+        // The client starts at the default pace; a busy document has already asked for a slower one
+        FlowControl flow = documentFlow.get(documentName);
+        if (flow != null && (flow.getTextMillis() != FlowControl.TEXT_BASE_MILLIS ||
+                             flow.getCursorMillis() != FlowControl.CURSOR_BASE_MILLIS)) {
+            client.sendFlow(documentName, flow.getTextMillis(), flow.getCursorMillis());
+        }
         
-        System.out.println(client.getUsername() + " joined document: " + documentName + 
+        System.out.println(client.getUsername() + (!present ? " subscribed to document: " :
+                                                   catchUp != null ? " rejoined document: " : " joined document: ") +
+                         documentName + (catchUp != null ? " (" + catchUp.size() + " missed edits)" : "") +
                          " (Total clients in document: " + documentClients.get(documentName).size() + ")");
     }
     
+    // Patches pay off while they are fewer and smaller than the document itself
+    static boolean isWorthPatching(List<TextEdit> edits, int contentLength) {
+        if (edits.size() > MAX_CATCHUP_EDITS) {
+            return false;
+        }
+        long chars = 0;
+        for (TextEdit edit : edits) {
+            chars += edit.getText().length();
+        }
+        return chars < contentLength;
+    }
+    
     public static void leaveDocument(String documentName, ClientHandler client) {
+        actorFor(documentName).execute(() -> leave(documentName, client));
+    }
+    
+    private static void leave(String documentName, ClientHandler client) {
         Set<ClientHandler> clients = documentClients.get(documentName);
         if (clients != null) {
             clients.remove(client);
             
-            // Update presence
-            DocumentService.removeUserPresence(documentName, client.getUsername());
-            
-            // Notify remaining clients
-            sendActiveUsersList(documentName);
+            Set<ClientHandler> present = documentPresence.get(documentName);
+            if (present != null && present.remove(client)) {
+                // Update presence, unless the user still has the document open on another connection
+                if (!hasUser(present, client.getUsername())) {
+                    DocumentService.removeUserPresence(documentName, client.getUsername());
+                    Map<String, Integer> cursors = documentCursors.get(documentName);
+                    if (cursors != null) {
+                        cursors.remove(client.getUsername());
+                    }
+                }
+                
+                // Notify remaining clients
+                sendActiveUsersList(documentName);
+            }
             
             if (clients.isEmpty()) {
-                // Save document content before removing
-                String content = documentContents.get(documentName);
-                DocumentService.saveDocument(documentName, content);
+                // Save document content; it stays cached until evicted
+                CachedDocument document = documents.getIfPresent(documentName);
+                if (document != null) {
+                    documents.flush(document);
+                }
                 
-                // Remove empty document from memory (but not from database)
                 documentClients.remove(documentName);
-                System.out.println("Document removed from memory: " + documentName);
+                documentPresence.remove(documentName);
+                documentCursors.remove(documentName);
+                System.out.println("Document is now idle: " + documentName);
             }
         }
     }
     
-    public static void updateDocument(String documentName, String content, ClientHandler sender) {
-        // Update document content
-        documentContents.put(documentName, content);
+    // Nanoseconds until the document takes another edit from any of its clients, or 0 if it takes this one
+    static long admitEdit(String documentName) {
+        return limitsFor(documentName).edits.acquire();
+    }
+    
+    static long admitCursor(String documentName) {
+        return limitsFor(documentName).cursors.acquire();
+    }
+    
+    private static DocumentLimits limitsFor(String documentName) {
+        return documentLimits.computeIfAbsent(documentName, name -> new DocumentLimits());
+    }
+    
+    /**
+     * Edits are applied and broadcast one at a time on the actor, so every
+     * client sees them in revision order. superseded counts earlier texts
+     * from the sender that this one replaced while it was throttled; each
+     * still gets its ACK, ahead of this one's.
+     */
+    public static void updateDocument(String documentName, String content, int superseded, ClientHandler sender) {
+        actorFor(documentName).execute(() -> update(documentName, content, superseded, sender));
+    }
+    
+    private static void update(String documentName, String content, int superseded, ClientHandler sender) {
+        if (ownerOf(documentName) != null) {
+            // The sender has been told to reattach and sends it again on the new owner
+            return;
+        }
         
-        // Save to database
-        DocumentService.saveDocument(documentName, content);
+        // Apply only the changed range so the rope shares everything else with the previous snapshot
+        CachedDocument document = documents.get(documentName);
+        TextEdit edit;
+        TextRope updated;
+        long revision;
+        synchronized (document) {
+            edit = TextEdit.between(document.getContent(), content);
+            updated = documents.apply(document, edit);
+            revision = document.getRevision();
+        }
+        
+        // Other nodes following the document get just the edit, in revision order since this is the actor
+        String topic = MessageBus.documentTopic(documentName);
+        if (!edit.isEmpty() && bus.hasSubscribers(topic)) {
+            bus.publish(topic, "EDIT:" + document.getEpoch() + ":" + revision + ":" + edit.getOffset() + ":" +
+                               edit.getRemovedLength() + ":" + edit.getText());
+        }
+        
+        // The sender's text is now the document at this revision; with a synchronous standby, once it has the edit too
+        long epoch = document.getEpoch();
+        if (edit.isEmpty()) {
+            sender.sendAck(documentName, epoch, revision, superseded);
+        } else {
+            replicator.edited(document, edit, revision, () -> sender.sendAck(documentName, epoch, revision, superseded));
+        }
+        
+        // Saved to the database by the periodic task, on last leave, or before eviction
         
         // Broadcast to all clients in the document except sender
         Set<ClientHandler> clients = documentClients.get(documentName);
         if (clients != null) {
             for (ClientHandler client : clients) {
                 if (client != sender) {
-                    client.sendDocumentUpdate(content);
+                    client.sendDocumentUpdate(documentName, updated, edit, document.getEpoch(), revision);
                 }
             }
         }
     }
     
     public static void updateCursorPosition(String documentName, String username, int position) {
-        DocumentService.updateCursorPosition(documentName, username, position);
-        
-        // Broadcast to all clients in the document except the one who moved the cursor
-        Set<ClientHandler> clients = documentClients.get(documentName);
-        if (clients != null) {
-            for (ClientHandler client : clients) {
-                if (!client.getUsername().equals(username)) {
-                    client.sendCursorPosition(username, position);
+        actorFor(documentName).execute(() -> {
+            // Kept in memory only: positions go stale within seconds, so a database write per move isn't worth it
+            documentCursors.computeIfAbsent(documentName, k -> new HashMap<>()).put(username, position);
+            
+            // Broadcast to all clients in the document except the one who moved the cursor
+            Set<ClientHandler> clients = documentPresence.get(documentName);
+            if (clients != null) {
+                for (ClientHandler client : clients) {
+                    if (!client.getUsername().equals(username)) {
+                        client.sendCursorPosition(documentName, username, position);
+                    }
                 }
             }
-        }
+        });
     }
     
     private static void sendActiveUsersList(String documentName) {
         List<String> activeUsers = DocumentService.getActiveUsers(documentName);
-        Set<ClientHandler> clients = documentClients.get(documentName);
+        Set<ClientHandler> clients = documentPresence.get(documentName);
         if (clients != null) {
             for (ClientHandler client : clients) {
                 client.sendActiveUsers(documentName, activeUsers);
             }
         }
+        String topic = MessageBus.documentTopic(documentName);
+        if (bus.hasSubscribers(topic)) {
+            bus.publish(topic, "USERS:" + String.join(",", activeUsers));
+        }
+    }
+    
+    private static boolean hasUser(Set<ClientHandler> clients, String username) {
+        for (ClientHandler client : clients) {
+            if (client.getUsername().equals(username)) {
+                return true;
+            }
+        }
+        return false;
     }
     
     private static void sendCursorPositions(String documentName) {
-        Map<String, Integer> positions = DocumentService.getCursorPositions(documentName);
-        Set<ClientHandler> clients = documentClients.get(documentName);
+        Map<String, Integer> positions = documentCursors.getOrDefault(documentName, Collections.emptyMap());
+        Set<ClientHandler> clients = documentPresence.get(documentName);
         if (clients != null) {
             for (ClientHandler client : clients) {
                 for (Map.Entry<String, Integer> entry : positions.entrySet()) {
                     if (!entry.getKey().equals(client.getUsername())) {
-                        client.sendCursorPosition(entry.getKey(), entry.getValue());
+                        client.sendCursorPosition(documentName, entry.getKey(), entry.getValue());
                     }
                 }
             }
         }
     }
     
+    // Cache loader: the snapshot image first, then the database
+    private static TextRope loadDocument(String documentName) {
+        SnapshotImage image = snapshot;
+        if (image != null && image.contains(documentName)) {
+            // Until the background check has run, make sure the database copy isn't newer
+            boolean stale = false;
+            if (!snapshotVerified) {
+                String updatedAt = DocumentService.getUpdatedAt(documentName);
+                stale = updatedAt != null && updatedAt.compareTo(formatTimestamp(image.getCreatedAt())) > 0;
+            }
+            
+            // Each entry is used once; after an eviction the database has the latest copy
+            TextRope content = stale ? null : image.load(documentName);
+            image.invalidate(documentName);
+            if (content != null) {
+                return content;
+            }
+        }
+        return TextRope.of(DocumentService.loadDocument(documentName));
+    }
+    
+    private static void verifySnapshot() {
+        SnapshotImage image = snapshot;
+        DBSetup.createTables();
+        DocumentService.debugDatabaseTables();
+        // Listing requests wait for this, document content doesn't
+        loadCatalog();
+        
+        List<String> changed = DocumentService.getDocumentsUpdatedAfter(formatTimestamp(image.getCreatedAt()));
+        if (changed == null) {
+            // Can't tell what changed, so stop trusting the image
+            image.invalidate(new ArrayList<>(image.getDocumentNames()));
+        } else {
+            image.invalidate(changed);
+        }
+        snapshotVerified = true;
+        System.out.println("Snapshot image verified against database (" +
+                         (changed == null ? "discarded" : changed.size() + " stale documents") + ")");
+    }
+    
+    private static void loadCatalog() {
+        catalog.load(DocumentService.getDocumentTimestamps());
+        System.out.println("Document catalog loaded (" + catalog.size() + " documents)");
+    }
+    
+    // Save listener of the cache: the document moves to the top of every node's catalog
+    private static void documentSaved(String documentName) {
+        bus.publish(MessageBus.CATALOG_TOPIC, "SAVED:" + formatTimestamp(System.currentTimeMillis()) + ":" + documentName);
+        // The standby keeps only unsaved documents; checked on the actor so no edit falls in between
+        actorFor(documentName).execute(() -> {
+            CachedDocument document = documents.getIfPresent(documentName);
+            if (document == null || !document.isDirty()) {
+                replicator.saved(documentName);
+            }
+        });
+    }
+    
+    // SAVED:timestamp:document or DELETED:document from any node, this one included; told to this node's clients
+    private static void catalogChanged(String message) {
+        if (message.startsWith("SAVED:") && message.length() > 26) {
+            String documentName = message.substring(26);
+            boolean created = catalog.touch(documentName, message.substring(6, 25));
+            broadcastCatalogChange(created ? "DOC_CREATED" : "DOC_UPDATED", documentName);
+        } else if (message.startsWith("DELETED:")) {
+            String documentName = message.substring(8);
+            if (catalog.remove(documentName)) {
+                broadcastCatalogChange("DOC_DELETED", documentName);
+            }
+        }
+    }
+    
+    private static void broadcastCatalogChange(String kind, String documentName) {
+        for (ClientHandler client : connectedClients) {
+            client.sendCatalogChange(kind, documentName);
+        }
+    }
+    
+    // BUS_SUB and BUS_UNSUB from another node's connection
+    public static void addBusSubscriber(String topic, ClientHandler peer) {
+        if (bus instanceof TcpMessageBus) {
+            ((TcpMessageBus) bus).addRemoteSubscriber(topic, peer);
+        }
+    }
+    
+    public static void removeBusSubscriber(String topic, ClientHandler peer) {
+        if (bus instanceof TcpMessageBus) {
+            ((TcpMessageBus) bus).removeRemoteSubscriber(topic, peer);
+        }
+    }
+    
+    public static void nodeDisconnected(ClientHandler peer) {
+        if (bus instanceof TcpMessageBus) {
+            ((TcpMessageBus) bus).connectionClosed(peer);
+        }
+        replicator.detach(peer);
+    }
+    
+    /**
+     * REPLICATE from a standby server: from now on it is sent every edit,
+     * and the state of each document with unsaved edits, taken on the
+     * document's actor so it falls between two edits. Clients are told
+     * where to go should this server stop. Null on success, otherwise the
+     * reason it was refused.
+     */
+    public static String attachStandby(ClientHandler standby, ClusterRing.Node address) {
+        if (cluster != null) {
+            return "not supported in a cluster";
+        }
+        replicator.attach(standby, address);
+        for (CachedDocument dirty : documents.dirtyDocuments()) {
+            actorFor(dirty.getName()).execute(() -> {
+                CachedDocument document = documents.getIfPresent(dirty.getName());
+                if (document != null) {
+                    replicator.replicate(document);
+                }
+            });
+        }
+        for (ClientHandler client : connectedClients) {
+            client.sendStandby(address);
+        }
+        return null;
+    }
+    
+    public static void standbyAcknowledged(ClientHandler standby, long sequence) {
+        replicator.acknowledged(standby, sequence);
+    }
+    
+    // Where clients should reconnect if this server stops, or null
+    public static ClusterRing.Node getStandby() {
+        return replicator.getStandby();
+    }
+    
+    public static void addClient(ClientHandler client) {
+        connectedClients.add(client);
+    }
+    
+    public static void removeClient(ClientHandler client) {
+        connectedClients.remove(client);
+    }
+    
+    /**
+     * Deletes a document nobody else has open. The requester leaves it first
+     * if it is their current document. Returns false if another client has it
+     * open or the database delete failed. Waits for the document's actor, so
+     * it sees every join and leave submitted before it.
+     */
+    public static boolean deleteDocument(String documentName, ClientHandler requester) {
+        return CompletableFuture.supplyAsync(() -> delete(documentName, requester), actorFor(documentName)).join();
+    }
+    
+    private static boolean delete(String documentName, ClientHandler requester) {
+        Set<ClientHandler> clients = documentClients.get(documentName);
+        if (clients != null) {
+            for (ClientHandler client : clients) {
+                if (client != requester) {
+                    return false;
+                }
+            }
+            if (clients.contains(requester)) {
+                leave(documentName, requester);
+            }
+        }
+        
+        // Refused if someone joined meanwhile
+        if (!documents.remove(documentName) || !DocumentService.deleteDocument(documentName)) {
+            return false;
+        }
+        replicator.dropped(documentName);
+        SnapshotFile.delete(SNAPSHOT_FILES_DIR, documentName);
+        SnapshotImage image = snapshot;
+        if (image != null) {
+            image.invalidate(documentName);
+        }
+        bus.publish(MessageBus.CATALOG_TOPIC, "DELETED:" + documentName);
+        System.out.println(requester.getUsername() + " deleted document: " + documentName);
+        return true;
+    }
+    
+    private static void writeSnapshot() {
+        List<String> names = DocumentService.getAllDocuments();
+        Map<String, TextRope> contents = documents.savedContents();
+        try {
+            SnapshotImage.write(SNAPSHOT_DIR, System.currentTimeMillis(), names, contents, snapshot);
+            System.out.println("Wrote snapshot image: " + names.size() + " documents, " + contents.size() + " with content");
+        } catch (IOException e) {
+            System.err.println("Error writing snapshot image: " + e.getMessage());
+        }
+    }
+    
+    // Same format and time zone as SQLite's CURRENT_TIMESTAMP
+    private static String formatTimestamp(long millis) {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return format.format(new Date(millis));
+    }
+    
+    public static boolean hasJoined(String documentName, ClientHandler client) {
+        Set<ClientHandler> clients = documentClients.get(documentName);
+        return clients != null && clients.contains(client);
+    }
+    
+    private static boolean isInUse(String documentName) {
+        Set<ClientHandler> clients = documentClients.get(documentName);
+        return clients != null && !clients.isEmpty();
+    }
+    
     public static List<String> getDocumentList() {
-        return DocumentService.getAllDocuments();
+        return catalog.names();
+    }
+    
+    // Full LIST message, rebuilt only after the catalog has changed
+    public static String getDocumentListMessage() {
+        long revision = catalog.getRevision();
+        EncodedList cached = documentList;
+        if (cached != null && cached.revision == revision) {
+            return cached.message;
+        }
+        StringBuilder sb = new StringBuilder("LIST:");
+        for (String doc : catalog.names()) {
+            sb.append(WireCodec.escapeField(doc)).append(",");
+        }
+        documentList = new EncodedList(revision, sb.toString());
+        return documentList.message;
+    }
+    
+    /**
+     * LIST_PAGE:offset:total:prefix:name,name,... with the prefix and names
+     * field-escaped. The first unfiltered page goes to every new connection,
+     * so it is cached like the full list.
+     */
+    public static String getDocumentPageMessage(int offset, int limit, String prefix) {
+        offset = Math.max(0, offset);
+        limit = Math.max(1, Math.min(limit, MAX_LIST_PAGE_SIZE));
+        boolean first = offset == 0 && limit == LIST_PAGE_SIZE && prefix.isEmpty();
+        long revision = catalog.getRevision();
+        EncodedList cached = firstPage;
+        if (first && cached != null && cached.revision == revision) {
+            return cached.message;
+        }
+        
+        DocumentCatalog.Page page = catalog.page(offset, limit, prefix);
+        StringBuilder sb = new StringBuilder("LIST_PAGE:");
+        sb.append(page.offset).append(":").append(page.total).append(":").append(WireCodec.escapeField(prefix)).append(":");
+        for (String doc : page.names) {
+            sb.append(WireCodec.escapeField(doc)).append(",");
+        }
+        if (first) {
+            firstPage = new EncodedList(revision, sb.toString());
+        }
+        return sb.toString();
     }
     
     public static List<DocumentVersion> getDocumentVersions(String documentName) {
@@ -0,0 +1,90 @@
+package src;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs everything that changes one document's shared state (joins, leaves,
+ * edits, cursor moves) one task at a time, in the order submitted. Each
+ * document has its own actor; all of them share one pool, so different
+ * documents still run in parallel while one document's edits get a single
+ * order that every client sees.
+ *
+ * Tasks go into a mailbox, and whoever finds the actor idle schedules a
+ * drain on the pool. A drain runs a limited batch and then makes way for
+ * other documents. Tasks must not block on a client: frames are handed to
+ * the connection's outbound queue rather than written from here.
+ *
+ * A task can freeze the actor, as a migration does while another node
+ * takes the document: nothing more runs until resume(), and tasks
+ * submitted meanwhile wait in the mailbox without holding a pool thread.
+ */
+class DocumentActor implements Executor {
+    // Tasks run per turn before other documents get the thread
+    private static final int BATCH = 64;
+
+    private final String name;
+    private final Executor pool;
+    private final Queue<Runnable> mailbox = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+    // Tasks submitted and not yet run, for flow control; the mailbox's own size() walks the queue
+    private final AtomicInteger backlog = new AtomicInteger();
+    private volatile boolean frozen = false;
+
+    DocumentActor(String name, Executor pool) {
+        this.name = name;
+        this.pool = pool;
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        backlog.incrementAndGet();
+        mailbox.add(task);
+        if (scheduled.compareAndSet(false, true)) {
+            pool.execute(this::drain);
+        }
+    }
+
+    int backlog() {
+        return backlog.get();
+    }
+
+    // Called from a task on this actor, so the task calling it is the last to run until resume()
+    void freeze() {
+        frozen = true;
+    }
+
+    void resume() {
+        frozen = false;
+        if (!mailbox.isEmpty() && scheduled.compareAndSet(false, true)) {
+            pool.execute(this::drain);
+        }
+    }
+
+    private void drain() {
+        try {
+            for (int i = 0; i < BATCH && !frozen; i++) {
+                Runnable task = mailbox.poll();
+                if (task == null) {
+                    break;
+                }
+                backlog.decrementAndGet();
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    System.err.println("Error handling document " + name + ": " + e.getMessage());
+                }
+            }
+        } finally {
+            // Also after an Error escapes a task, or the actor would never run again.
+            // A task added after the last poll found the actor still scheduled, so look again before letting go
+            scheduled.set(false);
+            if (!frozen && !mailbox.isEmpty() && scheduled.compareAndSet(false, true)) {
+                pool.execute(this::drain);
+            }
+        }
+    }
+}
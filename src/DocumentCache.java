@@ -0,0 +1,324 @@
+package src;
+
+import src.model.TextEdit;
+import src.model.TextRope;
+import src.service.DocumentService;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * Server-side document cache. Documents are loaded on first use (from the
+ * snapshot image when it has them, otherwise the database) and kept in LRU
+ * order. When the cached text exceeds the heap budget, idle documents (no
+ * clients attached) are evicted starting with the least recently used.
+ * Dirty documents are saved before they go.
+ *
+ * Large documents also get a snapshot file in the wire encoding, written
+ * in the background when they are loaded or saved, which joins stream
+ * without re-encoding the text.
+ */
+class DocumentCache {
+    // Smaller documents are cheap enough to encode per join (-Dcollab.snapshotMinChars)
+    private static final int SNAPSHOT_MIN_CHARS = Integer.getInteger("collab.snapshotMinChars", 64 * 1024);
+    // A snapshot this many edits behind is rewritten on the next save
+    private static final int SNAPSHOT_MAX_LAG = 256;
+
+    private final long budgetBytes;
+    private final Predicate<String> inUse;
+    private final Function<String, TextRope> loader;
+    private final Path snapshotDirectory;
+    private final Consumer<String> saved;
+    private final Set<String> snapshotsScheduled = ConcurrentHashMap.newKeySet();
+    private final ExecutorService snapshotWriter = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "snapshot-writer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Access ordered, guarded by 'this'
+    private final LinkedHashMap<String, CachedDocument> documents = new LinkedHashMap<>(16, 0.75f, true);
+
+    private final AtomicLong usedBytes = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong flushes = new AtomicLong();
+
+    // A null snapshot directory disables snapshot files; saved is told the name of every document written to the database
+    public DocumentCache(long budgetBytes, Predicate<String> inUse, Function<String, TextRope> loader, Path snapshotDirectory,
+                         Consumer<String> saved) {
+        this.budgetBytes = budgetBytes;
+        this.inUse = inUse;
+        this.loader = loader;
+        this.snapshotDirectory = snapshotDirectory;
+        this.saved = saved;
+    }
+
+    public CachedDocument get(String name) {
+        CachedDocument document;
+        synchronized (this) {
+            document = documents.get(name);
+        }
+        if (document != null) {
+            hits.incrementAndGet();
+            return document;
+        }
+
+        // Load outside the lock so a slow read doesn't block other documents
+        misses.incrementAndGet();
+        CachedDocument loaded = new CachedDocument(name, loader.apply(name));
+        synchronized (this) {
+            document = documents.get(name);
+            if (document == null) {
+                document = loaded;
+                documents.put(name, document);
+                usedBytes.addAndGet(document.estimateBytes());
+            }
+        }
+        if (document == loaded) {
+            // Adopts the file left on disk if it still matches, otherwise writes one
+            scheduleSnapshot(document);
+        }
+        evictIfNeeded();
+        return document;
+    }
+
+    public synchronized CachedDocument getIfPresent(String name) {
+        return documents.get(name);
+    }
+
+    public TextRope apply(CachedDocument document, TextEdit edit) {
+        TextRope content;
+        synchronized (document) {
+            long before = document.estimateBytes();
+            content = document.apply(edit);
+            usedBytes.addAndGet(document.estimateBytes() - before);
+        }
+        return content;
+    }
+
+    // Encoded current content for a join; counted against the budget while it is cached
+    public EncodedContent encoded(CachedDocument document) {
+        synchronized (document) {
+            long before = document.estimateBytes();
+            EncodedContent encoded = document.getEncoded(ClientHandler.CHUNK_CHARS);
+            usedBytes.addAndGet(document.estimateBytes() - before);
+            return encoded;
+        }
+    }
+
+    // Saves the document if it has unsaved edits; returns false only if saving failed
+    public boolean flush(CachedDocument document) {
+        TextRope content;
+        long revision;
+        synchronized (document) {
+            if (!document.isDirty()) {
+                return true;
+            }
+            content = document.getContent();
+            revision = document.getRevision();
+        }
+        if (DocumentService.saveDocument(document.getName(), content.toString())) {
+            document.markSaved(revision);
+            flushes.incrementAndGet();
+            saved.accept(document.getName());
+            scheduleSnapshot(document);
+            return true;
+        }
+        return false;
+    }
+
+    // Brings the document's snapshot file up to date in the background if it is large and lagging
+    public void scheduleSnapshot(CachedDocument document) {
+        if (snapshotDirectory == null || document.getContent().length() < SNAPSHOT_MIN_CHARS) {
+            return;
+        }
+        if (snapshotsScheduled.add(document.getName())) {
+            snapshotWriter.execute(() -> {
+                snapshotsScheduled.remove(document.getName());
+                updateSnapshot(document);
+            });
+        }
+    }
+
+    private void updateSnapshot(CachedDocument document) {
+        TextRope content;
+        long revision;
+        SnapshotFile current;
+        synchronized (document) {
+            content = document.getContent();
+            revision = document.getRevision();
+            current = document.getSnapshot();
+            if (current != null) {
+                List<TextEdit> lag = document.editsSince(document.getSnapshotRevision());
+                if (lag != null && lag.size() < SNAPSHOT_MAX_LAG) {
+                    return;
+                }
+            }
+        }
+
+        SnapshotFile snapshot = null;
+        if (current == null) {
+            snapshot = SnapshotFile.open(snapshotDirectory, document.getName());
+            if (snapshot != null && !snapshot.matches(content)) {
+                snapshot.retire();
+                snapshot = null;
+            }
+        }
+        if (snapshot == null) {
+            try {
+                snapshot = SnapshotFile.write(snapshotDirectory, document.getName(), content, ClientHandler.CHUNK_CHARS);
+            } catch (IOException e) {
+                // The old file may still be open for a join on some platforms; retry after the next save
+                System.err.println("Error writing snapshot file for " + document.getName() + ": " + e.getMessage());
+                return;
+            }
+            if (snapshot == null) {
+                return;
+            }
+        }
+
+        SnapshotFile previous;
+        synchronized (this) {
+            if (documents.get(document.getName()) != document) {
+                // Evicted meanwhile
+                snapshot.retire();
+                return;
+            }
+            previous = document.setSnapshot(snapshot, revision);
+        }
+        if (previous != null) {
+            previous.retire();
+        }
+    }
+
+    public List<CachedDocument> dirtyDocuments() {
+        List<CachedDocument> dirty = new ArrayList<>();
+        synchronized (this) {
+            for (CachedDocument document : documents.values()) {
+                if (document.isDirty()) {
+                    dirty.add(document);
+                }
+            }
+        }
+        return dirty;
+    }
+
+    public void evictIfNeeded() {
+        if (usedBytes.get() <= budgetBytes) {
+            return;
+        }
+
+        // Pick idle documents in LRU order until enough bytes would be freed
+        List<CachedDocument> candidates = new ArrayList<>();
+        synchronized (this) {
+            long excess = usedBytes.get() - budgetBytes;
+            for (CachedDocument document : documents.values()) {
+                if (excess <= 0) {
+                    break;
+                }
+                if (!inUse.test(document.getName())) {
+                    candidates.add(document);
+                    excess -= document.estimateBytes();
+                }
+            }
+        }
+
+        for (CachedDocument document : candidates) {
+            // Dirty documents are written out before they can be dropped
+            if (!flush(document)) {
+                continue;
+            }
+            synchronized (this) {
+                if (documents.get(document.getName()) == document
+                        && !document.isDirty()
+                        && !inUse.test(document.getName())) {
+                    documents.remove(document.getName());
+                    usedBytes.addAndGet(-document.estimateBytes());
+                    evictions.incrementAndGet();
+                    SnapshotFile snapshot = document.setSnapshot(null, 0);
+                    if (snapshot != null) {
+                        snapshot.retire();
+                    }
+                }
+            }
+        }
+    }
+
+    // Content of every cached document that matches its saved copy, least recently used first
+    public synchronized Map<String, TextRope> savedContents() {
+        Map<String, TextRope> contents = new LinkedHashMap<>();
+        for (CachedDocument document : documents.values()) {
+            if (!document.isDirty()) {
+                contents.put(document.getName(), document.getContent());
+            }
+        }
+        return contents;
+    }
+
+    /**
+     * Puts a document that was moved here from another node in place of
+     * any copy cached here before. False if a client has that copy open.
+     */
+    public boolean install(CachedDocument document) {
+        SnapshotFile snapshot = null;
+        synchronized (this) {
+            if (inUse.test(document.getName())) {
+                return false;
+            }
+            CachedDocument previous = documents.put(document.getName(), document);
+            if (previous != null) {
+                usedBytes.addAndGet(-previous.estimateBytes());
+                snapshot = previous.setSnapshot(null, 0);
+            }
+            usedBytes.addAndGet(document.estimateBytes());
+        }
+        if (snapshot != null) {
+            snapshot.retire();
+        }
+        scheduleSnapshot(document);
+        evictIfNeeded();
+        return true;
+    }
+
+    // Drops a document that is being deleted or has moved to another node; false if a client has it open
+    public boolean remove(String name) {
+        SnapshotFile snapshot;
+        synchronized (this) {
+            if (inUse.test(name)) {
+                return false;
+            }
+            CachedDocument document = documents.remove(name);
+            if (document == null) {
+                return true;
+            }
+            usedBytes.addAndGet(-document.estimateBytes());
+            snapshot = document.setSnapshot(null, 0);
+        }
+        if (snapshot != null) {
+            snapshot.retire();
+        }
+        return true;
+    }
+
+    public synchronized int size() {
+        return documents.size();
+    }
+
+    public String getStats() {
+        long h = hits.get();
+        long m = misses.get();
+        double hitRate = h + m == 0 ? 0 : 100.0 * h / (h + m);
+        return String.format("Document cache: %d documents, %d/%d KB, hit rate %.1f%% (%d hits, %d misses), %d evictions, %d flushes",
+            size(), usedBytes.get() / 1024, budgetBytes / 1024, hitRate, h, m, evictions.get(), flushes.get());
+    }
+}
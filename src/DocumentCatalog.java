@@ -0,0 +1,155 @@
+package src;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-memory list of every document name, most recently saved first, so
+ * listing doesn't have to query the database. Filled from the database
+ * once at startup and then kept current by the server as documents are
+ * saved and deleted.
+ *
+ * Pages are read without locking from two skip lists: one ordered by save
+ * time for the plain list and one by name for prefix lookups. Writers are
+ * serialized so both lists always hold the same entries. Queries wait
+ * until the initial load has finished.
+ */
+class DocumentCatalog {
+    // Save times use SQLite's "yyyy-MM-dd HH:mm:ss" format, which sorts as text
+    private static final class Entry implements Comparable<Entry> {
+        final String name;
+        final String updatedAt;
+
+        Entry(String name, String updatedAt) {
+            this.name = name;
+            this.updatedAt = updatedAt;
+        }
+
+        // Newest first; names break ties within the same second
+        @Override
+        public int compareTo(Entry other) {
+            int byTime = other.updatedAt.compareTo(updatedAt);
+            return byTime != 0 ? byTime : name.compareTo(other.name);
+        }
+    }
+
+    public static final class Page {
+        public final int offset;
+        public final int total;
+        public final List<String> names;
+
+        Page(int offset, int total, List<String> names) {
+            this.offset = offset;
+            this.total = total;
+            this.names = names;
+        }
+    }
+
+    private final ConcurrentSkipListSet<Entry> byUpdated = new ConcurrentSkipListSet<>();
+    private final ConcurrentSkipListMap<String, Entry> byName = new ConcurrentSkipListMap<>();
+    private final AtomicLong revision = new AtomicLong();
+    private final CountDownLatch loaded = new CountDownLatch(1);
+
+    // Initial contents; anything recorded before the load finished is newer and kept
+    public synchronized void load(Map<String, String> updatedAt) {
+        for (Map.Entry<String, String> document : updatedAt.entrySet()) {
+            if (!byName.containsKey(document.getKey())) {
+                Entry entry = new Entry(document.getKey(), document.getValue() != null ? document.getValue() : "");
+                byName.put(entry.name, entry);
+                byUpdated.add(entry);
+            }
+        }
+        revision.incrementAndGet();
+        loaded.countDown();
+    }
+
+    // Records a save; returns true if the document wasn't in the catalog before
+    public synchronized boolean touch(String name, String updatedAt) {
+        Entry entry = new Entry(name, updatedAt);
+        Entry previous = byName.put(name, entry);
+        if (previous != null) {
+            byUpdated.remove(previous);
+        }
+        byUpdated.add(entry);
+        revision.incrementAndGet();
+        return previous == null;
+    }
+
+    // Returns true if the document was in the catalog
+    public synchronized boolean remove(String name) {
+        Entry previous = byName.remove(name);
+        if (previous == null) {
+            return false;
+        }
+        byUpdated.remove(previous);
+        revision.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Up to limit names starting at offset. Without a prefix the names come
+     * most recently saved first; with one they are the matching names in
+     * name order. Skipping to the offset walks the list, so callers should
+     * page forward rather than jump deep into it.
+     */
+    public Page page(int offset, int limit, String prefix) {
+        awaitLoaded();
+        Iterable<String> source;
+        int total;
+        if (prefix == null || prefix.isEmpty()) {
+            total = byName.size();
+            source = () -> byUpdated.stream().map(entry -> entry.name).iterator();
+        } else {
+            ConcurrentNavigableMap<String, Entry> matches = byName.subMap(prefix, true, prefix + Character.MAX_VALUE, true);
+            total = matches.size();
+            source = matches.keySet();
+        }
+
+        List<String> names = new ArrayList<>(Math.min(limit, Math.max(0, total - offset)));
+        int index = 0;
+        for (String name : source) {
+            if (names.size() >= limit) {
+                break;
+            }
+            if (index++ >= offset) {
+                names.add(name);
+            }
+        }
+        return new Page(offset, total, names);
+    }
+
+    // Every name, most recently saved first
+    public List<String> names() {
+        awaitLoaded();
+        List<String> names = new ArrayList<>(byName.size());
+        for (Entry entry : byUpdated) {
+            names.add(entry.name);
+        }
+        return names;
+    }
+
+    public boolean contains(String name) {
+        return byName.containsKey(name);
+    }
+
+    // Bumped by every change, so encoded listings can be reused until the next one
+    public long getRevision() {
+        return revision.get();
+    }
+
+    public int size() {
+        return byName.size();
+    }
+
+    private void awaitLoaded() {
+        try {
+            loaded.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
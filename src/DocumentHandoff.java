@@ -0,0 +1,232 @@
+package src;
+
+import src.model.TextEdit;
+import src.model.TextRope;
+import src.util.WireCodec;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The in-memory state of a document as it moves from one cluster node to
+ * another (see CollabServer.migrateDocument): content, epoch, revision,
+ * whether it has unsaved edits, and the recent edits so clients can catch
+ * up on the new node from the revision they have.
+ *
+ * Sent over an ordinary connection logged in as a node:
+ *   HANDOFF:epoch:revision:dirty:editCount:document
+ *   HANDOFF_CONTENT:text
+ *   PATCH:offset:removed:text   (editCount times, oldest first)
+ * and answered with HANDOFF_OK:document or HANDOFF_FAILED:reason. If the
+ * answer is lost, HANDOFF_STATUS:document asks the target whether it took
+ * the document over: HANDOFF_STATUS:epoch:revision:document with the
+ * revision it holds, or -1 for both if it doesn't.
+ *
+ * A node mirroring a document it doesn't own (see DocumentMirror) asks the
+ * owner for its current state with FETCH:document and gets the same frames
+ * back, with no edits and no reply expected.
+ */
+class DocumentHandoff {
+    private static final int CONNECT_TIMEOUT_MILLIS = 5000;
+    // The document takes no edits until the target answers
+    private static final int REPLY_TIMEOUT_MILLIS = 10_000;
+    // A fetch follows at most this many redirects, in case nodes disagree about the owner
+    private static final int MAX_FETCH_HOPS = 3;
+
+    final String name;
+    final TextRope content;
+    final long epoch;
+    final long revision;
+    final boolean dirty;
+    final List<TextEdit> history;
+
+    DocumentHandoff(String name, TextRope content, long epoch, long revision, boolean dirty, List<TextEdit> history) {
+        this.name = name;
+        this.content = content;
+        this.epoch = epoch;
+        this.revision = revision;
+        this.dirty = dirty;
+        this.history = history;
+    }
+
+    // Taken under the document's lock, so content, revision and history agree
+    static DocumentHandoff of(CachedDocument document) {
+        synchronized (document) {
+            return new DocumentHandoff(document.getName(), document.getContent(), document.getEpoch(),
+                                       document.getRevision(), document.isDirty(), document.getHistory());
+        }
+    }
+
+    // Content and revision only, for a mirror
+    static DocumentHandoff stateOf(CachedDocument document) {
+        synchronized (document) {
+            return new DocumentHandoff(document.getName(), document.getContent(), document.getEpoch(),
+                                       document.getRevision(), false, Collections.emptyList());
+        }
+    }
+
+    CachedDocument toCachedDocument() {
+        return new CachedDocument(name, content, epoch, revision, dirty, history);
+    }
+
+    /**
+     * Hands the document to the target node. Returns null once it has taken
+     * over, otherwise the reason it didn't. Throws if the connection fails
+     * after the document was sent, since the target may then have it or not;
+     * isHeldBy tells which.
+     */
+    String send(ClusterRing.Node target, String sessionToken) throws IOException {
+        try (Socket socket = new Socket()) {
+            PrintWriter out;
+            BufferedReader in;
+            try {
+                socket.connect(new InetSocketAddress(target.host, target.port), CONNECT_TIMEOUT_MILLIS);
+                socket.setSoTimeout(REPLY_TIMEOUT_MILLIS);
+                out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8)));
+                in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+                out.println("RESUME:" + sessionToken);
+                out.flush();
+                String reply = in.readLine();
+                if (reply == null || !reply.startsWith("AUTH_OK:")) {
+                    return "not accepted by " + target + ": " + reply;
+                }
+            } catch (IOException e) {
+                // Nothing was sent yet
+                return e.getMessage();
+            }
+
+            write(out);
+            out.flush();
+
+            // Catalog frames may come first
+            String reply;
+            while ((reply = in.readLine()) != null) {
+                if (reply.startsWith("HANDOFF_OK:")) {
+                    return null;
+                }
+                if (reply.startsWith("HANDOFF_FAILED:")) {
+                    return WireCodec.unescape(reply.substring(15));
+                }
+            }
+            throw new EOFException("connection to " + target + " closed");
+        }
+    }
+
+    // Whether the target took this handoff over, for when send() got no answer
+    boolean isHeldBy(ClusterRing.Node target, String sessionToken) throws IOException {
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress(target.host, target.port), CONNECT_TIMEOUT_MILLIS);
+            socket.setSoTimeout(REPLY_TIMEOUT_MILLIS);
+            PrintWriter out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), true);
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            out.println("RESUME:" + sessionToken);
+            String reply = in.readLine();
+            if (reply == null || !reply.startsWith("AUTH_OK:")) {
+                throw new IOException("not accepted by " + target + ": " + reply);
+            }
+            out.println("HANDOFF_STATUS:" + name);
+            while ((reply = in.readLine()) != null) {
+                if (reply.startsWith("HANDOFF_STATUS:")) {
+                    String[] parts = reply.split(":", 4);
+                    try {
+                        return Long.parseLong(parts[1]) == epoch && Long.parseLong(parts[2]) == revision;
+                    } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                        throw new IOException("malformed reply from " + target + ": " + reply);
+                    }
+                }
+            }
+            throw new EOFException("connection to " + target + " closed");
+        }
+    }
+
+    // The frames of this handoff, as send() and a FETCH reply write them
+    void write(PrintWriter out) {
+        out.println("HANDOFF:" + epoch + ":" + revision + ":" + (dirty ? 1 : 0) + ":" + history.size() + ":" + name);
+        out.print("HANDOFF_CONTENT:");
+        for (String chunk : content) {
+            out.print(WireCodec.escape(chunk));
+        }
+        out.println();
+        for (TextEdit edit : history) {
+            out.println("PATCH:" + edit.getOffset() + ":" + edit.getRemovedLength() + ":" + WireCodec.escape(edit.getText()));
+        }
+    }
+
+    /**
+     * The current state of a document from the node that owns it, following
+     * redirects if it has moved on. Null if no owner could be reached or the
+     * reply was malformed.
+     */
+    static DocumentHandoff fetch(ClusterRing.Node owner, String sessionToken, String documentName) {
+        for (int hops = 0; hops < MAX_FETCH_HOPS && owner != null; hops++) {
+            ClusterRing.Node next = null;
+            try (Socket socket = new Socket()) {
+                socket.connect(new InetSocketAddress(owner.host, owner.port), CONNECT_TIMEOUT_MILLIS);
+                socket.setSoTimeout(REPLY_TIMEOUT_MILLIS);
+                PrintWriter out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), true);
+                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+                out.println("RESUME:" + sessionToken);
+                String reply = in.readLine();
+                if (reply == null || !reply.startsWith("AUTH_OK:")) {
+                    System.err.println("Fetch of " + documentName + " not accepted by " + owner + ": " + reply);
+                    return null;
+                }
+                out.println("FETCH:" + documentName);
+                while ((reply = in.readLine()) != null) {
+                    if (reply.startsWith("HANDOFF:")) {
+                        return read(reply.substring(8), in);
+                    }
+                    if (reply.startsWith("REDIRECT:")) {
+                        String[] parts = reply.split(":", 4);
+                        next = new ClusterRing.Node(parts[1], Integer.parseInt(parts[2]));
+                        break;
+                    }
+                    if (reply.startsWith("FETCH_FAILED:")) {
+                        return null;
+                    }
+                }
+            } catch (IOException | NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                System.err.println("Could not fetch " + documentName + " from " + owner + ": " + e.getMessage());
+                return null;
+            }
+            owner = next;
+        }
+        return null;
+    }
+
+    // Reads the rest of a handoff after its HANDOFF: header; null if it is malformed
+    static DocumentHandoff read(String header, BufferedReader in) throws IOException {
+        String[] parts = header.split(":", 5);
+        if (parts.length < 5) {
+            return null;
+        }
+        try {
+            long epoch = Long.parseLong(parts[0]);
+            long revision = Long.parseLong(parts[1]);
+            boolean dirty = parts[2].equals("1");
+            int count = Integer.parseInt(parts[3]);
+            String line = in.readLine();
+            if (line == null || !line.startsWith("HANDOFF_CONTENT:")) {
+                return null;
+            }
+            TextRope content = TextRope.of(WireCodec.unescape(line.substring(16)));
+            List<TextEdit> history = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                line = in.readLine();
+                if (line == null || !line.startsWith("PATCH:")) {
+                    return null;
+                }
+                String[] edit = line.substring(6).split(":", 3);
+                history.add(new TextEdit(Integer.parseInt(edit[0]), Integer.parseInt(edit[1]), WireCodec.unescape(edit[2])));
+            }
+            return new DocumentHandoff(parts[4], content, epoch, revision, dirty, history);
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,222 @@
+package src;
+
+import src.model.TextEdit;
+import src.model.TextRope;
+import src.util.WireCodec;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * A read-only copy of a document kept up to date from the EDIT messages
+ * its owner publishes on the message bus, for serving viewers (see
+ * ViewerHub) on any node without loading the document there.
+ *
+ * It starts from the owner's current state and applies each edit whose
+ * revision follows the one it has. An edit that skips ahead (published
+ * while a bus link was down, or before the subscription reached the
+ * owner) or comes from another epoch means the copy can't be trusted, so
+ * the state is fetched again; edits arriving meanwhile are kept and
+ * applied on top. Each change is handed to the listener as a Frame
+ * already in the wire encoding, encoded once however many viewers it goes
+ * to.
+ */
+class DocumentMirror implements Consumer<String> {
+    // Edits kept while a fetch is running; past this the fetch alone catches up
+    private static final int MAX_BUFFERED_EDITS = 10_000;
+    private static final long RETRY_MILLIS = 1000;
+    // A subscription takes effect on a remote owner a little after the first fetch; one more fetch covers the gap
+    private static final long VERIFY_MILLIS = 2000;
+
+    // Bytes for viewers: a PATCH, or the whole document when reset is set. The sequence counts the
+    // mirror's changes, so a viewer can skip frames older than the document it was given.
+    static final class Frame {
+        final long sequence;
+        final boolean reset;
+        final byte[] bytes;
+
+        Frame(long sequence, boolean reset, byte[] bytes) {
+            this.sequence = sequence;
+            this.reset = reset;
+            this.bytes = bytes;
+        }
+    }
+
+    interface Listener {
+        // Called with the mirror's lock held, so frames arrive in revision order
+        void frame(DocumentMirror mirror, Frame frame);
+    }
+
+    private static final class Edit {
+        final long epoch;
+        final long revision;
+        final TextEdit edit;
+
+        Edit(long epoch, long revision, TextEdit edit) {
+            this.epoch = epoch;
+            this.revision = revision;
+            this.edit = edit;
+        }
+    }
+
+    private final String name;
+    private final Function<String, DocumentHandoff> source;
+    private final ScheduledExecutorService fetcher;
+    private final Listener listener;
+
+    // Guarded by this; revision is negative until the first fetch
+    private TextRope content = TextRope.EMPTY;
+    private long epoch = 0;
+    private long revision = -1;
+    private long sequence = 0;
+    private Frame snapshot = null;
+    private boolean fetching = false;
+    private boolean closed = false;
+    private final List<Edit> buffered = new ArrayList<>();
+
+    // source gives the document's current state, or null if it can't be had right now
+    DocumentMirror(String name, Function<String, DocumentHandoff> source, ScheduledExecutorService fetcher, Listener listener) {
+        this.name = name;
+        this.source = source;
+        this.fetcher = fetcher;
+        this.listener = listener;
+    }
+
+    String getName() {
+        return name;
+    }
+
+    // Called once subscribed to the document's topic, so no edit falls between the state and the stream
+    synchronized void start() {
+        startFetch(0);
+        fetcher.schedule(() -> {
+            synchronized (this) {
+                startFetch(0);
+            }
+        }, VERIFY_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    synchronized void close() {
+        closed = true;
+        buffered.clear();
+    }
+
+    // The whole document at the current revision, or null before the first fetch has come back
+    synchronized Frame snapshot() {
+        if (revision < 0) {
+            return null;
+        }
+        if (snapshot == null) {
+            StringBuilder sb = new StringBuilder(content.length() + 48).append("DOCUMENT:");
+            for (String chunk : content) {
+                sb.append(WireCodec.escape(chunk));
+            }
+            sb.append("\nREV:").append(epoch).append(':').append(revision).append('\n');
+            snapshot = new Frame(sequence, true, sb.toString().getBytes(StandardCharsets.UTF_8));
+        }
+        return snapshot;
+    }
+
+    // A message on the document's topic: EDIT:epoch:revision:offset:removed:text; presence is of no use to viewers
+    @Override
+    public void accept(String message) {
+        if (!message.startsWith("EDIT:")) {
+            return;
+        }
+        String[] parts = message.substring(5).split(":", 5);
+        Edit edit;
+        try {
+            edit = new Edit(Long.parseLong(parts[0]), Long.parseLong(parts[1]),
+                            new TextEdit(Integer.parseInt(parts[2]), Integer.parseInt(parts[3]), parts[4]));
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            System.err.println("Invalid edit for mirror of " + name + ": " + message);
+            return;
+        }
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            if (revision < 0 || fetching) {
+                buffer(edit);
+            } else if (!apply(edit)) {
+                buffer(edit);
+                startFetch(0);
+            }
+        }
+    }
+
+    // True if the edit was applied or is already included; false if it doesn't follow on
+    private boolean apply(Edit edit) {
+        if (edit.epoch == epoch && edit.revision <= revision) {
+            return true;
+        }
+        if (edit.epoch != epoch || edit.revision != revision + 1) {
+            return false;
+        }
+        TextEdit change = edit.edit;
+        if (change.getOffset() + change.getRemovedLength() > content.length()) {
+            return false;
+        }
+        content = change.applyTo(content);
+        revision = edit.revision;
+        snapshot = null;
+        String frame = "PATCH:" + change.getOffset() + ":" + change.getRemovedLength() + ":" + WireCodec.escape(change.getText()) +
+                       "\nREV:" + epoch + ":" + revision + "\n";
+        listener.frame(this, new Frame(++sequence, false, frame.getBytes(StandardCharsets.UTF_8)));
+        return true;
+    }
+
+    private void buffer(Edit edit) {
+        if (buffered.size() >= MAX_BUFFERED_EDITS) {
+            buffered.clear();
+        }
+        buffered.add(edit);
+    }
+
+    private void startFetch(long delayMillis) {
+        if (fetching || closed) {
+            return;
+        }
+        fetching = true;
+        fetcher.schedule(this::fetch, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void fetch() {
+        DocumentHandoff state = source.apply(name);
+        synchronized (this) {
+            fetching = false;
+            if (closed) {
+                return;
+            }
+            if (state == null) {
+                startFetch(RETRY_MILLIS);
+                return;
+            }
+            // Nothing newer, as usual when verifying: viewers keep what they have
+            if (state.epoch != epoch || state.revision > revision) {
+                content = state.content;
+                epoch = state.epoch;
+                revision = state.revision;
+                sequence++;
+                snapshot = null;
+                listener.frame(this, snapshot());
+            }
+
+            List<Edit> pending = new ArrayList<>(buffered);
+            buffered.clear();
+            for (int i = 0; i < pending.size(); i++) {
+                if (!apply(pending.get(i))) {
+                    // Still a gap: keep the rest for after the next fetch
+                    buffered.addAll(pending.subList(i, pending.size()));
+                    startFetch(RETRY_MILLIS);
+                    return;
+                }
+            }
+        }
+    }
+}
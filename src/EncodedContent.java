@@ -0,0 +1,68 @@
+package src;
+
+import src.model.TextRope;
+import src.util.WireCodec;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Document content in the wire encoding (escaped UTF-8), cut into the
+ * chunks a DOC_CHUNK stream carries. Built once per revision and shared by
+ * every join until the next edit.
+ */
+class EncodedContent {
+    private final long revision;
+    private final int length;
+    private final byte[][] chunks;
+    private final long byteCount;
+
+    private EncodedContent(long revision, int length, byte[][] chunks) {
+        this.revision = revision;
+        this.length = length;
+        this.chunks = chunks;
+        long bytes = 0;
+        for (byte[] chunk : chunks) {
+            bytes += chunk.length;
+        }
+        this.byteCount = bytes;
+    }
+
+    public static EncodedContent encode(TextRope content, long revision, int chunkChars) {
+        byte[][] chunks = new byte[content.length() / Math.max(1, chunkChars - 1) + 1][];
+        int count = 0;
+        int offset = 0;
+        while (offset < content.length()) {
+            int end = Math.min(offset + chunkChars, content.length());
+            // Never split a surrogate pair, so every chunk encodes on its own
+            if (end < content.length() && end - 1 > offset && Character.isHighSurrogate(content.charAt(end - 1))) {
+                end--;
+            }
+            chunks[count++] = WireCodec.escape(content.substring(offset, end)).getBytes(StandardCharsets.UTF_8);
+            offset = end;
+        }
+        byte[][] trimmed = new byte[count][];
+        System.arraycopy(chunks, 0, trimmed, 0, count);
+        return new EncodedContent(revision, content.length(), trimmed);
+    }
+
+    public long getRevision() {
+        return revision;
+    }
+
+    // Length of the decoded text in chars
+    public int getLength() {
+        return length;
+    }
+
+    public int getChunkCount() {
+        return chunks.length;
+    }
+
+    public byte[] getChunk(int index) {
+        return chunks[index];
+    }
+
+    public long getByteCount() {
+        return byteCount;
+    }
+}
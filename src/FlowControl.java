@@ -0,0 +1,74 @@
+package src;
+
+/**
+ * How often one document's clients are asked to send edits and cursor
+ * moves, advertised to them as FLOW:textMillis:cursorMillis:document.
+ *
+ * Every TEXT is applied on the document's actor and broadcast to each of
+ * its clients, so the cost grows with the number typing times the number
+ * watching. The intervals are set so that, at the advertised pace, a
+ * document fans out no more than FRAME_BUDGET frames a second, and never
+ * faster than the editor's own pace. On top of that they double while the
+ * actor, or the frames for the document queued to any of its clients, are
+ * backed up, and come down again once those drain. A busy document thus
+ * syncs less often rather than falling behind. A connection following
+ * several documents is counted per document, so one busy document doesn't
+ * slow the others on it. The per-connection limits (see RateLimiter) still
+ * apply to clients that don't slow down.
+ */
+class FlowControl {
+    // The editor's own pace when nothing is busy; clients assume these until told otherwise
+    static final long TEXT_BASE_MILLIS = 300;
+    static final long CURSOR_BASE_MILLIS = 50;
+    private static final long MAX_MILLIS = 5000;
+    // Intervals are whole steps of this, so small changes in load don't resend them
+    private static final long STEP_MILLIS = 50;
+    // Frames a second a document may send out before its clients are slowed (-Dcollab.flow.framesPerSecond)
+    private static final int FRAME_BUDGET = Math.max(1, Integer.getInteger("collab.flow.framesPerSecond", 2000));
+    // Queued tasks or frames past which intervals double, and under which they come back down
+    private static final int HIGH_BACKLOG = 64;
+    private static final int LOW_BACKLOG = 8;
+    private static final int MAX_BACKOFF = 16;
+
+    // Guarded by this
+    private long textMillis = TEXT_BASE_MILLIS;
+    private long cursorMillis = CURSOR_BASE_MILLIS;
+    private int backoff = 1;
+
+    /**
+     * Recomputes the intervals from the last period: clients in the
+     * document, how many of them sent text or moved the cursor, and the
+     * longest backlog of the actor or of the document's frames queued to any
+     * one client. Returns true if they changed and should be sent again.
+     */
+    synchronized boolean update(int clients, int typing, int pointing, int backlog) {
+        if (backlog > HIGH_BACKLOG) {
+            backoff = Math.min(backoff * 2, MAX_BACKOFF);
+        } else if (backlog < LOW_BACKLOG) {
+            backoff = Math.max(1, backoff / 2);
+        }
+        long text = interval(TEXT_BASE_MILLIS, typing, clients);
+        long cursor = interval(CURSOR_BASE_MILLIS, pointing, clients);
+        if (text == textMillis && cursor == cursorMillis) {
+            return false;
+        }
+        textMillis = text;
+        cursorMillis = cursor;
+        return true;
+    }
+
+    synchronized long getTextMillis() {
+        return textMillis;
+    }
+
+    synchronized long getCursorMillis() {
+        return cursorMillis;
+    }
+
+    // Each of the senders fans out to every client, once per interval
+    private long interval(long base, int senders, int clients) {
+        long fair = (long) senders * clients * 1000 / FRAME_BUDGET;
+        long millis = Math.min(MAX_MILLIS, Math.max(base, fair) * backoff);
+        return (millis + STEP_MILLIS - 1) / STEP_MILLIS * STEP_MILLIS;
+    }
+}
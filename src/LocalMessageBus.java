@@ -0,0 +1,53 @@
+package src;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+/**
+ * The bus within one process: a single server, or tests. Messages are
+ * handed to the subscribers on the publishing thread, so a topic with one
+ * publisher at a time (a document's actor) is delivered in order.
+ */
+class LocalMessageBus implements MessageBus {
+    private final Map<String, List<Consumer<String>>> subscribers = new ConcurrentHashMap<>();
+
+    @Override
+    public void publish(String topic, String message) {
+        List<Consumer<String>> handlers = subscribers.get(topic);
+        if (handlers == null) {
+            return;
+        }
+        for (Consumer<String> handler : handlers) {
+            try {
+                handler.accept(message);
+            } catch (RuntimeException e) {
+                System.err.println("Error delivering message on " + topic + ": " + e.getMessage());
+            }
+        }
+    }
+
+    @Override
+    public void subscribe(String topic, Consumer<String> handler) {
+        subscribers.compute(topic, (t, handlers) -> {
+            List<Consumer<String>> updated = handlers != null ? handlers : new CopyOnWriteArrayList<>();
+            updated.add(handler);
+            return updated;
+        });
+    }
+
+    @Override
+    public void unsubscribe(String topic, Consumer<String> handler) {
+        subscribers.computeIfPresent(topic, (t, handlers) -> {
+            handlers.remove(handler);
+            return handlers.isEmpty() ? null : handlers;
+        });
+    }
+
+    @Override
+    public boolean hasSubscribers(String topic) {
+        return subscribers.containsKey(topic);
+    }
+}
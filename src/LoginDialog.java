@@ -1,5 +1,4 @@
 package src;
-import src.service.UserService;
 
 import javax.swing.*;
 import javax.swing.border.EmptyBorder;
@@ -23,9 +22,15 @@ public class LoginDialog extends JDialog {
     private JLabel statusLabel;
     private boolean authenticated = false;
     private String username = null;
+    private String sessionToken = null;
+    // Logins and registrations are checked by the server
+    private final String host;
+    private final int port;
     
-    public LoginDialog(Frame parent) {
+    public LoginDialog(Frame parent, String host, int port) {
         super(parent, "Collaborative Notepad - Login", true);
+        this.host = host;
+        this.port = port;
         initializeComponents();
         layoutComponents();
         applyGreenTheme();
@@ -182,12 +187,14 @@ public class LoginDialog extends JDialog {
             return;
         }
         
-        if (UserService.authenticateUser(username, password)) {
+        CollabClient.AuthResult result = CollabClient.login(host, port, username, password);
+        if (result.success) {
             this.authenticated = true;
-            this.username = username;
+            this.username = result.username;
+            this.sessionToken = result.token;
             dispose();
         } else {
-            showStatus("Invalid username or password", Color.RED);
+            showStatus(result.message, Color.RED);
             passwordField.setText("");
         }
     }
@@ -201,20 +208,17 @@ public class LoginDialog extends JDialog {
             return;
         }
         
-        if (UserService.userExists(username)) {
-            showStatus("Username already exists", Color.RED);
-            return;
-        }
-        
         if (password.length() < 6) {
             showStatus("Password must be at least 6 characters", Color.RED);
             return;
         }
         
-        if (UserService.registerUser(username, password)) {
+        // The server also rejects names that are taken
+        CollabClient.AuthResult result = CollabClient.register(host, port, username, password);
+        if (result.success) {
             showStatus("Registration successful! You can now login.", PRIMARY_GREEN);
         } else {
-            showStatus("Registration failed. Please try again.", Color.RED);
+            showStatus(result.message, Color.RED);
         }
     }
     
@@ -231,19 +235,25 @@ public class LoginDialog extends JDialog {
         return username;
     }
     
-    public static LoginResult showLoginDialog(Frame parent) {
-        LoginDialog dialog = new LoginDialog(parent);
+    public String getSessionToken() {
+        return sessionToken;
+    }
+    
+    public static LoginResult showLoginDialog(Frame parent, String host, int port) {
+        LoginDialog dialog = new LoginDialog(parent, host, port);
         dialog.setVisible(true);
-        return new LoginResult(dialog.isAuthenticated(), dialog.getUsername());
+        return new LoginResult(dialog.isAuthenticated(), dialog.getUsername(), dialog.getSessionToken());
     }
     
     public static class LoginResult {
         private final boolean authenticated;
         private final String username;
+        private final String sessionToken;
         
-        public LoginResult(boolean authenticated, String username) {
+        public LoginResult(boolean authenticated, String username, String sessionToken) {
             this.authenticated = authenticated;
             this.username = username;
+            this.sessionToken = sessionToken;
         }
         
         public boolean isAuthenticated() {
@@ -253,5 +263,9 @@ public class LoginDialog extends JDialog {
         public String getUsername() {
             return username;
         }
+        
+        public String getSessionToken() {
+            return sessionToken;
+        }
     }
 }
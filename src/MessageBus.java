@@ -0,0 +1,34 @@
+package src;
+
+import java.util.function.Consumer;
+
+/**
+ * Publish/subscribe between the nodes of a cluster, so something that
+ * happens on the node owning a document (an edit, a change of who is
+ * editing, a document saved or deleted) reaches every node with someone
+ * interested in it.
+ *
+ * Topics are plain strings. A subscriber gets every message published on
+ * its topic after it subscribed, including those published on its own
+ * node, in the order they were published. Handlers run on the bus's
+ * delivery thread and must not block; they hand work on like a
+ * document actor does.
+ */
+interface MessageBus {
+    // Every node's catalog follows this topic
+    String CATALOG_TOPIC = "catalog";
+
+    // Edits and presence of one document, published by its owner
+    static String documentTopic(String documentName) {
+        return "document:" + documentName;
+    }
+
+    void publish(String topic, String message);
+
+    void subscribe(String topic, Consumer<String> handler);
+
+    void unsubscribe(String topic, Consumer<String> handler);
+
+    // Lets publishers skip building messages nobody would receive
+    boolean hasSubscribers(String topic);
+}
@@ -4,12 +4,15 @@ import javax.swing.*;
 import javax.swing.Timer;
 import javax.swing.event.DocumentEvent;
 import javax.swing.event.DocumentListener;
-import javax.swing.text.DefaultHighlighter;
-import javax.swing.text.Highlighter;
+import javax.swing.event.PopupMenuEvent;
+import javax.swing.event.PopupMenuListener;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Document;
 
-import src.service.DocumentService;
+import src.model.TextEdit;
 import src.util.Function_File;
 import src.util.Function_Format;
+import src.util.LargeDocumentMode;
 
 import java.awt.*;
 // import java.awt.event.ActionEvent;
@@ -34,10 +37,19 @@ public class NotepadComponent extends JPanel implements CollabClient.MessageList
     private JMenuBar menuBar;
     private JLabel statusLabel;
     private JComboBox<String> documentSelector;
+    // Set while the selector is changed from catalog messages, so no JOIN is sent; EDT only
+    private boolean updatingSelector = false;
+    // Documents in the server's catalog; the selector holds the pages loaded so far
+    private int catalogTotal = 0;
     private CollabClient client;
     private final AtomicBoolean ignoreChanges = new AtomicBoolean(false);
     private String username;
     private AtomicLong lastChangeTime = new AtomicLong(0);
+    // Sends the text as it is when it fires; started by the first change after a send
+    private Timer sendTimer;
+    // The documents opened last, current first; the others are kept up to date so switching back is quick
+    private static final int RECENT_DOCUMENTS = 4;
+    private final Deque<String> recentDocuments = new ArrayDeque<>();
     
     // Utility classes
     private Function_File fileHandler;
@@ -49,9 +61,10 @@ public class NotepadComponent extends JPanel implements CollabClient.MessageList
     private JList<String> versionList;
     private DefaultListModel<String> versionListModel;
     private Map<String, Color> userColors = new HashMap<>();
-    private Map<String, Integer> cursorPositions = new HashMap<>();
-    private Highlighter highlighter;
-    private Map<String, Object> cursorHighlights = new HashMap<>();
+    private final PresenceModel presence = new PresenceModel();
+    private final Map<String, JLabel> userLabels = new LinkedHashMap<>();
+    private JLabel currentUserLabel;
+    private RemoteCursorLayer cursorLayer;
     
     // Dark mode colors
     private boolean isDarkMode = false;
@@ -60,16 +73,24 @@ public class NotepadComponent extends JPanel implements CollabClient.MessageList
     private final Color DARK_BG = new Color(45, 45, 45);
     private final Color DARK_FG = Color.WHITE;
     
-    public NotepadComponent(String host, int port, String username) {
+    public NotepadComponent(String host, int port, String username, String sessionToken) {
         this.username = username;
         setLayout(new BorderLayout());
         initializeComponents();
-        connectToServer(host, port);
+        connectToServer(host, port, sessionToken);
     }
     
     private void initializeComponents() {
         // Text area with green theme
-        textArea = new JTextArea();
+        textArea = new JTextArea() {
+            @Override
+            protected void paintComponent(Graphics g) {
+                super.paintComponent(g);
+                if (cursorLayer != null) {
+                    cursorLayer.paint(g);
+                }
+            }
+        };
         textArea.setFont(new Font("Times New Roman", Font.PLAIN, 14));
         textArea.setLineWrap(true);
         textArea.setWrapStyleWord(true);
@@ -78,14 +99,21 @@ public class NotepadComponent extends JPanel implements CollabClient.MessageList
         textArea.setForeground(Color.BLACK);
         textArea.setCaretColor(PRIMARY_GREEN);
         textArea.setSelectionColor(LIGHT_GREEN);
-        highlighter = textArea.getHighlighter();
+        cursorLayer = new RemoteCursorLayer(textArea);
         
         // Initialize utility classes
         fileHandler = new Function_File(this, textArea);
         formatHandler = new Function_Format(textArea);
         
+        sendTimer = new Timer((int) CollabClient.DEFAULT_TEXT_INTERVAL_MILLIS, e -> {
+            if (!ignoreChanges.get() && client != null) {
+                client.sendText(textArea.getText());
+            }
+        });
+        sendTimer.setRepeats(false);
+        
         // Document listener for real-time collaboration
-        textArea.getDocument().addDocumentListener(new DocumentListener() {
+        DocumentListener collabListener = new DocumentListener() {
             @Override
             public void insertUpdate(DocumentEvent e) {
                 handleTextChange();
@@ -103,6 +131,17 @@ public class NotepadComponent extends JPanel implements CollabClient.MessageList
                 handleTextChange();
                 fileHandler.setHasChanges(true);
             }
+        };
+        textArea.getDocument().addDocumentListener(collabListener);
+        
+        // Large documents swap in a different Document, keep listening to the current one
+        textArea.addPropertyChangeListener("document", e -> {
+            if (e.getOldValue() != null) {
+                ((javax.swing.text.Document) e.getOldValue()).removeDocumentListener(collabListener);
+            }
+            if (e.getNewValue() != null) {
+                ((javax.swing.text.Document) e.getNewValue()).addDocumentListener(collabListener);
+            }
         });
         
         // Cursor position listener
@@ -127,13 +166,29 @@ public class NotepadComponent extends JPanel implements CollabClient.MessageList
         documentSelector.setForeground(DARK_GREEN);
         documentSelector.setBorder(BorderFactory.createLineBorder(LIGHT_GREEN));
         documentSelector.addActionListener(e -> {
-            if (e.getActionCommand().equals("comboBoxChanged") && client != null && client.isConnected()) {
+            // Offline, documents with a local copy still open
+            if (e.getActionCommand().equals("comboBoxChanged") && !updatingSelector && client != null) {
                 String selectedDoc = (String) documentSelector.getSelectedItem();
                 if (selectedDoc != null && !selectedDoc.isEmpty()) {
-                    client.joinDocument(selectedDoc);
+                    openDocument(selectedDoc);
                 }
             }
         });
+        // Further pages are fetched as the list is opened
+        documentSelector.addPopupMenuListener(new PopupMenuListener() {
+            @Override
+            public void popupMenuWillBecomeVisible(PopupMenuEvent e) {
+                requestNextDocumentPage();
+            }
+            
+            @Override
+            public void popupMenuWillBecomeInvisible(PopupMenuEvent e) {
+            }
+            
+            @Override
+            public void popupMenuCanceled(PopupMenuEvent e) {
+            }
+        });
         
         // Status label with green theme
         statusLabel = new JLabel("Connecting...");
@@ -271,6 +326,7 @@ public class NotepadComponent extends JPanel implements CollabClient.MessageList
         JMenuItem saveAsItem = createStyledMenuItem("Save As", "Ctrl+Shift+S");
         JMenuItem clearItem = createStyledMenuItem("Clear All", null);
         JMenuItem saveVersionItem = createStyledMenuItem("Save Version", "Ctrl+Alt+S");
+        JMenuItem deleteItem = createStyledMenuItem("Delete Document", null);
         JMenuItem exitItem = createStyledMenuItem("Exit", "Alt+F4");
         
         newItem.addActionListener(e -> {
@@ -289,6 +345,7 @@ public class NotepadComponent extends JPanel implements CollabClient.MessageList
             }
         });
         saveVersionItem.addActionListener(e -> saveCurrentVersion());
+        deleteItem.addActionListener(e -> deleteCurrentDocument());
         exitItem.addActionListener(e -> fileHandler.exit());
         
         fileMenu.add(newItem);
@@ -299,6 +356,7 @@ public class NotepadComponent extends JPanel implements CollabClient.MessageList
         fileMenu.addSeparator();
         fileMenu.add(clearItem);
         fileMenu.add(saveVersionItem);
+        fileMenu.add(deleteItem);
         fileMenu.addSeparator();
         fileMenu.add(exitItem);
         
@@ -407,6 +465,21 @@ public class NotepadComponent extends JPanel implements CollabClient.MessageList
         return item;
     }
     
+    // Joins the document; the ones open before it stay subscribed until they drop off the recent list
+    private void openDocument(String documentName) {
+        // Presence for the new document arrives with the join, possibly ahead of its text
+        presence.clear();
+        cursorLayer.clear();
+        updateUserList();
+        client.joinDocument(documentName);
+        recentDocuments.remove(documentName);
+        recentDocuments.addFirst(documentName);
+        client.subscribe(documentName);
+        if (recentDocuments.size() > RECENT_DOCUMENTS) {
+            client.unsubscribe(recentDocuments.removeLast());
+        }
+    }
+    
     private void createNewDocument() {
         String docName = JOptionPane.showInputDialog(this, 
             "Enter new document name:", 
@@ -422,18 +495,41 @@ public class NotepadComponent extends JPanel implements CollabClient.MessageList
                 }
             }
             
+            updatingSelector = true;
             if (!exists) {
-                documentSelector.addItem(docName);
+                documentSelector.insertItemAt(docName, 0);
             }
             
             documentSelector.setSelectedItem(docName);
+            updatingSelector = false;
             
             if (client != null && client.isConnected()) {
-                client.joinDocument(docName);
+                openDocument(docName);
             }
         }
     }
     
+    private void deleteCurrentDocument() {
+        if (client == null || !client.isConnected() || client.getCurrentDocument() == null) {
+            return;
+        }
+        String docName = client.getCurrentDocument();
+        if (JOptionPane.showConfirmDialog(this,
+            "Delete \"" + docName + "\" and all of its versions? This cannot be undone.",
+            "Delete Document",
+            JOptionPane.YES_NO_OPTION,
+            JOptionPane.WARNING_MESSAGE) == JOptionPane.YES_OPTION) {
+            client.deleteDocument(docName);
+        }
+    }
+    
+    private void requestNextDocumentPage() {
+        int loaded = documentSelector.getItemCount();
+        if (client != null && client.isConnected() && loaded < catalogTotal) {
+            client.requestDocumentPage(loaded, CollabClient.DOCUMENT_PAGE_SIZE, "");
+        }
+    }
+    
     private void saveCurrentVersion() {
         if (client != null && client.isConnected() && client.getCurrentDocument() != null) {
             String content = textArea.getText();
@@ -445,9 +541,9 @@ public class NotepadComponent extends JPanel implements CollabClient.MessageList
         }
     }
     
-    private void connectToServer(String host, int port) {
+    private void connectToServer(String host, int port, String sessionToken) {
         try {
-            client = new CollabClient(host, port, username, this);
+            client = new CollabClient(host, port, username, sessionToken, this);
         } catch (Exception e) {
             statusLabel.setText("Failed to connect - Working offline");
             statusLabel.setForeground(Color.RED);
@@ -462,14 +558,11 @@ public class NotepadComponent extends JPanel implements CollabClient.MessageList
     private void handleTextChange() {
         lastChangeTime.set(System.currentTimeMillis());
         
-        if (!ignoreChanges.get() && client != null && client.isConnected()) {
-            Timer timer = new Timer(300, e -> {
-                if (!ignoreChanges.get()) {
-                    client.sendText(textArea.getText());
-                }
-            });
-            timer.setRepeats(false);
-            timer.start();
+        // Sent while connected, otherwise kept in the client's offline log. One send per interval the
+        // server asks for, whatever the number of keystrokes in it, rather than one per keystroke.
+        if (!ignoreChanges.get() && client != null && !sendTimer.isRunning()) {
+            sendTimer.setInitialDelay((int) Math.min(client.getTextSendInterval(), Integer.MAX_VALUE));
+            sendTimer.start();
         }
     }
     
@@ -522,97 +615,168 @@ public class NotepadComponent extends JPanel implements CollabClient.MessageList
         return userColors.get(username);
     }
     
-    private void updateUserList(List<String> users) {
-        userListPanel.removeAll();
+    // Syncs the user labels with the presence model, touching only labels that changed
+    private void updateUserList() {
+        boolean structureChanged = false;
+        
+        if (currentUserLabel == null) {
+            currentUserLabel = new JLabel("👤 " + username + " (You)");
+            currentUserLabel.setFont(new Font("Segoe UI", Font.BOLD, 12));
+            currentUserLabel.setForeground(PRIMARY_GREEN);
+            currentUserLabel.setBorder(BorderFactory.createEmptyBorder(5, 10, 5, 10));
+            userListPanel.add(currentUserLabel, 0);
+            structureChanged = true;
+        }
+        
+        Set<String> users = presence.getActiveUsers();
         
-        // Add current user
-        JLabel currentUserLabel = new JLabel("👤 " + username + " (You)");
-        currentUserLabel.setFont(new Font("Segoe UI", Font.BOLD, 12));
-        currentUserLabel.setForeground(PRIMARY_GREEN);
-        currentUserLabel.setBorder(BorderFactory.createEmptyBorder(5, 10, 5, 10));
-        userListPanel.add(currentUserLabel);
+        // Drop labels of users who left
+        Iterator<Map.Entry<String, JLabel>> it = userLabels.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, JLabel> entry = it.next();
+            if (!users.contains(entry.getKey())) {
+                userListPanel.remove(entry.getValue());
+                it.remove();
+                structureChanged = true;
+            }
+        }
         
-        // Add other users
+        // Add new users and refresh the text of existing ones
         for (String user : users) {
-            if (!user.equals(this.username)) {
-                JLabel userLabel = new JLabel("👤 " + user);
+            if (user.equals(this.username)) {
+                continue;
+            }
+            JLabel userLabel = userLabels.get(user);
+            if (userLabel == null) {
+                userLabel = new JLabel();
                 userLabel.setFont(new Font("Segoe UI", Font.PLAIN, 12));
                 userLabel.setForeground(getUserColor(user));
                 userLabel.setBorder(BorderFactory.createEmptyBorder(3, 10, 3, 10));
-                
-                if (cursorPositions.containsKey(user)) {
-                    int pos = cursorPositions.get(user);
-                    userLabel.setText("👤 " + user + " (pos: " + pos + ")");
-                }
-                
+                userLabels.put(user, userLabel);
                 userListPanel.add(userLabel);
+                structureChanged = true;
             }
+            updateUserLabel(user, userLabel);
         }
         
-        userListPanel.revalidate();
-        userListPanel.repaint();
+        if (structureChanged) {
+            userListPanel.revalidate();
+            userListPanel.repaint();
+        }
     }
     
-    private void updateCursorHighlights() {
-        for (Object highlight : cursorHighlights.values()) {
-            highlighter.removeHighlight(highlight);
-        }
-        cursorHighlights.clear();
-        
-        for (Map.Entry<String, Integer> entry : cursorPositions.entrySet()) {
-            if (!entry.getKey().equals(username)) {
-                try {
-                    int pos = entry.getValue();
-                    if (pos >= 0 && pos <= textArea.getText().length()) {
-                        Color userColor = getUserColor(entry.getKey());
-                        Highlighter.HighlightPainter painter = 
-                            new DefaultHighlighter.DefaultHighlightPainter(
-                                new Color(userColor.getRed(), userColor.getGreen(), userColor.getBlue(), 100));
-                        
-                        Object highlight = highlighter.addHighlight(pos, Math.min(pos + 1, textArea.getText().length()), painter);
-                        cursorHighlights.put(entry.getKey(), highlight);
-                    }
-                } catch (Exception e) {
-                    System.err.println("Error highlighting cursor position: " + e.getMessage());
-                }
-            }
+    private void updateUserLabel(String user, JLabel userLabel) {
+        Integer pos = presence.getCursorPosition(user);
+        String text = pos != null ? "👤 " + user + " (pos: " + pos + ")" : "👤 " + user;
+        // JLabel revalidates itself only when its text actually changes
+        if (!text.equals(userLabel.getText())) {
+            userLabel.setText(text);
         }
     }
     
+    
     // MessageListener implementation
+    // Document and cursor callbacks already arrive coalesced on the EDT
     @Override
     public void onDocumentReceived(String content) {
-        SwingUtilities.invokeLater(() -> {
-            ignoreChanges.set(true);
-            textArea.setText(content);
-            fileHandler.setHasChanges(false);
-            ignoreChanges.set(false);
-        });
+        ignoreChanges.set(true);
+        LargeDocumentMode.prepare(textArea, content.length());
+        textArea.setText(content);
+        textArea.setEditable(true);
+        fileHandler.setHasChanges(false);
+        ignoreChanges.set(false);
+    }
+    
+    @Override
+    public void onDocumentCached(String content) {
+        ignoreChanges.set(true);
+        LargeDocumentMode.prepare(textArea, content.length());
+        textArea.setText(content);
+        textArea.setCaretPosition(0);
+        // Read-only until the server's changes since this copy are in
+        textArea.setEditable(false);
+        statusLabel.setText(" Opened local copy - syncing...");
+        fileHandler.setHasChanges(false);
+        ignoreChanges.set(false);
+    }
+    
+    @Override
+    public void onDocumentSynced() {
+        textArea.setEditable(true);
+        statusLabel.setText(" Connected as " + username + " - Ready for collaboration");
     }
     
     @Override
     public void onDocumentUpdated(String content) {
-        SwingUtilities.invokeLater(() -> {
-            ignoreChanges.set(true);
+        ignoreChanges.set(true);
+        int caretPos = textArea.getCaretPosition();
+        LargeDocumentMode.prepare(textArea, content.length());
+        textArea.setText(content);
+        if (caretPos <= content.length()) {
+            textArea.setCaretPosition(caretPos);
+        }
+        ignoreChanges.set(false);
+    }
+    
+    @Override
+    public void onDocumentChunk(String text, int offset, int totalLength) {
+        ignoreChanges.set(true);
+        if (offset == 0) {
+            // Start of a streamed (re)join: show the first screen while the rest arrives
+            LargeDocumentMode.prepare(textArea, totalLength);
+            textArea.setText(text);
+            textArea.setCaretPosition(0);
+            // Edits against a partial document would send a truncated text
+            textArea.setEditable(false);
+            statusLabel.setText(" Loading document...");
+            fileHandler.setHasChanges(false);
+        } else {
             int caretPos = textArea.getCaretPosition();
-            textArea.setText(content);
-            if (caretPos <= content.length()) {
-                textArea.setCaretPosition(caretPos);
+            textArea.append(text);
+            textArea.setCaretPosition(caretPos);
+        }
+        if (offset + text.length() >= totalLength) {
+            textArea.setEditable(true);
+            statusLabel.setText(" Connected as " + username + " - Ready for collaboration");
+        } else if (offset > 0) {
+            statusLabel.setText(" Loading document... " + (int) (100L * (offset + text.length()) / totalLength) + "%");
+        }
+        ignoreChanges.set(false);
+    }
+    
+    @Override
+    public void onDocumentPatched(TextEdit edit) {
+        ignoreChanges.set(true);
+        try {
+            Document document = textArea.getDocument();
+            if (edit.getRemovedLength() > 0) {
+                document.remove(edit.getOffset(), edit.getRemovedLength());
             }
+            if (!edit.getText().isEmpty()) {
+                document.insertString(edit.getOffset(), edit.getText(), null);
+            }
+        } catch (BadLocationException e) {
+            System.err.println("Patch does not fit the document: " + edit);
+        } finally {
             ignoreChanges.set(false);
-        });
+        }
     }
     
     @Override
     public void onDocumentListReceived(List<String> documents) {
         SwingUtilities.invokeLater(() -> {
+            updatingSelector = true;
             documentSelector.removeAllItems();
             for (String doc : documents) {
                 documentSelector.addItem(doc);
             }
+            catalogTotal = documents.size();
+            updatingSelector = false;
             
             if (client != null && client.getCurrentDocument() != null) {
+                updatingSelector = true;
                 documentSelector.setSelectedItem(client.getCurrentDocument());
+                updatingSelector = false;
                 client.requestDocumentVersions(client.getCurrentDocument());
             } else if (documentSelector.getItemCount() > 0) {
                 documentSelector.setSelectedIndex(0);
@@ -620,13 +784,126 @@ public class NotepadComponent extends JPanel implements CollabClient.MessageList
         });
     }
     
+    @Override
+    public void onDocumentPageReceived(int offset, int total, String prefix, List<String> documents) {
+        if (!prefix.isEmpty()) {
+            // The selector only shows the unfiltered list
+            return;
+        }
+        SwingUtilities.invokeLater(() -> {
+            Object selected = documentSelector.getSelectedItem();
+            updatingSelector = true;
+            if (offset == 0) {
+                documentSelector.removeAllItems();
+            }
+            Set<String> present = new HashSet<>();
+            for (int i = 0; i < documentSelector.getItemCount(); i++) {
+                present.add(documentSelector.getItemAt(i));
+            }
+            for (String doc : documents) {
+                if (present.add(doc)) {
+                    documentSelector.addItem(doc);
+                }
+            }
+            catalogTotal = total;
+            
+            String current = client != null ? client.getCurrentDocument() : null;
+            documentSelector.setSelectedItem(current != null ? current : selected);
+            updatingSelector = false;
+            
+            if (offset == 0) {
+                if (current != null) {
+                    client.requestDocumentVersions(current);
+                } else if (documentSelector.getItemCount() > 0) {
+                    // Nothing open yet: join the most recent document
+                    documentSelector.setSelectedIndex(0);
+                }
+            }
+        });
+    }
+    
+    @Override
+    public void onCatalogChanged(CollabClient.CatalogChange change, String documentName) {
+        SwingUtilities.invokeLater(() -> {
+            Object selected = documentSelector.getSelectedItem();
+            updatingSelector = true;
+            boolean listed = false;
+            for (int i = 0; i < documentSelector.getItemCount(); i++) {
+                if (documentSelector.getItemAt(i).equals(documentName)) {
+                    documentSelector.removeItemAt(i);
+                    listed = true;
+                    break;
+                }
+            }
+            if (change == CollabClient.CatalogChange.DELETED) {
+                catalogTotal = Math.max(0, catalogTotal - 1);
+                if (documentName.equals(selected)) {
+                    selected = null;
+                    if (client != null && client.getCurrentDocument() == null) {
+                        // It was open here
+                        ignoreChanges.set(true);
+                        textArea.setText("");
+                        textArea.setEditable(false);
+                        ignoreChanges.set(false);
+                        presence.clear();
+                        cursorLayer.clear();
+                        updateUserList();
+                        versionListModel.clear();
+                        statusLabel.setText(" \"" + documentName + "\" was deleted - choose another document");
+                    }
+                }
+            } else {
+                // Most recently saved first
+                documentSelector.insertItemAt(documentName, 0);
+                if (change == CollabClient.CatalogChange.CREATED && !listed) {
+                    catalogTotal++;
+                }
+            }
+            documentSelector.setSelectedItem(selected);
+            updatingSelector = false;
+        });
+    }
+    
+    @Override
+    public void onDeleteFailed(String documentName) {
+        SwingUtilities.invokeLater(() -> JOptionPane.showMessageDialog(this,
+            "\"" + documentName + "\" could not be deleted. Other users may still have it open.",
+            "Delete Document",
+            JOptionPane.WARNING_MESSAGE));
+    }
+    
+    @Override
+    public void onEditConflicts(String documentName, List<TextEdit> discarded) {
+        StringBuilder message = new StringBuilder();
+        message.append(discarded.size()).append(discarded.size() == 1 ? " edit" : " edits")
+               .append(" made to \"").append(documentName)
+               .append("\" while offline overlapped changes by other users and were not applied:\n");
+        int shown = 0;
+        for (TextEdit edit : discarded) {
+            if (shown++ == 5) {
+                message.append("\n...");
+                break;
+            }
+            String text = edit.getText();
+            if (text.isEmpty()) {
+                message.append("\n- deletion of ").append(edit.getRemovedLength()).append(" characters");
+            } else {
+                message.append("\n- \"").append(text.length() > 80 ? text.substring(0, 80) + "..." : text).append("\"");
+            }
+        }
+        SwingUtilities.invokeLater(() -> JOptionPane.showMessageDialog(this,
+            message.toString(),
+            "Offline Edits Not Applied",
+            JOptionPane.WARNING_MESSAGE));
+    }
+    
     @Override
     public void onConnectionStatusChanged(boolean connected) {
         SwingUtilities.invokeLater(() -> {
             if (connected) {
                 statusLabel.setText(" Connected as " + username + " - Ready for collaboration");
                 statusLabel.setForeground(PRIMARY_GREEN);
-                client.requestDocumentList();
+                // The server sends the first page of documents itself on connect
             } else {
                 statusLabel.setText(" Disconnected - Working offline");
                 statusLabel.setForeground(Color.RED);
@@ -649,8 +926,9 @@ public class NotepadComponent extends JPanel implements CollabClient.MessageList
     public void onUserLeft(String documentName, String username) {
         if (client != null && documentName.equals(client.getCurrentDocument())) {
             SwingUtilities.invokeLater(() -> {
-                cursorPositions.remove(username);
-                updateCursorHighlights();
+                presence.removeUser(username);
+                cursorLayer.removeCursor(username);
+                updateUserList();
                 if (client != null) {
                     client.requestDocumentVersions(documentName);
                 }
@@ -662,20 +940,29 @@ public class NotepadComponent extends JPanel implements CollabClient.MessageList
     public void onActiveUsersUpdated(String documentName, List<String> users) {
         if (client != null && documentName.equals(client.getCurrentDocument())) {
             SwingUtilities.invokeLater(() -> {
-                updateUserList(users);
+                // Dropped if another document was opened in the meantime
+                if (client == null || !documentName.equals(client.getCurrentDocument())) {
+                    return;
+                }
+                presence.setActiveUsers(users);
+                cursorLayer.retainUsers(presence.getActiveUsers());
+                updateUserList();
             });
         }
     }
     
     @Override
     public void onCursorPositionChanged(String username, int position) {
-        SwingUtilities.invokeLater(() -> {
-            cursorPositions.put(username, position);
-            updateCursorHighlights();
-            if (client != null && client.getCurrentDocument() != null) {
-                updateUserList(DocumentService.getActiveUsers(client.getCurrentDocument()));
-            }
-        });
+        boolean newUser = presence.updateCursor(username, position);
+        if (!username.equals(this.username)) {
+            cursorLayer.setCursor(username, position, position, getUserColor(username));
+        }
+        JLabel userLabel = userLabels.get(username);
+        if (newUser || userLabel == null) {
+            updateUserList();
+        } else {
+            updateUserLabel(username, userLabel);
+        }
     }
     
     @Override
@@ -704,6 +991,7 @@ public class NotepadComponent extends JPanel implements CollabClient.MessageList
             
             if (choice == JOptionPane.YES_OPTION) {
                 ignoreChanges.set(true);
+                LargeDocumentMode.prepare(textArea, content.length());
                 textArea.setText(content);
                 fileHandler.setHasChanges(false);
                 ignoreChanges.set(false);
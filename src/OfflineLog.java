@@ -0,0 +1,389 @@
+package src;
+
+import src.model.TextEdit;
+import src.util.ContentHash;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Edits made to a document while they couldn't reach the server, kept on
+ * disk until the server has acknowledged them.
+ *
+ * The log starts from the server's text at a known epoch and revision
+ * (the base). In memory the edits are folded into a changeset: sorted,
+ * non-overlapping replacements of base ranges, so hours of typing in one
+ * place stay a single entry. Edits the server made meanwhile are merged
+ * in: a local change that overlaps one of them is dropped in favour of
+ * the server's and kept as a conflict for the user to see.
+ *
+ * On disk: a header with the base, then batches of edits, each with its
+ * byte length, CRC and record count. Edits are appended in batches from a
+ * background thread; a torn last batch is ignored when the log is read
+ * back. After a merge the file is rewritten from the changeset.
+ */
+class OfflineLog {
+    private static final int MAGIC = 0x434E4F4C; // "CNOL"
+    private static final int FORMAT_VERSION = 1;
+    private static final String SUFFIX = ".oplog";
+    private static final long FLUSH_DELAY_MILLIS = 250;
+    // Rewritten from the changeset once the raw edits outnumber it by this much
+    private static final int COMPACT_RECORDS = 4096;
+    private static final ScheduledExecutorService writer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "oplog-writer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Path file;
+    private final String name;
+    private long epoch;
+    private long revision;
+    private String base;
+    // The local text: base with the changeset applied
+    private String text;
+    private List<TextEdit> changes = new ArrayList<>();
+    private final List<TextEdit> conflicts = new ArrayList<>();
+
+    // Edits not written yet, and how many records the file holds
+    private final List<TextEdit> unwritten = new ArrayList<>();
+    private int recordsOnDisk = 0;
+    private boolean flushScheduled = false;
+    private boolean deleted = false;
+
+    private OfflineLog(Path file, String name, long epoch, long revision, String base) {
+        this.file = file;
+        this.name = name;
+        this.epoch = epoch;
+        this.revision = revision;
+        this.base = base;
+        this.text = base;
+    }
+
+    // A new, empty log on top of the server's text at the given revision
+    static OfflineLog start(Path directory, String name, long epoch, long revision, String base) {
+        OfflineLog log = new OfflineLog(fileFor(directory, name), name, epoch, revision, base);
+        log.rewrite();
+        return log;
+    }
+
+    // The log left for the document by an earlier session, or null if there is none
+    static OfflineLog open(Path directory, String name) {
+        Path path = fileFor(directory, name);
+        if (!Files.exists(path)) {
+            return null;
+        }
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(path));
+            if (buffer.getInt() != MAGIC || buffer.getInt() != FORMAT_VERSION) {
+                throw new IOException("Unrecognized offline log format");
+            }
+            long epoch = buffer.getLong();
+            long revision = buffer.getLong();
+            String storedName = readString(buffer);
+            String base = readString(buffer);
+            if (!storedName.equals(name)) {
+                return null;
+            }
+
+            OfflineLog log = new OfflineLog(path, name, epoch, revision, base);
+            CRC32 crc = new CRC32();
+            while (buffer.remaining() >= 8) {
+                int length = buffer.getInt();
+                long checksum = buffer.getInt() & 0xFFFFFFFFL;
+                if (length < 4 || length > buffer.remaining()) {
+                    break;
+                }
+                crc.reset();
+                crc.update(buffer.array(), buffer.position(), length);
+                if (crc.getValue() != checksum) {
+                    break;
+                }
+                int count = buffer.getInt();
+                for (int i = 0; i < count; i++) {
+                    int offset = buffer.getInt();
+                    int removed = buffer.getInt();
+                    log.fold(new TextEdit(offset, removed, readString(buffer)));
+                    log.recordsOnDisk++;
+                }
+            }
+            log.text = log.applyChanges();
+            return log;
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Ignoring offline edits for " + name + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public synchronized long getEpoch() {
+        return epoch;
+    }
+
+    public synchronized long getRevision() {
+        return revision;
+    }
+
+    public synchronized String getBase() {
+        return base;
+    }
+
+    public synchronized String getText() {
+        return text;
+    }
+
+    // Records the local text after an edit; written with the next batch
+    public synchronized void record(String newText) {
+        TextEdit edit = TextEdit.between(text, newText);
+        if (edit.isEmpty() || deleted) {
+            return;
+        }
+        fold(edit);
+        text = newText;
+        unwritten.add(edit);
+        if (!flushScheduled) {
+            flushScheduled = true;
+            writer.schedule(this::flush, FLUSH_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Merges the edits the server made since the base, in order, and makes
+     * the server's text at the given revision the new base. Returns the
+     * resulting local text. If the edits don't lead to the server's text
+     * (as when it sent the whole document instead), the remaining
+     * difference is merged as one edit.
+     */
+    public synchronized String merge(List<TextEdit> remote, String serverText, long epoch, long revision) {
+        for (TextEdit edit : remote) {
+            applyRemote(edit);
+        }
+        if (!base.equals(serverText)) {
+            applyRemote(TextEdit.between(base, serverText));
+        }
+        text = applyChanges();
+        checkpoint(epoch, revision);
+        return text;
+    }
+
+    // A local change overlapping the server's edit is dropped; the others move past it
+    private void applyRemote(TextEdit remote) {
+        int remoteStart = remote.getOffset();
+        int remoteEnd = remoteStart + remote.getRemovedLength();
+        int delta = remote.getText().length() - remote.getRemovedLength();
+        List<TextEdit> merged = new ArrayList<>(changes.size());
+        for (TextEdit change : changes) {
+            int start = change.getOffset();
+            int end = start + change.getRemovedLength();
+            if (start == remoteStart && end == remoteEnd && change.getText().equals(remote.getText())) {
+                // The server already has this change, e.g. our own replay whose ACK was lost
+                continue;
+            }
+            if (end <= remoteStart) {
+                merged.add(change);
+            } else if (remoteEnd <= start) {
+                merged.add(new TextEdit(start + delta, change.getRemovedLength(), change.getText()));
+            } else {
+                conflicts.add(change);
+            }
+        }
+        changes = merged;
+        base = remote.applyTo(base);
+    }
+
+    // Local changes dropped by merge since the last call
+    public synchronized List<TextEdit> takeConflicts() {
+        List<TextEdit> taken = new ArrayList<>(conflicts);
+        conflicts.clear();
+        return taken;
+    }
+
+    // The base is now the server's text at this revision; the file is rewritten to match
+    private void checkpoint(long epoch, long revision) {
+        this.epoch = epoch;
+        this.revision = revision;
+        unwritten.clear();
+        rewrite();
+    }
+
+    public synchronized void flush() {
+        flushScheduled = false;
+        if (deleted || unwritten.isEmpty()) {
+            return;
+        }
+        if (recordsOnDisk + unwritten.size() > changes.size() + COMPACT_RECORDS) {
+            unwritten.clear();
+            rewrite();
+            return;
+        }
+        try (OutputStream out = Files.newOutputStream(file, StandardOpenOption.CREATE, StandardOpenOption.APPEND,
+                                                      StandardOpenOption.DSYNC)) {
+            out.write(encodeBatch(unwritten));
+            recordsOnDisk += unwritten.size();
+            unwritten.clear();
+        } catch (IOException e) {
+            // Kept in memory and retried with the next batch
+            System.err.println("Error writing offline edits for " + name + ": " + e.getMessage());
+        }
+    }
+
+    // Everything has reached the server
+    public synchronized void delete() {
+        deleted = true;
+        unwritten.clear();
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            System.err.println("Error deleting offline edits for " + name + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Folds an edit of the local text into the changeset. Changes it
+     * touches or borders are combined with it into one replacement of the
+     * base range they cover together. Leaves the text to the caller.
+     */
+    private void fold(TextEdit edit) {
+        int start = edit.getOffset();
+        int end = start + edit.getRemovedLength();
+        int shift = 0;
+        int first = -1;
+        int last = -1;
+        int shiftBeforeFirst = 0;
+        int shiftAfterLast = 0;
+        int insertAt = changes.size();
+        for (int i = 0; i < changes.size(); i++) {
+            TextEdit change = changes.get(i);
+            int localStart = change.getOffset() + shift;
+            int localEnd = localStart + change.getText().length();
+            if (localStart > end) {
+                insertAt = i;
+                break;
+            }
+            if (localEnd >= start && first < 0) {
+                first = i;
+                shiftBeforeFirst = shift;
+            }
+            shift += change.getText().length() - change.getRemovedLength();
+            if (first >= 0) {
+                last = i;
+                shiftAfterLast = shift;
+            }
+        }
+
+        if (first < 0) {
+            // Only unchanged base text is involved
+            int shiftBefore = 0;
+            for (int i = 0; i < insertAt; i++) {
+                shiftBefore += changes.get(i).getText().length() - changes.get(i).getRemovedLength();
+            }
+            changes.add(insertAt, new TextEdit(start - shiftBefore, edit.getRemovedLength(), edit.getText()));
+        } else {
+            TextEdit firstChange = changes.get(first);
+            TextEdit lastChange = changes.get(last);
+            int baseStart = Math.min(firstChange.getOffset(), start - shiftBeforeFirst);
+            int baseEnd = Math.max(lastChange.getOffset() + lastChange.getRemovedLength(), end - shiftAfterLast);
+
+            // The local text of that base range, then the edit on top
+            StringBuilder region = new StringBuilder(base.substring(baseStart, baseEnd));
+            for (int i = last; i >= first; i--) {
+                TextEdit change = changes.get(i);
+                int offset = change.getOffset() - baseStart;
+                region.replace(offset, offset + change.getRemovedLength(), change.getText());
+            }
+            int regionStart = baseStart + shiftBeforeFirst;
+            region.replace(start - regionStart, end - regionStart, edit.getText());
+
+            changes.subList(first, last + 1).clear();
+            String replacement = region.toString();
+            if (!replacement.equals(base.substring(baseStart, baseEnd))) {
+                changes.add(first, new TextEdit(baseStart, baseEnd - baseStart, replacement));
+            }
+        }
+    }
+
+    private String applyChanges() {
+        StringBuilder sb = new StringBuilder(base.length());
+        int position = 0;
+        for (TextEdit change : changes) {
+            sb.append(base, position, change.getOffset()).append(change.getText());
+            position = change.getOffset() + change.getRemovedLength();
+        }
+        return sb.append(base, position, base.length()).toString();
+    }
+
+    // Header plus the changeset as one batch, last change first so each applies to base positions
+    private void rewrite() {
+        if (deleted) {
+            return;
+        }
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try {
+            Files.createDirectories(file.toAbsolutePath().getParent());
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(FORMAT_VERSION);
+                out.writeLong(epoch);
+                out.writeLong(revision);
+                writeString(out, name);
+                writeString(out, base);
+                if (!changes.isEmpty()) {
+                    List<TextEdit> reversed = new ArrayList<>(changes);
+                    Collections.reverse(reversed);
+                    out.write(encodeBatch(reversed));
+                }
+            }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            recordsOnDisk = changes.size();
+        } catch (IOException e) {
+            System.err.println("Error writing offline edits for " + name + ": " + e.getMessage());
+        }
+    }
+
+    // length, CRC of what follows, record count, records
+    private static byte[] encodeBatch(List<TextEdit> edits) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(body);
+        out.writeInt(edits.size());
+        for (TextEdit edit : edits) {
+            out.writeInt(edit.getOffset());
+            out.writeInt(edit.getRemovedLength());
+            writeString(out, edit.getText());
+        }
+        byte[] bytes = body.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        ByteBuffer batch = ByteBuffer.allocate(8 + bytes.length);
+        batch.putInt(bytes.length).putInt((int) crc.getValue()).put(bytes);
+        return batch.array();
+    }
+
+    private static Path fileFor(Path directory, String name) {
+        return directory.resolve(ContentHash.of(name) + SUFFIX);
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
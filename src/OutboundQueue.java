@@ -0,0 +1,150 @@
+package src;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * One connection's outgoing frames, written one at a time on a shared pool
+ * so that nothing sending to a client waits on its socket.
+ *
+ * Frames go into one of three lanes: edits to the open document first,
+ * then presence, then bulk replies such as listings and old versions. Each
+ * lane keeps its own order. Lanes take turns by weighted round robin: per
+ * round, up to as many slices as the lane's weight. Big content is written
+ * as one chunk per slice, so a long transfer still makes progress every
+ * round but a keystroke or cursor move never waits for more than a chunk
+ * of it. Only the edit lane carries the open document's content, so an
+ * UPDATE can't overtake the document it applies to.
+ */
+class OutboundQueue {
+    enum Lane {
+        INTERACTIVE(8), PRESENCE(4), BULK(1);
+
+        final int weight;
+        // Time from queueing to the first slice being written, over all connections
+        final LongAdder frames = new LongAdder();
+        final LongAdder waitNanos = new LongAdder();
+        final AtomicLong maxWaitNanos = new AtomicLong();
+
+        Lane(int weight) {
+            this.weight = weight;
+        }
+    }
+
+    // Writes the next piece of a frame or stream; true if there is more to write
+    interface Slice {
+        boolean write();
+    }
+
+    private static final class Entry {
+        final Slice slice;
+        final Lane lane;
+        final long queuedAt = System.nanoTime();
+        boolean started = false;
+
+        Entry(Slice slice, Lane lane) {
+            this.slice = slice;
+            this.lane = lane;
+        }
+    }
+
+    private static final Lane[] LANES = Lane.values();
+
+    private final Executor pool;
+    // Who the frames are for, in errors; the username is only known after login
+    private final Supplier<String> owner;
+    // Guarded by lanes
+    private final List<ArrayDeque<Entry>> lanes;
+    private boolean running = false;
+    private int turn = 0;
+    private int credit = LANES[0].weight;
+
+    OutboundQueue(Executor pool, Supplier<String> owner) {
+        this.pool = pool;
+        this.owner = owner;
+        this.lanes = new ArrayList<>(LANES.length);
+        for (int i = 0; i < LANES.length; i++) {
+            lanes.add(new ArrayDeque<>());
+        }
+    }
+
+    void add(Lane lane, Slice slice) {
+        synchronized (lanes) {
+            lanes.get(lane.ordinal()).add(new Entry(slice, lane));
+            if (running) {
+                return;
+            }
+            running = true;
+        }
+        pool.execute(this::run);
+    }
+
+    private void run() {
+        while (true) {
+            Entry entry;
+            synchronized (lanes) {
+                entry = next();
+                if (entry == null) {
+                    running = false;
+                    return;
+                }
+            }
+            if (!entry.started) {
+                entry.started = true;
+                long wait = System.nanoTime() - entry.queuedAt;
+                entry.lane.frames.increment();
+                entry.lane.waitNanos.add(wait);
+                entry.lane.maxWaitNanos.accumulateAndGet(wait, Math::max);
+            }
+            boolean more = false;
+            try {
+                more = entry.slice.write();
+            } catch (RuntimeException e) {
+                System.err.println("Error sending to " + owner.get() + ": " + e.getMessage());
+            }
+            synchronized (lanes) {
+                if (more) {
+                    // Carries on at its next turn, still ahead of everything queued in its lane after it
+                    lanes.get(entry.lane.ordinal()).addFirst(entry);
+                }
+            }
+        }
+    }
+
+    // The next lane with credit left gets the slot; each lane's credit is its weight per round
+    private Entry next() {
+        for (int i = 0; i <= LANES.length; i++) {
+            ArrayDeque<Entry> lane = lanes.get(turn);
+            if (credit > 0 && !lane.isEmpty()) {
+                credit--;
+                return lane.poll();
+            }
+            turn = (turn + 1) % LANES.length;
+            credit = LANES[turn].weight;
+        }
+        return null;
+    }
+
+    // Average and longest wait per lane since the last report, e.g. for the periodic stats
+    static String report() {
+        StringBuilder sb = new StringBuilder("Outbound wait:");
+        for (Lane lane : LANES) {
+            long frames = lane.frames.sumThenReset();
+            long total = lane.waitNanos.sumThenReset();
+            long max = lane.maxWaitNanos.getAndSet(0);
+            sb.append(' ').append(lane.name().toLowerCase()).append(' ');
+            if (frames == 0) {
+                sb.append("idle");
+            } else {
+                sb.append(String.format("%.1f ms avg, %.1f ms max (%d)", total / 1e6 / frames, max / 1e6, frames));
+            }
+            sb.append(lane.ordinal() < LANES.length - 1 ? ";" : "");
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,52 @@
+package src;
+
+import java.util.*;
+
+/**
+ * Client-side view of who is in the current document and where their
+ * cursors are. Fed only by ACTIVE_USERS and CURSOR_POS frames from the
+ * server and confined to the EDT, so the UI never has to query the database.
+ */
+class PresenceModel {
+    private final Set<String> activeUsers = new LinkedHashSet<>();
+    private final Map<String, Integer> cursorPositions = new HashMap<>();
+
+    public void clear() {
+        activeUsers.clear();
+        cursorPositions.clear();
+    }
+
+    public void setActiveUsers(Collection<String> users) {
+        activeUsers.clear();
+        for (String user : users) {
+            if (!user.isEmpty()) {
+                activeUsers.add(user);
+            }
+        }
+        // Forget cursors of users that are no longer present
+        cursorPositions.keySet().retainAll(activeUsers);
+    }
+
+    // Returns true if the user was not known to be present before
+    public boolean updateCursor(String username, int position) {
+        cursorPositions.put(username, position);
+        return activeUsers.add(username);
+    }
+
+    public void removeUser(String username) {
+        activeUsers.remove(username);
+        cursorPositions.remove(username);
+    }
+
+    public Set<String> getActiveUsers() {
+        return Collections.unmodifiableSet(activeUsers);
+    }
+
+    public Map<String, Integer> getCursorPositions() {
+        return Collections.unmodifiableMap(cursorPositions);
+    }
+
+    public Integer getCursorPosition(String username) {
+        return cursorPositions.get(username);
+    }
+}
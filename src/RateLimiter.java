@@ -0,0 +1,92 @@
+package src;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A token bucket: up to burst messages at once, refilled at perSecond.
+ * Kept as the time at which the bucket would be full again (the generic
+ * cell rate algorithm), so a check is one compare-and-set on a single
+ * long, with no lock and nothing allocated, on whichever thread the
+ * message arrives.
+ *
+ * Limits are set as -Dcollab.limit.<name>=perSecond/burst; 0 turns one
+ * off. ClientHandler keeps one bucket per connection for each message
+ * class, and CollabServer one per document that all its clients share.
+ */
+class RateLimiter {
+    // Configuration shared by all buckets of one kind
+    static final class Limit {
+        final double perSecond;
+        final int burst;
+
+        Limit(double perSecond, int burst) {
+            this.perSecond = perSecond;
+            this.burst = Math.max(1, burst);
+        }
+
+        // -Dcollab.limit.<name>=perSecond/burst, or perSecond alone for a burst of twice that
+        static Limit property(String name, double perSecond, int burst) {
+            String value = System.getProperty("collab.limit." + name);
+            if (value == null) {
+                return new Limit(perSecond, burst);
+            }
+            try {
+                int separator = value.indexOf('/');
+                if (separator < 0) {
+                    double rate = Double.parseDouble(value.trim());
+                    return new Limit(rate, (int) Math.ceil(rate * 2));
+                }
+                return new Limit(Double.parseDouble(value.substring(0, separator).trim()),
+                                 Integer.parseInt(value.substring(separator + 1).trim()));
+            } catch (NumberFormatException e) {
+                System.err.println("Invalid collab.limit." + name + ": " + value + "; using " + perSecond + "/" + burst);
+                return new Limit(perSecond, burst);
+            }
+        }
+
+        RateLimiter newBucket() {
+            return new RateLimiter(this);
+        }
+
+        @Override
+        public String toString() {
+            return perSecond <= 0 ? "unlimited" : perSecond + "/s, burst " + burst;
+        }
+    }
+
+    // Zero when unlimited
+    private final long interval;
+    // How far ahead of now the full time may be and still take a message: burst - 1 intervals
+    private final long tolerance;
+    private final AtomicLong fullAt;
+
+    private RateLimiter(Limit limit) {
+        this.interval = limit.perSecond <= 0 ? 0 : Math.max(1, (long) (1_000_000_000L / limit.perSecond));
+        this.tolerance = interval * (limit.burst - 1);
+        // Starts full
+        this.fullAt = new AtomicLong(System.nanoTime());
+    }
+
+    /**
+     * Takes a token for one message. Returns 0 if there was one, otherwise
+     * the nanoseconds until there will be; nothing is taken then.
+     */
+    long acquire() {
+        if (interval == 0) {
+            return 0;
+        }
+        long now = System.nanoTime();
+        while (true) {
+            long full = fullAt.get();
+            // nanoTime may wrap, so only differences are compared
+            long start = full - now > 0 ? full : now;
+            long wait = start - now - tolerance;
+            if (wait > 0) {
+                return wait;
+            }
+            if (fullAt.compareAndSet(full, start + interval)) {
+                return 0;
+            }
+        }
+    }
+}
@@ -0,0 +1,201 @@
+package src;
+
+import javax.swing.text.BadLocationException;
+import javax.swing.text.JTextComponent;
+
+import java.awt.*;
+import java.awt.geom.Rectangle2D;
+import java.util.*;
+
+/**
+ * Paints the carets and selections of remote users on top of a text component.
+ * Cursors are kept sorted by offset so a repaint only visits the ones inside
+ * the clip, and moving a cursor repaints just its old and new bounds.
+ * Must be used from the EDT.
+ */
+class RemoteCursorLayer {
+    private static final int CARET_WIDTH = 2;
+    private static final int FLAG_SIZE = 5;
+    private static final int SELECTION_ALPHA = 70;
+
+    private static class RemoteCursor {
+        final String username;
+        int dot;
+        int mark;
+        Color color;
+        Color selectionColor;
+
+        RemoteCursor(String username) {
+            this.username = username;
+        }
+
+        int start() {
+            return Math.min(dot, mark);
+        }
+
+        int end() {
+            return Math.max(dot, mark);
+        }
+    }
+
+    private static final Comparator<RemoteCursor> BY_OFFSET = (a, b) -> {
+        int c = Integer.compare(a.start(), b.start());
+        return c != 0 ? c : a.username.compareTo(b.username);
+    };
+
+    private final JTextComponent textComponent;
+    private final Map<String, RemoteCursor> cursors = new HashMap<>();
+    private final TreeSet<RemoteCursor> sorted = new TreeSet<>(BY_OFFSET);
+
+    public RemoteCursorLayer(JTextComponent textComponent) {
+        this.textComponent = textComponent;
+    }
+
+    public void setCursor(String username, int dot, int mark, Color color) {
+        RemoteCursor cursor = cursors.get(username);
+        Rectangle dirty = null;
+        if (cursor == null) {
+            cursor = new RemoteCursor(username);
+            cursors.put(username, cursor);
+        } else {
+            if (cursor.dot == dot && cursor.mark == mark && cursor.color.equals(color)) {
+                return;
+            }
+            dirty = bounds(cursor);
+            sorted.remove(cursor);
+        }
+
+        cursor.dot = dot;
+        cursor.mark = mark;
+        if (!color.equals(cursor.color)) {
+            cursor.color = color;
+            cursor.selectionColor = new Color(color.getRed(), color.getGreen(), color.getBlue(), SELECTION_ALPHA);
+        }
+        sorted.add(cursor);
+
+        repaint(union(dirty, bounds(cursor)));
+    }
+
+    public void removeCursor(String username) {
+        RemoteCursor cursor = cursors.remove(username);
+        if (cursor != null) {
+            sorted.remove(cursor);
+            repaint(bounds(cursor));
+        }
+    }
+
+    // Removes every cursor whose user is not in the given set
+    public void retainUsers(Set<String> usernames) {
+        for (String username : new ArrayList<>(cursors.keySet())) {
+            if (!usernames.contains(username)) {
+                removeCursor(username);
+            }
+        }
+    }
+
+    public void clear() {
+        cursors.clear();
+        sorted.clear();
+        textComponent.repaint();
+    }
+
+    public void paint(Graphics g) {
+        if (sorted.isEmpty()) {
+            return;
+        }
+        Rectangle clip = g.getClipBounds();
+        if (clip == null) {
+            clip = new Rectangle(0, 0, textComponent.getWidth(), textComponent.getHeight());
+        }
+
+        // Document length without copying the text
+        int length = textComponent.getDocument().getLength();
+        int firstVisible = textComponent.viewToModel2D(new Point(clip.x, clip.y));
+        int lastVisible = textComponent.viewToModel2D(new Point(clip.x + clip.width, clip.y + clip.height));
+
+        Graphics2D g2 = (Graphics2D) g.create();
+        try {
+            // Only cursors starting before the end of the clip can be visible
+            RemoteCursor bound = new RemoteCursor("\uffff");
+            bound.dot = bound.mark = lastVisible;
+            for (RemoteCursor cursor : sorted.headSet(bound, true)) {
+                if (Math.min(cursor.end(), length) < firstVisible) {
+                    continue;
+                }
+                paintCursor(g2, cursor, length);
+            }
+        } finally {
+            g2.dispose();
+        }
+    }
+
+    private void paintCursor(Graphics2D g2, RemoteCursor cursor, int length) {
+        int dot = Math.min(cursor.dot, length);
+        int start = Math.min(cursor.start(), length);
+        int end = Math.min(cursor.end(), length);
+
+        if (start != end) {
+            Rectangle from = rectFor(start);
+            Rectangle to = rectFor(end);
+            if (from != null && to != null) {
+                g2.setColor(cursor.selectionColor);
+                if (from.y == to.y) {
+                    g2.fillRect(from.x, from.y, to.x - from.x, from.height);
+                } else {
+                    Insets insets = textComponent.getInsets();
+                    int left = insets.left;
+                    int right = textComponent.getWidth() - insets.right;
+                    g2.fillRect(from.x, from.y, right - from.x, from.height);
+                    g2.fillRect(left, from.y + from.height, right - left, to.y - from.y - from.height);
+                    g2.fillRect(left, to.y, to.x - left, to.height);
+                }
+            }
+        }
+
+        Rectangle caret = rectFor(dot);
+        if (caret != null) {
+            g2.setColor(cursor.color);
+            g2.fillRect(caret.x, caret.y, CARET_WIDTH, caret.height);
+            g2.fillRect(caret.x, caret.y, FLAG_SIZE, FLAG_SIZE);
+        }
+    }
+
+    private Rectangle bounds(RemoteCursor cursor) {
+        int length = textComponent.getDocument().getLength();
+        Rectangle from = rectFor(Math.min(cursor.start(), length));
+        Rectangle to = rectFor(Math.min(cursor.end(), length));
+        if (from == null || to == null) {
+            return null;
+        }
+        Rectangle r;
+        if (from.y == to.y) {
+            r = from.union(to);
+        } else {
+            // Multi-line selection covers the full width of the lines in between
+            r = new Rectangle(0, from.y, textComponent.getWidth(), to.y + to.height - from.y);
+        }
+        r.width += Math.max(CARET_WIDTH, FLAG_SIZE);
+        return r;
+    }
+
+    private Rectangle rectFor(int offset) {
+        try {
+            Rectangle2D r = textComponent.modelToView2D(offset);
+            return r != null ? r.getBounds() : null;
+        } catch (BadLocationException e) {
+            return null;
+        }
+    }
+
+    private static Rectangle union(Rectangle a, Rectangle b) {
+        if (a == null) return b;
+        if (b == null) return a;
+        return a.union(b);
+    }
+
+    private void repaint(Rectangle r) {
+        if (r != null) {
+            textComponent.repaint(r);
+        }
+    }
+}
@@ -0,0 +1,243 @@
+package src;
+
+import src.util.ContentHash;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The client's local copies of recently opened documents, so opening one
+ * can show the last known text at once and then fetch only what changed
+ * (see CollabClient.joinDocument). Each copy keeps the epoch and revision
+ * it was at and a hash of its text.
+ *
+ * One file per document, named after a hash of its name and replaced
+ * atomically. The copy changes with every acknowledged edit, so writes are
+ * coalesced on a background thread. Above the size limit the least
+ * recently used files are deleted first; reading a copy refreshes its
+ * modification time, which stands in for the access time.
+ */
+class ReplicaCache {
+    private static final int MAGIC = 0x434E5243; // "CNRC"
+    private static final int FORMAT_VERSION = 1;
+    private static final String SUFFIX = ".replica";
+    private static final long WRITE_DELAY_MILLIS = 2000;
+
+    static final class Replica {
+        final String name;
+        final long epoch;
+        final long revision;
+        final String content;
+        private String hash;
+
+        Replica(String name, long epoch, long revision, String content, String hash) {
+            this.name = name;
+            this.epoch = epoch;
+            this.revision = revision;
+            this.content = content;
+            this.hash = hash;
+        }
+
+        // Computed when first needed; most copies are replaced before they are ever read
+        synchronized String getHash() {
+            if (hash == null) {
+                hash = ContentHash.of(content);
+            }
+            return hash;
+        }
+    }
+
+    private final Path directory;
+    private final long maxBytes;
+    // Newest copy per document that hasn't been written yet
+    private final Map<String, Replica> pending = new ConcurrentHashMap<>();
+    private final AtomicBoolean writeScheduled = new AtomicBoolean(false);
+    private final ScheduledExecutorService writer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "replica-writer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    ReplicaCache(Path directory, long maxBytes) {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+    }
+
+    static ReplicaCache forServer(String host, int port) {
+        long maxBytes = Long.getLong("collab.replicaCacheMb", 64) * 1024 * 1024;
+        return new ReplicaCache(serverDirectory(host, port), maxBytes);
+    }
+
+    // Local state for one server; documents of different servers are kept apart
+    static Path serverDirectory(String host, int port) {
+        Path root = Paths.get(System.getProperty("collab.replicaDir",
+                                                 Paths.get(System.getProperty("user.home"), ".collabnote", "replicas").toString()));
+        return root.resolve(host.replaceAll("[^A-Za-z0-9.-]", "_") + "_" + port);
+    }
+
+    // The last known copy of the document, or null if there is none
+    Replica get(String name) {
+        Replica unwritten = pending.get(name);
+        if (unwritten != null) {
+            return unwritten;
+        }
+        Path path = fileFor(name);
+        if (!Files.exists(path)) {
+            return null;
+        }
+        try {
+            // Read into the heap rather than mapped: a mapped file can't be replaced or deleted on Windows
+            ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(path));
+            if (buffer.getInt() != MAGIC || buffer.getInt() != FORMAT_VERSION) {
+                throw new IOException("Unrecognized replica file format");
+            }
+            long epoch = buffer.getLong();
+            long revision = buffer.getLong();
+            String hash = readString(buffer);
+            String storedName = readString(buffer);
+            String content = readString(buffer);
+            if (!storedName.equals(name)) {
+                return null;
+            }
+            Files.setLastModifiedTime(path, FileTime.fromMillis(System.currentTimeMillis()));
+            return new Replica(name, epoch, revision, content, hash);
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Ignoring local copy of " + name + ": " + e.getMessage());
+            delete(path);
+            return null;
+        }
+    }
+
+    // Remembers the server's text at the given revision; written a little later
+    void put(String name, long epoch, long revision, String content) {
+        pending.put(name, new Replica(name, epoch, revision, content, null));
+        if (writeScheduled.compareAndSet(false, true)) {
+            writer.schedule(this::writePending, WRITE_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    synchronized void remove(String name) {
+        pending.remove(name);
+        delete(fileFor(name));
+    }
+
+    // Writes what is still pending now, e.g. before the client closes
+    void flush() {
+        writePending();
+    }
+
+    private synchronized void writePending() {
+        writeScheduled.set(false);
+        boolean wrote = false;
+        for (String name : new ArrayList<>(pending.keySet())) {
+            Replica replica = pending.remove(name);
+            if (replica != null) {
+                wrote |= write(replica);
+            }
+        }
+        if (wrote) {
+            evict();
+        }
+    }
+
+    private boolean write(Replica replica) {
+        Path target = fileFor(replica.name);
+        Path temp = target.resolveSibling(target.getFileName() + ".tmp");
+        try {
+            Files.createDirectories(directory);
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(FORMAT_VERSION);
+                out.writeLong(replica.epoch);
+                out.writeLong(replica.revision);
+                writeString(out, replica.getHash());
+                writeString(out, replica.name);
+                writeString(out, replica.content);
+            }
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            return true;
+        } catch (IOException e) {
+            System.err.println("Error saving local copy of " + replica.name + ": " + e.getMessage());
+            delete(temp);
+            return false;
+        }
+    }
+
+    // Deletes the least recently used copies until the rest fit in the limit
+    private void evict() {
+        List<Path> files = new ArrayList<>();
+        long total = 0;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+            for (Path file : stream) {
+                files.add(file);
+                total += Files.size(file);
+            }
+        } catch (IOException e) {
+            System.err.println("Error listing local copies: " + e.getMessage());
+            return;
+        }
+        if (total <= maxBytes) {
+            return;
+        }
+
+        Map<Path, Long> lastUsed = new HashMap<>();
+        for (Path file : files) {
+            try {
+                lastUsed.put(file, Files.getLastModifiedTime(file).toMillis());
+            } catch (IOException e) {
+                lastUsed.put(file, 0L);
+            }
+        }
+        files.sort(Comparator.comparing(lastUsed::get));
+        for (Path file : files) {
+            if (total <= maxBytes) {
+                break;
+            }
+            try {
+                long size = Files.size(file);
+                Files.deleteIfExists(file);
+                total -= size;
+            } catch (IOException e) {
+                System.err.println("Error evicting local copy " + file.getFileName() + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private Path fileFor(String name) {
+        return directory.resolve(ContentHash.of(name) + SUFFIX);
+    }
+
+    private static void delete(Path path) {
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            System.err.println("Error deleting " + path.getFileName() + ": " + e.getMessage());
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,260 @@
+package src;
+
+import src.model.TextEdit;
+import src.util.WireCodec;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.LongFunction;
+
+/**
+ * The leader's side of a hot standby (see Standby): streams every edit to
+ * the standby server as it is applied, so a crash loses no edits that
+ * haven't reached the database yet.
+ *
+ * The standby logs in as a node and sends REPLICATE:host:port with the
+ * address clients should use once it takes over. It is sent REPL_START,
+ * then for each document the first time it changes (and right away for
+ * any with unsaved edits) REPL_STATE:seq followed by the document's
+ * handoff frames, then REPL_EDIT:seq:epoch:revision:offset:removed:document:text
+ * for each edit after that, REPL_SAVED:seq:document when one has been
+ * saved with no edits since, and REPL_DROP:seq:document when one is
+ * deleted. After REPL_SAVED the document's state is sent again on its
+ * next edit. REPL_HEARTBEAT:seq goes out every HEARTBEAT_MILLIS so the
+ * standby can tell a quiet leader from a dead one. The standby answers
+ * with REPL_ACK:seq once it has applied everything up to seq.
+ *
+ * Asynchronous by default: a client's edit is acknowledged as soon as the
+ * leader has applied it. With -Dcollab.replication=sync the ACK waits for
+ * the standby, so an acknowledged edit survives the leader dying. A
+ * standby that doesn't answer within SYNC_TIMEOUT_MILLIS is not waited for
+ * any longer than that, so a stuck standby can't stop editing.
+ */
+class Replicator {
+    static final long HEARTBEAT_MILLIS = 500;
+    // Longest an ACK waits for the standby in sync mode (-Dcollab.syncTimeoutMillis)
+    private static final long SYNC_TIMEOUT_MILLIS = Long.getLong("collab.syncTimeoutMillis", 2000);
+    // Lines per write before the next batch
+    private static final int MAX_BATCH = 256;
+
+    private final boolean synchronous;
+    private volatile Follower follower = null;
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "replication");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // The standby's connection, its stream and how far it has confirmed
+    private final class Follower {
+        final ClientHandler connection;
+        final ClusterRing.Node address;
+        // Documents whose state it has been sent; only edits follow for these
+        final Set<String> replicated = ConcurrentHashMap.newKeySet();
+        final Queue<String> queue = new ConcurrentLinkedQueue<>();
+        final AtomicBoolean scheduled = new AtomicBoolean(false);
+        // Guarded by this, so sequence numbers follow queue order
+        private long sequence = 0;
+        volatile long acknowledged = 0;
+        // Sync mode: what to run once each sequence number is acknowledged, with when it started waiting
+        final ConcurrentSkipListMap<Long, Waiting> waiting = new ConcurrentSkipListMap<>();
+        boolean lagReported = false;
+
+        Follower(ClientHandler connection, ClusterRing.Node address) {
+            this.connection = connection;
+            this.address = address;
+        }
+
+        // Queues the frame built for its sequence number and returns the number
+        synchronized long enqueue(LongFunction<String> frame) {
+            long seq = ++sequence;
+            queue.add(frame.apply(seq));
+            if (scheduled.compareAndSet(false, true)) {
+                executor.execute(this::drain);
+            }
+            return seq;
+        }
+
+        synchronized long lastSequence() {
+            return sequence;
+        }
+
+        private void drain() {
+            List<String> batch = new ArrayList<>();
+            String line;
+            while (batch.size() < MAX_BATCH && (line = queue.poll()) != null) {
+                batch.add(line);
+            }
+            if (!batch.isEmpty()) {
+                connection.sendBatch(batch);
+            }
+            scheduled.set(false);
+            if (!queue.isEmpty() && scheduled.compareAndSet(false, true)) {
+                executor.execute(this::drain);
+            }
+        }
+
+        void release(long upTo) {
+            Map.Entry<Long, Waiting> entry;
+            while ((entry = waiting.firstEntry()) != null && entry.getKey() <= upTo) {
+                if (waiting.remove(entry.getKey()) != null) {
+                    entry.getValue().action.run();
+                }
+            }
+        }
+    }
+
+    private static final class Waiting {
+        final Runnable action;
+        final long since = System.nanoTime();
+
+        Waiting(Runnable action) {
+            this.action = action;
+        }
+    }
+
+    Replicator(boolean synchronous) {
+        this.synchronous = synchronous;
+        executor.scheduleAtFixedRate(this::heartbeat, HEARTBEAT_MILLIS, HEARTBEAT_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    // Address clients should fail over to, or null without a standby
+    ClusterRing.Node getStandby() {
+        Follower current = follower;
+        return current != null ? current.address : null;
+    }
+
+    /**
+     * Starts streaming to a standby, replacing any previous one. The
+     * caller then has replicate() run on each document with unsaved edits,
+     * on its actor.
+     */
+    void attach(ClientHandler connection, ClusterRing.Node address) {
+        Follower previous = follower;
+        Follower attached = new Follower(connection, address);
+        attached.enqueue(seq -> "REPL_START:" + seq);
+        follower = attached;
+        if (previous != null) {
+            previous.release(Long.MAX_VALUE);
+        }
+        System.out.println("Standby " + address + " attached, " + (synchronous ? "synchronous" : "asynchronous") + " replication");
+    }
+
+    void detach(ClientHandler connection) {
+        Follower current = follower;
+        if (current != null && current.connection == connection) {
+            follower = null;
+            current.release(Long.MAX_VALUE);
+            System.err.println("Standby " + current.address + " detached; edits are no longer replicated");
+        }
+    }
+
+    // REPL_ACK from the standby
+    void acknowledged(ClientHandler connection, long sequence) {
+        Follower current = follower;
+        if (current != null && current.connection == connection) {
+            current.acknowledged = Math.max(current.acknowledged, sequence);
+            current.lagReported = false;
+            current.release(sequence);
+        }
+    }
+
+    // Sends the document's state if the standby doesn't have it yet; runs on the document's actor
+    void replicate(CachedDocument document) {
+        Follower current = follower;
+        if (current != null) {
+            sendState(current, document);
+        }
+    }
+
+    /**
+     * An edit just applied to the document, on its actor. onDurable runs
+     * once the edit counts as kept: right away when asynchronous or without
+     * a standby, otherwise when the standby acknowledges it.
+     */
+    void edited(CachedDocument document, TextEdit edit, long revision, Runnable onDurable) {
+        Follower current = follower;
+        if (current == null) {
+            onDurable.run();
+            return;
+        }
+        long seq = sendState(current, document);
+        if (seq < 0) {
+            String name = WireCodec.escapeField(document.getName());
+            String text = WireCodec.escape(edit.getText());
+            seq = current.enqueue(s -> "REPL_EDIT:" + s + ":" + document.getEpoch() + ":" + revision + ":" + edit.getOffset() + ":" +
+                                       edit.getRemovedLength() + ":" + name + ":" + text);
+        }
+        if (!synchronous) {
+            onDurable.run();
+            return;
+        }
+        current.waiting.put(seq, new Waiting(onDurable));
+        // Acknowledged before it was registered, or detached meanwhile
+        if (follower != current) {
+            current.release(Long.MAX_VALUE);
+        } else if (current.acknowledged >= seq) {
+            current.release(seq);
+        }
+    }
+
+    // Saved with no edits since, on the document's actor: the standby can let its copy go
+    void saved(String documentName) {
+        Follower current = follower;
+        if (current != null && current.replicated.remove(documentName)) {
+            current.enqueue(seq -> "REPL_SAVED:" + seq + ":" + WireCodec.escapeField(documentName));
+        }
+    }
+
+    void dropped(String documentName) {
+        Follower current = follower;
+        if (current != null) {
+            current.replicated.remove(documentName);
+            current.enqueue(seq -> "REPL_DROP:" + seq + ":" + WireCodec.escapeField(documentName));
+        }
+    }
+
+    // REPL_STATE with the document as it is now, which includes the edit just applied; -1 if already sent
+    private long sendState(Follower current, CachedDocument document) {
+        if (!current.replicated.add(document.getName())) {
+            return -1;
+        }
+        StringWriter buffer = new StringWriter();
+        try (PrintWriter writer = new PrintWriter(buffer)) {
+            DocumentHandoff.of(document).write(writer);
+        }
+        // Several lines as one entry, without the last line break, which the writer adds
+        String frames = buffer.toString();
+        String state = frames.substring(0, frames.length() - System.lineSeparator().length());
+        return current.enqueue(seq -> "REPL_STATE:" + seq + "\n" + state);
+    }
+
+    private void heartbeat() {
+        Follower current = follower;
+        if (current == null) {
+            return;
+        }
+        current.enqueue(seq -> "REPL_HEARTBEAT:" + seq);
+        Map.Entry<Long, Waiting> oldest = current.waiting.firstEntry();
+        if (oldest != null && System.nanoTime() - oldest.getValue().since > SYNC_TIMEOUT_MILLIS * 1_000_000) {
+            if (!current.lagReported) {
+                System.err.println("Standby " + current.address + " has not acknowledged for " + SYNC_TIMEOUT_MILLIS +
+                                   " ms; acknowledging edits without it");
+                current.lagReported = true;
+            }
+            current.release(current.lastSequence());
+        }
+    }
+}
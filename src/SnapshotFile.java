@@ -0,0 +1,256 @@
+package src;
+
+import src.model.TextRope;
+import src.util.WireCodec;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Per-document snapshot stored in the wire encoding: the escaped UTF-8
+ * text cut into the same bounded chunks DOC_CHUNK frames carry. A join
+ * sends the chunks straight from the page cache to the socket with
+ * FileChannel.transferTo instead of encoding the document again.
+ *
+ * Layout: header (magic, format version, char length, content hash), the
+ * chunk data, the chunk offsets and a trailer (chunk count, magic). Each
+ * document has one file named after a hash of its name; a new snapshot is
+ * written to a temporary file and moved over it.
+ *
+ * The channel stays open while the snapshot is in use. Joins acquire it
+ * for the duration of a transfer and it is closed once it has been retired
+ * and the last transfer has released it.
+ */
+class SnapshotFile {
+    private static final int MAGIC = 0x434E5346; // "CNSF"
+    private static final int FORMAT_VERSION = 1;
+    private static final int HEADER_BYTES = 4 + 4 + 4 + 8;
+    private static final int TRAILER_BYTES = 4 + 4;
+    private static final long HASH_SEED = 1125899906842597L;
+
+    private final FileChannel channel;
+    private final int length;
+    private final long contentHash;
+    // Absolute file positions, one more than the number of chunks
+    private final long[] chunkOffsets;
+
+    private int users = 0;
+    private boolean retired = false;
+
+    private SnapshotFile(FileChannel channel, int length, long contentHash, long[] chunkOffsets) {
+        this.channel = channel;
+        this.length = length;
+        this.contentHash = contentHash;
+        this.chunkOffsets = chunkOffsets;
+    }
+
+    public static SnapshotFile write(Path directory, String name, TextRope content, int chunkChars) throws IOException {
+        Files.createDirectories(directory);
+        Path target = fileFor(directory, name);
+        Path temp = target.resolveSibling(target.getFileName() + ".tmp");
+
+        long hash = HASH_SEED;
+        int chunkCount = 0;
+        long[] offsets = new long[content.length() / Math.max(1, chunkChars - 1) + 2];
+        try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                                StandardOpenOption.TRUNCATE_EXISTING)) {
+            long position = HEADER_BYTES;
+            int offset = 0;
+            offsets[0] = position;
+            while (offset < content.length()) {
+                int end = Math.min(offset + chunkChars, content.length());
+                // Same rule as streamed chunks: never split a surrogate pair
+                if (end < content.length() && end - 1 > offset && Character.isHighSurrogate(content.charAt(end - 1))) {
+                    end--;
+                }
+                String chunk = content.substring(offset, end);
+                hash = hash(hash, chunk);
+                position += writeFully(out, ByteBuffer.wrap(WireCodec.escape(chunk).getBytes(StandardCharsets.UTF_8)), position);
+                offsets[++chunkCount] = position;
+                offset = end;
+            }
+
+            ByteBuffer index = ByteBuffer.allocate((chunkCount + 1) * 8 + TRAILER_BYTES);
+            for (int i = 0; i <= chunkCount; i++) {
+                index.putLong(offsets[i]);
+            }
+            index.putInt(chunkCount).putInt(MAGIC).flip();
+            writeFully(out, index, position);
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            header.putInt(MAGIC).putInt(FORMAT_VERSION).putInt(content.length()).putLong(hash).flip();
+            writeFully(out, header, 0);
+        }
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return open(directory, name);
+    }
+
+    // The snapshot on disk for the document, or null if there is none or it can't be read
+    public static SnapshotFile open(Path directory, String name) {
+        Path path = fileFor(directory, name);
+        if (!Files.exists(path)) {
+            return null;
+        }
+        FileChannel channel = null;
+        try {
+            channel = FileChannel.open(path, StandardOpenOption.READ);
+            long size = channel.size();
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            ByteBuffer trailer = ByteBuffer.allocate(TRAILER_BYTES);
+            if (size < HEADER_BYTES + 8 + TRAILER_BYTES
+                    || !readFully(channel, header, 0) || !readFully(channel, trailer, size - TRAILER_BYTES)) {
+                throw new IOException("Snapshot file too small");
+            }
+            header.flip();
+            trailer.flip();
+            if (header.getInt() != MAGIC || header.getInt() != FORMAT_VERSION) {
+                throw new IOException("Unrecognized snapshot file format");
+            }
+            int length = header.getInt();
+            long hash = header.getLong();
+            int chunkCount = trailer.getInt();
+            if (trailer.getInt() != MAGIC || chunkCount < 0) {
+                throw new IOException("Snapshot file is truncated");
+            }
+
+            ByteBuffer index = ByteBuffer.allocate((chunkCount + 1) * 8);
+            if (!readFully(channel, index, size - TRAILER_BYTES - index.capacity())) {
+                throw new IOException("Snapshot file is truncated");
+            }
+            index.flip();
+            long[] offsets = new long[chunkCount + 1];
+            for (int i = 0; i <= chunkCount; i++) {
+                offsets[i] = index.getLong();
+            }
+            return new SnapshotFile(channel, length, hash, offsets);
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Ignoring snapshot file for " + name + ": " + e.getMessage());
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                    // Nothing else to do with a broken file
+                }
+            }
+            return null;
+        }
+    }
+
+    // Removes a deleted document's file; a transfer still holding it open keeps its own handle
+    public static void delete(Path directory, String name) {
+        try {
+            Files.deleteIfExists(fileFor(directory, name));
+        } catch (IOException e) {
+            System.err.println("Error deleting snapshot file for " + name + ": " + e.getMessage());
+        }
+    }
+
+    // True if the file holds exactly this text
+    public boolean matches(TextRope content) {
+        if (content.length() != length) {
+            return false;
+        }
+        long hash = HASH_SEED;
+        for (String chunk : content) {
+            hash = hash(hash, chunk);
+        }
+        return hash == contentHash;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    public int getChunkCount() {
+        return chunkOffsets.length - 1;
+    }
+
+    // Sends one chunk's escaped bytes to the target without copying them through the heap; returns how many
+    public long transferChunk(int index, WritableByteChannel target) throws IOException {
+        long position = chunkOffsets[index];
+        long end = chunkOffsets[index + 1];
+        while (position < end) {
+            long sent = channel.transferTo(position, end - position, target);
+            if (sent <= 0) {
+                throw new IOException("Snapshot transfer stalled at " + position);
+            }
+            position += sent;
+        }
+        return end - chunkOffsets[index];
+    }
+
+    public synchronized boolean acquire() {
+        if (retired) {
+            return false;
+        }
+        users++;
+        return true;
+    }
+
+    public synchronized void release() {
+        users--;
+        if (retired && users == 0) {
+            close();
+        }
+    }
+
+    // No new transfers; the file is closed when the running ones finish
+    public synchronized void retire() {
+        retired = true;
+        if (users == 0) {
+            close();
+        }
+    }
+
+    private void close() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            System.err.println("Error closing snapshot file: " + e.getMessage());
+        }
+    }
+
+    private static long hash(long hash, String chunk) {
+        for (int i = 0; i < chunk.length(); i++) {
+            hash = 31 * hash + chunk.charAt(i);
+        }
+        return hash;
+    }
+
+    private static Path fileFor(Path directory, String name) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(name.getBytes(StandardCharsets.UTF_8));
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < 16; i++) {
+                sb.append(String.format("%02x", digest[i]));
+            }
+            return directory.resolve(sb.append(".snap").toString());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    private static int writeFully(FileChannel out, ByteBuffer buffer, long position) throws IOException {
+        int written = 0;
+        while (buffer.hasRemaining()) {
+            written += out.write(buffer, position + written);
+        }
+        return written;
+    }
+
+    private static boolean readFully(FileChannel in, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = in.read(buffer, position + buffer.position());
+            if (read < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,237 @@
+package src;
+
+import src.model.TextRope;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Binary image of the server's documents written on clean shutdown so the
+ * next start can serve without reading every document through JDBC.
+ *
+ * Layout: header (magic, format version, creation time), the UTF-8 content
+ * of every hot document back to back, an index of (name, offset, length)
+ * and a fixed size trailer pointing at the index. Only the index is read at
+ * startup; document content is mapped and decoded when first requested.
+ *
+ * Two image files are used alternately and a small pointer file names the
+ * valid one. The pointer is removed as soon as an image is opened, so after
+ * a crash the server falls back to a cold start.
+ */
+class SnapshotImage implements Closeable {
+    private static final int MAGIC = 0x434E5349; // "CNSI"
+    private static final int FORMAT_VERSION = 1;
+    private static final int TRAILER_BYTES = 8 + 4 + 4;
+    private static final String POINTER_FILE = "snapshot.current";
+    private static final String[] IMAGE_FILES = { "snapshot-a.img", "snapshot-b.img" };
+
+    // Content location inside the image; length is -1 for documents stored by name only
+    private static final class Entry {
+        final long offset;
+        final int length;
+
+        Entry(long offset, int length) {
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    private final String fileName;
+    private final FileChannel channel;
+    private final long createdAt;
+    private final Map<String, Entry> entries;
+
+    private SnapshotImage(String fileName, FileChannel channel, long createdAt, Map<String, Entry> entries) {
+        this.fileName = fileName;
+        this.channel = channel;
+        this.createdAt = createdAt;
+        this.entries = entries;
+    }
+
+    // Opens the image left by the last clean shutdown, or returns null for a cold start
+    public static SnapshotImage open(Path directory) {
+        Path pointer = directory.resolve(POINTER_FILE);
+        if (!Files.exists(pointer)) {
+            return null;
+        }
+        FileChannel channel = null;
+        try {
+            String fileName = new String(Files.readAllBytes(pointer), StandardCharsets.UTF_8).trim();
+            // Consumed: a crash from here on must not reuse this image
+            Files.delete(pointer);
+
+            channel = FileChannel.open(directory.resolve(fileName), StandardOpenOption.READ);
+            long size = channel.size();
+            if (size < 16 + TRAILER_BYTES) {
+                throw new IOException("Snapshot image too small");
+            }
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, 16);
+            if (header.getInt() != MAGIC || header.getInt() != FORMAT_VERSION) {
+                throw new IOException("Unrecognized snapshot image format");
+            }
+            long createdAt = header.getLong();
+
+            ByteBuffer trailer = channel.map(FileChannel.MapMode.READ_ONLY, size - TRAILER_BYTES, TRAILER_BYTES);
+            long indexOffset = trailer.getLong();
+            int count = trailer.getInt();
+            if (trailer.getInt() != MAGIC) {
+                throw new IOException("Snapshot image is truncated");
+            }
+
+            MappedByteBuffer index = channel.map(FileChannel.MapMode.READ_ONLY, indexOffset, size - TRAILER_BYTES - indexOffset);
+            Map<String, Entry> entries = new ConcurrentHashMap<>(count * 2);
+            for (int i = 0; i < count; i++) {
+                byte[] name = new byte[index.getShort() & 0xFFFF];
+                index.get(name);
+                entries.put(new String(name, StandardCharsets.UTF_8), new Entry(index.getLong(), index.getInt()));
+            }
+            return new SnapshotImage(fileName, channel, createdAt, entries);
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Ignoring snapshot image: " + e.getMessage());
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                    // Nothing else to do with a broken image
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Writes a new image next to the one currently in use (if any) and
+     * then points the pointer file at it.
+     */
+    public static void write(Path directory, long createdAt, Collection<String> names,
+                             Map<String, TextRope> contents, SnapshotImage current) throws IOException {
+        Files.createDirectories(directory);
+        String fileName = current != null && current.fileName.equals(IMAGE_FILES[0]) ? IMAGE_FILES[1] : IMAGE_FILES[0];
+        Path image = directory.resolve(fileName);
+
+        Map<String, Entry> index = new LinkedHashMap<>();
+        try (CountingOutputStream counter = new CountingOutputStream(
+                 new BufferedOutputStream(new FileOutputStream(image.toFile()), 1 << 16));
+             DataOutputStream data = new DataOutputStream(counter)) {
+            data.writeInt(MAGIC);
+            data.writeInt(FORMAT_VERSION);
+            data.writeLong(createdAt);
+
+            // The writer carries surrogate pairs split across rope chunks
+            Writer writer = new OutputStreamWriter(data, StandardCharsets.UTF_8);
+            for (Map.Entry<String, TextRope> document : contents.entrySet()) {
+                writer.flush();
+                long start = counter.count;
+                for (String chunk : document.getValue()) {
+                    writer.write(chunk);
+                }
+                writer.flush();
+                long length = counter.count - start;
+                if (length > Integer.MAX_VALUE) {
+                    continue;
+                }
+                index.put(document.getKey(), new Entry(start, (int) length));
+            }
+            for (String name : names) {
+                index.putIfAbsent(name, new Entry(-1, -1));
+            }
+
+            long indexOffset = counter.count;
+            int written = 0;
+            for (Map.Entry<String, Entry> entry : index.entrySet()) {
+                byte[] name = entry.getKey().getBytes(StandardCharsets.UTF_8);
+                if (name.length > 0xFFFF) {
+                    continue;
+                }
+                data.writeShort(name.length);
+                data.write(name);
+                data.writeLong(entry.getValue().offset);
+                data.writeInt(entry.getValue().length);
+                written++;
+            }
+            data.writeLong(indexOffset);
+            data.writeInt(written);
+            data.writeInt(MAGIC);
+        }
+
+        Path pointer = directory.resolve(POINTER_FILE);
+        Path temp = directory.resolve(POINTER_FILE + ".tmp");
+        Files.write(temp, fileName.getBytes(StandardCharsets.UTF_8));
+        Files.move(temp, pointer, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // Content stored in the image, or null if the image has no valid copy of it
+    public TextRope load(String name) {
+        Entry entry = entries.get(name);
+        if (entry == null || entry.length < 0) {
+            return null;
+        }
+        try {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, entry.offset, entry.length);
+            return TextRope.of(StandardCharsets.UTF_8.decode(buffer));
+        } catch (IOException e) {
+            System.err.println("Error reading " + name + " from snapshot image: " + e.getMessage());
+            entries.remove(name);
+            return null;
+        }
+    }
+
+    public boolean contains(String name) {
+        Entry entry = entries.get(name);
+        return entry != null && entry.length >= 0;
+    }
+
+    // Drops documents whose database copy turned out to be newer than the image
+    public void invalidate(Collection<String> names) {
+        for (String name : names) {
+            entries.remove(name);
+        }
+    }
+
+    public void invalidate(String name) {
+        entries.remove(name);
+    }
+
+    public Set<String> getDocumentNames() {
+        return Collections.unmodifiableSet(entries.keySet());
+    }
+
+    public long getCreatedAt() {
+        return createdAt;
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private static final class CountingOutputStream extends FilterOutputStream {
+        long count;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+}
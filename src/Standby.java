@@ -0,0 +1,165 @@
+package src;
+
+import src.model.TextEdit;
+import src.util.WireCodec;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * A server started as a hot standby for another (-Dcollab.follow=host:port).
+ * It keeps a copy of every document with edits the leader hasn't saved,
+ * from the stream described in Replicator, and doesn't take clients. When
+ * the leader has been silent for the failover time, through a crash or a
+ * lost connection, the standby stops following and the server starts
+ * normally with those documents, at the same epochs and revisions. Clients
+ * that were on the leader reconnect here (see CollabClient) and catch up
+ * from the revision they had.
+ *
+ * A standby started before its leader waits for it rather than taking
+ * over. Two servers that can't see each other but are both up would each
+ * be a leader, so this suits a pair on one host or one network; a leader
+ * coming back after a takeover should be started as the new leader's
+ * standby.
+ */
+class Standby {
+    private static final int CONNECT_TIMEOUT_MILLIS = 2000;
+    private static final long RETRY_MILLIS = 250;
+
+    private final ClusterRing.Node leader;
+    private final ClusterRing.Node self;
+    private final Supplier<String> sessionToken;
+    private final long failoverMillis;
+    // The leader's unsaved documents as of the last frame applied
+    private final Map<String, CachedDocument> documents = new LinkedHashMap<>();
+
+    // self is the address clients are told to use once this server takes over
+    Standby(ClusterRing.Node leader, ClusterRing.Node self, Supplier<String> sessionToken, long failoverMillis) {
+        this.leader = leader;
+        this.self = self;
+        this.sessionToken = sessionToken;
+        this.failoverMillis = failoverMillis;
+    }
+
+    /**
+     * Follows the leader until it has been silent for the failover time and
+     * returns the documents to take over, with their unsaved edits.
+     */
+    Collection<CachedDocument> follow() {
+        long lastHeard = -1;
+        boolean reported = false;
+        while (lastHeard < 0 || System.nanoTime() - lastHeard < failoverMillis * 1_000_000) {
+            try (Socket socket = new Socket()) {
+                socket.connect(new InetSocketAddress(leader.host, leader.port), CONNECT_TIMEOUT_MILLIS);
+                socket.setSoTimeout((int) failoverMillis);
+                PrintWriter out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+                out.println("RESUME:" + sessionToken.get());
+                out.println("REPLICATE:" + self.host + ":" + self.port);
+                out.flush();
+
+                String line;
+                while ((line = in.readLine()) != null) {
+                    long sequence = apply(line, in);
+                    if (sequence <= 0) {
+                        continue;
+                    }
+                    // Numbered frames only come once following; a leader that refuses isn't one to take over from
+                    lastHeard = System.nanoTime();
+                    reported = false;
+                    // One acknowledgement for whatever arrived together
+                    if (!in.ready()) {
+                        out.println("REPL_ACK:" + sequence);
+                        out.flush();
+                    }
+                }
+                System.err.println("Leader " + leader + " closed the replication connection");
+            } catch (IOException e) {
+                if (e instanceof SocketTimeoutException && lastHeard >= 0) {
+                    System.err.println("Leader " + leader + " silent for " + failoverMillis + " ms");
+                    break;
+                }
+                // Once per outage; before the first connection the leader may not have started yet.
+                // A timeout before anything numbered arrived is the same: there is nothing to take over yet.
+                if (!reported) {
+                    System.err.println("Cannot follow leader " + leader + ": " + e.getMessage());
+                    reported = true;
+                }
+            }
+            try {
+                Thread.sleep(RETRY_MILLIS);
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+        return documents.values();
+    }
+
+    // Applies one frame and returns its sequence number, or 0 for anything unnumbered
+    private long apply(String line, BufferedReader in) throws IOException {
+        if (line.startsWith("AUTH_FAIL:") || line.startsWith("REPL_FAILED:")) {
+            throw new IOException("refused: " + WireCodec.unescape(line.substring(line.indexOf(':') + 1)));
+        }
+        try {
+            if (line.startsWith("REPL_START:")) {
+                // The leader sends everything unsaved again; what is kept from before may be out of date
+                documents.clear();
+                System.out.println("Following leader " + leader);
+                return Long.parseLong(line.substring(11));
+            }
+            if (line.startsWith("REPL_HEARTBEAT:")) {
+                return Long.parseLong(line.substring(15));
+            }
+            if (line.startsWith("REPL_STATE:")) {
+                long sequence = Long.parseLong(line.substring(11));
+                String header = in.readLine();
+                DocumentHandoff state = header != null && header.startsWith("HANDOFF:") ? DocumentHandoff.read(header.substring(8), in) : null;
+                if (state == null) {
+                    throw new IOException("Malformed document state from leader");
+                }
+                documents.put(state.name, new CachedDocument(state.name, state.content, state.epoch, state.revision, true, state.history));
+                return sequence;
+            }
+            if (line.startsWith("REPL_EDIT:")) {
+                return applyEdit(line.substring(10));
+            }
+            if (line.startsWith("REPL_SAVED:") || line.startsWith("REPL_DROP:")) {
+                // Saved or deleted: the database has the last word on it
+                String[] parts = line.substring(line.indexOf(':') + 1).split(":", 2);
+                documents.remove(WireCodec.unescape(parts[1]));
+                return Long.parseLong(parts[0]);
+            }
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            throw new IOException("Malformed frame from leader: " + line);
+        }
+        return 0;
+    }
+
+    // seq:epoch:revision:offset:removed:document:text
+    private long applyEdit(String frame) {
+        String[] parts = frame.split(":", 6);
+        long sequence = Long.parseLong(parts[0]);
+        long epoch = Long.parseLong(parts[1]);
+        long revision = Long.parseLong(parts[2]);
+        int separator = WireCodec.indexOfField(parts[5], ':');
+        String name = WireCodec.unescape(parts[5].substring(0, separator));
+        TextEdit edit = new TextEdit(Integer.parseInt(parts[3]), Integer.parseInt(parts[4]),
+                                     WireCodec.unescape(parts[5].substring(separator + 1)));
+        CachedDocument document = documents.get(name);
+        if (document == null || document.getEpoch() != epoch || document.getRevision() != revision - 1) {
+            // The leader sends a document's state before its edits, so this is a bug, not a race
+            System.err.println("Replicated edit " + revision + " of " + name + " doesn't follow the copy here" +
+                               (document != null ? " (revision " + document.getRevision() + ")" : ""));
+            return sequence;
+        }
+        document.apply(edit);
+        return sequence;
+    }
+}
@@ -0,0 +1,93 @@
+package src;
+
+import src.model.TextEdit;
+
+/**
+ * A document the client follows in the background, on the same connection
+ * as the one being edited (see CollabClient.subscribe). Its frames arrive
+ * prefixed with @id: and are applied here to a copy of the server's text,
+ * the same way as for the current document but with no editor to update.
+ * Each confirmed revision goes into the replica cache, so opening the
+ * document later is a rejoin with little or nothing to catch up on.
+ *
+ * Touched only by the network thread once its subscription is answered.
+ */
+class SubscribedDocument {
+    final String name;
+    private String text;
+    private long epoch;
+    private long revision;
+    // Content received but not yet confirmed by its REV frame
+    private String unconfirmed = null;
+    private String streamId = null;
+    private StringBuilder stream = null;
+
+    // Starts from the local copy the subscription was asked for with, if any
+    SubscribedDocument(String name, ReplicaCache.Replica base) {
+        this.name = name;
+        this.text = base != null ? base.content : null;
+        this.epoch = base != null ? base.epoch : 0;
+        this.revision = base != null ? base.revision : -1;
+    }
+
+    // DOCUMENT or UPDATE: the whole text
+    void received(String content) {
+        streamId = null;
+        stream = null;
+        unconfirmed = content;
+    }
+
+    // DOC_BEGIN of the document's content
+    void streamBegin(String id, int length) {
+        streamId = id;
+        stream = new StringBuilder(length);
+    }
+
+    void streamChunk(String id, String chunk) {
+        if (id.equals(streamId)) {
+            stream.append(chunk);
+        }
+    }
+
+    void streamEnd(String id) {
+        if (id.equals(streamId)) {
+            unconfirmed = stream.toString();
+            streamId = null;
+            stream = null;
+        }
+    }
+
+    // After a streamed snapshot, catching up from the local copy, or a live edit
+    void patched(TextEdit edit) {
+        if (unconfirmed != null) {
+            unconfirmed = edit.applyTo(unconfirmed);
+        } else if (text != null) {
+            text = edit.applyTo(text);
+        }
+    }
+
+    // REV:epoch:revision; true if the copy is now the server's text at a revision worth keeping
+    boolean confirm(long newEpoch, long newRevision) {
+        if (newEpoch != epoch || newRevision >= revision) {
+            if (unconfirmed != null) {
+                text = unconfirmed;
+            }
+            epoch = newEpoch;
+            revision = newRevision;
+        }
+        unconfirmed = null;
+        return text != null && revision >= 0;
+    }
+
+    String getText() {
+        return text;
+    }
+
+    long getEpoch() {
+        return epoch;
+    }
+
+    long getRevision() {
+        return revision;
+    }
+}
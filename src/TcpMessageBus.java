@@ -0,0 +1,260 @@
+package src;
+
+import src.util.WireCodec;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * The bus between the nodes of a cluster. Every node keeps one connection
+ * to each other node, logged in as a node on the normal port, and tells it
+ * the topics it wants with BUS_SUB:topic and BUS_UNSUB:topic. A message
+ * published on a node goes to its own subscribers directly and to every
+ * peer that asked for the topic as BUS:topic:message on that peer's
+ * connection.
+ *
+ * Each subscribed connection has one outgoing queue. A writer takes
+ * whatever has piled up and writes it with a single flush, so a burst of
+ * edits goes out as one batch, and one queue per connection keeps each
+ * topic in publish order. Subscriptions go to every peer, not just a
+ * document's owner, so they still hold after the document moves. A link
+ * that drops reconnects and subscribes again; what was published in
+ * between is not replayed.
+ */
+class TcpMessageBus implements MessageBus {
+    private static final int CONNECT_TIMEOUT_MILLIS = 5000;
+    private static final long RETRY_MILLIS = 1000;
+    private static final long MAX_RETRY_MILLIS = 30_000;
+    // Lines per write before the next batch
+    private static final int MAX_BATCH = 256;
+
+    private final LocalMessageBus local = new LocalMessageBus();
+    private final Supplier<String> sessionToken;
+    private final List<PeerLink> links = new ArrayList<>();
+    // Peers' connections by the topics they subscribed to
+    private final Map<String, Set<RemoteSubscriber>> remoteSubscribers = new ConcurrentHashMap<>();
+    private final Map<ClientHandler, RemoteSubscriber> peerConnections = new ConcurrentHashMap<>();
+    private final ExecutorService writers = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "bus-writer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // sessionToken issues the "node:" session this node logs in to its peers with
+    TcpMessageBus(ClusterRing.Node self, List<ClusterRing.Node> members, Supplier<String> sessionToken) {
+        this.sessionToken = sessionToken;
+        for (ClusterRing.Node node : members) {
+            if (!node.equals(self)) {
+                links.add(new PeerLink(node));
+            }
+        }
+    }
+
+    @Override
+    public void publish(String topic, String message) {
+        local.publish(topic, message);
+        Set<RemoteSubscriber> subscribers = remoteSubscribers.get(topic);
+        if (subscribers != null && !subscribers.isEmpty()) {
+            String line = "BUS:" + WireCodec.escapeField(topic) + ":" + WireCodec.escape(message);
+            for (RemoteSubscriber subscriber : subscribers) {
+                subscriber.enqueue(line);
+            }
+        }
+    }
+
+    @Override
+    public synchronized void subscribe(String topic, Consumer<String> handler) {
+        boolean first = !local.hasSubscribers(topic);
+        local.subscribe(topic, handler);
+        if (first) {
+            for (PeerLink link : links) {
+                link.subscribe(topic);
+            }
+        }
+    }
+
+    @Override
+    public synchronized void unsubscribe(String topic, Consumer<String> handler) {
+        local.unsubscribe(topic, handler);
+        if (!local.hasSubscribers(topic)) {
+            for (PeerLink link : links) {
+                link.unsubscribe(topic);
+            }
+        }
+    }
+
+    @Override
+    public boolean hasSubscribers(String topic) {
+        if (local.hasSubscribers(topic)) {
+            return true;
+        }
+        Set<RemoteSubscriber> subscribers = remoteSubscribers.get(topic);
+        return subscribers != null && !subscribers.isEmpty();
+    }
+
+    // BUS_SUB from a peer's connection
+    void addRemoteSubscriber(String topic, ClientHandler connection) {
+        RemoteSubscriber subscriber = peerConnections.computeIfAbsent(connection, RemoteSubscriber::new);
+        remoteSubscribers.computeIfAbsent(topic, t -> ConcurrentHashMap.newKeySet()).add(subscriber);
+    }
+
+    // BUS_UNSUB from a peer's connection
+    void removeRemoteSubscriber(String topic, ClientHandler connection) {
+        RemoteSubscriber subscriber = peerConnections.get(connection);
+        Set<RemoteSubscriber> subscribers = remoteSubscribers.get(topic);
+        if (subscriber != null && subscribers != null) {
+            subscribers.remove(subscriber);
+        }
+    }
+
+    void connectionClosed(ClientHandler connection) {
+        RemoteSubscriber subscriber = peerConnections.remove(connection);
+        if (subscriber != null) {
+            for (Set<RemoteSubscriber> subscribers : remoteSubscribers.values()) {
+                subscribers.remove(subscriber);
+            }
+        }
+    }
+
+    // Outgoing queue of one peer's connection
+    private final class RemoteSubscriber {
+        final ClientHandler connection;
+        final Queue<String> queue = new ConcurrentLinkedQueue<>();
+        final AtomicBoolean scheduled = new AtomicBoolean(false);
+
+        RemoteSubscriber(ClientHandler connection) {
+            this.connection = connection;
+        }
+
+        void enqueue(String line) {
+            queue.add(line);
+            if (scheduled.compareAndSet(false, true)) {
+                writers.execute(this::drain);
+            }
+        }
+
+        private void drain() {
+            List<String> batch = new ArrayList<>();
+            String line;
+            while (batch.size() < MAX_BATCH && (line = queue.poll()) != null) {
+                batch.add(line);
+            }
+            if (!batch.isEmpty()) {
+                connection.sendBatch(batch);
+            }
+            scheduled.set(false);
+            if (!queue.isEmpty() && scheduled.compareAndSet(false, true)) {
+                writers.execute(this::drain);
+            }
+        }
+    }
+
+    // This node's connection to one peer: sends subscriptions, receives what the peer publishes on them
+    private final class PeerLink implements Runnable {
+        final ClusterRing.Node peer;
+        final Set<String> topics = ConcurrentHashMap.newKeySet();
+        // Guarded by this; null while not connected
+        private PrintWriter out = null;
+        private boolean started = false;
+
+        PeerLink(ClusterRing.Node peer) {
+            this.peer = peer;
+        }
+
+        // Connects on the first subscription; nodes that never subscribe to anything keep no links
+        synchronized void subscribe(String topic) {
+            topics.add(topic);
+            if (out != null) {
+                out.println("BUS_SUB:" + WireCodec.escape(topic));
+            }
+            if (!started) {
+                started = true;
+                Thread thread = new Thread(this, "bus-link-" + peer);
+                thread.setDaemon(true);
+                thread.start();
+            }
+        }
+
+        synchronized void unsubscribe(String topic) {
+            topics.remove(topic);
+            if (out != null) {
+                out.println("BUS_UNSUB:" + WireCodec.escape(topic));
+            }
+        }
+
+        @Override
+        public void run() {
+            long delay = RETRY_MILLIS;
+            boolean reported = false;
+            while (true) {
+                try (Socket socket = new Socket()) {
+                    socket.connect(new InetSocketAddress(peer.host, peer.port), CONNECT_TIMEOUT_MILLIS);
+                    PrintWriter writer = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), true);
+                    BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+                    writer.println("RESUME:" + sessionToken.get());
+                    String reply = in.readLine();
+                    if (reply == null || !reply.startsWith("AUTH_OK:")) {
+                        throw new IOException("not accepted: " + reply);
+                    }
+                    synchronized (this) {
+                        out = writer;
+                        for (String topic : topics) {
+                            out.println("BUS_SUB:" + WireCodec.escape(topic));
+                        }
+                    }
+                    System.out.println("Message bus connected to " + peer);
+                    delay = RETRY_MILLIS;
+                    reported = false;
+
+                    String line;
+                    while ((line = in.readLine()) != null) {
+                        if (line.startsWith("BUS:")) {
+                            deliver(line.substring(4));
+                        }
+                    }
+                    throw new IOException("connection closed");
+                } catch (IOException e) {
+                    // Once per outage; the peer may simply not have started yet
+                    if (!reported) {
+                        System.err.println("Message bus link to " + peer + " down: " + e.getMessage());
+                        reported = true;
+                    }
+                } finally {
+                    synchronized (this) {
+                        out = null;
+                    }
+                }
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                delay = Math.min(delay * 2, MAX_RETRY_MILLIS);
+            }
+        }
+
+        // topic:message from the peer, to this node's subscribers in the order received
+        private void deliver(String frame) {
+            int separator = WireCodec.indexOfField(frame, ':');
+            if (separator < 0) {
+                System.err.println("Invalid bus message from " + peer);
+                return;
+            }
+            local.publish(WireCodec.unescape(frame.substring(0, separator)), WireCodec.unescape(frame.substring(separator + 1)));
+        }
+    }
+}
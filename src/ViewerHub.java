@@ -0,0 +1,478 @@
+package src;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * Read-only viewers of documents, for audiences far larger than the people
+ * editing: live notes of a talk, a status page. Viewers connect to their
+ * own port and get the document and then its edits, and nothing else: they
+ * take no presence entry, are sent no cursors and cannot edit.
+ *
+ * A viewer costs a socket and a queue, not a thread. A few selector loops
+ * serve all of them with non-blocking writes, and each edit is encoded
+ * once into a frame whose bytes every viewer of the document is sent. The
+ * document comes from a DocumentMirror following the message bus, so any
+ * node of a cluster can serve viewers of any document without opening it
+ * or asking its owner for each edit. A viewer that stops reading builds up
+ * a queue; past MAX_PENDING_BYTES the queue is dropped and the viewer is
+ * sent the whole document again instead of the edits it missed.
+ *
+ * On the viewer port a client sends WATCH:token:document with the session
+ * token of a normal login. It gets WATCHING:document, then DOCUMENT:text
+ * and REV:epoch:revision once the document is at hand, then PATCH and REV
+ * for each edit. Another WATCH switches documents. A bad token gets
+ * WATCH_FAILED:reason and the connection is closed.
+ */
+class ViewerHub {
+    // Queued bytes a viewer may fall behind by before it is sent the whole document instead (-Dcollab.viewerQueueKb)
+    private static final int MAX_PENDING_BYTES = Integer.getInteger("collab.viewerQueueKb", 256) * 1024;
+    // Longest WATCH line accepted
+    private static final int MAX_LINE_BYTES = 4096;
+    private static final int ACCEPT_BACKLOG = 1024;
+    // Buffers per gathering write
+    private static final int MAX_GATHER = 64;
+
+    private final int port;
+    private final MessageBus bus;
+    private final Function<String, DocumentHandoff> source;
+    private final Loop[] loops;
+    private final AtomicInteger nextLoop = new AtomicInteger();
+    private final AtomicInteger viewerCount = new AtomicInteger();
+    // Mirrors of the documents anyone is watching, with how many are; guarded by itself
+    private final Map<String, Mirrored> mirrors = new HashMap<>();
+    private final ScheduledExecutorService fetcher = Executors.newScheduledThreadPool(2, r -> {
+        Thread thread = new Thread(r, "mirror-fetch");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private static final class Mirrored {
+        final DocumentMirror mirror;
+        int viewers = 0;
+        // On the message bus; guarded by this, and changed only by updateSubscription
+        boolean subscribed = false;
+
+        Mirrored(DocumentMirror mirror) {
+            this.mirror = mirror;
+        }
+    }
+
+    // One connection; touched only by its loop's thread
+    private static final class Viewer {
+        final SocketChannel channel;
+        SelectionKey key;
+        // Start of a line the last read cut off, usually null
+        byte[] partial = null;
+        final ArrayDeque<ByteBuffer> pending = new ArrayDeque<>();
+        long pendingBytes = 0;
+        DocumentMirror mirror = null;
+        // Sequence of the last frame queued, see DocumentMirror.Frame
+        long sequence = 0;
+        // Has frames to write at the end of this pass of the loop
+        boolean dirty = false;
+
+        Viewer(SocketChannel channel) {
+            this.channel = channel;
+        }
+    }
+
+    // source gives a document's current state, for mirrors to start from (see CollabServer.documentState)
+    ViewerHub(int port, MessageBus bus, Function<String, DocumentHandoff> source) throws IOException {
+        this.port = port;
+        this.bus = bus;
+        this.source = source;
+        this.loops = new Loop[Runtime.getRuntime().availableProcessors()];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new Loop();
+        }
+    }
+
+    void start() throws IOException {
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(port), ACCEPT_BACKLOG);
+        server.configureBlocking(false);
+        server.register(loops[0].selector, SelectionKey.OP_ACCEPT, server);
+        for (int i = 0; i < loops.length; i++) {
+            Thread thread = new Thread(loops[i], "viewer-loop-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        System.out.println("Viewers can watch documents on port " + port + " (" + loops.length + " loops)");
+    }
+
+    int getViewerCount() {
+        return viewerCount.get();
+    }
+
+    // Called on a loop thread, so subscribing, which can write to other nodes, is left to the fetcher
+    private DocumentMirror acquire(String documentName) {
+        synchronized (mirrors) {
+            Mirrored mirrored = mirrors.get(documentName);
+            if (mirrored == null) {
+                mirrored = new Mirrored(new DocumentMirror(documentName, source, fetcher, this::broadcast));
+                mirrors.put(documentName, mirrored);
+                Mirrored added = mirrored;
+                fetcher.execute(() -> updateSubscription(added));
+            }
+            mirrored.viewers++;
+            return mirrored.mirror;
+        }
+    }
+
+    // The last viewer gone drops the mirror and, on the fetcher, its subscription
+    private void release(DocumentMirror mirror) {
+        synchronized (mirrors) {
+            Mirrored mirrored = mirrors.get(mirror.getName());
+            if (mirrored != null && mirrored.mirror == mirror && --mirrored.viewers == 0) {
+                mirrors.remove(mirror.getName());
+                mirror.close();
+                fetcher.execute(() -> updateSubscription(mirrored));
+            }
+        }
+    }
+
+    /**
+     * Subscribes the mirror while it is in use and unsubscribes it once it
+     * has been dropped. The tasks for one mirror may run in either order,
+     * so each brings the subscription to whatever the mirror's state is by
+     * then. The mirror starts fetching only once it is subscribed, so no
+     * edit after the state it fetches is missed.
+     */
+    private void updateSubscription(Mirrored mirrored) {
+        synchronized (mirrored) {
+            boolean used;
+            synchronized (mirrors) {
+                used = mirrors.get(mirrored.mirror.getName()) == mirrored;
+            }
+            String topic = MessageBus.documentTopic(mirrored.mirror.getName());
+            if (used && !mirrored.subscribed) {
+                bus.subscribe(topic, mirrored.mirror);
+                mirrored.subscribed = true;
+                mirrored.mirror.start();
+            } else if (!used && mirrored.subscribed) {
+                bus.unsubscribe(topic, mirrored.mirror);
+                mirrored.subscribed = false;
+            }
+        }
+    }
+
+    // From the mirror, under its lock: every loop gets the frame in the order the mirror made them
+    private void broadcast(DocumentMirror mirror, DocumentMirror.Frame frame) {
+        for (Loop loop : loops) {
+            loop.post(() -> loop.deliver(mirror, frame));
+        }
+    }
+
+    private final class Loop implements Runnable {
+        final Selector selector;
+        final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        final AtomicBoolean wakeupPending = new AtomicBoolean(false);
+        // Loop thread only
+        final Map<DocumentMirror, Set<Viewer>> watchers = new HashMap<>();
+        final ByteBuffer readBuffer = ByteBuffer.allocate(MAX_LINE_BYTES);
+        final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+        // Viewers given frames during this pass; each gets one write for all of them
+        final List<Viewer> dirty = new ArrayList<>();
+
+        Loop() throws IOException {
+            selector = Selector.open();
+        }
+
+        // Runs the task on this loop's thread; one wakeup covers however many are posted before it runs
+        void post(Runnable task) {
+            tasks.add(task);
+            if (wakeupPending.compareAndSet(false, true)) {
+                selector.wakeup();
+            }
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    selector.select();
+                } catch (IOException e) {
+                    System.err.println("Viewer loop error: " + e.getMessage());
+                    return;
+                }
+                wakeupPending.set(false);
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    try {
+                        task.run();
+                    } catch (RuntimeException e) {
+                        System.err.println("Error serving viewers: " + e.getMessage());
+                    }
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept((ServerSocketChannel) key.attachment());
+                        continue;
+                    }
+                    Viewer viewer = (Viewer) key.attachment();
+                    if (key.isReadable()) {
+                        read(viewer);
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        flush(viewer);
+                    }
+                }
+                flushDirty();
+            }
+        }
+
+        // New connections go round the loops
+        private void accept(ServerSocketChannel server) {
+            try {
+                SocketChannel channel;
+                while ((channel = server.accept()) != null) {
+                    channel.configureBlocking(false);
+                    channel.socket().setTcpNoDelay(true);
+                    Loop loop = loops[Math.floorMod(nextLoop.getAndIncrement(), loops.length)];
+                    SocketChannel accepted = channel;
+                    loop.post(() -> loop.register(accepted));
+                }
+            } catch (IOException e) {
+                System.err.println("Error accepting viewer: " + e.getMessage());
+            }
+        }
+
+        private void register(SocketChannel channel) {
+            Viewer viewer = new Viewer(channel);
+            try {
+                viewer.key = channel.register(selector, SelectionKey.OP_READ, viewer);
+                viewerCount.incrementAndGet();
+            } catch (ClosedChannelException e) {
+                // Gone before it was registered
+            }
+        }
+
+        private void read(Viewer viewer) {
+            readBuffer.clear();
+            int count;
+            try {
+                count = viewer.channel.read(readBuffer);
+            } catch (IOException e) {
+                count = -1;
+            }
+            if (count < 0) {
+                close(viewer);
+                return;
+            }
+
+            byte[] data = readBuffer.array();
+            int length = readBuffer.position();
+            if (viewer.partial != null) {
+                byte[] joined = new byte[viewer.partial.length + length];
+                System.arraycopy(viewer.partial, 0, joined, 0, viewer.partial.length);
+                System.arraycopy(data, 0, joined, viewer.partial.length, length);
+                data = joined;
+                length = joined.length;
+                viewer.partial = null;
+            }
+            int start = 0;
+            for (int i = 0; i < length && viewer.key.isValid(); i++) {
+                if (data[i] == '\n') {
+                    int end = i > start && data[i - 1] == '\r' ? i - 1 : i;
+                    handleLine(viewer, new String(data, start, end - start, StandardCharsets.UTF_8));
+                    start = i + 1;
+                }
+            }
+            if (start < length && viewer.key.isValid()) {
+                if (length - start > MAX_LINE_BYTES) {
+                    close(viewer);
+                    return;
+                }
+                viewer.partial = new byte[length - start];
+                System.arraycopy(data, start, viewer.partial, 0, length - start);
+            }
+        }
+
+        // WATCH:token:document; anything else a viewer sends is ignored
+        private void handleLine(Viewer viewer, String line) {
+            if (!line.startsWith("WATCH:")) {
+                return;
+            }
+            int separator = line.indexOf(':', 6);
+            String user = separator > 0 ? CollabServer.resumeSession(line.substring(6, separator)) : null;
+            if (user == null) {
+                enqueue(viewer, ("WATCH_FAILED:" + (separator > 0 ? "Session expired, please log in again" : "Malformed watch") + "\n")
+                    .getBytes(StandardCharsets.UTF_8));
+                flush(viewer);
+                close(viewer);
+                return;
+            }
+
+            String documentName = line.substring(separator + 1);
+            if (viewer.mirror != null) {
+                unwatch(viewer);
+            }
+            DocumentMirror mirror = acquire(documentName);
+            viewer.mirror = mirror;
+            watchers.computeIfAbsent(mirror, m -> new HashSet<>()).add(viewer);
+            enqueue(viewer, ("WATCHING:" + documentName + "\n").getBytes(StandardCharsets.UTF_8));
+            // Not loaded yet: the document follows as the mirror's first frame
+            DocumentMirror.Frame snapshot = mirror.snapshot();
+            if (snapshot != null) {
+                send(viewer, snapshot);
+            }
+            markDirty(viewer);
+        }
+
+        private void unwatch(Viewer viewer) {
+            Set<Viewer> viewers = watchers.get(viewer.mirror);
+            if (viewers != null) {
+                viewers.remove(viewer);
+                if (viewers.isEmpty()) {
+                    watchers.remove(viewer.mirror);
+                }
+            }
+            release(viewer.mirror);
+            viewer.mirror = null;
+            viewer.sequence = 0;
+            dropPending(viewer);
+        }
+
+        // A frame from a mirror to every viewer of it on this loop
+        void deliver(DocumentMirror mirror, DocumentMirror.Frame frame) {
+            Set<Viewer> viewers = watchers.get(mirror);
+            if (viewers == null) {
+                return;
+            }
+            for (Viewer viewer : viewers) {
+                send(viewer, frame);
+                markDirty(viewer);
+            }
+        }
+
+        // Frames that piled up while the loop was busy go out together, so under load a viewer costs
+        // one write per pass rather than one per edit
+        private void markDirty(Viewer viewer) {
+            if (!viewer.dirty) {
+                viewer.dirty = true;
+                dirty.add(viewer);
+            }
+        }
+
+        private void flushDirty() {
+            for (Viewer viewer : dirty) {
+                viewer.dirty = false;
+                flush(viewer);
+            }
+            dirty.clear();
+        }
+
+        private void send(Viewer viewer, DocumentMirror.Frame frame) {
+            // Already covered by the document the viewer was given when it started watching
+            if (frame.sequence <= viewer.sequence) {
+                return;
+            }
+            if (frame.reset) {
+                dropPending(viewer);
+            } else if (viewer.pendingBytes + frame.bytes.length > MAX_PENDING_BYTES) {
+                // Too far behind: the whole document replaces the edits it hasn't read
+                dropPending(viewer);
+                frame = viewer.mirror.snapshot();
+            }
+            viewer.sequence = frame.sequence;
+            enqueue(viewer, frame.bytes);
+        }
+
+        // Shares the frame's bytes; each viewer only has its own position in them
+        private void enqueue(Viewer viewer, byte[] bytes) {
+            viewer.pending.add(ByteBuffer.wrap(bytes));
+            viewer.pendingBytes += bytes.length;
+        }
+
+        // Keeps a frame that is partly written, so the stream stays whole lines
+        private void dropPending(Viewer viewer) {
+            ByteBuffer head = viewer.pending.peekFirst();
+            viewer.pending.clear();
+            viewer.pendingBytes = 0;
+            if (head != null && head.position() > 0) {
+                viewer.pending.add(head);
+                viewer.pendingBytes = head.remaining();
+            }
+        }
+
+        // Writes as much as the socket takes now and waits for it to drain before writing the rest
+        private void flush(Viewer viewer) {
+            if (!viewer.key.isValid()) {
+                return;
+            }
+            try {
+                while (!viewer.pending.isEmpty()) {
+                    int count = 0;
+                    for (ByteBuffer buffer : viewer.pending) {
+                        gather[count++] = buffer;
+                        if (count == MAX_GATHER) {
+                            break;
+                        }
+                    }
+                    long written = viewer.channel.write(gather, 0, count);
+                    viewer.pendingBytes -= written;
+                    while (!viewer.pending.isEmpty() && !viewer.pending.peekFirst().hasRemaining()) {
+                        viewer.pending.pollFirst();
+                    }
+                    // The socket is full; OP_WRITE says when it has room
+                    if (gather[count - 1].hasRemaining()) {
+                        break;
+                    }
+                }
+            } catch (IOException e) {
+                close(viewer);
+                return;
+            }
+            int interest = viewer.pending.isEmpty() ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE;
+            if (viewer.key.interestOps() != interest) {
+                viewer.key.interestOps(interest);
+            }
+        }
+
+        private void close(Viewer viewer) {
+            if (!viewer.key.isValid()) {
+                return;
+            }
+            viewer.key.cancel();
+            try {
+                viewer.channel.close();
+            } catch (IOException e) {
+                // Nothing more to send it
+            }
+            if (viewer.mirror != null) {
+                unwatch(viewer);
+            }
+            viewerCount.decrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package src.model;
+
+/**
+ * A single replace operation: remove 'removedLength' characters at
+ * 'offset' and insert 'text' in their place.
+ */
+public class TextEdit {
+    private final int offset;
+    private final int removedLength;
+    private final String text;
+
+    public TextEdit(int offset, int removedLength, String text) {
+        this.offset = offset;
+        this.removedLength = removedLength;
+        this.text = text == null ? "" : text;
+    }
+
+    // Smallest edit turning 'before' into 'after', found by trimming the common prefix and suffix
+    public static TextEdit between(TextRope before, String after) {
+        int prefix = before.commonPrefixLength(after);
+        int suffix = before.commonSuffixLength(after, prefix);
+        return new TextEdit(prefix,
+                            before.length() - prefix - suffix,
+                            after.substring(prefix, after.length() - suffix));
+    }
+
+    // Same as between(TextRope, String) for two plain strings
+    public static TextEdit between(String before, String after) {
+        int limit = Math.min(before.length(), after.length());
+        int prefix = 0;
+        while (prefix < limit && before.charAt(prefix) == after.charAt(prefix)) {
+            prefix++;
+        }
+        int suffix = 0;
+        while (suffix < limit - prefix
+               && before.charAt(before.length() - 1 - suffix) == after.charAt(after.length() - 1 - suffix)) {
+            suffix++;
+        }
+        return new TextEdit(prefix,
+                            before.length() - prefix - suffix,
+                            after.substring(prefix, after.length() - suffix));
+    }
+
+    public TextRope applyTo(TextRope rope) {
+        return rope.replace(offset, removedLength, text);
+    }
+
+    public String applyTo(String target) {
+        return target.substring(0, offset) + text + target.substring(offset + removedLength);
+    }
+
+    public boolean isEmpty() {
+        return removedLength == 0 && text.isEmpty();
+    }
+
+    public int getOffset() {
+        return offset;
+    }
+
+    public int getRemovedLength() {
+        return removedLength;
+    }
+
+    public String getText() {
+        return text;
+    }
+
+    @Override
+    public String toString() {
+        return "TextEdit[offset=" + offset + ", removed=" + removedLength + ", inserted=" + text.length() + "]";
+    }
+}
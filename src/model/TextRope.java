@@ -0,0 +1,349 @@
+package src.model;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Immutable text buffer stored as a balanced tree of string chunks.
+ * Insert and delete rebuild only the path to the edit point, so they cost
+ * O(log n) instead of copying the whole text, and every instance is a
+ * snapshot that can be shared freely between threads.
+ */
+public final class TextRope implements CharSequence, Iterable<String> {
+    // Leaves are merged up to this size so single character edits stay compact
+    static final int MAX_LEAF = 1024;
+
+    public static final TextRope EMPTY = new TextRope(new Leaf(""));
+
+    private abstract static class Node {
+        final int length;
+        final int depth;
+
+        Node(int length, int depth) {
+            this.length = length;
+            this.depth = depth;
+        }
+
+        abstract char charAt(int index);
+
+        abstract void getChars(int start, int end, char[] dst, int dstBegin);
+    }
+
+    private static final class Leaf extends Node {
+        final String text;
+
+        Leaf(String text) {
+            super(text.length(), 0);
+            this.text = text;
+        }
+
+        @Override
+        char charAt(int index) {
+            return text.charAt(index);
+        }
+
+        @Override
+        void getChars(int start, int end, char[] dst, int dstBegin) {
+            text.getChars(start, end, dst, dstBegin);
+        }
+    }
+
+    private static final class Branch extends Node {
+        final Node left;
+        final Node right;
+
+        Branch(Node left, Node right) {
+            super(left.length + right.length, Math.max(left.depth, right.depth) + 1);
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        char charAt(int index) {
+            return index < left.length ? left.charAt(index) : right.charAt(index - left.length);
+        }
+
+        @Override
+        void getChars(int start, int end, char[] dst, int dstBegin) {
+            if (start < left.length) {
+                int leftEnd = Math.min(end, left.length);
+                left.getChars(start, leftEnd, dst, dstBegin);
+                dstBegin += leftEnd - start;
+            }
+            if (end > left.length) {
+                right.getChars(Math.max(start, left.length) - left.length, end - left.length, dst, dstBegin);
+            }
+        }
+    }
+
+    private final Node root;
+
+    private TextRope(Node root) {
+        this.root = root;
+    }
+
+    public static TextRope of(CharSequence text) {
+        if (text == null || text.length() == 0) {
+            return EMPTY;
+        }
+        if (text instanceof TextRope) {
+            return (TextRope) text;
+        }
+        return new TextRope(build(text, 0, text.length()));
+    }
+
+    @Override
+    public int length() {
+        return root.length;
+    }
+
+    public boolean isEmpty() {
+        return root.length == 0;
+    }
+
+    @Override
+    public char charAt(int index) {
+        checkIndex(index, root.length);
+        Node node = root;
+        while (node instanceof Branch) {
+            Branch branch = (Branch) node;
+            if (index < branch.left.length) {
+                node = branch.left;
+            } else {
+                index -= branch.left.length;
+                node = branch.right;
+            }
+        }
+        return node.charAt(index);
+    }
+
+    public void getChars(int start, int end, char[] dst, int dstBegin) {
+        checkRange(start, end, root.length);
+        if (start < end) {
+            root.getChars(start, end, dst, dstBegin);
+        }
+    }
+
+    public String substring(int start, int end) {
+        checkRange(start, end, root.length);
+        char[] chars = new char[end - start];
+        getChars(start, end, chars, 0);
+        return new String(chars);
+    }
+
+    @Override
+    public TextRope subSequence(int start, int end) {
+        checkRange(start, end, root.length);
+        if (start == 0 && end == root.length) {
+            return this;
+        }
+        Node[] tail = split(root, start);
+        return new TextRope(split(tail[1], end - start)[0]);
+    }
+
+    public TextRope insert(int offset, CharSequence text) {
+        checkRange(offset, offset, root.length);
+        if (text == null || text.length() == 0) {
+            return this;
+        }
+        Node inserted = text instanceof TextRope ? ((TextRope) text).root : build(text, 0, text.length());
+        Node[] parts = split(root, offset);
+        return new TextRope(concat(concat(parts[0], inserted), parts[1]));
+    }
+
+    public TextRope delete(int offset, int length) {
+        checkRange(offset, offset + length, root.length);
+        if (length == 0) {
+            return this;
+        }
+        Node[] head = split(root, offset);
+        Node[] tail = split(head[1], length);
+        return new TextRope(concat(head[0], tail[1]));
+    }
+
+    public TextRope replace(int offset, int length, CharSequence text) {
+        return delete(offset, length).insert(offset, text);
+    }
+
+    public TextRope append(CharSequence text) {
+        return insert(root.length, text);
+    }
+
+    // Iterates the chunks in order, for streaming the text without materializing it
+    @Override
+    public Iterator<String> iterator() {
+        Deque<Node> stack = new ArrayDeque<>();
+        if (root.length > 0) {
+            stack.push(root);
+        }
+        return new Iterator<String>() {
+            @Override
+            public boolean hasNext() {
+                return !stack.isEmpty();
+            }
+
+            @Override
+            public String next() {
+                if (stack.isEmpty()) {
+                    throw new NoSuchElementException();
+                }
+                Node node = stack.pop();
+                while (node instanceof Branch) {
+                    Branch branch = (Branch) node;
+                    stack.push(branch.right);
+                    node = branch.left;
+                }
+                return ((Leaf) node).text;
+            }
+        };
+    }
+
+    // Length of the longest common prefix with the given text
+    public int commonPrefixLength(CharSequence other) {
+        int limit = Math.min(root.length, other.length());
+        int matched = 0;
+        for (String chunk : this) {
+            int n = Math.min(chunk.length(), limit - matched);
+            for (int i = 0; i < n; i++) {
+                if (chunk.charAt(i) != other.charAt(matched + i)) {
+                    return matched + i;
+                }
+            }
+            matched += n;
+            if (matched == limit) {
+                break;
+            }
+        }
+        return matched;
+    }
+
+    // Length of the longest common suffix with the given text, not reaching below 'floor' in either
+    public int commonSuffixLength(CharSequence other, int floor) {
+        int limit = Math.min(root.length, other.length()) - floor;
+        return limit <= 0 ? 0 : suffixMatch(root, other, other.length(), limit);
+    }
+
+    private static int suffixMatch(Node node, CharSequence other, int otherEnd, int limit) {
+        if (node instanceof Leaf) {
+            String text = ((Leaf) node).text;
+            int n = Math.min(text.length(), limit);
+            for (int i = 1; i <= n; i++) {
+                if (text.charAt(text.length() - i) != other.charAt(otherEnd - i)) {
+                    return i - 1;
+                }
+            }
+            return n;
+        }
+        Branch branch = (Branch) node;
+        int matched = suffixMatch(branch.right, other, otherEnd, limit);
+        if (matched < branch.right.length || matched == limit) {
+            return matched;
+        }
+        return matched + suffixMatch(branch.left, other, otherEnd - matched, limit - matched);
+    }
+
+    @Override
+    public String toString() {
+        if (root instanceof Leaf) {
+            return ((Leaf) root).text;
+        }
+        return substring(0, root.length);
+    }
+
+    // Builds a perfectly balanced tree over text[start, end)
+    private static Node build(CharSequence text, int start, int end) {
+        int length = end - start;
+        if (length <= MAX_LEAF) {
+            return new Leaf(text.subSequence(start, end).toString());
+        }
+        int leaves = (length + MAX_LEAF - 1) / MAX_LEAF;
+        int mid = start + (leaves / 2) * MAX_LEAF;
+        return new Branch(build(text, start, mid), build(text, mid, end));
+    }
+
+    // Splits a tree into [0, index) and [index, length)
+    private static Node[] split(Node node, int index) {
+        if (index <= 0) {
+            return new Node[] { EMPTY.root, node };
+        }
+        if (index >= node.length) {
+            return new Node[] { node, EMPTY.root };
+        }
+        if (node instanceof Leaf) {
+            String text = ((Leaf) node).text;
+            return new Node[] { new Leaf(text.substring(0, index)), new Leaf(text.substring(index)) };
+        }
+        Branch branch = (Branch) node;
+        if (index < branch.left.length) {
+            Node[] parts = split(branch.left, index);
+            return new Node[] { parts[0], concat(parts[1], branch.right) };
+        }
+        Node[] parts = split(branch.right, index - branch.left.length);
+        return new Node[] { concat(branch.left, parts[0]), parts[1] };
+    }
+
+    // Joins two trees keeping sibling depths within one of each other
+    private static Node concat(Node a, Node b) {
+        if (a.length == 0) {
+            return b;
+        }
+        if (b.length == 0) {
+            return a;
+        }
+        if (a.length + b.length <= MAX_LEAF) {
+            return new Leaf(flatten(a) + flatten(b));
+        }
+        if (a.depth > b.depth + 1) {
+            Branch left = (Branch) a;
+            return rebalance(left.left, concat(left.right, b));
+        }
+        if (b.depth > a.depth + 1) {
+            Branch right = (Branch) b;
+            return rebalance(concat(a, right.left), right.right);
+        }
+        return new Branch(a, b);
+    }
+
+    private static Node rebalance(Node left, Node right) {
+        if (left.depth > right.depth + 1) {
+            Branch l = (Branch) left;
+            if (l.left.depth >= l.right.depth) {
+                return concat(l.left, concat(l.right, right));
+            }
+            Branch lr = (Branch) l.right;
+            return concat(concat(l.left, lr.left), concat(lr.right, right));
+        }
+        if (right.depth > left.depth + 1) {
+            Branch r = (Branch) right;
+            if (r.right.depth >= r.left.depth) {
+                return concat(concat(left, r.left), r.right);
+            }
+            Branch rl = (Branch) r.left;
+            return concat(concat(left, rl.left), concat(rl.right, r.right));
+        }
+        return new Branch(left, right);
+    }
+
+    private static String flatten(Node node) {
+        if (node instanceof Leaf) {
+            return ((Leaf) node).text;
+        }
+        char[] chars = new char[node.length];
+        node.getChars(0, node.length, chars, 0);
+        return new String(chars);
+    }
+
+    private static void checkIndex(int index, int length) {
+        if (index < 0 || index >= length) {
+            throw new IndexOutOfBoundsException("index " + index + ", length " + length);
+        }
+    }
+
+    private static void checkRange(int start, int end, int length) {
+        if (start < 0 || end < start || end > length) {
+            throw new IndexOutOfBoundsException("range [" + start + ", " + end + "), length " + length);
+        }
+    }
+}
@@ -6,6 +6,7 @@ import src.model.DocumentVersion;
 import java.sql.*;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -66,6 +67,99 @@ public class DocumentService {
         return documents;
     }
     
+    // Last save time of every document (UTC "yyyy-MM-dd HH:mm:ss"), most recent first
+    public static Map<String, String> getDocumentTimestamps() {
+        Map<String, String> documents = new LinkedHashMap<>();
+        String sql = "SELECT name, updated_at FROM documents ORDER BY updated_at DESC";
+
+        try (Connection conn = DBUtil.getConnection();
+             Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery(sql)) {
+
+            while (rs.next()) {
+                documents.put(rs.getString("name"), rs.getString("updated_at"));
+            }
+        } catch (SQLException e) {
+            System.err.println("Error getting document timestamps: " + e.getMessage());
+        }
+
+        return documents;
+    }
+
+    // Removes the document with its versions, presence and cursor rows
+    public static boolean deleteDocument(String name) {
+        String[] statements = {
+            "DELETE FROM document_versions WHERE document_name = ?",
+            "DELETE FROM active_users WHERE document_name = ?",
+            "DELETE FROM cursor_positions WHERE document_name = ?",
+            "DELETE FROM documents WHERE name = ?"
+        };
+
+        try (Connection conn = DBUtil.getConnection()) {
+            conn.setAutoCommit(false);
+            try {
+                for (String sql : statements) {
+                    try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+                        pstmt.setString(1, name);
+                        pstmt.executeUpdate();
+                    }
+                }
+                conn.commit();
+                return true;
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            }
+        } catch (SQLException e) {
+            System.err.println("Error deleting document: " + e.getMessage());
+            return false;
+        }
+    }
+
+    // Names of documents saved after the given UTC timestamp ("yyyy-MM-dd HH:mm:ss")
+    public static List<String> getDocumentsUpdatedAfter(String timestamp) {
+        List<String> documents = new ArrayList<>();
+        String sql = "SELECT name FROM documents WHERE updated_at > ?";
+
+        try (Connection conn = DBUtil.getConnection();
+             PreparedStatement pstmt = conn.prepareStatement(sql)) {
+
+            pstmt.setString(1, timestamp);
+
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    documents.add(rs.getString("name"));
+                }
+            }
+        } catch (SQLException e) {
+            System.err.println("Error getting updated documents: " + e.getMessage());
+            return null;
+        }
+
+        return documents;
+    }
+
+    // Last save time of a document as stored by SQLite (UTC), or null if it doesn't exist
+    public static String getUpdatedAt(String name) {
+        String sql = "SELECT updated_at FROM documents WHERE name = ?";
+
+        try (Connection conn = DBUtil.getConnection();
+             PreparedStatement pstmt = conn.prepareStatement(sql)) {
+
+            pstmt.setString(1, name);
+
+            try (ResultSet rs = pstmt.executeQuery()) {
+                if (rs.next()) {
+                    return rs.getString("updated_at");
+                }
+            }
+        } catch (SQLException e) {
+            System.err.println("Error getting document timestamp: " + e.getMessage());
+        }
+
+        return null;
+    }
+
     public static boolean documentExists(String name) {
         String sql = "SELECT 1 FROM documents WHERE name = ?";
         
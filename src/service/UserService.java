@@ -48,6 +48,27 @@ public class UserService {
         return false;
     }
     
+    // Stored password hash, or null if there is no such user
+    public static String getPasswordHash(String username) {
+        String sql = "SELECT password FROM users WHERE username = ?";
+        
+        try (Connection conn = DBUtil.getConnection();
+             PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            
+            pstmt.setString(1, username);
+            
+            try (ResultSet rs = pstmt.executeQuery()) {
+                if (rs.next()) {
+                    return rs.getString("password");
+                }
+            }
+        } catch (SQLException e) {
+            System.err.println("Error loading user credentials: " + e.getMessage());
+        }
+        
+        return null;
+    }
+    
     public static boolean userExists(String username) {
         String sql = "SELECT 1 FROM users WHERE username = ?";
         
@@ -0,0 +1,49 @@
+package src.util;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+
+/**
+ * Fingerprint of document text, used by client and server to tell whether
+ * two copies are the same without sending either. SHA-256 over the UTF-16
+ * code units, so text split into chunks anywhere hashes the same as the
+ * whole string.
+ */
+public class ContentHash {
+
+    public static String of(String text) {
+        return of(Collections.singletonList(text));
+    }
+
+    public static String of(Iterable<String> chunks) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+        byte[] buffer = new byte[8192];
+        for (String chunk : chunks) {
+            int filled = 0;
+            for (int i = 0; i < chunk.length(); i++) {
+                char c = chunk.charAt(i);
+                buffer[filled++] = (byte) (c >> 8);
+                buffer[filled++] = (byte) c;
+                if (filled == buffer.length) {
+                    digest.update(buffer, 0, filled);
+                    filled = 0;
+                }
+            }
+            digest.update(buffer, 0, filled);
+        }
+
+        // 128 bits is plenty to tell versions of one document apart
+        byte[] hash = digest.digest();
+        StringBuilder sb = new StringBuilder(32);
+        for (int i = 0; i < 16; i++) {
+            sb.append(String.format("%02x", hash[i]));
+        }
+        return sb.toString();
+    }
+}
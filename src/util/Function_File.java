@@ -2,6 +2,9 @@ package src.util;
 
 import javax.swing.*;
 import javax.swing.filechooser.FileNameExtensionFilter;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Document;
+import javax.swing.text.Segment;
 import java.awt.*;
 import java.io.*;
 
@@ -81,6 +84,7 @@ public class Function_File {
                     }
                 }
                 
+                LargeDocumentMode.prepare(textArea, content.length());
                 textArea.setText(content.toString());
                 currentFileName = file.getName();
                 currentFilePath = file.getAbsolutePath();
@@ -154,7 +158,7 @@ public class Function_File {
     private boolean saveToFile(File file) {
         try {
             try (BufferedWriter writer = new BufferedWriter(new FileWriter(file))) {
-                writer.write(textArea.getText());
+                writeDocument(textArea.getDocument(), writer);
             }
             
             currentFileName = file.getName();
@@ -182,6 +186,23 @@ public class Function_File {
         }
     }
     
+    // Streams the document in chunks instead of copying it into one String
+    private void writeDocument(Document document, Writer writer) throws IOException {
+        Segment segment = new Segment();
+        segment.setPartialReturn(true);
+        int offset = 0;
+        int length = document.getLength();
+        try {
+            while (offset < length) {
+                document.getText(offset, Math.min(64 * 1024, length - offset), segment);
+                writer.write(segment.array, segment.offset, segment.count);
+                offset += segment.count;
+            }
+        } catch (BadLocationException e) {
+            throw new IOException("Document changed while saving", e);
+        }
+    }
+    
     public void exit() {
         if (hasChanges) {
             int choice = JOptionPane.showConfirmDialog(
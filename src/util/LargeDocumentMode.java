@@ -0,0 +1,49 @@
+package src.util;
+
+import javax.swing.JTextArea;
+import javax.swing.plaf.basic.BasicTextAreaUI;
+import javax.swing.text.Element;
+import javax.swing.text.PlainDocument;
+import javax.swing.text.View;
+
+/**
+ * Switches a JTextArea between the regular document/view pair and the
+ * rope-backed, virtualized one used for very large documents.
+ */
+public class LargeDocumentMode {
+
+    // Documents of at least this many characters use the large view (-Dcollab.largeDocumentThreshold)
+    public static final int THRESHOLD = Integer.getInteger("collab.largeDocumentThreshold", 2 * 1024 * 1024);
+
+    private static final String LARGE_DOCUMENT_PROPERTY = "collab.largeDocument";
+
+    private static class LargeTextAreaUI extends BasicTextAreaUI {
+        @Override
+        public View create(Element elem) {
+            return new LargeDocumentView(elem);
+        }
+    }
+
+    public static boolean isEnabled(JTextArea textArea) {
+        return Boolean.TRUE.equals(textArea.getDocument().getProperty(LARGE_DOCUMENT_PROPERTY));
+    }
+
+    /**
+     * Picks the mode for content of the given length. Must be called before
+     * setText. Switching replaces the text area's Document, so listeners
+     * have to follow the "document" property.
+     */
+    public static void prepare(JTextArea textArea, int length) {
+        boolean large = isEnabled(textArea);
+        if (!large && length >= THRESHOLD) {
+            PlainDocument document = new PlainDocument(new RopeContent());
+            document.putProperty(LARGE_DOCUMENT_PROPERTY, Boolean.TRUE);
+            textArea.setDocument(document);
+            textArea.setUI(new LargeTextAreaUI());
+        } else if (large && length < THRESHOLD / 2) {
+            // Switch back only well below the threshold so we don't flip on every edit
+            textArea.setDocument(new PlainDocument());
+            textArea.updateUI();
+        }
+    }
+}
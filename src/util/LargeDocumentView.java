@@ -0,0 +1,377 @@
+package src.util;
+
+import javax.swing.JTextArea;
+import javax.swing.event.DocumentEvent;
+import javax.swing.text.*;
+
+import java.awt.*;
+import java.util.Arrays;
+
+/**
+ * Text view for very large documents. Unlike WrappedPlainView it never
+ * lays out the whole document: rows are measured only for lines that are
+ * painted or hit-tested, and lines not measured yet count as one row.
+ * Line start offsets come from the document's line elements, and the row
+ * count of every line is kept in a Fenwick tree so mapping between a y
+ * coordinate and a line is O(log n).
+ */
+public class LargeDocumentView extends View implements TabExpander {
+    // Rows painted beyond the clip so small scrolls don't expose blank lines
+    private static final int MARGIN_ROWS = 20;
+
+    private FontMetrics metrics;
+    private int lineHeight;
+    private int tabBase;
+    private int wrapWidth;
+    private int widestLine;
+    private RowIndex rows;
+    private boolean preferenceChangePending;
+    private final Segment segment = new Segment();
+
+    public LargeDocumentView(Element elem) {
+        super(elem);
+    }
+
+    // Row counts per line plus a Fenwick tree over them
+    private static final class RowIndex {
+        final int[] counts; // 0 means not measured yet, counted as one row
+        final int[] tree;
+        int total;
+
+        RowIndex(int[] counts) {
+            this.counts = counts;
+            this.tree = new int[counts.length + 1];
+            for (int i = 1; i <= counts.length; i++) {
+                tree[i] += Math.max(1, counts[i - 1]);
+                int parent = i + (i & -i);
+                if (parent <= counts.length) {
+                    tree[parent] += tree[i];
+                }
+                total += Math.max(1, counts[i - 1]);
+            }
+        }
+
+        boolean isMeasured(int line) {
+            return counts[line] > 0;
+        }
+
+        void set(int line, int rowCount) {
+            int delta = Math.max(1, rowCount) - Math.max(1, counts[line]);
+            counts[line] = rowCount;
+            if (delta != 0) {
+                total += delta;
+                for (int i = line + 1; i < tree.length; i += i & -i) {
+                    tree[i] += delta;
+                }
+            }
+        }
+
+        int rowsBefore(int line) {
+            int sum = 0;
+            for (int i = line; i > 0; i -= i & -i) {
+                sum += tree[i];
+            }
+            return sum;
+        }
+
+        // Line containing the given row
+        int lineAtRow(int row) {
+            int pos = 0;
+            int remaining = row;
+            for (int step = Integer.highestOneBit(counts.length); step > 0; step >>= 1) {
+                int next = pos + step;
+                if (next <= counts.length && tree[next] <= remaining) {
+                    pos = next;
+                    remaining -= tree[next];
+                }
+            }
+            return Math.min(pos, counts.length - 1);
+        }
+
+        // Replaces 'removed' lines at 'index' with 'added' unmeasured lines
+        RowIndex splice(int index, int removed, int added) {
+            int[] updated = new int[counts.length - removed + added];
+            System.arraycopy(counts, 0, updated, 0, index);
+            System.arraycopy(counts, index + removed, updated, index + added, counts.length - index - removed);
+            return new RowIndex(updated);
+        }
+    }
+
+    private boolean isWrapping() {
+        Container host = getContainer();
+        return !(host instanceof JTextArea) || ((JTextArea) host).getLineWrap();
+    }
+
+    private boolean isWordWrap() {
+        Container host = getContainer();
+        return host instanceof JTextArea && ((JTextArea) host).getWrapStyleWord();
+    }
+
+    private void updateMetrics() {
+        Container host = getContainer();
+        Font font = host.getFont();
+        if (metrics == null || !font.equals(metrics.getFont())) {
+            metrics = host.getFontMetrics(font);
+            lineHeight = Math.max(1, metrics.getHeight());
+            rows = null;
+        }
+        if (rows == null) {
+            rows = new RowIndex(new int[getElement().getElementCount()]);
+            widestLine = 0;
+        }
+    }
+
+    // End of the line's text, excluding its newline
+    private static int contentEnd(Element line) {
+        return Math.max(line.getStartOffset(), line.getEndOffset() - 1);
+    }
+
+    private void loadText(int p0, int p1) {
+        try {
+            getDocument().getText(p0, p1 - p0, segment);
+        } catch (BadLocationException e) {
+            throw new IllegalStateException("Can't load text for view", e);
+        }
+    }
+
+    // Computes the start offset of every row the line wraps into and records the row count
+    private int[] measure(int lineIndex) {
+        Element line = getElement().getElement(lineIndex);
+        int p0 = line.getStartOffset();
+        int p1 = contentEnd(line);
+
+        int[] starts;
+        if (!isWrapping() || wrapWidth <= 0 || p1 <= p0) {
+            starts = new int[] { p0 };
+            if (!isWrapping() && p1 > p0 && !rows.isMeasured(lineIndex)) {
+                loadText(p0, p1);
+                int lineWidth = (int) Utilities.getTabbedTextWidth(segment, metrics, (float) tabBase, this, p0);
+                if (lineWidth > widestLine) {
+                    widestLine = lineWidth;
+                    preferenceChangePending = true;
+                }
+            }
+        } else {
+            starts = new int[4];
+            int count = 0;
+            boolean wordWrap = isWordWrap();
+            while (true) {
+                if (count == starts.length) {
+                    starts = Arrays.copyOf(starts, count * 2);
+                }
+                starts[count++] = p0;
+                // A row can't hold more characters than it has pixels
+                int segmentEnd = Math.min(p1, p0 + Math.max(256, wrapWidth));
+                loadText(p0, segmentEnd);
+                int p;
+                if (wordWrap) {
+                    p = p0 + Utilities.getBreakLocation(segment, metrics, (float) tabBase,
+                                                        (float) (tabBase + wrapWidth), this, p0);
+                } else {
+                    p = p0 + Utilities.getTabbedTextOffset(segment, metrics, (float) tabBase,
+                                                           (float) (tabBase + wrapWidth), this, p0, false);
+                }
+                if (p >= p1) {
+                    break;
+                }
+                p0 = p > p0 ? p : p0 + 1;
+            }
+            starts = Arrays.copyOf(starts, count);
+        }
+
+        if (rows.counts[lineIndex] != starts.length) {
+            int before = rows.total;
+            rows.set(lineIndex, starts.length);
+            preferenceChangePending |= rows.total != before;
+        }
+        return starts;
+    }
+
+    private static int rowContaining(int[] starts, int pos) {
+        int i = Arrays.binarySearch(starts, pos);
+        return i >= 0 ? i : Math.max(0, -i - 2);
+    }
+
+    private void firePendingPreferenceChange() {
+        if (preferenceChangePending) {
+            preferenceChangePending = false;
+            // Layout can't change in the middle of painting or hit testing
+            javax.swing.SwingUtilities.invokeLater(() -> {
+                if (getParent() != null) {
+                    preferenceChanged(null, true, true);
+                }
+            });
+        }
+    }
+
+    @Override
+    public void paint(Graphics g, Shape a) {
+        Rectangle alloc = a.getBounds();
+        updateMetrics();
+        tabBase = alloc.x;
+
+        JTextComponent host = (JTextComponent) getContainer();
+        Rectangle clip = g.getClipBounds();
+        if (clip == null) {
+            clip = alloc;
+        }
+        g.setFont(host.getFont());
+        g.setColor(host.isEnabled() ? host.getForeground() : host.getDisabledTextColor());
+
+        int firstRow = Math.max(0, (clip.y - alloc.y) / lineHeight - MARGIN_ROWS);
+        int lastRow = (clip.y + clip.height - alloc.y) / lineHeight + MARGIN_ROWS;
+        int lineCount = getElement().getElementCount();
+
+        int line = rows.lineAtRow(firstRow);
+        int row = rows.rowsBefore(line);
+        int ascent = metrics.getAscent();
+        while (line < lineCount && row <= lastRow) {
+            int[] starts = measure(line);
+            int end = contentEnd(getElement().getElement(line));
+            for (int i = 0; i < starts.length && row + i <= lastRow; i++) {
+                if (row + i < firstRow) {
+                    continue;
+                }
+                int p1 = i + 1 < starts.length ? starts[i + 1] : end;
+                if (p1 > starts[i]) {
+                    loadText(starts[i], p1);
+                    Utilities.drawTabbedText(segment, (float) alloc.x,
+                                             (float) (alloc.y + (row + i) * lineHeight + ascent),
+                                             (Graphics2D) g, this, starts[i]);
+                }
+            }
+            row += starts.length;
+            line++;
+        }
+        firePendingPreferenceChange();
+    }
+
+    @Override
+    public float getPreferredSpan(int axis) {
+        updateMetrics();
+        if (axis == X_AXIS) {
+            return isWrapping() ? Math.max(wrapWidth, 1) : widestLine + metrics.charWidth('m');
+        }
+        return rows.total * lineHeight;
+    }
+
+    @Override
+    public void setSize(float width, float height) {
+        updateMetrics();
+        int newWidth = (int) width;
+        if (newWidth != wrapWidth) {
+            wrapWidth = newWidth;
+            if (isWrapping()) {
+                // Every row break depends on the width, measure again on demand
+                rows = new RowIndex(new int[getElement().getElementCount()]);
+                preferenceChangePending = true;
+                firePendingPreferenceChange();
+            }
+        }
+    }
+
+    @Override
+    public Shape modelToView(int pos, Shape a, Position.Bias b) throws BadLocationException {
+        if (pos < getStartOffset() || pos > getEndOffset()) {
+            throw new BadLocationException("Invalid location", pos);
+        }
+        Rectangle alloc = a.getBounds();
+        updateMetrics();
+        tabBase = alloc.x;
+
+        int line = getElement().getElementIndex(pos);
+        int[] starts = measure(line);
+        int i = rowContaining(starts, pos);
+        int end = Math.min(pos, contentEnd(getElement().getElement(line)));
+        int x = alloc.x;
+        if (end > starts[i]) {
+            loadText(starts[i], end);
+            x += (int) Utilities.getTabbedTextWidth(segment, metrics, (float) alloc.x, this, starts[i]);
+        }
+        int y = alloc.y + (rows.rowsBefore(line) + i) * lineHeight;
+        firePendingPreferenceChange();
+        return new Rectangle(x, y, 1, lineHeight);
+    }
+
+    @Override
+    public int viewToModel(float fx, float fy, Shape a, Position.Bias[] bias) {
+        bias[0] = Position.Bias.Forward;
+        Rectangle alloc = a.getBounds();
+        updateMetrics();
+        tabBase = alloc.x;
+
+        if (fy < alloc.y) {
+            return getStartOffset();
+        }
+        int targetRow = (int) ((fy - alloc.y) / lineHeight);
+
+        // Measuring a line can shift the rows after it, so settle on a measured line
+        int line = rows.lineAtRow(targetRow);
+        while (!rows.isMeasured(line)) {
+            measure(line);
+            line = rows.lineAtRow(targetRow);
+        }
+        firePendingPreferenceChange();
+        if (targetRow >= rows.total) {
+            return getEndOffset() - 1;
+        }
+
+        int[] starts = measure(line);
+        int i = Math.min(starts.length - 1, Math.max(0, targetRow - rows.rowsBefore(line)));
+        int p0 = starts[i];
+        boolean lastRow = i + 1 == starts.length;
+        int p1 = lastRow ? contentEnd(getElement().getElement(line)) : starts[i + 1];
+        if (p1 <= p0) {
+            return p0;
+        }
+        loadText(p0, p1);
+        int offset = p0 + Utilities.getTabbedTextOffset(segment, metrics, (float) alloc.x, fx, this, p0, true);
+        // Past the end of a wrapped row the caret stays on that row
+        return lastRow ? Math.min(offset, p1) : Math.min(offset, p1 - 1);
+    }
+
+    @Override
+    public float nextTabStop(float x, int tabOffset) {
+        Object tabSizeProperty = getDocument().getProperty(PlainDocument.tabSizeAttribute);
+        int tabSize = (tabSizeProperty instanceof Integer ? (Integer) tabSizeProperty : 8) * metrics.charWidth('m');
+        if (tabSize == 0) {
+            return x;
+        }
+        int tabs = ((int) x - tabBase) / tabSize;
+        return tabBase + (tabs + 1) * tabSize;
+    }
+
+    @Override
+    public void insertUpdate(DocumentEvent e, Shape a, ViewFactory f) {
+        updateLines(e);
+    }
+
+    @Override
+    public void removeUpdate(DocumentEvent e, Shape a, ViewFactory f) {
+        updateLines(e);
+    }
+
+    @Override
+    public void changedUpdate(DocumentEvent e, Shape a, ViewFactory f) {
+        updateLines(e);
+    }
+
+    private void updateLines(DocumentEvent e) {
+        if (rows != null) {
+            Element root = getElement();
+            DocumentEvent.ElementChange change = e.getChange(root);
+            if (change != null) {
+                rows = rows.splice(change.getIndex(), change.getChildrenRemoved().length,
+                                   change.getChildrenAdded().length);
+            } else {
+                rows.set(root.getElementIndex(e.getOffset()), 0);
+            }
+        }
+        preferenceChanged(null, true, true);
+        Container host = getContainer();
+        if (host != null) {
+            // Only the visible rows get painted, so a full repaint stays cheap
+            host.repaint();
+        }
+    }
+}
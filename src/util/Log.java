@@ -0,0 +1,33 @@
+package src.util;
+
+public class Log {
+
+    public enum Level { DEBUG, INFO, WARN, ERROR }
+
+    // Run with -Dcollab.log=DEBUG to trace individual protocol messages
+    private static volatile Level level = parseLevel(System.getProperty("collab.log", "INFO"));
+
+    private static Level parseLevel(String value) {
+        try {
+            return Level.valueOf(value.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            return Level.INFO;
+        }
+    }
+
+    public static void setLevel(Level newLevel) {
+        level = newLevel;
+    }
+
+    public static boolean isDebugEnabled() {
+        return level == Level.DEBUG;
+    }
+
+    // Callers that build the message by concatenation should check
+    // isDebugEnabled() first so nothing is allocated when debug is off.
+    public static void debug(String message) {
+        if (isDebugEnabled()) {
+            System.out.println(message);
+        }
+    }
+}
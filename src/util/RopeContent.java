@@ -0,0 +1,127 @@
+package src.util;
+
+import src.model.TextRope;
+
+import javax.swing.text.AbstractDocument;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Position;
+import javax.swing.text.Segment;
+import javax.swing.undo.UndoableEdit;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Document storage backed by a TextRope, used for very large documents
+ * where GapContent would have to move megabytes on edits far apart.
+ * Positions follow the same rules as javax.swing.text.StringContent.
+ */
+public class RopeContent implements AbstractDocument.Content {
+
+    private static final class Mark implements Position {
+        int offset;
+
+        Mark(int offset) {
+            this.offset = offset;
+        }
+
+        @Override
+        public int getOffset() {
+            return offset;
+        }
+    }
+
+    // Most a partial getChars copies; callers that allow it come back for the rest
+    private static final int PARTIAL_CHARS = 8 * 1024;
+
+    private volatile TextRope text = TextRope.of("\n");
+    private final List<WeakReference<Mark>> marks = new ArrayList<>();
+    private int purgeThreshold = 64;
+    // Handed out by getChars and overwritten by the next call, like GapContent's own array (guarded by this)
+    private final char[] buffer = new char[PARTIAL_CHARS];
+
+    @Override
+    public synchronized Position createPosition(int offset) throws BadLocationException {
+        if (offset < 0 || offset > text.length()) {
+            throw new BadLocationException("Invalid position", offset);
+        }
+        Mark mark = new Mark(offset);
+        marks.add(new WeakReference<>(mark));
+        if (marks.size() > purgeThreshold) {
+            marks.removeIf(ref -> ref.get() == null);
+            purgeThreshold = Math.max(64, marks.size() * 2);
+        }
+        return mark;
+    }
+
+    @Override
+    public int length() {
+        return text.length();
+    }
+
+    @Override
+    public synchronized UndoableEdit insertString(int where, String str) throws BadLocationException {
+        if (where < 0 || where >= text.length()) {
+            throw new BadLocationException("Invalid insert", text.length());
+        }
+        text = text.insert(where, str);
+        // Offset zero only moves marks after it, as in StringContent
+        int from = where == 0 ? 1 : where;
+        for (WeakReference<Mark> ref : marks) {
+            Mark mark = ref.get();
+            if (mark != null && mark.offset >= from) {
+                mark.offset += str.length();
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public synchronized UndoableEdit remove(int where, int nitems) throws BadLocationException {
+        if (where < 0 || where + nitems >= text.length()) {
+            throw new BadLocationException("Invalid remove", text.length());
+        }
+        text = text.delete(where, nitems);
+        int end = where + nitems;
+        for (WeakReference<Mark> ref : marks) {
+            Mark mark = ref.get();
+            if (mark == null) {
+                continue;
+            }
+            if (mark.offset >= end) {
+                mark.offset -= nitems;
+            } else if (mark.offset >= where) {
+                mark.offset = where;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public String getString(int where, int len) throws BadLocationException {
+        TextRope current = text;
+        if (where < 0 || len < 0 || where + len > current.length()) {
+            throw new BadLocationException("Invalid range", current.length());
+        }
+        return current.substring(where, where + len);
+    }
+
+    @Override
+    public synchronized void getChars(int where, int len, Segment txt) throws BadLocationException {
+        TextRope current = text;
+        if (where < 0 || len < 0 || where + len > current.length()) {
+            throw new BadLocationException("Invalid range", current.length());
+        }
+        if (txt.isPartialReturn()) {
+            len = Math.min(len, PARTIAL_CHARS);
+        }
+        // Never write into txt.array, it may belong to another document's storage. Only
+        // small requests share the buffer, so a whole-document one isn't kept around.
+        char[] chars = len <= PARTIAL_CHARS ? buffer : new char[len];
+        current.getChars(where, where + len, chars, 0);
+        txt.array = chars;
+        txt.offset = 0;
+        txt.count = len;
+    }
+}
@@ -0,0 +1,120 @@
+package src.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Escaping for payloads sent over the line based protocol.
+ * Every message is a single line, so line breaks inside document
+ * content have to be escaped before sending and restored on receipt.
+ * Values that are one field of a delimited message (document names in
+ * a list) additionally escape ',' and ':'.
+ */
+public class WireCodec {
+
+    public static String escape(String text) {
+        if (text == null) {
+            return "";
+        }
+        StringBuilder sb = null;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            String replacement = replacementFor(c);
+            if (replacement != null) {
+                if (sb == null) {
+                    sb = new StringBuilder(text.length() + 16);
+                    sb.append(text, 0, i);
+                }
+                sb.append(replacement);
+            } else if (sb != null) {
+                sb.append(c);
+            }
+        }
+        return sb == null ? text : sb.toString();
+    }
+
+    public static String unescape(String text) {
+        if (text == null || text.indexOf('\\') < 0) {
+            return text;
+        }
+        StringBuilder sb = new StringBuilder(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '\\' && i + 1 < text.length()) {
+                char next = text.charAt(++i);
+                if (next == 'n') {
+                    sb.append('\n');
+                } else if (next == 'r') {
+                    sb.append('\r');
+                } else {
+                    sb.append(next);
+                }
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    public static String escapeField(String text) {
+        if (text == null) {
+            return "";
+        }
+        StringBuilder sb = new StringBuilder(text.length() + 8);
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            String replacement = replacementFor(c);
+            if (replacement != null) {
+                sb.append(replacement);
+            } else if (c == ',' || c == ':') {
+                sb.append('\\').append(c);
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    // Splits on separators that aren't escaped and unescapes each field; empty fields are dropped
+    public static List<String> splitFields(String text, char separator) {
+        List<String> fields = new ArrayList<>();
+        int start = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '\\') {
+                i++;
+            } else if (c == separator) {
+                if (i > start) {
+                    fields.add(unescape(text.substring(start, i)));
+                }
+                start = i + 1;
+            }
+        }
+        if (start < text.length()) {
+            fields.add(unescape(text.substring(start)));
+        }
+        return fields;
+    }
+
+    // Index of the first separator that isn't escaped, or -1
+    public static int indexOfField(String text, char separator) {
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '\\') {
+                i++;
+            } else if (c == separator) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static String replacementFor(char c) {
+        switch (c) {
+            case '\\': return "\\\\";
+            case '\n': return "\\n";
+            case '\r': return "\\r";
+            default: return null;
+        }
+    }
+}
@@ -0,0 +1,32 @@
+@echo off
+title Collaborative Notepad - CLUSTER
+echo ================================
+echo  COLLABORATIVE NOTEPAD CLUSTER
+echo ================================
+echo.
+echo Current directory: %CD%
+echo.
+REM Every node gets the same member list; they share the database and session key in db\
+set CLUSTER=localhost:5000,localhost:5001,localhost:5002
+
+echo Compiling server components...
+
+REM Compile all Java files with correct classpath
+javac -cp "lib\*" -d . src\util\*.java src\service\*.java src\model\*.java src\*.java
+
+if %ERRORLEVEL% EQU 0 (
+    echo.
+    echo ✅ Server compiled successfully!
+    echo.
+    echo Starting three nodes on localhost:5000, 5001 and 5002...
+    echo Clients connect to any node and are sent to the one that owns each document.
+    echo ================================
+    start "Collab node 5000" java -cp "lib\*;." -Dcollab.port=5000 -Dcollab.cluster=%CLUSTER% src.CollabServer
+    start "Collab node 5001" java -cp "lib\*;." -Dcollab.port=5001 -Dcollab.cluster=%CLUSTER% src.CollabServer
+    start "Collab node 5002" java -cp "lib\*;." -Dcollab.port=5002 -Dcollab.cluster=%CLUSTER% src.CollabServer
+) else (
+    echo.
+    echo ❌ Compilation failed!
+    echo Check your Java files for errors.
+    pause
+)
\ No newline at end of file
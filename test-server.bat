@@ -9,7 +9,7 @@ echo.
 echo Compiling server components...
 
 REM Compile all Java files with correct classpath
-javac -cp "lib\*" -d . src\util\*.java src\service\*.java src\model\*.java src\CollabServer.java src\ClientHandler.java
+javac -cp "lib\*" -d . src\util\*.java src\service\*.java src\model\*.java src\*.java
 
 if %ERRORLEVEL% EQU 0 (
     echo.